@@ -0,0 +1,269 @@
+/*
+ * Copyright (C) 2014 Vincent Breitmoser <v.breitmoser@mugenguild.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.operations;
+
+import android.net.Uri;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.openintents.openpgp.OpenPgpSignatureResult;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.shadows.ShadowContentResolver;
+import org.robolectric.shadows.ShadowLog;
+import org.spongycastle.bcpg.sig.KeyFlags;
+import org.spongycastle.jce.provider.BouncyCastleProvider;
+import org.sufficientlysecure.keychain.operations.results.BatchVerifyResult;
+import org.sufficientlysecure.keychain.operations.results.DecryptVerifyResult;
+import org.sufficientlysecure.keychain.operations.results.OperationResult.LogType;
+import org.sufficientlysecure.keychain.operations.results.PgpEditKeyResult;
+import org.sufficientlysecure.keychain.operations.results.PgpSignEncryptResult;
+import org.sufficientlysecure.keychain.pgp.PgpKeyOperation;
+import org.sufficientlysecure.keychain.pgp.PgpSignEncryptInput;
+import org.sufficientlysecure.keychain.pgp.PgpSignEncryptOperation;
+import org.sufficientlysecure.keychain.pgp.UncachedKeyRing;
+import org.sufficientlysecure.keychain.provider.ProviderHelper;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel.Algorithm;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel.ChangeUnlockParcel;
+import org.sufficientlysecure.keychain.support.KeyringTestingHelper;
+import org.sufficientlysecure.keychain.util.InputData;
+import org.sufficientlysecure.keychain.util.ProgressScaler;
+import org.sufficientlysecure.keychain.util.TestingUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.Security;
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+@RunWith(RobolectricTestRunner.class)
+@org.robolectric.annotation.Config(emulateSdk = 18) // Robolectric doesn't yet support 19
+public class BatchVerifyOperationTest {
+
+    static UncachedKeyRing mStaticRing;
+    static String mKeyPhrase = TestingUtils.genPassphrase(true);
+
+    ArrayList<Uri> mDataUris = new ArrayList<>();
+    ArrayList<Uri> mSignatureUris = new ArrayList<>();
+
+    @BeforeClass
+    public static void setUpOnce() throws Exception {
+        Security.insertProviderAt(new BouncyCastleProvider(), 1);
+        ShadowLog.stream = System.out;
+
+        PgpKeyOperation op = new PgpKeyOperation(null);
+
+        SaveKeyringParcel parcel = new SaveKeyringParcel();
+        parcel.mAddSubKeys.add(new SaveKeyringParcel.SubkeyAdd(
+                Algorithm.RSA, 1024, null, KeyFlags.CERTIFY_OTHER, 0L));
+        parcel.mAddSubKeys.add(new SaveKeyringParcel.SubkeyAdd(
+                Algorithm.DSA, 1024, null, KeyFlags.SIGN_DATA, 0L));
+        parcel.mAddUserIds.add("verify");
+        parcel.mNewUnlock = new ChangeUnlockParcel(mKeyPhrase);
+
+        PgpEditKeyResult result = op.createSecretKeyRing(parcel);
+        Assert.assertTrue("initial test key creation must succeed", result.success());
+        Assert.assertNotNull("initial test key creation must succeed", result.getRing());
+
+        mStaticRing = result.getRing();
+    }
+
+    @Before
+    public void setUp() {
+        new ProviderHelper(Robolectric.application).saveSecretKeyRing(mStaticRing, new ProgressScaler());
+        mDataUris.clear();
+        mSignatureUris.clear();
+    }
+
+    @Test
+    public void testResultsInInputOrder() throws Exception {
+
+        byte[] first = randomData(), second = randomData(), third = randomData();
+        addFile(first, sign(first));
+        // a signature over other data
+        addFile(second, sign(first));
+        addFile(third, sign(third));
+
+        BatchVerifyResult result = execute();
+
+        Assert.assertTrue("batch with only readable signatures must succeed", result.success());
+        Assert.assertEquals("there must be one result per file", 3, result.getResults().size());
+        assertSignatureStatus("first file", result.getResults().get(0),
+                OpenPgpSignatureResult.SIGNATURE_SUCCESS_CERTIFIED);
+        assertSignatureStatus("second file", result.getResults().get(1),
+                OpenPgpSignatureResult.SIGNATURE_ERROR);
+        assertSignatureStatus("third file", result.getResults().get(2),
+                OpenPgpSignatureResult.SIGNATURE_SUCCESS_CERTIFIED);
+
+    }
+
+    @Test
+    public void testPartialFailure() throws Exception {
+
+        byte[] first = randomData(), second = randomData(), third = randomData();
+        addFile(first, sign(first));
+        addFile(second, "this is no signature".getBytes());
+        addFile(third, sign(third));
+
+        BatchVerifyResult result = execute();
+
+        Assert.assertFalse("batch with a broken signature must fail", result.success());
+        Assert.assertTrue("failure must be logged",
+                result.getLog().containsType(LogType.MSG_VB_ERROR));
+        Assert.assertEquals("all files must still get a result", 3, result.getResults().size());
+        assertSignatureStatus("first file", result.getResults().get(0),
+                OpenPgpSignatureResult.SIGNATURE_SUCCESS_CERTIFIED);
+        Assert.assertFalse("broken signature must fail", result.getResults().get(1).success());
+        assertSignatureStatus("third file", result.getResults().get(2),
+                OpenPgpSignatureResult.SIGNATURE_SUCCESS_CERTIFIED);
+
+    }
+
+    @Test
+    public void testCountMismatch() throws Exception {
+
+        byte[] first = randomData(), second = randomData();
+        addFile(first, sign(first));
+        mDataUris.add(registerStream("data-extra", new ByteArrayInputStream(second)));
+
+        BatchVerifyResult result = execute();
+
+        Assert.assertFalse("mismatching uri counts must fail", result.success());
+        Assert.assertTrue("mismatch must be logged",
+                result.getLog().containsType(LogType.MSG_VB_ERROR_MISMATCH));
+        Assert.assertTrue("no file must be verified", result.getResults().isEmpty());
+
+    }
+
+    @Test
+    public void testParallelExecution() throws Exception {
+
+        // files only finish once as many are being read at the same time as there are
+        // threads, which never happens if they are verified one after the other
+        int num = 4;
+        int threads = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), num));
+        final CountDownLatch running = new CountDownLatch(threads);
+        final AtomicBoolean timedOut = new AtomicBoolean(false);
+
+        for (int i = 0; i < num; i++) {
+            byte[] data = randomData();
+            final InputStream in = new ByteArrayInputStream(data);
+            InputStream rendezvous = new InputStream() {
+                boolean mStarted;
+
+                private void rendezvous() throws IOException {
+                    if (mStarted) {
+                        return;
+                    }
+                    mStarted = true;
+                    running.countDown();
+                    try {
+                        if (!running.await(10, TimeUnit.SECONDS)) {
+                            timedOut.set(true);
+                        }
+                    } catch (InterruptedException e) {
+                        throw new IOException(e);
+                    }
+                }
+
+                @Override
+                public int read() throws IOException {
+                    rendezvous();
+                    return in.read();
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    rendezvous();
+                    return in.read(b, off, len);
+                }
+            };
+            mDataUris.add(registerStream("data" + i, rendezvous));
+            mSignatureUris.add(registerStream("signature" + i, new ByteArrayInputStream(sign(data))));
+        }
+
+        BatchVerifyResult result = execute();
+
+        Assert.assertTrue("batch must succeed", result.success());
+        Assert.assertFalse("files must be verified in parallel", timedOut.get());
+        Assert.assertEquals("there must be one result per file", num, result.getResults().size());
+        for (DecryptVerifyResult fileResult : result.getResults()) {
+            assertSignatureStatus("each file", fileResult,
+                    OpenPgpSignatureResult.SIGNATURE_SUCCESS_CERTIFIED);
+        }
+
+    }
+
+    BatchVerifyResult execute() {
+        BatchVerifyOperation op = new BatchVerifyOperation(Robolectric.application,
+                new ProviderHelper(Robolectric.application), null, null);
+        return op.execute(mDataUris, mSignatureUris);
+    }
+
+    void addFile(byte[] data, byte[] signature) {
+        int i = mDataUris.size();
+        mDataUris.add(registerStream("data" + i, new ByteArrayInputStream(data)));
+        mSignatureUris.add(registerStream("signature" + i, new ByteArrayInputStream(signature)));
+    }
+
+    Uri registerStream(String name, InputStream in) {
+        Uri uri = Uri.parse("content://org.sufficientlysecure.keychain.test/" + name);
+        ShadowContentResolver resolver =
+                Robolectric.shadowOf(Robolectric.application.getContentResolver());
+        resolver.registerInputStream(uri, in);
+        return uri;
+    }
+
+    static byte[] randomData() {
+        return ("dies ist ein plaintext ☭" + TestingUtils.genPassphrase(true)).getBytes();
+    }
+
+    static byte[] sign(byte[] data) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ByteArrayInputStream in = new ByteArrayInputStream(data);
+
+        PgpSignEncryptOperation op = new PgpSignEncryptOperation(Robolectric.application,
+                new ProviderHelper(Robolectric.application), null);
+
+        PgpSignEncryptInput input = new PgpSignEncryptInput();
+        input.setDetachedSignature(true);
+        input.setSignatureMasterKeyId(mStaticRing.getMasterKeyId());
+        input.setSignatureSubKeyId(KeyringTestingHelper.getSubkeyId(mStaticRing, 1));
+        input.setSignaturePassphrase(mKeyPhrase);
+
+        PgpSignEncryptResult result = op.execute(input, new InputData(in, in.available()), out);
+        Assert.assertTrue("signing must succeed", result.success());
+        return result.getDetachedSignature();
+    }
+
+    static void assertSignatureStatus(String what, DecryptVerifyResult result, int status) {
+        Assert.assertTrue(what + " must be verified", result.success());
+        Assert.assertNotNull(what + " must have a signature result", result.getSignatureResult());
+        Assert.assertEquals(what + " must have the expected signature status",
+                status, result.getSignatureResult().getStatus());
+    }
+
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2014 Vincent Breitmoser <v.breitmoser@mugenguild.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.operations;
+
+import android.database.sqlite.SQLiteDatabase;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.shadows.ShadowLog;
+import org.sufficientlysecure.keychain.keyimport.ParcelableKeyRing;
+import org.sufficientlysecure.keychain.operations.results.ImportKeyResult;
+import org.sufficientlysecure.keychain.pgp.UncachedKeyRing;
+import org.sufficientlysecure.keychain.provider.KeychainProvider;
+import org.sufficientlysecure.keychain.provider.ProviderHelper;
+import org.sufficientlysecure.keychain.provider.ProviderHelper.NotFoundException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+@RunWith(RobolectricTestRunner.class)
+@org.robolectric.annotation.Config(emulateSdk = 18) // Robolectric doesn't yet support 19
+public class ImportTest {
+
+    SQLiteDatabase mDb;
+
+    @BeforeClass
+    public static void setUpOnce() throws Exception {
+        ShadowLog.stream = System.out;
+    }
+
+    @Before
+    public void setUp() {
+        KeychainProvider provider = new KeychainProvider();
+        provider.attachInfo(Robolectric.application, null);
+        mDb = provider.getDb().getWritableDatabase();
+    }
+
+    @After
+    public void tearDown() {
+        mDb.execSQL("DROP TRIGGER IF EXISTS fail_user_ids");
+    }
+
+    @Test
+    public void testBatchWithFailingKey() throws Exception {
+
+        UncachedKeyRing first = readRingFromResource("/test-keys/mailvelope_07_no_key_flags.asc");
+        UncachedKeyRing failing = readRingFromResource("/test-keys/symantec_public.asc");
+        UncachedKeyRing last = readRingFromResource("/test-keys/stripped_flags.asc");
+
+        // make the failing keyring's save break halfway, after its key rows were written
+        mDb.execSQL("CREATE TRIGGER fail_user_ids BEFORE INSERT ON user_ids"
+                + " WHEN new.master_key_id = " + failing.getMasterKeyId()
+                + " BEGIN SELECT RAISE(ABORT, 'test failure'); END");
+
+        ArrayList<ParcelableKeyRing> entries = new ArrayList<>();
+        entries.add(new ParcelableKeyRing(first.getEncoded()));
+        entries.add(new ParcelableKeyRing(failing.getEncoded()));
+        entries.add(new ParcelableKeyRing(last.getEncoded()));
+
+        ProviderHelper providerHelper = new ProviderHelper(Robolectric.application);
+        ImportExportOperation op = new ImportExportOperation(Robolectric.application,
+                providerHelper, null);
+        // all three in a single batch
+        op.setBatchSize(10);
+        ImportKeyResult result = op.importKeyRings(entries, null);
+
+        Assert.assertEquals("two keyrings should be imported", 2, result.mNewKeys);
+        Assert.assertEquals("one keyring should fail", 1, result.mBadKeys);
+
+        long[] imported = result.getImportedMasterKeyIds();
+        Arrays.sort(imported);
+        long[] expected = new long[] { first.getMasterKeyId(), last.getMasterKeyId() };
+        Arrays.sort(expected);
+        Assert.assertArrayEquals("only the good keyrings should be reported as imported",
+                expected, imported);
+
+        // everything that was reported must actually be in the database
+        providerHelper.getCanonicalizedPublicKeyRing(first.getMasterKeyId());
+        providerHelper.getCanonicalizedSecretKeyRing(last.getMasterKeyId());
+
+        try {
+            providerHelper.getCanonicalizedPublicKeyRing(failing.getMasterKeyId());
+            Assert.fail("failed keyring must not be left in the database halfway");
+        } catch (NotFoundException e) {
+            // good
+        }
+
+    }
+
+    UncachedKeyRing readRingFromResource(String name) throws Exception {
+        return UncachedKeyRing.fromStream(ImportTest.class.getResourceAsStream(name)).next();
+    }
+
+}
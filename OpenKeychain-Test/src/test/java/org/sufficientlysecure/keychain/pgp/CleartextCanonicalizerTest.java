@@ -0,0 +1,175 @@
+/*
+ * Copyright (C) 2014 Vincent Breitmoser <v.breitmoser@mugenguild.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.pgp;
+
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.InputStreamReader;
+import java.security.MessageDigest;
+import java.util.Random;
+
+@RunWith(RobolectricTestRunner.class)
+@org.robolectric.annotation.Config(emulateSdk = 18) // Robolectric doesn't yet support 19
+public class CleartextCanonicalizerTest {
+
+    static final byte[] CRLF = { '\r', '\n' };
+
+    @Test
+    public void testCanonicalization() throws Exception {
+
+        String[] inputs = {
+                "", "\n", "\r\n", "\r", "\n\n", "a", "a\n", "a  \t", "a \r\n b \r\n",
+                "one\rtwo\nthree\r\nfour", "\r\r\n\n", "  \t  ", "trailing\t \n\t \n",
+                "- dash\n-- more\n", "in ter nal   space \t x  \n",
+        };
+
+        for (String input : inputs) {
+            byte[] data = input.getBytes("UTF-8");
+            byte[] expected = digestLegacy(data);
+
+            // the result must not depend on how the input is split up
+            for (int chunk = 1; chunk <= data.length + 1; chunk++) {
+                Assert.assertArrayEquals("canonicalization of '" + input + "' in chunks of " + chunk,
+                        expected, digest(data, chunk));
+            }
+        }
+
+    }
+
+    @Test
+    public void testRandomText() throws Exception {
+
+        byte[] data = generateText(new Random(23), 64 * 1024);
+        byte[] expected = digestLegacy(data);
+
+        Assert.assertArrayEquals("canonicalization must match line based processing",
+                expected, digest(data, 4096));
+        Assert.assertArrayEquals("canonicalization must match in odd chunks",
+                expected, digest(data, 7));
+
+    }
+
+    /** Compares throughput with the String based, line by line processing used before.
+     *
+     * This is a benchmark rather than a test, it is skipped unless the benchmark system
+     * property is set, e.g. by running gradle test -Dbenchmark=true.
+     */
+    @Test
+    public void testThroughput() throws Exception {
+
+        Assume.assumeTrue("benchmarks are disabled", Boolean.getBoolean("benchmark"));
+
+        byte[] data = generateText(new Random(42), 4 * 1024 * 1024);
+
+        // warm up, and make sure we compare the same thing
+        Assert.assertArrayEquals("canonicalization must match line based processing",
+                digestLegacy(data), digest(data, 64 * 1024));
+
+        long start = System.nanoTime();
+        for (int i = 0; i < 3; i++) {
+            digestLegacy(data);
+        }
+        long legacyNanos = (System.nanoTime() - start) / 3;
+
+        start = System.nanoTime();
+        for (int i = 0; i < 3; i++) {
+            digest(data, 64 * 1024);
+        }
+        long bufferNanos = (System.nanoTime() - start) / 3;
+
+        System.out.println("cleartext canonicalization of " + (data.length >> 20) + " MiB: "
+                + "line based " + (legacyNanos / 1000000) + " ms ("
+                + throughput(data.length, legacyNanos) + " MiB/s), "
+                + "byte based " + (bufferNanos / 1000000) + " ms ("
+                + throughput(data.length, bufferNanos) + " MiB/s)");
+
+    }
+
+    private static long throughput(long bytes, long nanos) {
+        return nanos == 0 ? 0 : (bytes * 1000000000L / nanos) >> 20;
+    }
+
+    private static byte[] digest(byte[] data, int chunk) throws Exception {
+        final MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        CleartextCanonicalizer canonicalizer = new CleartextCanonicalizer() {
+            @Override
+            protected void writeLine(byte[] buffer, int off, int len) {
+                digest.update(buffer, off, len);
+            }
+
+            @Override
+            protected void endLine() {
+                digest.update(CRLF);
+            }
+        };
+        for (int off = 0; off < data.length; off += chunk) {
+            canonicalizer.update(data, off, Math.min(chunk, data.length - off));
+        }
+        return digest.digest();
+    }
+
+    /** The String based processing previously used for cleartext signing. */
+    private static byte[] digestLegacy(byte[] data) throws Exception {
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new ByteArrayInputStream(data), "UTF-8"));
+
+        String line = reader.readLine();
+        boolean first = true;
+        while (line != null) {
+            if (!first) {
+                digest.update(CRLF);
+            }
+            first = false;
+
+            int len = line.length();
+            while (len > 0 && Character.isWhitespace(line.charAt(len - 1))) {
+                len--;
+            }
+            digest.update(line.substring(0, len).getBytes("UTF-8"));
+
+            line = reader.readLine();
+        }
+        return digest.digest();
+    }
+
+    /** Generates lines of words, with some trailing whitespace and mixed line endings. */
+    private static byte[] generateText(Random random, int size) {
+        byte[] data = new byte[size];
+        String[] endings = { "\n", "\r\n", " \n", "\t\r\n", "  \n", "\r" };
+        int i = 0;
+        while (i < size) {
+            int lineLength = random.nextInt(80);
+            for (int j = 0; j < lineLength && i < size; j++) {
+                data[i++] = random.nextInt(6) == 0 ? (byte) ' ' : (byte) ('a' + random.nextInt(26));
+            }
+            String ending = endings[random.nextInt(endings.length)];
+            for (int j = 0; j < ending.length() && i < size; j++) {
+                data[i++] = (byte) ending.charAt(j);
+            }
+        }
+        return data;
+    }
+
+}
@@ -17,6 +17,8 @@
 
 package org.sufficientlysecure.keychain.pgp;
 
+import android.content.Intent;
+
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.BeforeClass;
@@ -26,18 +28,23 @@ import org.openintents.openpgp.OpenPgpMetadata;
 import org.openintents.openpgp.OpenPgpSignatureResult;
 import org.robolectric.*;
 import org.robolectric.shadows.ShadowLog;
+import org.spongycastle.bcpg.CompressionAlgorithmTags;
 import org.spongycastle.bcpg.sig.KeyFlags;
 import org.spongycastle.jce.provider.BouncyCastleProvider;
 import org.spongycastle.openpgp.PGPEncryptedData;
+import org.spongycastle.openpgp.PGPPrivateKey;
+import org.sufficientlysecure.keychain.operations.results.OperationResult.LogType;
 import org.sufficientlysecure.keychain.operations.results.PgpEditKeyResult;
 import org.sufficientlysecure.keychain.operations.results.PgpSignEncryptResult;
 import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRingData;
 import org.sufficientlysecure.keychain.provider.ProviderHelper;
+import org.sufficientlysecure.keychain.service.PassphraseCacheService;
 import org.sufficientlysecure.keychain.service.SaveKeyringParcel;
 import org.sufficientlysecure.keychain.service.SaveKeyringParcel.Algorithm;
 import org.sufficientlysecure.keychain.operations.results.DecryptVerifyResult;
 import org.sufficientlysecure.keychain.service.SaveKeyringParcel.ChangeUnlockParcel;
 import org.sufficientlysecure.keychain.support.KeyringTestingHelper;
+import org.sufficientlysecure.keychain.util.BufferPool;
 import org.sufficientlysecure.keychain.util.InputData;
 import org.sufficientlysecure.keychain.util.ProgressScaler;
 import org.sufficientlysecure.keychain.util.TestingUtils;
@@ -47,7 +54,10 @@ import java.io.ByteArrayOutputStream;
 import java.io.OutputStream;
 import java.io.PrintStream;
 import java.security.Security;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
+import java.util.Random;
 
 @RunWith(RobolectricTestRunner.class)
 @org.robolectric.annotation.Config(emulateSdk = 18) // Robolectric doesn't yet support 19
@@ -456,6 +466,256 @@ public class PgpEncryptDecryptTest {
 
     }
 
+    @Test
+    public void testDecryptMetadataOnly() {
+
+        String plaintext = "dies ist ein plaintext ☭" + TestingUtils.genPassphrase(true);
+        byte[] ciphertext;
+
+        { // sign and encrypt to both keys
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            ByteArrayInputStream in = new ByteArrayInputStream(plaintext.getBytes());
+
+            PgpSignEncryptOperation op = new PgpSignEncryptOperation(Robolectric.application,
+                    new ProviderHelper(Robolectric.application), null);
+
+            InputData data = new InputData(in, in.available(), "file.txt");
+            PgpSignEncryptInput b = new PgpSignEncryptInput();
+
+            b.setEncryptionMasterKeyIds(new long[] {
+                    mStaticRing1.getMasterKeyId(),
+                    mStaticRing2.getMasterKeyId()
+            });
+            b.setSignatureMasterKeyId(mStaticRing1.getMasterKeyId());
+            b.setSignatureSubKeyId(KeyringTestingHelper.getSubkeyId(mStaticRing1, 1));
+            b.setSignaturePassphrase(mKeyPhrase1);
+            b.setSymmetricEncryptionAlgorithm(PGPEncryptedData.AES_128);
+
+            PgpSignEncryptResult result = op.execute(b, data, out);
+            Assert.assertTrue("encryption must succeed", result.success());
+
+            ciphertext = out.toByteArray();
+        }
+
+        { // metadata probe yields filename, recipients and signers
+
+            ByteArrayInputStream in = new ByteArrayInputStream(ciphertext);
+            InputData data = new InputData(in, in.available());
+
+            PgpDecryptVerify.Builder b = builderWithFakePassphraseCache(data, null,
+                    mKeyPhrase1, mStaticRing1.getMasterKeyId(), null);
+            b.setDecryptMetadataOnly(true);
+
+            DecryptVerifyResult result = b.build().execute();
+            Assert.assertTrue("metadata decryption must succeed", result.success());
+            Assert.assertNull("there must be no signature result", result.getSignatureResult());
+
+            OpenPgpMetadata metadata = result.getDecryptMetadata();
+            Assert.assertEquals("filename must be correct", "file.txt", metadata.getFilename());
+
+            HashSet<Long> recipients = new HashSet<>();
+            for (long keyId : result.getRecipientKeyIds()) {
+                recipients.add(keyId);
+            }
+            Assert.assertEquals("both encryption subkeys must be reported as recipients",
+                    new HashSet<>(Arrays.asList(
+                            KeyringTestingHelper.getSubkeyId(mStaticRing1, 2),
+                            KeyringTestingHelper.getSubkeyId(mStaticRing2, 2))),
+                    recipients);
+
+            Assert.assertArrayEquals("signing subkey must be reported as signer",
+                    new long[] { KeyringTestingHelper.getSubkeyId(mStaticRing1, 1) },
+                    result.getSignerKeyIds());
+        }
+
+    }
+
+    @Test
+    public void testAdaptiveCompression() {
+
+        byte[] incompressible = new byte[100 * 1024];
+        new Random(23).nextBytes(incompressible);
+        byte[] compressible = new byte[100 * 1024];
+        Arrays.fill(compressible, (byte) 'a');
+
+        for (byte[] plaintext : new byte[][] { incompressible, compressible }) {
+
+            byte[] ciphertext;
+            { // encrypt with adaptive compression
+
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                ByteArrayInputStream in = new ByteArrayInputStream(plaintext);
+
+                PgpSignEncryptOperation op = new PgpSignEncryptOperation(Robolectric.application,
+                        new ProviderHelper(Robolectric.application), null);
+
+                InputData data = new InputData(in, in.available());
+                PgpSignEncryptInput b = new PgpSignEncryptInput();
+                b.setEncryptionMasterKeyIds(new long[]{ mStaticRing1.getMasterKeyId() });
+                b.setSymmetricEncryptionAlgorithm(PGPEncryptedData.AES_128);
+                b.setCompressionId(CompressionAlgorithmTags.ZIP);
+                b.setAdaptiveCompression(true);
+
+                PgpSignEncryptResult result = op.execute(b, data, out);
+                Assert.assertTrue("encryption must succeed", result.success());
+
+                boolean skipped = plaintext == incompressible;
+                Assert.assertEquals("compression decision must be logged", skipped,
+                        result.getLog().containsType(LogType.MSG_PSE_COMPRESSION_SAMPLE_SKIP));
+                Assert.assertEquals("compression must only be used for compressible input", !skipped,
+                        result.getLog().containsType(LogType.MSG_PSE_COMPRESSING));
+
+                ciphertext = out.toByteArray();
+            }
+
+            { // decryption must yield the whole input, including the sample
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                ByteArrayInputStream in = new ByteArrayInputStream(ciphertext);
+                InputData data = new InputData(in, in.available());
+
+                PgpDecryptVerify.Builder b = builderWithFakePassphraseCache(data, out,
+                        mKeyPhrase1, mStaticRing1.getMasterKeyId(), null);
+                DecryptVerifyResult result = b.build().execute();
+                Assert.assertTrue("decryption must succeed", result.success());
+                Assert.assertArrayEquals("decrypted plaintext should equal plaintext",
+                        plaintext, out.toByteArray());
+            }
+
+        }
+
+    }
+
+    @Test
+    public void testMultiSignerEncrypt() {
+
+        String plaintext = "dies ist ein plaintext ☭" + TestingUtils.genPassphrase(true);
+        byte[] ciphertext;
+
+        { // sign with both keys and encrypt to the first
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            ByteArrayInputStream in = new ByteArrayInputStream(plaintext.getBytes());
+
+            // passphrases for additional signers come from the cache only
+            PgpSignEncryptOperation op = new PgpSignEncryptOperation(Robolectric.application,
+                    new ProviderHelper(Robolectric.application), null) {
+                @Override
+                public String getCachedPassphrase(long masterKeyId, long subKeyId) {
+                    Assert.assertEquals("only the additional signer must be asked for",
+                            mStaticRing2.getMasterKeyId(), masterKeyId);
+                    return mKeyPhrase2;
+                }
+            };
+
+            InputData data = new InputData(in, in.available());
+            PgpSignEncryptInput b = new PgpSignEncryptInput();
+
+            b.setEncryptionMasterKeyIds(new long[]{ mStaticRing1.getMasterKeyId() });
+            b.setSignatureMasterKeyId(mStaticRing1.getMasterKeyId());
+            b.setSignatureSubKeyId(KeyringTestingHelper.getSubkeyId(mStaticRing1, 1));
+            b.setSignaturePassphrase(mKeyPhrase1);
+            b.setAdditionalSignatureMasterKeyIds(new long[]{ mStaticRing2.getMasterKeyId() });
+            b.setSymmetricEncryptionAlgorithm(PGPEncryptedData.AES_128);
+
+            PgpSignEncryptResult result = op.execute(b, data, out);
+            Assert.assertTrue("encryption must succeed", result.success());
+
+            ciphertext = out.toByteArray();
+        }
+
+        { // both signers are announced in one-pass signatures
+
+            ByteArrayInputStream in = new ByteArrayInputStream(ciphertext);
+            InputData data = new InputData(in, in.available());
+
+            PgpDecryptVerify.Builder b = builderWithFakePassphraseCache(data, null,
+                    mKeyPhrase1, mStaticRing1.getMasterKeyId(), null);
+            b.setDecryptMetadataOnly(true);
+
+            DecryptVerifyResult result = b.build().execute();
+            Assert.assertTrue("metadata decryption must succeed", result.success());
+            Assert.assertArrayEquals("both signing subkeys must be reported as signers",
+                    new long[] {
+                            KeyringTestingHelper.getSubkeyId(mStaticRing1, 1),
+                            KeyringTestingHelper.getSubkeyId(mStaticRing2, 1)
+                    }, result.getSignerKeyIds());
+        }
+
+        { // decryption verifies a signature matching its one-pass packet
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            ByteArrayInputStream in = new ByteArrayInputStream(ciphertext);
+            InputData data = new InputData(in, in.available());
+
+            PgpDecryptVerify.Builder b = builderWithFakePassphraseCache(data, out,
+                    mKeyPhrase1, mStaticRing1.getMasterKeyId(), null);
+            DecryptVerifyResult result = b.build().execute();
+            Assert.assertTrue("decryption must succeed", result.success());
+            Assert.assertArrayEquals("decrypted plaintext should equal plaintext",
+                    out.toByteArray(), plaintext.getBytes());
+            Assert.assertEquals("signature should be verified and certified",
+                    OpenPgpSignatureResult.SIGNATURE_SUCCESS_CERTIFIED,
+                    result.getSignatureResult().getStatus());
+        }
+
+    }
+
+    @Test
+    public void testDetachedVerifyWithSignerKeyCache() {
+
+        byte[][] plaintexts = new byte[3][];
+        byte[][] signatures = new byte[3][];
+
+        for (int i = 0; i < plaintexts.length; i++) { // create detached signatures
+            plaintexts[i] = ("dies ist ein plaintext ☭" + TestingUtils.genPassphrase(true)).getBytes();
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            ByteArrayInputStream in = new ByteArrayInputStream(plaintexts[i]);
+
+            PgpSignEncryptOperation op = new PgpSignEncryptOperation(Robolectric.application,
+                    new ProviderHelper(Robolectric.application), null);
+
+            InputData data = new InputData(in, in.available());
+            PgpSignEncryptInput b = new PgpSignEncryptInput();
+            b.setDetachedSignature(true);
+            b.setSignatureMasterKeyId(mStaticRing1.getMasterKeyId());
+            b.setSignatureSubKeyId(KeyringTestingHelper.getSubkeyId(mStaticRing1, 1));
+            b.setSignaturePassphrase(mKeyPhrase1);
+
+            PgpSignEncryptResult result = op.execute(b, data, out);
+            Assert.assertTrue("signing must succeed", result.success());
+            Assert.assertNotNull("detached signature must be returned", result.getDetachedSignature());
+
+            signatures[i] = result.getDetachedSignature();
+        }
+
+        SignerKeyCache cache = new SignerKeyCache();
+        for (int i = 0; i < plaintexts.length; i++) { // verify all of them, sharing the cache
+
+            // the last signature doesn't belong to its data
+            byte[] plaintext = i == plaintexts.length - 1 ? plaintexts[0] : plaintexts[i];
+            ByteArrayInputStream in = new ByteArrayInputStream(plaintext);
+            InputData data = new InputData(in, in.available());
+
+            PgpDecryptVerify.Builder b = new PgpDecryptVerify.Builder(Robolectric.application,
+                    new ProviderHelper(Robolectric.application), null, data, null);
+            b.setDetachedSignature(signatures[i]).setSignerKeyCache(cache);
+
+            DecryptVerifyResult result = b.build().execute();
+            Assert.assertTrue("verification must succeed", result.success());
+            if (i == plaintexts.length - 1) {
+                Assert.assertEquals("signature over other data must be invalid",
+                        OpenPgpSignatureResult.SIGNATURE_ERROR,
+                        result.getSignatureResult().getStatus());
+            } else {
+                Assert.assertEquals("signature should be verified and certified",
+                        OpenPgpSignatureResult.SIGNATURE_SUCCESS_CERTIFIED,
+                        result.getSignatureResult().getStatus());
+            }
+        }
+
+    }
+
     @Test
     public void testForeignEncoding () throws Exception {
         String plaintext = "ウィキペディア";
@@ -509,6 +769,201 @@ public class PgpEncryptDecryptTest {
 
     }
 
+    @Test
+    public void testUnlockedKeyCache() throws Exception {
+
+        ProviderHelper providerHelper = new ProviderHelper(Robolectric.application);
+        long keyId = KeyringTestingHelper.getSubkeyId(mStaticRing1, 1);
+
+        UnlockedKeyCache cache = UnlockedKeyCache.getInstance();
+        cache.clear();
+        cache.setTtl(60);
+
+        PGPPrivateKey privateKey;
+        { // first unlock derives the key and caches it
+            CanonicalizedSecretKey key = providerHelper.getCanonicalizedSecretKeyRing(
+                    mStaticRing1.getMasterKeyId()).getSecretKey(keyId);
+            Assert.assertTrue("unlock with correct passphrase must succeed",
+                    key.unlock(mKeyPhrase1, cache));
+            privateKey = key.getPrivateKey();
+        }
+
+        { // a wrong passphrase must not be answered from cache
+            CanonicalizedSecretKey key = providerHelper.getCanonicalizedSecretKeyRing(
+                    mStaticRing1.getMasterKeyId()).getSecretKey(keyId);
+            Assert.assertFalse("unlock with wrong passphrase must fail",
+                    key.unlock(mKeyPhrase2, cache));
+        }
+
+        { // the correct one must
+            CanonicalizedSecretKey key = providerHelper.getCanonicalizedSecretKeyRing(
+                    mStaticRing1.getMasterKeyId()).getSecretKey(keyId);
+            Assert.assertTrue("unlock with correct passphrase must succeed",
+                    key.unlock(mKeyPhrase1, cache));
+            Assert.assertSame("private key must be taken from cache",
+                    privateKey, key.getPrivateKey());
+        }
+
+        cache.clear();
+
+    }
+
+    @Test
+    public void testUnlockedKeyCacheClearedWithPassphraseCache() throws Exception {
+
+        ProviderHelper providerHelper = new ProviderHelper(Robolectric.application);
+        long keyId = KeyringTestingHelper.getSubkeyId(mStaticRing1, 1);
+
+        UnlockedKeyCache cache = UnlockedKeyCache.getInstance();
+        cache.clear();
+        cache.setTtl(60);
+        cache.registerClearReceiver(Robolectric.application);
+
+        PGPPrivateKey privateKey;
+        { // unlock once, to get the key into the cache
+            CanonicalizedSecretKey key = providerHelper.getCanonicalizedSecretKeyRing(
+                    mStaticRing1.getMasterKeyId()).getSecretKey(keyId);
+            Assert.assertTrue("unlock with correct passphrase must succeed",
+                    key.unlock(mKeyPhrase1, cache));
+            privateKey = key.getPrivateKey();
+        }
+
+        { // the user clears the passphrase cache
+            Intent intent = new Intent(Robolectric.application, PassphraseCacheService.class);
+            intent.setAction(PassphraseCacheService.ACTION_PASSPHRASE_CACHE_CLEAR);
+            Robolectric.buildService(PassphraseCacheService.class)
+                    .attach().create().withIntent(intent).startCommand(0, 0).destroy();
+        }
+
+        { // now the key must be derived again
+            CanonicalizedSecretKey key = providerHelper.getCanonicalizedSecretKeyRing(
+                    mStaticRing1.getMasterKeyId()).getSecretKey(keyId);
+            Assert.assertTrue("unlock with correct passphrase must succeed",
+                    key.unlock(mKeyPhrase1, cache));
+            Assert.assertNotSame("private key must not be taken from cache after clear",
+                    privateKey, key.getPrivateKey());
+        }
+
+        cache.clear();
+
+    }
+
+    @Test
+    public void testDecryptLeavesNoPlaintextInPool() throws Exception {
+
+        byte[] plaintext = new byte[100 * 1024];
+        Arrays.fill(plaintext, (byte) 'x');
+        byte[] ciphertext;
+
+        { // encrypt data with a given passphrase
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            ByteArrayInputStream in = new ByteArrayInputStream(plaintext);
+
+            PgpSignEncryptOperation op = new PgpSignEncryptOperation(Robolectric.application,
+                    new ProviderHelper(Robolectric.application), null);
+
+            InputData data = new InputData(in, in.available());
+
+            PgpSignEncryptInput b = new PgpSignEncryptInput();
+            b.setSymmetricPassphrase(mPassphrase);
+            b.setSymmetricEncryptionAlgorithm(PGPEncryptedData.AES_128);
+
+            PgpSignEncryptResult result = op.execute(b, data, out);
+            Assert.assertTrue("encryption must succeed", result.success());
+
+            ciphertext = out.toByteArray();
+        }
+
+        { // decrypt it, which passes all plaintext through pooled buffers
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            ByteArrayInputStream in = new ByteArrayInputStream(ciphertext);
+            InputData data = new InputData(in, in.available());
+
+            PgpDecryptVerify.Builder b = new PgpDecryptVerify.Builder(Robolectric.application,
+                    new ProviderHelper(Robolectric.application), null, data, out);
+            b.setPassphrase(mPassphrase);
+            DecryptVerifyResult result = b.build().execute();
+            Assert.assertTrue("decryption must succeed", result.success());
+            Assert.assertArrayEquals("decrypted ciphertext should equal plaintext",
+                    plaintext, out.toByteArray());
+        }
+
+        BufferPool pool = BufferPool.getInstance();
+        Assert.assertTrue("decryption must return its buffers", pool.getPooledCount() > 0);
+        byte[] zeroes = new byte[BufferPool.BUFFER_SIZE];
+        ArrayList<byte[]> buffers = new ArrayList<>();
+        while (pool.getPooledCount() > 0) {
+            byte[] buffer = pool.acquire();
+            Assert.assertArrayEquals("pooled buffers must not contain plaintext", zeroes, buffer);
+            buffers.add(buffer);
+        }
+        for (byte[] buffer : buffers) {
+            pool.release(buffer);
+        }
+
+    }
+
+    @Test
+    public void testArmoredOutputIsBuffered() throws Exception {
+
+        // some incompressible data which spans several literal data chunks
+        byte[] plaintext = new byte[300 * 1024];
+        new Random(42).nextBytes(plaintext);
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final int[] writes = { 0 };
+
+        { // encrypt with ascii armor, counting writes to the underlying stream
+            OutputStream countingOut = new OutputStream() {
+                @Override
+                public void write(int b) {
+                    writes[0] += 1;
+                    out.write(b);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) {
+                    writes[0] += 1;
+                    out.write(b, off, len);
+                }
+            };
+            ByteArrayInputStream in = new ByteArrayInputStream(plaintext);
+
+            PgpSignEncryptOperation op = new PgpSignEncryptOperation(Robolectric.application,
+                    new ProviderHelper(Robolectric.application), null);
+
+            InputData data = new InputData(in, in.available());
+
+            PgpSignEncryptInput b = new PgpSignEncryptInput();
+            b.setSymmetricPassphrase(mPassphrase);
+            b.setSymmetricEncryptionAlgorithm(PGPEncryptedData.AES_128);
+            b.setEnableAsciiArmorOutput(true);
+
+            PgpSignEncryptResult result = op.execute(b, data, countingOut);
+
+            Assert.assertTrue("encryption must succeed", result.success());
+            // the armored output is roughly 400k, which used to be written byte by byte
+            Assert.assertTrue("armored output must be written in chunks, got " + writes[0] + " writes",
+                    writes[0] < 50);
+        }
+
+        { // and it must still decrypt to the same data
+
+            ByteArrayOutputStream plainOut = new ByteArrayOutputStream();
+            ByteArrayInputStream in = new ByteArrayInputStream(out.toByteArray());
+            InputData data = new InputData(in, in.available());
+
+            PgpDecryptVerify.Builder b = new PgpDecryptVerify.Builder(Robolectric.application,
+                    new ProviderHelper(Robolectric.application),
+                    null, data, plainOut);
+            b.setPassphrase(mPassphrase);
+            DecryptVerifyResult result = b.build().execute();
+            Assert.assertTrue("decryption must succeed", result.success());
+            Assert.assertArrayEquals("decrypted ciphertext should equal plaintext",
+                    plaintext, plainOut.toByteArray());
+        }
+
+    }
+
     private PgpDecryptVerify.Builder builderWithFakePassphraseCache (
             InputData data, OutputStream out,
             final String passphrase, final Long checkMasterKeyId, final Long checkSubKeyId) {
@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2014 Vincent Breitmoser <v.breitmoser@mugenguild.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.provider;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.sufficientlysecure.keychain.provider.KeychainContract.ApiAccounts;
+import org.sufficientlysecure.keychain.provider.KeychainContract.ApiAllowedKeys;
+import org.sufficientlysecure.keychain.provider.KeychainContract.ApiApps;
+import org.sufficientlysecure.keychain.provider.KeychainContract.Certs;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRingData;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRings;
+import org.sufficientlysecure.keychain.provider.KeychainContract.Keys;
+import org.sufficientlysecure.keychain.provider.KeychainContract.UserPackets;
+import org.sufficientlysecure.keychain.provider.KeychainDatabase.Tables;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/** Makes sure none of the hot queries of KeychainProvider degrades to a full table scan. */
+@RunWith(RobolectricTestRunner.class)
+@Config(emulateSdk = 18) // Robolectric doesn't yet support 19
+public class KeychainProviderQueryPlanTest {
+
+    static final long MASTER_KEY_ID = 0x1234567890abcdefL;
+
+    static final String[] UNIFIED_PROJECTION = new String[] {
+            KeyRings._ID, KeyRings.MASTER_KEY_ID, KeyRings.KEY_ID, KeyRings.USER_ID,
+            KeyRings.IS_REVOKED, KeyRings.IS_EXPIRED, KeyRings.VERIFIED, KeyRings.HAS_SECRET,
+            KeyRings.HAS_ANY_SECRET, KeyRings.HAS_ENCRYPT, KeyRings.HAS_SIGN,
+            KeyRings.HAS_CERTIFY, KeyRings.HAS_AUTHENTICATE,
+            KeyRings.PUBKEY_DATA, KeyRings.PRIVKEY_DATA
+    };
+
+    // old sqlite versions print "SCAN TABLE name AS alias", newer ones just "SCAN alias"
+    static final Pattern SCAN_PATTERN = Pattern.compile("^SCAN (?:TABLE )?(\\S+)(?: AS (\\S+))?");
+
+    KeychainProvider mProvider;
+    SQLiteDatabase mDb;
+
+    @Before
+    public void setUp() {
+        mProvider = new KeychainProvider();
+        mProvider.attachInfo(Robolectric.application, null);
+        mDb = mProvider.getDb().getReadableDatabase();
+    }
+
+    @Test
+    public void testUnifiedKeyRing() throws Exception {
+        assertNoFullScan(KeyRings.buildUnifiedKeyRingUri(MASTER_KEY_ID), UNIFIED_PROJECTION);
+    }
+
+    @Test
+    public void testUnifiedKeyRings() throws Exception {
+        // listing all keyrings has to look at every master key anyways
+        assertNoFullScan(KeyRings.buildUnifiedKeyRingsUri(), UNIFIED_PROJECTION, Tables.KEYS);
+    }
+
+    @Test
+    public void testFindBySubkey() throws Exception {
+        assertNoFullScan(KeyRings.buildUnifiedKeyRingsFindBySubkeyUri(MASTER_KEY_ID),
+                UNIFIED_PROJECTION);
+    }
+
+    @Test
+    public void testFindByEmail() throws Exception {
+        assertNoFullScan(KeyRings.buildUnifiedKeyRingsFindByEmailUri("a@example.com, b@example.com"),
+                UNIFIED_PROJECTION);
+    }
+
+    @Test
+    public void testFindUserIdsByEmail() throws Exception {
+        assertNoFullScan(KeyRings.buildUnifiedKeyRingsFindUserIdsByEmailUri(
+                new String[] { "a@example.com", "b@example.com" }), UNIFIED_PROJECTION);
+    }
+
+    @Test
+    public void testSearch() throws Exception {
+        assertNoFullScan(KeyRings.buildUnifiedKeyRingsSearchUri("joh exam"), UNIFIED_PROJECTION);
+    }
+
+    @Test
+    public void testKeyRingData() throws Exception {
+        assertNoFullScan(KeyRingData.buildPublicKeyRingUri(MASTER_KEY_ID), null);
+        assertNoFullScan(KeyRingData.buildSecretKeyRingUri(MASTER_KEY_ID), null);
+    }
+
+    @Test
+    public void testKeys() throws Exception {
+        assertNoFullScan(Keys.buildKeysUri(MASTER_KEY_ID), null);
+        // secret subkeys among the recipients of a message, see getSecretSubkeyMasterKeyIds
+        assertNoFullScanWhere(Keys.buildKeysUri(), null,
+                Keys.KEY_ID + " IN (1, 2, 3) AND " + Keys.HAS_SECRET + " NOT IN (0, 1)");
+    }
+
+    @Test
+    public void testUserIds() throws Exception {
+        assertNoFullScan(UserPackets.buildUserIdsUri(MASTER_KEY_ID), null);
+    }
+
+    @Test
+    public void testCerts() throws Exception {
+        assertNoFullScan(Certs.buildCertsUri(MASTER_KEY_ID), null);
+        assertNoFullScan(Certs.buildCertsSpecificUri(MASTER_KEY_ID, 0, MASTER_KEY_ID), null);
+    }
+
+    @Test
+    public void testApiApps() throws Exception {
+        assertNoFullScan(ApiApps.buildByPackageNameUri("com.example"), null);
+        assertNoFullScan(ApiAccounts.buildBaseUri("com.example"), null);
+        assertNoFullScan(ApiAccounts.buildByPackageAndAccountUri("com.example", "account"), null);
+        assertNoFullScan(ApiAllowedKeys.buildBaseUri("com.example"), null);
+    }
+
+    private void assertNoFullScan(Uri uri, String[] projection, String... allowedScans) {
+        assertNoFullScanWhere(uri, projection, null, allowedScans);
+    }
+
+    private void assertNoFullScanWhere(Uri uri, String[] projection, String selection,
+                                       String... allowedScans) {
+        List<String> allowed = Arrays.asList(allowedScans);
+
+        String sql = mProvider.prepareQuery(uri, projection, null).buildSql(projection, selection);
+        Cursor cursor = mDb.rawQuery("EXPLAIN QUERY PLAN " + sql, null);
+        try {
+            int detailIndex = cursor.getColumnIndexOrThrow("detail");
+            while (cursor.moveToNext()) {
+                String detail = cursor.getString(detailIndex);
+                Matcher matcher = SCAN_PATTERN.matcher(detail);
+                if (!matcher.find()) {
+                    continue;
+                }
+                // a full text query on a virtual table is fine, index 0 would be a full scan
+                if (detail.contains("VIRTUAL TABLE INDEX") && !detail.contains("VIRTUAL TABLE INDEX 0:")) {
+                    continue;
+                }
+                if (allowed.contains(matcher.group(1))
+                        || (matcher.group(2) != null && allowed.contains(matcher.group(2)))) {
+                    continue;
+                }
+                Assert.fail("query for " + uri + " does a full scan (" + detail + "): " + sql);
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+}
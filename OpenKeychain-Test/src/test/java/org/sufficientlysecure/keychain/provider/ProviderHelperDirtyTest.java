@@ -0,0 +1,333 @@
+/*
+ * Copyright (C) 2014 Vincent Breitmoser <v.breitmoser@mugenguild.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.provider;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.shadows.ShadowLog;
+import org.spongycastle.bcpg.sig.KeyFlags;
+import org.spongycastle.jce.provider.BouncyCastleProvider;
+import org.spongycastle.openpgp.PGPPrivateKey;
+import org.spongycastle.openpgp.PGPPublicKey;
+import org.spongycastle.openpgp.PGPPublicKeyRing;
+import org.spongycastle.openpgp.PGPSecretKey;
+import org.spongycastle.openpgp.PGPSecretKeyRing;
+import org.spongycastle.openpgp.PGPSignature;
+import org.spongycastle.openpgp.PGPSignatureGenerator;
+import org.spongycastle.openpgp.PGPSignatureSubpacketGenerator;
+import org.spongycastle.openpgp.PGPUtil;
+import org.spongycastle.openpgp.operator.jcajce.JcaKeyFingerprintCalculator;
+import org.spongycastle.openpgp.operator.jcajce.JcaPGPContentSignerBuilder;
+import org.spongycastle.openpgp.operator.jcajce.JcePBESecretKeyDecryptorBuilder;
+import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.keyimport.ParcelableKeyRing;
+import org.sufficientlysecure.keychain.operations.CertifyOperation;
+import org.sufficientlysecure.keychain.operations.DeleteOperation;
+import org.sufficientlysecure.keychain.operations.ImportExportOperation;
+import org.sufficientlysecure.keychain.operations.results.CertifyResult;
+import org.sufficientlysecure.keychain.operations.results.ConsolidateResult;
+import org.sufficientlysecure.keychain.operations.results.DeleteResult;
+import org.sufficientlysecure.keychain.operations.results.ImportKeyResult;
+import org.sufficientlysecure.keychain.operations.results.PgpEditKeyResult;
+import org.sufficientlysecure.keychain.pgp.PgpKeyOperation;
+import org.sufficientlysecure.keychain.pgp.UncachedKeyRing;
+import org.sufficientlysecure.keychain.provider.KeychainContract.Certs;
+import org.sufficientlysecure.keychain.provider.KeychainDatabase.Tables;
+import org.sufficientlysecure.keychain.service.CertifyActionsParcel;
+import org.sufficientlysecure.keychain.service.CertifyActionsParcel.CertifyAction;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel.Algorithm;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel.ChangeUnlockParcel;
+import org.sufficientlysecure.keychain.util.ProgressScaler;
+import org.sufficientlysecure.keychain.util.TestingUtils;
+
+import java.security.Security;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+
+@RunWith(RobolectricTestRunner.class)
+@org.robolectric.annotation.Config(emulateSdk = 18) // Robolectric doesn't yet support 19
+public class ProviderHelperDirtyTest {
+
+    static UncachedKeyRing mCertifier, mRing1, mRing2;
+    static String mCertifierPhrase = TestingUtils.genPassphrase(true);
+
+    ProviderHelper mProviderHelper;
+    SQLiteDatabase mDb;
+
+    @BeforeClass
+    public static void setUpOnce() throws Exception {
+        Security.insertProviderAt(new BouncyCastleProvider(), 1);
+        ShadowLog.stream = System.out;
+
+        mCertifier = createRing("certifier", mCertifierPhrase);
+        mRing1 = createRing("ditz", TestingUtils.genPassphrase(true));
+        mRing2 = createRing("bla", TestingUtils.genPassphrase(true));
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        // don't carry over trusted keys from the database of another test
+        TrustedCertifierCache.getInstance().invalidateAll();
+
+        KeychainProvider provider = new KeychainProvider();
+        provider.attachInfo(Robolectric.application, null);
+        mDb = provider.getDb().getWritableDatabase();
+
+        mProviderHelper = new ProviderHelper(Robolectric.application);
+        mProviderHelper.saveSecretKeyRing(mCertifier, new ProgressScaler());
+        mProviderHelper.savePublicKeyRing(mRing1.extractPublicKeyRing(), new ProgressScaler());
+        mProviderHelper.savePublicKeyRing(mRing2.extractPublicKeyRing(), new ProgressScaler());
+
+        certify(mRing1.getMasterKeyId());
+        certify(mRing2.getMasterKeyId());
+    }
+
+    @After
+    public void tearDown() {
+        mDb.execSQL("DROP TRIGGER IF EXISTS fail_certs");
+    }
+
+    @Test
+    public void testDeleteSecretDowngradesCerts() throws Exception {
+
+        Assert.assertEquals("cert must be verified while the secret key is there",
+                Certs.VERIFIED_SECRET, getCertVerified(mRing1.getMasterKeyId()));
+
+        deleteCertifier();
+
+        Assert.assertEquals("cert must be unverified after the secret key was deleted",
+                Certs.UNVERIFIED, getCertVerified(mRing1.getMasterKeyId()));
+        Assert.assertEquals("keyring must not be verified anymore", Certs.UNVERIFIED,
+                mProviderHelper.getCanonicalizedPublicKeyRing(mRing1.getMasterKeyId()).getVerified());
+        Assert.assertEquals("no keyring must be left marked", 0, getDirtyCount());
+
+    }
+
+    @Test
+    public void testImportSecretUpgradesCerts() throws Exception {
+
+        deleteCertifier();
+        Assert.assertEquals("cert must be unverified before the secret key is imported",
+                Certs.UNVERIFIED, getCertVerified(mRing1.getMasterKeyId()));
+
+        importCertifier();
+
+        Assert.assertEquals("cert must be verified after the secret key was imported",
+                Certs.VERIFIED_SECRET, getCertVerified(mRing1.getMasterKeyId()));
+        Assert.assertEquals("keyring must be verified again", Certs.VERIFIED_SECRET,
+                mProviderHelper.getCanonicalizedPublicKeyRing(mRing1.getMasterKeyId()).getVerified());
+        Assert.assertEquals("no keyring must be left marked", 0, getDirtyCount());
+
+    }
+
+    @Test
+    public void testInterruptedConsolidateContinues() throws Exception {
+
+        // make the update of the second keyring fail, which ends the first run
+        mDb.execSQL("CREATE TRIGGER fail_certs BEFORE INSERT ON " + Tables.CERTS
+                + " WHEN new." + Certs.MASTER_KEY_ID + " = " + mRing2.getMasterKeyId()
+                + " BEGIN SELECT RAISE(ABORT, 'test failure'); END");
+
+        deleteCertifier();
+
+        Assert.assertEquals("both keyrings must still be marked", 2, getDirtyCount());
+        Assert.assertEquals("failed chunk must be rolled back",
+                Certs.VERIFIED_SECRET, getCertVerified(mRing1.getMasterKeyId()));
+
+        mDb.execSQL("DROP TRIGGER fail_certs");
+
+        ConsolidateResult result = mProviderHelper.consolidateDirtyKeyRings(new ProgressScaler());
+        Assert.assertTrue("second run must succeed", result.success());
+
+        Assert.assertEquals("no keyring must be left marked", 0, getDirtyCount());
+        Assert.assertEquals("first cert must be unverified after the second run",
+                Certs.UNVERIFIED, getCertVerified(mRing1.getMasterKeyId()));
+        Assert.assertEquals("second cert must be unverified after the second run",
+                Certs.UNVERIFIED, getCertVerified(mRing2.getMasterKeyId()));
+
+    }
+
+    @Test
+    public void testDirtyConsolidateMatchesFull() throws Exception {
+
+        // the newest cert by the certifier on the first keyring is a revocation, which is
+        // stored as an unverified row while the secret key is gone
+        mProviderHelper.savePublicKeyRing(revokeCert(mRing1.getMasterKeyId(), "ditz"),
+                new ProgressScaler());
+        deleteCertifier();
+        Assert.assertEquals("revocation must be stored as unverified cert",
+                Certs.UNVERIFIED, getCertVerified(mRing1.getMasterKeyId()));
+
+        importCertifier();
+
+        ArrayList<String> certs = dumpTable("SELECT " + Certs.MASTER_KEY_ID + ", " + Certs.RANK
+                + ", " + Certs.KEY_ID_CERTIFIER + ", " + Certs.TYPE + ", " + Certs.VERIFIED
+                + ", " + Certs.CREATION + " FROM " + Tables.CERTS);
+        ArrayList<String> summary = dumpTable("SELECT * FROM " + Tables.KEY_RINGS_SUMMARY);
+
+        ConsolidateResult result = mProviderHelper.consolidateDatabaseStep1(new ProgressScaler());
+        Assert.assertTrue("full consolidate must succeed", result.success());
+
+        Assert.assertEquals("certs must be the same as after a full consolidate", dumpTable(
+                "SELECT " + Certs.MASTER_KEY_ID + ", " + Certs.RANK
+                + ", " + Certs.KEY_ID_CERTIFIER + ", " + Certs.TYPE + ", " + Certs.VERIFIED
+                + ", " + Certs.CREATION + " FROM " + Tables.CERTS), certs);
+        Assert.assertEquals("summary must be the same as after a full consolidate",
+                dumpTable("SELECT * FROM " + Tables.KEY_RINGS_SUMMARY), summary);
+
+        Assert.assertEquals("second cert must be verified",
+                Certs.VERIFIED_SECRET, getCertVerified(mRing2.getMasterKeyId()));
+
+    }
+
+    void certify(long masterKeyId) {
+        CertifyOperation op = new CertifyOperation(Robolectric.application,
+                new ProviderHelper(Robolectric.application), null, null) {
+            @Override
+            public String getCachedPassphrase(long certifierId, long subKeyId) {
+                return mCertifierPhrase;
+            }
+        };
+
+        CertifyActionsParcel actions = new CertifyActionsParcel(mCertifier.getMasterKeyId());
+        actions.add(new CertifyAction(masterKeyId));
+        CertifyResult result = op.certify(actions, null);
+        Assert.assertTrue("certification must succeed", result.success());
+    }
+
+    void deleteCertifier() {
+        DeleteOperation op = new DeleteOperation(Robolectric.application,
+                new ProviderHelper(Robolectric.application), null);
+        DeleteResult result = op.execute(new long[] { mCertifier.getMasterKeyId() }, true);
+        Assert.assertTrue("secret key must be deleted",
+                (result.getResult() & DeleteResult.RESULT_ERROR) == 0);
+    }
+
+    void importCertifier() throws Exception {
+        ArrayList<ParcelableKeyRing> entries = new ArrayList<>();
+        entries.add(new ParcelableKeyRing(mCertifier.getEncoded()));
+        ImportExportOperation op = new ImportExportOperation(Robolectric.application,
+                new ProviderHelper(Robolectric.application), null);
+        ImportKeyResult result = op.importKeyRings(entries, null);
+        Assert.assertEquals("secret key must be imported", 1, result.mSecret);
+    }
+
+    int getCertVerified(long masterKeyId) {
+        Cursor cursor = mDb.rawQuery("SELECT " + Certs.VERIFIED + " FROM " + Tables.CERTS
+                + " WHERE " + Certs.MASTER_KEY_ID + " = ? AND " + Certs.KEY_ID_CERTIFIER + " = ?",
+                new String[] {
+                        Long.toString(masterKeyId), Long.toString(mCertifier.getMasterKeyId())
+                });
+        try {
+            Assert.assertTrue("there must be a cert by the certifier", cursor.moveToFirst());
+            Assert.assertEquals("there must be a single cert by the certifier", 1, cursor.getCount());
+            return cursor.getInt(0);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /** Returns the rows of a query as strings, in a stable order. */
+    ArrayList<String> dumpTable(String query) {
+        ArrayList<String> rows = new ArrayList<>();
+        Cursor cursor = mDb.rawQuery(query, null);
+        try {
+            while (cursor.moveToNext()) {
+                StringBuilder row = new StringBuilder();
+                for (int i = 0; i < cursor.getColumnCount(); i++) {
+                    row.append(cursor.getColumnName(i)).append('=').append(cursor.getString(i)).append(' ');
+                }
+                rows.add(row.toString());
+            }
+        } finally {
+            cursor.close();
+        }
+        Collections.sort(rows);
+        return rows;
+    }
+
+    /** Returns the keyring from the database, with a revocation of the certifier's
+     * certification on the given user id added, newer than the certification itself.
+     */
+    UncachedKeyRing revokeCert(long masterKeyId, String userId) throws Exception {
+        PGPSecretKey certifierKey = new PGPSecretKeyRing(mCertifier.getEncoded(),
+                new JcaKeyFingerprintCalculator()).getSecretKey();
+        PGPPrivateKey privateKey = certifierKey.extractPrivateKey(
+                new JcePBESecretKeyDecryptorBuilder().setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME)
+                        .build(mCertifierPhrase.toCharArray()));
+
+        PGPSignatureSubpacketGenerator hashedPackets = new PGPSignatureSubpacketGenerator();
+        hashedPackets.setSignatureCreationTime(false, new Date(new Date().getTime() + 1000*60));
+
+        PGPSignatureGenerator sGen = new PGPSignatureGenerator(new JcaPGPContentSignerBuilder(
+                certifierKey.getPublicKey().getAlgorithm(), PGPUtil.SHA256)
+                .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME));
+        sGen.setHashedSubpackets(hashedPackets.generate());
+        sGen.init(PGPSignature.CERTIFICATION_REVOCATION, privateKey);
+
+        PGPPublicKeyRing ring = new PGPPublicKeyRing(
+                mProviderHelper.getCanonicalizedPublicKeyRing(masterKeyId).getEncoded(),
+                new JcaKeyFingerprintCalculator());
+        PGPPublicKey masterKey = ring.getPublicKey();
+        PGPSignature revocation = sGen.generateCertification(userId, masterKey);
+        masterKey = PGPPublicKey.addCertification(masterKey, userId, revocation);
+
+        return UncachedKeyRing.decodeFromData(
+                PGPPublicKeyRing.insertPublicKey(ring, masterKey).getEncoded());
+    }
+
+    long getDirtyCount() {
+        Cursor cursor = mDb.rawQuery("SELECT COUNT(*) FROM " + Tables.KEY_RINGS_DIRTY, null);
+        try {
+            cursor.moveToFirst();
+            return cursor.getLong(0);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    static UncachedKeyRing createRing(String userId, String passphrase) {
+        PgpKeyOperation op = new PgpKeyOperation(null);
+
+        SaveKeyringParcel parcel = new SaveKeyringParcel();
+        parcel.mAddSubKeys.add(new SaveKeyringParcel.SubkeyAdd(
+                Algorithm.RSA, 1024, null, KeyFlags.CERTIFY_OTHER, 0L));
+        parcel.mAddSubKeys.add(new SaveKeyringParcel.SubkeyAdd(
+                Algorithm.DSA, 1024, null, KeyFlags.SIGN_DATA, 0L));
+        parcel.mAddUserIds.add(userId);
+        parcel.mNewUnlock = new ChangeUnlockParcel(passphrase);
+
+        PgpEditKeyResult result = op.createSecretKeyRing(parcel);
+        Assert.assertTrue("initial test key creation must succeed", result.success());
+        Assert.assertNotNull("initial test key creation must succeed", result.getRing());
+
+        return result.getRing();
+    }
+
+}
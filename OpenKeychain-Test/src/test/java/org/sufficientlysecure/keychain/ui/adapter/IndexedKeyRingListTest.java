@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2014 Vincent Breitmoser <v.breitmoser@mugenguild.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.ui.adapter;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.shadows.ShadowLog;
+import org.sufficientlysecure.keychain.keyimport.ImportKeysListEntry;
+import org.sufficientlysecure.keychain.pgp.UncachedKeyRing;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.List;
+
+@RunWith(RobolectricTestRunner.class)
+@org.robolectric.annotation.Config(emulateSdk = 18) // Robolectric doesn't yet support 19
+public class IndexedKeyRingListTest {
+
+    static final String[] RESOURCES = {
+            "/test-keys/symantec_secret.asc",
+            "/test-keys/cooperpair/9E669861368BCA0BE42DAF7DDDA252EBB8EBE1AF.asc",
+            "/test-keys/symantec_public.asc",
+    };
+
+    @Before
+    public void setUp() throws Exception {
+        ShadowLog.stream = System.out;
+    }
+
+    @Test
+    public void testIndex() throws Exception {
+
+        // several consecutive armor blocks in a single file
+        ByteArrayOutputStream concatenated = new ByteArrayOutputStream();
+        for (String resource : RESOURCES) {
+            concatenated.write(readResource(resource));
+        }
+
+        IndexedKeyRingList list = new IndexedKeyRingList(Robolectric.application);
+        list.index(new BufferedInputStream(new ByteArrayInputStream(concatenated.toByteArray())));
+
+        Assert.assertEquals("all keyrings must be indexed", RESOURCES.length, list.size());
+
+        for (int i = 0; i < RESOURCES.length; i++) {
+            UncachedKeyRing ring = UncachedKeyRing.decodeFromData(readResource(RESOURCES[i]));
+            Assert.assertArrayEquals("keyring must be read back unchanged",
+                    ring.getEncoded(), list.getKeyRing(i).mBytes);
+
+            ImportKeysListEntry entry = list.get(i);
+            Assert.assertEquals("entry must be created for the right keyring",
+                    ring.getMasterKeyId(), entry.getKeyId());
+            Assert.assertTrue("entries are selected by default", entry.isSelected());
+            Assert.assertSame("entries in memory must be returned without loading",
+                    entry, list.getIfLoaded(i));
+        }
+
+        List<Integer> selected = list.getSelectedPositions();
+        Assert.assertEquals("secret keys must be sorted after public keys",
+                Integer.valueOf(0), selected.get(selected.size() - 1));
+
+        list.setSelected(1, false);
+        Assert.assertFalse("deselected keyring must not be returned",
+                list.getSelectedPositions().contains(1));
+        Assert.assertFalse("selection must be applied to the entry in memory",
+                list.get(1).isSelected());
+
+        list.close();
+
+    }
+
+    private byte[] readResource(String name) throws Exception {
+        InputStream in = getClass().getResourceAsStream(name);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[4096];
+        int len;
+        while ((len = in.read(buf)) > 0) {
+            out.write(buf, 0, len);
+        }
+        in.close();
+        return out.toByteArray();
+    }
+
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2014 Vincent Breitmoser <v.breitmoser@mugenguild.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.util;
+
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+@RunWith(RobolectricTestRunner.class)
+@org.robolectric.annotation.Config(emulateSdk = 18) // Robolectric doesn't yet support 19
+public class BufferPoolTest {
+
+    @Test
+    public void testAcquireRelease() throws Exception {
+
+        BufferPool pool = BufferPool.getInstance();
+
+        // drain whatever other tests left in the pool
+        ArrayList<byte[]> buffers = new ArrayList<byte[]>();
+        while (pool.getPooledCount() > 0) {
+            buffers.add(pool.acquire());
+        }
+
+        long hits = pool.getHits(), misses = pool.getMisses();
+
+        byte[] first = pool.acquire();
+        Assert.assertEquals("buffer must have the pool's size", BufferPool.BUFFER_SIZE, first.length);
+        Assert.assertEquals("empty pool must allocate", misses + 1, pool.getMisses());
+
+        Arrays.fill(first, (byte) 0x42);
+        pool.release(first);
+        Assert.assertSame("released buffer must be reused", first, pool.acquire());
+        Assert.assertArrayEquals("released buffer must be zeroed",
+                new byte[BufferPool.BUFFER_SIZE], first);
+        Assert.assertEquals("reuse must count as a hit", hits + 1, pool.getHits());
+        pool.release(first);
+
+        // foreign buffers are not pooled
+        pool.release(new byte[16]);
+        pool.release(null);
+        Assert.assertEquals("only matching buffers must be pooled", 1, pool.getPooledCount());
+
+        // the pool is bounded
+        for (int i = 0; i < 2 * BufferPool.MAX_POOLED; i++) {
+            pool.release(new byte[BufferPool.BUFFER_SIZE]);
+        }
+        Assert.assertEquals("pool must not grow past its bound",
+                BufferPool.MAX_POOLED, pool.getPooledCount());
+
+    }
+
+    /** Compares borrowing buffers from the pool with allocating a fresh one for every
+     * streaming operation, as was done before.
+     *
+     * This is a benchmark rather than a test, it is skipped unless the benchmark system
+     * property is set, e.g. by running gradle test -Dbenchmark=true. Note that it runs
+     * on the desktop JVM, so the numbers only give a rough idea of the cost on a device.
+     */
+    @Test
+    public void testAllocationBenchmark() throws Exception {
+
+        Assume.assumeTrue("benchmarks are disabled", Boolean.getBoolean("benchmark"));
+
+        final int rounds = 20000;
+        BufferPool pool = BufferPool.getInstance();
+        long sink = 0;
+
+        // warm up both paths
+        for (int i = 0; i < rounds; i++) {
+            byte[] buffer = new byte[BufferPool.BUFFER_SIZE];
+            buffer[i % BufferPool.BUFFER_SIZE] = 1;
+            sink += buffer.length;
+            buffer = pool.acquire();
+            buffer[i % BufferPool.BUFFER_SIZE] = 1;
+            pool.release(buffer);
+        }
+
+        long gcs = getCollectionCount();
+        long start = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            byte[] buffer = new byte[BufferPool.BUFFER_SIZE];
+            buffer[i % BufferPool.BUFFER_SIZE] = 1;
+            sink += buffer.length;
+        }
+        long allocNanos = System.nanoTime() - start;
+        long allocGcs = getCollectionCount() - gcs;
+
+        long hits = pool.getHits();
+        gcs = getCollectionCount();
+        start = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            byte[] buffer = pool.acquire();
+            buffer[i % BufferPool.BUFFER_SIZE] = 1;
+            sink += buffer.length;
+            pool.release(buffer);
+        }
+        long poolNanos = System.nanoTime() - start;
+        long poolGcs = getCollectionCount() - gcs;
+
+        Assert.assertEquals("all pooled acquisitions must be hits",
+                hits + rounds, pool.getHits());
+
+        System.out.println(rounds + " buffers of " + (BufferPool.BUFFER_SIZE >> 10) + " KiB: "
+                + "allocated " + (allocNanos / 1000000) + " ms, " + allocGcs + " collections, "
+                + "pooled " + (poolNanos / 1000000) + " ms, " + poolGcs + " collections "
+                + "(" + sink + " bytes)");
+
+    }
+
+    private static long getCollectionCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, gc.getCollectionCount());
+        }
+        return count;
+    }
+
+}
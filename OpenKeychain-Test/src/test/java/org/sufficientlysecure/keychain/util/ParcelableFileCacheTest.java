@@ -28,6 +28,7 @@ import org.robolectric.Robolectric;
 import org.robolectric.RobolectricTestRunner;
 import org.robolectric.shadows.ShadowLog;
 import org.sufficientlysecure.keychain.util.ParcelableFileCache.IteratorWithSize;
+import org.sufficientlysecure.keychain.util.ParcelableFileCache.ResumableIterator;
 
 import java.util.ArrayList;
 import java.util.Iterator;
@@ -74,4 +75,48 @@ public class ParcelableFileCacheTest {
 
     }
 
+    @Test
+    public void testRandomAccessAndResume() throws Exception {
+
+        ParcelableFileCache<Bundle> cache = new ParcelableFileCache<Bundle>(Robolectric.application, "test.pcl");
+
+        ArrayList<Bundle> list = new ArrayList<Bundle>();
+        for (int i = 0; i < 50; i++) {
+            Bundle b = new Bundle();
+            b.putInt("key1", i);
+            list.add(b);
+        }
+
+        // the size hint doesn't need to be accurate
+        cache.writeCache(10, list.iterator());
+
+        Assert.assertEquals("number of entries must be known without reading",
+                list.size(), cache.getNumEntries());
+        Assert.assertEquals("entries must be readable at random",
+                23, cache.readEntry(23).getInt("key1"));
+
+        // read part of the file, as if interrupted
+        ResumableIterator<Bundle> it = cache.readCache(false);
+        for (int i = 0; i < 30; i++) {
+            it.next();
+        }
+        Assert.assertEquals("resume position must not advance by reading entries",
+                0, cache.getResumePosition());
+        it.checkpoint(20);
+        it.close();
+        Assert.assertEquals("resume position must be the last checkpoint",
+                20, cache.getResumePosition());
+
+        it = cache.readCache(true, true);
+        Assert.assertEquals("resumed iterator must have the remaining entries",
+                list.size() - 20, it.getSize());
+        int expected = 20;
+        while (it.hasNext()) {
+            Assert.assertEquals("resumed iteration must continue in order",
+                    expected++, it.next().getInt("key1"));
+        }
+        Assert.assertEquals("all entries must have been read", list.size(), expected);
+
+    }
+
 }
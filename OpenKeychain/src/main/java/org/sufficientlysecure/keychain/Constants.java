@@ -52,6 +52,11 @@ public final class Constants {
     public static final String CUSTOM_CONTACT_DATA_MIME_TYPE = "vnd.android.cursor.item/vnd.org.sufficientlysecure.keychain.key";
 
     public static final int TEMPFILE_TTL = 24 * 60 * 60 * 1000; // 1 day
+    // results larger than this are passed on as temporary file rather than in memory
+    public static final int TEMPFILE_THRESHOLD = 256 * 1024;
+    // text results are loaded back from such a file, to display, copy or share them as text,
+    // only up to this size. this stays within the binder transaction limit even as utf-16
+    public static final int TEXT_RESULT_LIMIT = 384 * 1024;
 
     public static final String SAFESLINGER_SERVER = "safeslinger-openpgp.appspot.com";
 
@@ -68,6 +73,7 @@ public final class Constants {
         public static final String DEFAULT_FILE_COMPRESSION = "defaultFileCompression";
         public static final String PASSPHRASE_CACHE_TTL = "passphraseCacheTtl";
         public static final String PASSPHRASE_CACHE_SUBS = "passphraseCacheSubs";
+        public static final String PASSPHRASE_CACHE_UNLOCKED_KEYS = "passphraseCacheUnlockedKeys";
         public static final String LANGUAGE = "language";
         public static final String KEY_SERVERS = "keyServers";
         public static final String PREF_DEFAULT_VERSION = "keyServersDefaultVersion";
@@ -0,0 +1,52 @@
+package org.sufficientlysecure.keychain.operations;
+
+import org.sufficientlysecure.keychain.pgp.Progressable;
+
+/** Aggregates the progress of multiple parallel sub-operations into a single one. */
+class AggregateProgress {
+
+    private final Progressable mWrapped;
+    private final int[] mFileProgress;
+
+    AggregateProgress(Progressable wrapped, int num) {
+        mWrapped = wrapped;
+        mFileProgress = new int[num];
+    }
+
+    Progressable getFileProgressable(final int index) {
+        return new Progressable() {
+            @Override
+            public void setProgress(String message, int current, int total) {
+                setProgress(current, total);
+            }
+
+            @Override
+            public void setProgress(int resourceId, int current, int total) {
+                setProgress(current, total);
+            }
+
+            @Override
+            public void setProgress(int current, int total) {
+                update(index, total > 0 ? 100 * current / total : 0);
+            }
+
+            @Override
+            public void setPreventCancel() {
+                // individual files are never uncancellable
+            }
+        };
+    }
+
+    private synchronized void update(int index, int percent) {
+        if (mWrapped == null) {
+            return;
+        }
+        mFileProgress[index] = percent;
+        int sum = 0;
+        for (int p : mFileProgress) {
+            sum += p;
+        }
+        mWrapped.setProgress(sum, 100 * mFileProgress.length);
+    }
+
+}
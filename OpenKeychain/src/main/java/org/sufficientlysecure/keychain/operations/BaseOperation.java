@@ -4,9 +4,11 @@ import android.content.Context;
 
 import org.sufficientlysecure.keychain.pgp.PassphraseCacheInterface;
 import org.sufficientlysecure.keychain.pgp.Progressable;
+import org.sufficientlysecure.keychain.pgp.UnlockedKeyCache;
 import org.sufficientlysecure.keychain.provider.ProviderHelper;
 import org.sufficientlysecure.keychain.provider.ProviderHelper.NotFoundException;
 import org.sufficientlysecure.keychain.service.PassphraseCacheService;
+import org.sufficientlysecure.keychain.util.Preferences;
 
 import java.util.concurrent.atomic.AtomicBoolean;
 
@@ -83,6 +85,21 @@ public abstract class BaseOperation implements PassphraseCacheInterface {
         }
     }
 
+    /** Returns the cache of unlocked keys of this process, or null if disabled in preferences.
+     * Entries share the passphrase cache ttl, and are cleared along with it. */
+    protected UnlockedKeyCache getUnlockedKeyCache() {
+        Preferences prefs = Preferences.getPreferences(mContext);
+        UnlockedKeyCache cache = UnlockedKeyCache.getInstance();
+        if (!prefs.getPassphraseCacheUnlockedKeys()) {
+            // might have been disabled in the meantime, don't keep anything around
+            cache.clear();
+            return null;
+        }
+        cache.setTtl(prefs.getPassphraseCacheTtl());
+        cache.registerClearReceiver(mContext);
+        return cache;
+    }
+
     @Override
     public String getCachedPassphrase(long subKeyId) throws NoSecretKeyException {
         try {
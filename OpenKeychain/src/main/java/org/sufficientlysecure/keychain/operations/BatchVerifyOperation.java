@@ -0,0 +1,174 @@
+package org.sufficientlysecure.keychain.operations;
+
+import android.content.Context;
+import android.net.Uri;
+
+import org.sufficientlysecure.keychain.operations.results.BatchVerifyResult;
+import org.sufficientlysecure.keychain.operations.results.DecryptVerifyResult;
+import org.sufficientlysecure.keychain.operations.results.OperationResult.LogType;
+import org.sufficientlysecure.keychain.operations.results.OperationResult.OperationLog;
+import org.sufficientlysecure.keychain.pgp.PgpDecryptVerify;
+import org.sufficientlysecure.keychain.pgp.Progressable;
+import org.sufficientlysecure.keychain.pgp.SignerKeyCache;
+import org.sufficientlysecure.keychain.provider.ProviderHelper;
+import org.sufficientlysecure.keychain.util.FileHelper;
+import org.sufficientlysecure.keychain.util.InputData;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/** This operation checks the detached signatures of a batch of files, given
+ * as pairs of data and signature uris.
+ *
+ * Files are hashed in parallel, on a pool sized to the number of available
+ * cores. Signer keys are looked up only once for the whole batch.
+ *
+ * Unlike SignEncryptOperation, this operation is not fail-fast: Every file gets
+ * its own DecryptVerifyResult, and the operation only fails as a whole if any of
+ * them failed. Whether a signature is valid is up to the individual results.
+ *
+ */
+public class BatchVerifyOperation extends BaseOperation {
+
+    public BatchVerifyOperation(Context context, ProviderHelper providerHelper,
+                                Progressable progressable, AtomicBoolean cancelled) {
+        super(context, providerHelper, progressable, cancelled);
+    }
+
+    public BatchVerifyResult execute(List<Uri> dataUris, List<Uri> signatureUris) {
+
+        OperationLog log = new OperationLog();
+
+        int num = dataUris.size();
+        int threads = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), num));
+        log.add(LogType.MSG_VB, 0, num, threads);
+
+        ArrayList<DecryptVerifyResult> results = new ArrayList<>();
+
+        if (signatureUris.size() != num) {
+            log.add(LogType.MSG_VB_ERROR_MISMATCH, 1);
+            return new BatchVerifyResult(BatchVerifyResult.RESULT_ERROR, log, results);
+        }
+
+        // shared between all files, so each signer key is looked up only once
+        final SignerKeyCache signerKeyCache = new SignerKeyCache();
+
+        final AggregateProgress progress = new AggregateProgress(mProgressable, num);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        ArrayList<Future<DecryptVerifyResult>> futures = new ArrayList<>(num);
+        for (int i = 0; i < num; i++) {
+            final Uri dataUri = dataUris.get(i);
+            final Uri signatureUri = signatureUris.get(i);
+            final Progressable fileProgress = progress.getFileProgressable(i);
+            futures.add(executor.submit(new Callable<DecryptVerifyResult>() {
+                @Override
+                public DecryptVerifyResult call() {
+                    return verifyUri(dataUri, signatureUri, signerKeyCache, fileProgress);
+                }
+            }));
+        }
+        // no more tasks, threads terminate once the queue is drained
+        executor.shutdown();
+
+        boolean allOk = true;
+        try {
+            for (Future<DecryptVerifyResult> future : futures) {
+                log.add(LogType.MSG_VB_FILE, 1);
+
+                DecryptVerifyResult result;
+                try {
+                    result = future.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    log.add(LogType.MSG_OPERATION_CANCELLED, 0);
+                    return new BatchVerifyResult(BatchVerifyResult.RESULT_CANCELLED, log, results);
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof Error) {
+                        throw (Error) cause;
+                    }
+                    throw (RuntimeException) cause;
+                }
+
+                if (result.cancelled()) {
+                    log.add(LogType.MSG_OPERATION_CANCELLED, 0);
+                    return new BatchVerifyResult(BatchVerifyResult.RESULT_CANCELLED, log, results);
+                }
+
+                results.add(result);
+                log.add(result, 2);
+
+                if (!result.success()) {
+                    allOk = false;
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        if (!allOk) {
+            log.add(LogType.MSG_VB_ERROR, 1);
+            return new BatchVerifyResult(BatchVerifyResult.RESULT_ERROR, log, results);
+        }
+
+        log.add(LogType.MSG_VB_OK, 1);
+        return new BatchVerifyResult(BatchVerifyResult.RESULT_OK, log, results);
+
+    }
+
+    /** Checks the detached signature of a single uri, on a worker thread. */
+    private DecryptVerifyResult verifyUri(Uri dataUri, Uri signatureUri,
+                                          SignerKeyCache signerKeyCache, Progressable progressable) {
+
+        OperationLog log = new OperationLog();
+
+        if (checkCancelled()) {
+            log.add(LogType.MSG_OPERATION_CANCELLED, 0);
+            return new DecryptVerifyResult(DecryptVerifyResult.RESULT_CANCELLED, log);
+        }
+
+        byte[] signature;
+        try {
+            signature = FileHelper.readBytes(mContext, signatureUri);
+        } catch (IOException e) {
+            log.add(LogType.MSG_VB_ERROR_SIGNATURE_URI, 0);
+            return new DecryptVerifyResult(DecryptVerifyResult.RESULT_ERROR, log);
+        }
+
+        InputStream in;
+        try {
+            in = mContext.getContentResolver().openInputStream(dataUri);
+        } catch (FileNotFoundException e) {
+            log.add(LogType.MSG_VB_ERROR_DATA_URI, 0);
+            return new DecryptVerifyResult(DecryptVerifyResult.RESULT_ERROR, log);
+        }
+
+        try {
+            InputData inputData = new InputData(in, FileHelper.getFileSize(mContext, dataUri, 0));
+            // provider helpers are not thread safe, so each file gets its own
+            PgpDecryptVerify op = new PgpDecryptVerify.Builder(mContext,
+                    new ProviderHelper(mContext), progressable, inputData, null)
+                    .setDetachedSignature(signature)
+                    .setSignerKeyCache(signerKeyCache)
+                    .build();
+            return op.execute();
+        } finally {
+            try {
+                in.close();
+            } catch (IOException e) {
+                // nothing to do, we only read from it
+            }
+        }
+
+    }
+
+}
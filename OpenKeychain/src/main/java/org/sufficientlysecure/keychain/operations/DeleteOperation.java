@@ -11,6 +11,7 @@ import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRingData;
 import org.sufficientlysecure.keychain.provider.ProviderHelper;
 import org.sufficientlysecure.keychain.service.ContactSyncAdapterService;
 import org.sufficientlysecure.keychain.ui.util.KeyFormattingUtils;
+import org.sufficientlysecure.keychain.util.ProgressScaler;
 
 /** An operation which implements a high level keyring delete operation.
  *
@@ -54,6 +55,10 @@ public class DeleteOperation extends BaseOperation {
             );
             if (count > 0) {
                 log.add(LogType.MSG_DEL_KEY, 1, KeyFormattingUtils.beautifyKeyId(masterKeyId));
+                if (isSecret) {
+                    // certs by this key can't be verified anymore
+                    mProviderHelper.markCertifiedKeyRingsDirty(masterKeyId);
+                }
                 success += 1;
             } else {
                 log.add(LogType.MSG_DEL_KEY_FAIL, 1, KeyFormattingUtils.beautifyKeyId(masterKeyId));
@@ -63,7 +68,8 @@ public class DeleteOperation extends BaseOperation {
 
         if (isSecret && success > 0) {
             log.add(LogType.MSG_DEL_CONSOLIDATE, 1);
-            ConsolidateResult sub = mProviderHelper.consolidateDatabaseStep1(mProgressable);
+            ConsolidateResult sub = mProviderHelper.consolidateDirtyKeyRings(
+                    new ProgressScaler(mProgressable, 0, 100, 100));
             log.add(sub, 2);
         }
 
@@ -20,7 +20,9 @@ package org.sufficientlysecure.keychain.operations;
 
 import android.content.Context;
 import android.database.Cursor;
+import android.database.sqlite.SQLiteException;
 import android.net.Uri;
+import android.os.SystemClock;
 
 import org.spongycastle.bcpg.ArmoredOutputStream;
 import org.sufficientlysecure.keychain.Constants;
@@ -50,7 +52,7 @@ import org.sufficientlysecure.keychain.ui.util.KeyFormattingUtils;
 import org.sufficientlysecure.keychain.util.FileHelper;
 import org.sufficientlysecure.keychain.util.Log;
 import org.sufficientlysecure.keychain.util.ParcelableFileCache;
-import org.sufficientlysecure.keychain.util.ParcelableFileCache.IteratorWithSize;
+import org.sufficientlysecure.keychain.util.ParcelableFileCache.ResumableIterator;
 import org.sufficientlysecure.keychain.util.ProgressScaler;
 
 import java.io.BufferedOutputStream;
@@ -60,9 +62,16 @@ import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 /** An operation class which implements high level import and export
@@ -90,6 +99,11 @@ import java.util.concurrent.atomic.AtomicBoolean;
  */
 public class ImportExportOperation extends BaseOperation {
 
+    /** Default number of keyrings which are saved in a single database transaction. */
+    public static final int DEFAULT_BATCH_SIZE = 100;
+
+    private int mBatchSize = DEFAULT_BATCH_SIZE;
+
     public ImportExportOperation(Context context, ProviderHelper providerHelper, Progressable progressable) {
         super(context, providerHelper, progressable);
     }
@@ -99,6 +113,14 @@ public class ImportExportOperation extends BaseOperation {
         super(context, providerHelper, progressable, cancelled);
     }
 
+    /** Sets the number of keyrings which are saved in a single database transaction
+     * during import. A batch size of one or less disables batching, so that each
+     * keyring is committed on its own.
+     */
+    public void setBatchSize(int batchSize) {
+        mBatchSize = batchSize;
+    }
+
     public void uploadKeyRingToServer(HkpKeyserver server, CanonicalizedPublicKeyRing keyring) throws AddKeyException {
         uploadKeyRingToServer(server, keyring.getUncachedKeyRing());
     }
@@ -141,10 +163,14 @@ public class ImportExportOperation extends BaseOperation {
 
         // get entries from cached file
         try {
-            IteratorWithSize<ParcelableKeyRing> it = cache.readCache();
-            int numEntries = it.getSize();
+            ResumableIterator<ParcelableKeyRing> it = cache.readCache();
+            try {
+                int numEntries = it.getSize();
 
-            return importKeyRings(it, numEntries, keyServerUri);
+                return importKeyRings(it, numEntries, keyServerUri);
+            } finally {
+                it.close();
+            }
         } catch (IOException e) {
 
             // Special treatment here, we need a lot
@@ -178,157 +204,293 @@ public class ImportExportOperation extends BaseOperation {
         KeybaseKeyserver keybaseServer = null;
         HkpKeyserver keyServer = null;
 
-        // iterate over all entries
-        while (entries.hasNext()) {
-            ParcelableKeyRing entry = entries.next();
+        // In batched mode, keyrings are saved in transactions of mBatchSize keyrings each. If
+        // a database error occurs, the whole batch is rolled back and its entries are imported
+        // again one at a time, so we keep track of the entries and the state at the beginning
+        // of each batch to be able to restore it.
+        boolean batched = mBatchSize > 1;
+        boolean inBatch = false;
+        ArrayList<PreparedKeyRing> batchEntries = new ArrayList<>();
+        ArrayDeque<PreparedKeyRing> retryEntries = new ArrayDeque<>();
+        int batchNewKeys = 0, batchOldKeys = 0, batchBadKeys = 0, batchSecret = 0;
+        int batchImported = 0, batchLogSize = 0, batchPosition = 0;
+
+        // Entries from a cache file are checkpointed in it once they are committed, so an
+        // interrupted import can be resumed. Entries are committed in their original order,
+        // so between entries, all but those in the open batch or waiting for a retry are.
+        ResumableIterator<?> resumable =
+                entries instanceof ResumableIterator ? (ResumableIterator<?>) entries : null;
+        int consumed = 0, checkpointed = 0;
+        long startTime = SystemClock.elapsedRealtime();
+
+        // decoding and canonicalization are done ahead of time on a pool of worker threads.
+        // keyrings which are already in the database are merged and canonicalized again by
+        // the ProviderHelper anyways, so canonicalization is skipped for those.
+        ImportPipeline pipeline = new ImportPipeline(entries, num,
+                mProviderHelper.getMasterKeyIds(false), mProviderHelper.getMasterKeyIds(true));
 
-            // Has this action been cancelled? If so, don't proceed any further
-            if (checkCancelled()) {
-                cancelled = true;
-                break;
-            }
+        try {
+            // iterate over all entries, in their original order
+            while (!retryEntries.isEmpty() || pipeline.hasNext()) {
 
-            try {
+                // commit the current batch if it is full
+                if (inBatch && batchEntries.size() >= mBatchSize) {
+                    mProviderHelper.endTransaction(true);
+                    inBatch = false;
+                }
 
-                UncachedKeyRing key = null;
+                if (resumable != null) {
+                    int committed = consumed - retryEntries.size()
+                            - (inBatch ? batchEntries.size() : 0);
+                    if (committed > checkpointed) {
+                        resumable.checkpoint(committed);
+                        checkpointed = committed;
+                    }
+                }
 
-                // If there is already byte data, use that
-                if (entry.mBytes != null) {
-                    key = UncachedKeyRing.decodeFromData(entry.mBytes);
+                boolean retry = !retryEntries.isEmpty();
+                PreparedKeyRing prepared = retry ? retryEntries.poll() : pipeline.next();
+                ParcelableKeyRing entry = prepared.mEntry;
+                if (!retry) {
+                    consumed += 1;
+                }
+
+                // Has this action been cancelled? If so, don't proceed any further
+                if (checkCancelled()) {
+                    cancelled = true;
+                    break;
                 }
-                // Otherwise, we need to fetch the data from a server first
-                else {
-
-                    // We fetch from keyservers first, because we tend to get more certificates
-                    // from there, so the number of certificates which are merged in later is smaller.
-
-                    // If we have a keyServerUri and a fingerprint or at least a keyId,
-                    // download from HKP
-                    if (keyServerUri != null
-                            && (entry.mKeyIdHex != null || entry.mExpectedFingerprint != null)) {
-                        // Make sure we have the keyserver instance cached
-                        if (keyServer == null) {
-                            log.add(LogType.MSG_IMPORT_KEYSERVER, 1, keyServerUri);
-                            keyServer = new HkpKeyserver(keyServerUri);
-                        }
 
-                        try {
-                            byte[] data;
-                            // Download by fingerprint, or keyId - whichever is available
-                            if (entry.mExpectedFingerprint != null) {
-                                log.add(LogType.MSG_IMPORT_FETCH_KEYSERVER, 2, "0x" + entry.mExpectedFingerprint.substring(24));
-                                data = keyServer.get("0x" + entry.mExpectedFingerprint).getBytes();
-                            } else {
-                                log.add(LogType.MSG_IMPORT_FETCH_KEYSERVER, 2, entry.mKeyIdHex);
-                                data = keyServer.get(entry.mKeyIdHex).getBytes();
+                // start a new batch, if possible. entries from a failed batch are not batched
+                if (batched && !inBatch && !retry) {
+                    if (mProviderHelper.beginTransaction()) {
+                        inBatch = true;
+                        batchEntries.clear();
+                        batchNewKeys = newKeys;
+                        batchOldKeys = oldKeys;
+                        batchBadKeys = badKeys;
+                        batchSecret = secret;
+                        batchImported = importedMasterKeyIds.size();
+                        batchLogSize = log.toList().size();
+                        batchPosition = position;
+                    } else {
+                        // no transactions available, don't bother trying again
+                        batched = false;
+                    }
+                }
+                if (inBatch) {
+                    batchEntries.add(prepared);
+                }
+
+                boolean rollback = false;
+                try {
+
+                    UncachedKeyRing key = null;
+
+                    // If there is already byte data, it has been decoded by the pipeline
+                    if (entry.mBytes != null) {
+                        key = prepared.getKeyRing();
+                    }
+                    // Otherwise, we need to fetch the data from a server first
+                    else {
+
+                        // We fetch from keyservers first, because we tend to get more certificates
+                        // from there, so the number of certificates which are merged in later is smaller.
+
+                        // If we have a keyServerUri and a fingerprint or at least a keyId,
+                        // download from HKP
+                        if (keyServerUri != null
+                                && (entry.mKeyIdHex != null || entry.mExpectedFingerprint != null)) {
+                            // Make sure we have the keyserver instance cached
+                            if (keyServer == null) {
+                                log.add(LogType.MSG_IMPORT_KEYSERVER, 1, keyServerUri);
+                                keyServer = new HkpKeyserver(keyServerUri);
                             }
-                            key = UncachedKeyRing.decodeFromData(data);
-                            if (key != null) {
-                                log.add(LogType.MSG_IMPORT_FETCH_KEYSERVER_OK, 3);
-                            } else {
-                                log.add(LogType.MSG_IMPORT_FETCH_ERROR_DECODE, 3);
+
+                            try {
+                                byte[] data;
+                                // Download by fingerprint, or keyId - whichever is available
+                                if (entry.mExpectedFingerprint != null) {
+                                    log.add(LogType.MSG_IMPORT_FETCH_KEYSERVER, 2, "0x" + entry.mExpectedFingerprint.substring(24));
+                                    data = keyServer.get("0x" + entry.mExpectedFingerprint).getBytes();
+                                } else {
+                                    log.add(LogType.MSG_IMPORT_FETCH_KEYSERVER, 2, entry.mKeyIdHex);
+                                    data = keyServer.get(entry.mKeyIdHex).getBytes();
+                                }
+                                key = UncachedKeyRing.decodeFromData(data);
+                                if (key != null) {
+                                    log.add(LogType.MSG_IMPORT_FETCH_KEYSERVER_OK, 3);
+                                } else {
+                                    log.add(LogType.MSG_IMPORT_FETCH_ERROR_DECODE, 3);
+                                }
+                            } catch (Keyserver.QueryFailedException e) {
+                                Log.e(Constants.TAG, "query failed", e);
+                                log.add(LogType.MSG_IMPORT_FETCH_KEYSERVER_ERROR, 3);
                             }
-                        } catch (Keyserver.QueryFailedException e) {
-                            Log.e(Constants.TAG, "query failed", e);
-                            log.add(LogType.MSG_IMPORT_FETCH_KEYSERVER_ERROR, 3);
                         }
-                    }
 
-                    // If we have a keybase name, try to fetch from there
-                    if (entry.mKeybaseName != null) {
-                        // Make sure we have this cached
-                        if (keybaseServer == null) {
-                            keybaseServer = new KeybaseKeyserver();
-                        }
+                        // If we have a keybase name, try to fetch from there
+                        if (entry.mKeybaseName != null) {
+                            // Make sure we have this cached
+                            if (keybaseServer == null) {
+                                keybaseServer = new KeybaseKeyserver();
+                            }
 
-                        try {
-                            log.add(LogType.MSG_IMPORT_FETCH_KEYBASE, 2, entry.mKeybaseName);
-                            byte[] data = keybaseServer.get(entry.mKeybaseName).getBytes();
-                            key = UncachedKeyRing.decodeFromData(data);
-
-                            // If there already is a key (of keybase origin), merge the two
-                            if (key != null) {
-                                log.add(LogType.MSG_IMPORT_MERGE, 3);
-                                UncachedKeyRing merged = UncachedKeyRing.decodeFromData(data);
-                                merged = key.merge(merged, log, 4);
-                                // If the merge didn't fail, use the new merged key
-                                if (merged != null) {
-                                    key = merged;
-                                }
-                            } else {
-                                log.add(LogType.MSG_IMPORT_FETCH_ERROR_DECODE, 3);
+                            try {
+                                log.add(LogType.MSG_IMPORT_FETCH_KEYBASE, 2, entry.mKeybaseName);
+                                byte[] data = keybaseServer.get(entry.mKeybaseName).getBytes();
                                 key = UncachedKeyRing.decodeFromData(data);
+
+                                // If there already is a key (of keybase origin), merge the two
+                                if (key != null) {
+                                    log.add(LogType.MSG_IMPORT_MERGE, 3);
+                                    UncachedKeyRing merged = UncachedKeyRing.decodeFromData(data);
+                                    merged = key.merge(merged, log, 4);
+                                    // If the merge didn't fail, use the new merged key
+                                    if (merged != null) {
+                                        key = merged;
+                                    }
+                                } else {
+                                    log.add(LogType.MSG_IMPORT_FETCH_ERROR_DECODE, 3);
+                                    key = UncachedKeyRing.decodeFromData(data);
+                                }
+                            } catch (Keyserver.QueryFailedException e) {
+                                // download failed, too bad. just proceed
+                                Log.e(Constants.TAG, "query failed", e);
+                                log.add(LogType.MSG_IMPORT_FETCH_KEYSERVER_ERROR, 3);
                             }
-                        } catch (Keyserver.QueryFailedException e) {
-                            // download failed, too bad. just proceed
-                            Log.e(Constants.TAG, "query failed", e);
-                            log.add(LogType.MSG_IMPORT_FETCH_KEYSERVER_ERROR, 3);
                         }
                     }
-                }
 
-                if (key == null) {
-                    log.add(LogType.MSG_IMPORT_FETCH_ERROR, 2);
-                    badKeys += 1;
-                    continue;
-                }
-
-                // If we have an expected fingerprint, make sure it matches
-                if (entry.mExpectedFingerprint != null) {
-                    if(!KeyFormattingUtils.convertFingerprintToHex(key.getFingerprint()).equals(entry.mExpectedFingerprint)) {
-                        log.add(LogType.MSG_IMPORT_FINGERPRINT_ERROR, 2);
+                    if (key == null) {
+                        log.add(LogType.MSG_IMPORT_FETCH_ERROR, 2);
                         badKeys += 1;
                         continue;
-                    } else {
-                        log.add(LogType.MSG_IMPORT_FINGERPRINT_OK, 2);
                     }
-                }
 
-                // Another check if we have been cancelled
-                if (checkCancelled()) {
-                    cancelled = true;
-                    break;
-                }
+                    // If we have an expected fingerprint, make sure it matches
+                    if (entry.mExpectedFingerprint != null) {
+                        if(!KeyFormattingUtils.convertFingerprintToHex(key.getFingerprint()).equals(entry.mExpectedFingerprint)) {
+                            log.add(LogType.MSG_IMPORT_FINGERPRINT_ERROR, 2);
+                            badKeys += 1;
+                            continue;
+                        } else {
+                            log.add(LogType.MSG_IMPORT_FINGERPRINT_OK, 2);
+                        }
+                    }
 
-                SaveKeyringResult result;
-                mProviderHelper.clearLog();
-                if (key.isSecret()) {
-                    result = mProviderHelper.saveSecretKeyRing(key,
-                            new ProgressScaler(mProgressable, (int)(position*progSteps), (int)((position+1)*progSteps), 100));
-                } else {
-                    result = mProviderHelper.savePublicKeyRing(key,
-                            new ProgressScaler(mProgressable, (int)(position*progSteps), (int)((position+1)*progSteps), 100));
-                }
-                if (!result.success()) {
-                    badKeys += 1;
-                } else if (result.updated()) {
-                    oldKeys += 1;
-                    importedMasterKeyIds.add(key.getMasterKeyId());
-                } else {
-                    newKeys += 1;
+                    // Another check if we have been cancelled
+                    if (checkCancelled()) {
+                        cancelled = true;
+                        break;
+                    }
+
+                    // only use the pipeline's canonicalization if this is the key it worked on
+                    CanonicalizedKeyRing canonicalized = null;
+                    OperationLog canonicalizeLog = null;
+                    if (key == prepared.mKeyRing) {
+                        canonicalized = prepared.mCanonicalized;
+                        canonicalizeLog = prepared.mCanonicalizeLog;
+                    }
+
+                    SaveKeyringResult result;
+                    mProviderHelper.clearLog();
                     if (key.isSecret()) {
-                        secret += 1;
+                        result = mProviderHelper.saveSecretKeyRing(key,
+                                new ProgressScaler(mProgressable, (int)(position*progSteps), (int)((position+1)*progSteps), 100),
+                                canonicalized, canonicalizeLog);
+                    } else {
+                        result = mProviderHelper.savePublicKeyRing(key,
+                                new ProgressScaler(mProgressable, (int)(position*progSteps), (int)((position+1)*progSteps), 100),
+                                canonicalized, canonicalizeLog);
+                    }
+                    if (inBatch && mProviderHelper.isTransactionFailed()) {
+                        // the save failed halfway, so the batch can't be committed
+                        rollback = true;
+                    } else if (!result.success()) {
+                        badKeys += 1;
+                    } else if (result.updated()) {
+                        oldKeys += 1;
+                        importedMasterKeyIds.add(key.getMasterKeyId());
+                    } else {
+                        newKeys += 1;
+                        if (key.isSecret()) {
+                            secret += 1;
+                        }
+                        importedMasterKeyIds.add(key.getMasterKeyId());
+                    }
+
+                    log.add(result, 2);
+
+                } catch (IOException e) {
+                    Log.e(Constants.TAG, "Encountered bad key on import!", e);
+                    ++badKeys;
+                } catch (PgpGeneralException e) {
+                    Log.e(Constants.TAG, "Encountered bad key on import!", e);
+                    ++badKeys;
+                } catch (SQLiteException e) {
+                    Log.e(Constants.TAG, "Database error on import!", e);
+                    if (inBatch) {
+                        rollback = true;
+                    } else {
+                        ++badKeys;
                     }
-                    importedMasterKeyIds.add(key.getMasterKeyId());
                 }
 
-                log.add(result, 2);
+                if (rollback) {
+                    // roll back the whole batch, restore the state from before it, and import
+                    // its entries again one at a time, so only the broken one is lost
+                    mProviderHelper.endTransaction(false);
+                    inBatch = false;
+
+                    newKeys = batchNewKeys;
+                    oldKeys = batchOldKeys;
+                    secret = batchSecret;
+                    badKeys = batchBadKeys;
+                    position = batchPosition;
+                    importedMasterKeyIds.subList(batchImported, importedMasterKeyIds.size()).clear();
+                    log.toList().subList(batchLogSize, log.toList().size()).clear();
+                    log.add(LogType.MSG_IMPORT_BATCH_ROLLBACK, 1, batchEntries.size());
+
+                    retryEntries.addAll(batchEntries);
+                    batchEntries.clear();
+                    continue;
+                }
+                // update progress
+                position++;
+            }
 
-            } catch (IOException e) {
-                Log.e(Constants.TAG, "Encountered bad key on import!", e);
-                ++badKeys;
-            } catch (PgpGeneralException e) {
-                Log.e(Constants.TAG, "Encountered bad key on import!", e);
-                ++badKeys;
+            // commit the last batch, this is also what we want if the operation was cancelled
+            if (inBatch) {
+                mProviderHelper.endTransaction(true);
+                inBatch = false;
             }
-            // update progress
-            position++;
+            // if cancelled, the last entry wasn't processed. just leave the last batch to be
+            // processed again then, re-importing keyrings is harmless
+            if (resumable != null && !cancelled) {
+                resumable.checkpoint(consumed);
+            }
+        } finally {
+            // make sure we never leave a transaction open, even on unexpected errors
+            if (inBatch) {
+                mProviderHelper.endTransaction(false);
+            }
+            pipeline.shutdown();
+        }
+
+        int processed = newKeys + oldKeys + badKeys;
+        if (processed > 0) {
+            long elapsed = SystemClock.elapsedRealtime() - startTime;
+            log.add(LogType.MSG_IMPORT_THROUGHPUT, 1, processed, elapsed,
+                    elapsed > 0 ? processed * 1000L / elapsed : processed);
         }
 
-        // Special: consolidate on secret key import (cannot be cancelled!)
+        // Special: verify certs by new secret keys (cannot be cancelled!). The affected
+        // keyrings were marked while saving, marks left after an error are kept for next time
         if (secret > 0) {
             setPreventCancel();
-            ConsolidateResult result = mProviderHelper.consolidateDatabaseStep1(mProgressable);
+            ConsolidateResult result = mProviderHelper.consolidateDirtyKeyRings(
+                    new ProgressScaler(mProgressable, 0, 100, 100));
             log.add(result, 1);
         }
 
@@ -381,6 +543,176 @@ public class ImportExportOperation extends BaseOperation {
                 importedMasterKeyIdsArray);
     }
 
+    /** A keyring entry, which was decoded and canonicalized ahead of time if it contained
+     * keyring data. Entries which need to be fetched from a keyserver are passed through as is.
+     */
+    static class PreparedKeyRing {
+        final ParcelableKeyRing mEntry;
+        UncachedKeyRing mKeyRing;
+        CanonicalizedKeyRing mCanonicalized;
+        OperationLog mCanonicalizeLog;
+        IOException mIOException;
+        PgpGeneralException mPgpException;
+
+        PreparedKeyRing(ParcelableKeyRing entry) {
+            mEntry = entry;
+        }
+
+        /** Returns the decoded keyring, or rethrows the exception which occurred while decoding. */
+        UncachedKeyRing getKeyRing() throws IOException, PgpGeneralException {
+            if (mIOException != null) {
+                throw mIOException;
+            }
+            if (mPgpException != null) {
+                throw mPgpException;
+            }
+            return mKeyRing;
+        }
+    }
+
+    /** Decodes and canonicalizes a single entry. This method is called from worker threads,
+     * and must not touch the database or any state of the operation.
+     *
+     * Keyrings whose master key id is in the respective set of known ids are only decoded,
+     * their canonicalization would be discarded after merging with the existing keyring.
+     */
+    private PreparedKeyRing prepareKeyRing(ParcelableKeyRing entry,
+                                           Set<Long> knownPublic, Set<Long> knownSecret) {
+        PreparedKeyRing prepared = new PreparedKeyRing(entry);
+
+        // no need to do anything for entries which will be skipped anyways
+        if (entry.mBytes == null || checkCancelled()) {
+            return prepared;
+        }
+
+        try {
+            prepared.mKeyRing = UncachedKeyRing.decodeFromData(entry.mBytes);
+        } catch (IOException e) {
+            prepared.mIOException = e;
+            return prepared;
+        } catch (PgpGeneralException e) {
+            prepared.mPgpException = e;
+            return prepared;
+        }
+
+        UncachedKeyRing ring = prepared.mKeyRing;
+        if ((ring.isSecret() ? knownSecret : knownPublic).contains(ring.getMasterKeyId())) {
+            return prepared;
+        }
+
+        // if canonicalization fails, we just leave it to the ProviderHelper to do it again
+        OperationLog log = new OperationLog();
+        CanonicalizedKeyRing canonicalized = prepared.mKeyRing.canonicalize(log, 0);
+        if (canonicalized != null) {
+            prepared.mCanonicalized = canonicalized;
+            prepared.mCanonicalizeLog = log;
+        }
+
+        return prepared;
+    }
+
+    /** An iterator over prepared keyrings, which fans out the preparation of the entries of an
+     * underlying iterator over a bounded pool of worker threads, while returning the results in
+     * their original order.
+     *
+     * The underlying iterator is only ever accessed from the consuming thread. At most a fixed
+     * number of entries is prepared ahead of the consumer, so memory use stays bounded for
+     * arbitrarily large imports. If only a single core is available or there is only a single
+     * entry, entries are prepared synchronously on the consuming thread.
+     */
+    private class ImportPipeline implements Iterator<PreparedKeyRing> {
+
+        private final Iterator<ParcelableKeyRing> mEntries;
+        private final ExecutorService mExecutor;
+        private final int mWindow;
+        private final ArrayDeque<ParcelableKeyRing> mPendingEntries = new ArrayDeque<>();
+        private final ArrayDeque<Future<PreparedKeyRing>> mPendingResults = new ArrayDeque<>();
+        // never modified, so they may be read from the worker threads
+        private final Set<Long> mKnownPublic, mKnownSecret;
+
+        ImportPipeline(Iterator<ParcelableKeyRing> entries, int num,
+                       Set<Long> knownPublic, Set<Long> knownSecret) {
+            mEntries = entries;
+            mKnownPublic = knownPublic;
+            mKnownSecret = knownSecret;
+            int threads = Math.min(Runtime.getRuntime().availableProcessors(), num);
+            if (threads > 1) {
+                mExecutor = Executors.newFixedThreadPool(threads);
+                mWindow = threads * 4;
+            } else {
+                mExecutor = null;
+                mWindow = 0;
+            }
+        }
+
+        /** Submits entries to the pool until the window is full. */
+        private void fill() {
+            while (mPendingResults.size() < mWindow && mEntries.hasNext()) {
+                final ParcelableKeyRing entry = mEntries.next();
+                mPendingEntries.add(entry);
+                mPendingResults.add(mExecutor.submit(new Callable<PreparedKeyRing>() {
+                    @Override
+                    public PreparedKeyRing call() {
+                        return prepareKeyRing(entry, mKnownPublic, mKnownSecret);
+                    }
+                }));
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (mExecutor == null) {
+                return mEntries.hasNext();
+            }
+            fill();
+            return !mPendingResults.isEmpty();
+        }
+
+        @Override
+        public PreparedKeyRing next() {
+            if (mExecutor == null) {
+                return prepareKeyRing(mEntries.next(), mKnownPublic, mKnownSecret);
+            }
+
+            fill();
+            ParcelableKeyRing entry = mPendingEntries.remove();
+            Future<PreparedKeyRing> result = mPendingResults.remove();
+            try {
+                return result.get();
+            } catch (InterruptedException e) {
+                // don't wait any longer, just do it ourselves
+                result.cancel(true);
+                Thread.currentThread().interrupt();
+                return prepareKeyRing(entry, mKnownPublic, mKnownSecret);
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof Error) {
+                    throw (Error) cause;
+                }
+                throw (RuntimeException) cause;
+            }
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        /** Discards all pending entries and stops all worker threads. */
+        void shutdown() {
+            if (mExecutor == null) {
+                return;
+            }
+            for (Future<PreparedKeyRing> result : mPendingResults) {
+                result.cancel(true);
+            }
+            mPendingResults.clear();
+            mPendingEntries.clear();
+            mExecutor.shutdownNow();
+        }
+
+    }
+
     public ExportResult exportToFile(long[] masterKeyIds, boolean exportSecret, String outputFile) {
 
         OperationLog log = new OperationLog();
@@ -478,93 +810,59 @@ public class ImportExportOperation extends BaseOperation {
                         + " IN (" + placeholders + ")";
             }
 
+            // export data is stripped of local signatures at save time, so it's copied as is
             Cursor cursor = mProviderHelper.getContentResolver().query(
                     KeyRings.buildUnifiedKeyRingsUri(), new String[]{
-                            KeyRings.MASTER_KEY_ID, KeyRings.PUBKEY_DATA,
-                            KeyRings.PRIVKEY_DATA, KeyRings.HAS_ANY_SECRET
+                            KeyRings.MASTER_KEY_ID, KeyRings.PUBKEY_EXPORT_DATA,
+                            KeyRings.PRIVKEY_EXPORT_DATA, KeyRings.HAS_ANY_SECRET
                     }, selection, ids, Tables.KEYS + "." + KeyRings.MASTER_KEY_ID
             );
 
-            if (cursor == null || !cursor.moveToFirst()) {
-                log.add(LogType.MSG_EXPORT_ERROR_DB, 1);
-                return new ExportResult(ExportResult.RESULT_ERROR, log, okPublic, okSecret);
-            }
-
-            int numKeys = cursor.getCount();
+            try {
+                if (cursor == null || !cursor.moveToFirst()) {
+                    log.add(LogType.MSG_EXPORT_ERROR_DB, 1);
+                    return new ExportResult(ExportResult.RESULT_ERROR, log, okPublic, okSecret);
+                }
 
-            updateProgress(
-                    mContext.getResources().getQuantityString(R.plurals.progress_exporting_key,
-                            numKeys), 0, numKeys);
+                int numKeys = cursor.getCount();
 
-            // For each public masterKey id
-            while (!cursor.isAfterLast()) {
+                updateProgress(
+                        mContext.getResources().getQuantityString(R.plurals.progress_exporting_key,
+                                numKeys), 0, numKeys);
 
-                long keyId = cursor.getLong(0);
-                ArmoredOutputStream arOutStream = null;
+                // For each public masterKey id
+                for (; !cursor.isAfterLast(); cursor.moveToNext()) {
 
-                // Create an output stream
-                try {
-                    arOutStream = new ArmoredOutputStream(outStream);
-                    String version = PgpHelper.getVersionForHeader(mContext);
-                    if (version != null) {
-                        arOutStream.setHeader("Version", version);
-                    }
+                    long keyId = cursor.getLong(0);
 
                     log.add(LogType.MSG_EXPORT_PUBLIC, 1, KeyFormattingUtils.beautifyKeyId(keyId));
-
-                    byte[] data = cursor.getBlob(1);
-                    CanonicalizedKeyRing ring =
-                            UncachedKeyRing.decodeFromData(data).canonicalize(log, 2, true);
-                    ring.encode(arOutStream);
-
-                    okPublic += 1;
-                } catch (PgpGeneralException e) {
-                    log.add(LogType.MSG_EXPORT_ERROR_KEY, 2);
-                    updateProgress(progress++, numKeys);
-                    continue;
-                } finally {
-                    // make sure this is closed
-                    if (arOutStream != null) {
-                        arOutStream.close();
+                    if (!writeArmored(outStream, cursor.getBlob(1))) {
+                        log.add(LogType.MSG_EXPORT_ERROR_KEY, 2);
+                        updateProgress(progress++, numKeys);
+                        continue;
                     }
-                    arOutStream = null;
-                }
-
-                if (exportSecret && cursor.getInt(3) > 0) {
-                    try {
-                        arOutStream = new ArmoredOutputStream(outStream);
-                        String version = PgpHelper.getVersionForHeader(mContext);
-                        if (version != null) {
-                            arOutStream.setHeader("Version", version);
-                        }
+                    okPublic += 1;
 
+                    if (exportSecret && cursor.getInt(3) > 0) {
                         // export secret key part
                         log.add(LogType.MSG_EXPORT_SECRET, 2, KeyFormattingUtils.beautifyKeyId(keyId));
-                        byte[] data = cursor.getBlob(2);
-                        CanonicalizedKeyRing ring =
-                                UncachedKeyRing.decodeFromData(data).canonicalize(log, 2, true);
-                        ring.encode(arOutStream);
-
-                        okSecret += 1;
-                    } catch (PgpGeneralException e) {
-                        log.add(LogType.MSG_EXPORT_ERROR_KEY, 2);
-                        updateProgress(progress++, numKeys);
-                        continue;
-                    } finally {
-                        // make sure this is closed
-                        if (arOutStream != null) {
-                            arOutStream.close();
+                        if (writeArmored(outStream, cursor.getBlob(2))) {
+                            okSecret += 1;
+                        } else {
+                            log.add(LogType.MSG_EXPORT_ERROR_KEY, 2);
                         }
                     }
-                }
 
-                updateProgress(progress++, numKeys);
+                    updateProgress(progress++, numKeys);
+                }
 
-                cursor.moveToNext();
+                updateProgress(R.string.progress_done, numKeys, numKeys);
+            } finally {
+                if (cursor != null) {
+                    cursor.close();
+                }
             }
 
-            updateProgress(R.string.progress_done, numKeys, numKeys);
-
         } catch (IOException e) {
             log.add(LogType.MSG_EXPORT_ERROR_IO, 1);
             return new ExportResult(ExportResult.RESULT_ERROR, log, okPublic, okSecret);
@@ -583,4 +881,25 @@ public class ImportExportOperation extends BaseOperation {
 
     }
 
+    /** Writes an encoded keyring to the output in its own armor block, returns false if
+     * there is no data to write. */
+    private boolean writeArmored(OutputStream outStream, byte[] data) throws IOException {
+        if (data == null) {
+            return false;
+        }
+
+        ArmoredOutputStream arOutStream = new ArmoredOutputStream(outStream);
+        try {
+            String version = PgpHelper.getVersionForHeader(mContext);
+            if (version != null) {
+                arOutStream.setHeader("Version", version);
+            }
+            arOutStream.write(data);
+        } finally {
+            // make sure this is closed
+            arOutStream.close();
+        }
+        return true;
+    }
+
 }
@@ -3,10 +3,13 @@ package org.sufficientlysecure.keychain.operations;
 import android.content.Context;
 import android.net.Uri;
 
+import org.sufficientlysecure.keychain.Constants;
 import org.sufficientlysecure.keychain.operations.results.OperationResult.LogType;
 import org.sufficientlysecure.keychain.operations.results.OperationResult.OperationLog;
 import org.sufficientlysecure.keychain.operations.results.PgpSignEncryptResult;
 import org.sufficientlysecure.keychain.operations.results.SignEncryptResult;
+import org.sufficientlysecure.keychain.pgp.CanonicalizedSecretKey;
+import org.sufficientlysecure.keychain.pgp.PgpSignEncryptInput;
 import org.sufficientlysecure.keychain.pgp.PgpSignEncryptOperation;
 import org.sufficientlysecure.keychain.pgp.Progressable;
 import org.sufficientlysecure.keychain.pgp.SignEncryptParcel;
@@ -14,14 +17,22 @@ import org.sufficientlysecure.keychain.provider.ProviderHelper;
 import org.sufficientlysecure.keychain.util.FileHelper;
 import org.sufficientlysecure.keychain.util.InputData;
 import org.sufficientlysecure.keychain.util.ProgressScaler;
+import org.sufficientlysecure.keychain.util.SpillingOutputStream;
 
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 /** This is a high-level operation, which encapsulates one or more sign/encrypt
@@ -30,9 +41,23 @@ import java.util.concurrent.atomic.AtomicBoolean;
  * This operation is fail-fast: If any sign/encrypt sub-operation fails or returns
  * a pending result, it will terminate.
  *
+ * If there are multiple input uris, each with its own output uri, they are
+ * processed in parallel on a pool sized to the number of available cores,
+ * which is shared between all running operations. The signing key is unlocked only once in that case, and shared between all
+ * sub-operations. Results are still evaluated in input order.
+ *
  */
 public class SignEncryptOperation extends BaseOperation {
 
+    private static final ThreadPoolExecutor sExecutor;
+    static {
+        int cores = Runtime.getRuntime().availableProcessors();
+        sExecutor = new ThreadPoolExecutor(cores, cores, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>());
+        // don't keep idle threads around between operations
+        sExecutor.allowCoreThreadTimeOut(true);
+    }
+
     public SignEncryptOperation(Context context, ProviderHelper providerHelper,
                                 Progressable progressable, AtomicBoolean cancelled) {
         super(context, providerHelper, progressable, cancelled);
@@ -43,10 +68,24 @@ public class SignEncryptOperation extends BaseOperation {
         OperationLog log = new OperationLog();
         log.add(LogType.MSG_SE, 0);
 
+        if (canExecuteParallel(input)) {
+            CanonicalizedSecretKey signingKey = null;
+            if (input.getSignatureMasterKeyId() != Constants.key.none) {
+                PgpSignEncryptOperation op = new PgpSignEncryptOperation(mContext, mProviderHelper,
+                        null, mCancelled);
+                signingKey = op.unlockSigningKey(input);
+            }
+            // if unlocking requires user interaction, the sequential run below will ask for it
+            if (input.getSignatureMasterKeyId() == Constants.key.none || signingKey != null) {
+                return executeParallel(input, signingKey, log);
+            }
+        }
+
         ArrayDeque<Uri> inputUris = new ArrayDeque<>(input.getInputUris());
         ArrayDeque<Uri> outputUris = new ArrayDeque<>(input.getOutputUris());
         byte[] inputBytes = input.getBytes();
         byte[] outputBytes = null;
+        Uri spilledUri = null;
 
         ArrayList<PgpSignEncryptResult> results = new ArrayList<>();
 
@@ -95,11 +134,13 @@ public class SignEncryptOperation extends BaseOperation {
                         return new SignEncryptResult(SignEncryptResult.RESULT_ERROR, log, results);
                     }
                 } else {
-                    if (outputBytes != null) {
+                    if (outputBytes != null || spilledUri != null) {
                         log.add(LogType.MSG_SE_ERROR_TOO_MANY_INPUTS, 1);
                         return new SignEncryptResult(SignEncryptResult.RESULT_ERROR, log, results);
                     }
-                    outStream = new ByteArrayOutputStream();
+                    // large results are moved to a temporary file
+                    String targetName = input.ismEnableAsciiArmorOutput() ? "encrypted.asc" : "encrypted.gpg";
+                    outStream = new SpillingOutputStream(mContext, targetName, Constants.TEMPFILE_THRESHOLD);
                 }
             }
 
@@ -117,8 +158,13 @@ public class SignEncryptOperation extends BaseOperation {
                 return new SignEncryptResult(SignEncryptResult.RESULT_ERROR, log, results);
             }
 
-            if (outStream instanceof ByteArrayOutputStream) {
-                outputBytes = ((ByteArrayOutputStream) outStream).toByteArray();
+            if (outStream instanceof SpillingOutputStream) {
+                SpillingOutputStream spillingOut = (SpillingOutputStream) outStream;
+                if (spillingOut.isSpilled()) {
+                    spilledUri = spillingOut.getUri();
+                } else {
+                    outputBytes = spillingOut.toByteArray();
+                }
             }
 
         } while (!inputUris.isEmpty());
@@ -129,7 +175,157 @@ public class SignEncryptOperation extends BaseOperation {
         }
 
         log.add(LogType.MSG_SE_SUCCESS, 1);
-        return new SignEncryptResult(SignEncryptResult.RESULT_OK, log, results, outputBytes);
+        return new SignEncryptResult(SignEncryptResult.RESULT_OK, log, results, outputBytes, spilledUri);
+
+    }
+
+    /** Returns true if the input consists of independent input/output uri pairs only. */
+    private static boolean canExecuteParallel(SignEncryptParcel input) {
+        int num = input.getInputUris().size();
+        return Runtime.getRuntime().availableProcessors() > 1
+                && num > 1 && input.getBytes() == null
+                && input.getOutputUris().size() == num
+                // nfc signing works on a single hash at a time
+                && input.getNfcSignedHash() == null;
+    }
+
+    private SignEncryptResult executeParallel(final SignEncryptParcel input,
+                                              final CanonicalizedSecretKey signingKey,
+                                              OperationLog log) {
+
+        List<Uri> inputUris = input.getInputUris();
+        List<Uri> outputUris = input.getOutputUris();
+        int num = inputUris.size();
+        int threads = Math.min(Runtime.getRuntime().availableProcessors(), num);
+        log.add(LogType.MSG_SE_PARALLEL, 1, num, threads);
+
+        final AggregateProgress progress = new AggregateProgress(mProgressable, num);
+        // set on fail-fast, so inputs which weren't started yet are skipped
+        final AtomicBoolean aborted = new AtomicBoolean(false);
+        ArrayList<Future<PgpSignEncryptResult>> futures = new ArrayList<>(num);
+        for (int i = 0; i < num; i++) {
+            final Uri inputUri = inputUris.get(i);
+            final Uri outputUri = outputUris.get(i);
+            final Progressable fileProgress = progress.getFileProgressable(i);
+            futures.add(sExecutor.submit(new Callable<PgpSignEncryptResult>() {
+                @Override
+                public PgpSignEncryptResult call() {
+                    return signEncryptUri(input, signingKey, inputUri, outputUri, fileProgress,
+                            aborted);
+                }
+            }));
+        }
+
+        ArrayList<PgpSignEncryptResult> results = new ArrayList<>();
+        try {
+            for (Future<PgpSignEncryptResult> future : futures) {
+                log.add(LogType.MSG_SE_INPUT_URI, 1);
+
+                PgpSignEncryptResult result;
+                try {
+                    result = future.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    log.add(LogType.MSG_OPERATION_CANCELLED, 0);
+                    return new SignEncryptResult(SignEncryptResult.RESULT_CANCELLED, log, results);
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof Error) {
+                        throw (Error) cause;
+                    }
+                    throw (RuntimeException) cause;
+                }
+
+                if (result.cancelled()) {
+                    log.add(LogType.MSG_OPERATION_CANCELLED, 0);
+                    return new SignEncryptResult(SignEncryptResult.RESULT_CANCELLED, log, results);
+                }
+
+                results.add(result);
+                log.add(result, 2);
+
+                if (result.isPending()) {
+                    return new SignEncryptResult(SignEncryptResult.RESULT_PENDING, log, results);
+                }
+
+                if (!result.success()) {
+                    return new SignEncryptResult(SignEncryptResult.RESULT_ERROR, log, results);
+                }
+            }
+        } finally {
+            // fail-fast, don't bother with the remaining inputs. sub-operations which are
+            // already running can't be interrupted though, so we must wait for them to finish
+            // before returning, they are still writing to their output uris.
+            aborted.set(true);
+            awaitAll(futures);
+        }
+
+        log.add(LogType.MSG_SE_SUCCESS, 1);
+        return new SignEncryptResult(SignEncryptResult.RESULT_OK, log, results, null);
+
+    }
+
+    /** Waits for all futures to complete, regardless of their outcome. */
+    private static void awaitAll(List<Future<PgpSignEncryptResult>> futures) {
+        boolean interrupted = false;
+        for (Future<PgpSignEncryptResult> future : futures) {
+            while (true) {
+                try {
+                    future.get();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    break;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /** Signs and/or encrypts a single uri into another, on a worker thread. */
+    private PgpSignEncryptResult signEncryptUri(SignEncryptParcel input, CanonicalizedSecretKey signingKey,
+                                                Uri inputUri, Uri outputUri, Progressable progressable,
+                                                AtomicBoolean aborted) {
+
+        OperationLog log = new OperationLog();
+
+        if (checkCancelled() || aborted.get()) {
+            log.add(LogType.MSG_OPERATION_CANCELLED, 0);
+            return new PgpSignEncryptResult(PgpSignEncryptResult.RESULT_CANCELLED, log);
+        }
+
+        InputStream is;
+        InputData inputData;
+        try {
+            is = mContext.getContentResolver().openInputStream(inputUri);
+            long fileSize = FileHelper.getFileSize(mContext, inputUri, 0);
+            String filename = FileHelper.getFilename(mContext, inputUri);
+            inputData = new InputData(is, fileSize, filename);
+        } catch (FileNotFoundException e) {
+            log.add(LogType.MSG_SE_ERROR_INPUT_URI_NOT_FOUND, 0);
+            return new PgpSignEncryptResult(PgpSignEncryptResult.RESULT_ERROR, log);
+        }
+
+        OutputStream outStream;
+        try {
+            outStream = mContext.getContentResolver().openOutputStream(outputUri);
+        } catch (FileNotFoundException e) {
+            try {
+                is.close();
+            } catch (IOException e1) {
+                // nothing to do
+            }
+            log.add(LogType.MSG_SE_ERROR_OUTPUT_URI_NOT_FOUND, 0);
+            return new PgpSignEncryptResult(PgpSignEncryptResult.RESULT_ERROR, log);
+        }
+
+        // the operation modifies its input, so each one gets its own copy
+        PgpSignEncryptOperation op = new PgpSignEncryptOperation(mContext,
+                new ProviderHelper(mContext), progressable, mCancelled);
+        return op.execute(new PgpSignEncryptInput(input), inputData, outStream, signingKey);
 
     }
 
@@ -0,0 +1,63 @@
+/*
+ * Copyright (C) 2014 Vincent Breitmoser <v.breitmoser@mugenguild.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.operations.results;
+
+import android.os.Parcel;
+
+import java.util.ArrayList;
+
+public class BatchVerifyResult extends OperationResult {
+
+    // one result per file, in input order
+    ArrayList<DecryptVerifyResult> mResults;
+
+    public BatchVerifyResult(int result, OperationLog log, ArrayList<DecryptVerifyResult> results) {
+        super(result, log);
+        mResults = results;
+    }
+
+    public BatchVerifyResult(Parcel source) {
+        super(source);
+        mResults = source.createTypedArrayList(DecryptVerifyResult.CREATOR);
+    }
+
+    /** Returns the result of each file, in the order they were given. */
+    public ArrayList<DecryptVerifyResult> getResults() {
+        return mResults;
+    }
+
+    public int describeContents() {
+        return 0;
+    }
+
+    public void writeToParcel(Parcel dest, int flags) {
+        super.writeToParcel(dest, flags);
+        dest.writeTypedList(mResults);
+    }
+
+    public static final Creator<BatchVerifyResult> CREATOR = new Creator<BatchVerifyResult>() {
+        public BatchVerifyResult createFromParcel(final Parcel source) {
+            return new BatchVerifyResult(source);
+        }
+
+        public BatchVerifyResult[] newArray(final int size) {
+            return new BatchVerifyResult[size];
+        }
+    };
+
+}
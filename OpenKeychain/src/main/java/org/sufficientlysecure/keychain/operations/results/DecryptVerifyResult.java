@@ -45,6 +45,10 @@ public class DecryptVerifyResult extends OperationResult {
     // https://tools.ietf.org/html/rfc4880#page56
     String mCharset;
 
+    // key ids of all recipients and signers, only available for metadata-only decryption
+    long[] mRecipientKeyIds;
+    long[] mSignerKeyIds;
+
     public long getKeyIdPassphraseNeeded() {
         return mKeyIdPassphraseNeeded;
     }
@@ -95,6 +99,24 @@ public class DecryptVerifyResult extends OperationResult {
         mCharset = charset;
     }
 
+    /** Returns the (sub)key ids this message was encrypted to. */
+    public long[] getRecipientKeyIds() {
+        return mRecipientKeyIds;
+    }
+
+    public void setRecipientKeyIds(long[] recipientKeyIds) {
+        mRecipientKeyIds = recipientKeyIds;
+    }
+
+    /** Returns the (sub)key ids of the one-pass signatures in this message. */
+    public long[] getSignerKeyIds() {
+        return mSignerKeyIds;
+    }
+
+    public void setSignerKeyIds(long[] signerKeyIds) {
+        mSignerKeyIds = signerKeyIds;
+    }
+
     public boolean isPending() {
         return (mResult & RESULT_PENDING) == RESULT_PENDING;
     }
@@ -110,6 +132,8 @@ public class DecryptVerifyResult extends OperationResult {
         mDecryptMetadata = source.readParcelable(OpenPgpMetadata.class.getClassLoader());
         mNfcSessionKey = source.readInt() != 0 ? source.createByteArray() : null;
         mNfcPassphrase = source.readString();
+        mRecipientKeyIds = source.createLongArray();
+        mSignerKeyIds = source.createLongArray();
     }
 
     public int describeContents() {
@@ -128,6 +152,8 @@ public class DecryptVerifyResult extends OperationResult {
             dest.writeInt(0);
         }
         dest.writeString(mNfcPassphrase);
+        dest.writeLongArray(mRecipientKeyIds);
+        dest.writeLongArray(mSignerKeyIds);
     }
 
     public static final Creator<DecryptVerifyResult> CREATOR = new Creator<DecryptVerifyResult>() {
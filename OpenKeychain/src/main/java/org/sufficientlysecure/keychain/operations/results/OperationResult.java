@@ -503,6 +503,9 @@ public abstract class OperationResult implements Parcelable {
         MSG_CON_CRITICAL_IN (LogLevel.DEBUG, R.string.msg_con_critical_in),
         MSG_CON_CRITICAL_OUT (LogLevel.DEBUG, R.string.msg_con_critical_out),
         MSG_CON_DB_CLEAR (LogLevel.DEBUG, R.string.msg_con_db_clear),
+        MSG_CON_DIRTY (LogLevel.DEBUG, R.plurals.msg_con_dirty),
+        MSG_CON_DIRTY_ERROR (LogLevel.ERROR, R.string.msg_con_dirty_error),
+        MSG_CON_DIRTY_NONE (LogLevel.DEBUG, R.string.msg_con_dirty_none),
         MSG_CON_DELETE_PUBLIC (LogLevel.DEBUG, R.string.msg_con_delete_public),
         MSG_CON_DELETE_SECRET (LogLevel.DEBUG, R.string.msg_con_delete_secret),
         MSG_CON_ERROR_BAD_STATE (LogLevel.ERROR, R.string.msg_con_error_bad_state),
@@ -516,6 +519,7 @@ public abstract class OperationResult implements Parcelable {
         MSG_CON_RECURSIVE (LogLevel.OK, R.string.msg_con_recursive),
         MSG_CON_REIMPORT_PUBLIC (LogLevel.DEBUG, R.plurals.msg_con_reimport_public),
         MSG_CON_REIMPORT_PUBLIC_SKIP (LogLevel.DEBUG, R.string.msg_con_reimport_public_skip),
+        MSG_CON_REIMPORT_RESUME (LogLevel.DEBUG, R.string.msg_con_reimport_resume),
         MSG_CON_REIMPORT_SECRET (LogLevel.DEBUG, R.plurals.msg_con_reimport_secret),
         MSG_CON_REIMPORT_SECRET_SKIP (LogLevel.DEBUG, R.string.msg_con_reimport_secret_skip),
         MSG_CON (LogLevel.START, R.string.msg_con),
@@ -595,10 +599,20 @@ public abstract class OperationResult implements Parcelable {
         MSG_VL_ERROR_INTEGRITY_CHECK (LogLevel.ERROR, R.string.msg_vl_error_integrity_check),
         MSG_VL_OK (LogLevel.OK, R.string.msg_vl_ok),
 
+        // batch verify
+        MSG_VB (LogLevel.START, R.plurals.msg_vb),
+        MSG_VB_FILE (LogLevel.INFO, R.string.msg_vb_file),
+        MSG_VB_ERROR_MISMATCH (LogLevel.ERROR, R.string.msg_vb_error_mismatch),
+        MSG_VB_ERROR_DATA_URI (LogLevel.ERROR, R.string.msg_vb_error_data_uri),
+        MSG_VB_ERROR_SIGNATURE_URI (LogLevel.ERROR, R.string.msg_vb_error_signature_uri),
+        MSG_VB_ERROR (LogLevel.ERROR, R.string.msg_vb_error),
+        MSG_VB_OK (LogLevel.OK, R.string.msg_vb_ok),
+
         // signencrypt
         MSG_SE (LogLevel.START, R.string.msg_se),
         MSG_SE_INPUT_BYTES (LogLevel.INFO, R.string.msg_se_input_bytes),
         MSG_SE_INPUT_URI (LogLevel.INFO, R.string.msg_se_input_uri),
+        MSG_SE_PARALLEL (LogLevel.DEBUG, R.plurals.msg_se_parallel),
         MSG_SE_ERROR_NO_INPUT (LogLevel.DEBUG, R.string.msg_se_error_no_input),
         MSG_SE_ERROR_INPUT_URI_NOT_FOUND (LogLevel.ERROR, R.string.msg_se_error_input_uri_not_found),
         MSG_SE_ERROR_OUTPUT_URI_NOT_FOUND (LogLevel.ERROR, R.string.msg_se_error_output_uri_not_found),
@@ -610,6 +624,8 @@ public abstract class OperationResult implements Parcelable {
         MSG_PSE_ASYMMETRIC (LogLevel.INFO, R.string.msg_pse_asymmetric),
         MSG_PSE_CLEARSIGN_ONLY (LogLevel.DEBUG, R.string.msg_pse_clearsign_only),
         MSG_PSE_COMPRESSING (LogLevel.DEBUG, R.string.msg_pse_compressing),
+        MSG_PSE_COMPRESSION_SAMPLE_OK (LogLevel.DEBUG, R.string.msg_pse_compression_sample_ok),
+        MSG_PSE_COMPRESSION_SAMPLE_SKIP (LogLevel.INFO, R.string.msg_pse_compression_sample_skip),
         MSG_PSE_ENCRYPTING (LogLevel.DEBUG, R.string.msg_pse_encrypting),
         MSG_PSE_ERROR_BAD_PASSPHRASE (LogLevel.ERROR, R.string.msg_pse_error_bad_passphrase),
         MSG_PSE_ERROR_HASH_ALGO (LogLevel.ERROR, R.string.msg_pse_error_hash_algo),
@@ -617,6 +633,7 @@ public abstract class OperationResult implements Parcelable {
         MSG_PSE_ERROR_SIGN_KEY(LogLevel.ERROR, R.string.msg_pse_error_sign_key),
         MSG_PSE_ERROR_KEY_SIGN (LogLevel.ERROR, R.string.msg_pse_error_key_sign),
         MSG_PSE_ERROR_NFC (LogLevel.ERROR, R.string.msg_pse_error_nfc),
+        MSG_PSE_ERROR_MULTI_NFC (LogLevel.ERROR, R.string.msg_pse_error_multi_nfc),
         MSG_PSE_ERROR_PGP (LogLevel.ERROR, R.string.msg_pse_error_pgp),
         MSG_PSE_ERROR_SIG (LogLevel.ERROR, R.string.msg_pse_error_sig),
         MSG_PSE_ERROR_UNLOCK (LogLevel.ERROR, R.string.msg_pse_error_unlock),
@@ -630,6 +647,7 @@ public abstract class OperationResult implements Parcelable {
         MSG_PSE_SIGNING (LogLevel.DEBUG, R.string.msg_pse_signing),
         MSG_PSE_SIGNING_CLEARTEXT (LogLevel.DEBUG, R.string.msg_pse_signing_cleartext),
         MSG_PSE_SIGNING_DETACHED (LogLevel.DEBUG, R.string.msg_pse_signing_detached),
+        MSG_PSE_SIGNER_ADDITIONAL (LogLevel.INFO, R.string.msg_pse_signer_additional),
         MSG_PSE_SIGCRYPTING (LogLevel.DEBUG, R.string.msg_pse_sigcrypting),
         MSG_PSE_SYMMETRIC (LogLevel.INFO, R.string.msg_pse_symmetric),
 
@@ -667,6 +685,8 @@ public abstract class OperationResult implements Parcelable {
         MSG_IMPORT_ERROR_IO (LogLevel.ERROR, R.string.msg_import_error_io),
         MSG_IMPORT_PARTIAL (LogLevel.ERROR, R.string.msg_import_partial),
         MSG_IMPORT_SUCCESS (LogLevel.OK, R.string.msg_import_success),
+        MSG_IMPORT_BATCH_ROLLBACK (LogLevel.WARN, R.plurals.msg_import_batch_rollback),
+        MSG_IMPORT_THROUGHPUT (LogLevel.DEBUG, R.plurals.msg_import_throughput),
 
         MSG_EXPORT (LogLevel.START, R.plurals.msg_export),
         MSG_EXPORT_PUBLIC (LogLevel.DEBUG, R.string.msg_export_public),
@@ -792,6 +812,18 @@ public abstract class OperationResult implements Parcelable {
             mParcels.addAll(parcels);
         }
 
+        /// Appends all entries of another log, with their indentation shifted by indent
+        public void addAll(OperationLog log, int indent) {
+            for (LogEntryParcel entry : log) {
+                if (entry instanceof SubLogEntryParcel) {
+                    mParcels.add(new SubLogEntryParcel(((SubLogEntryParcel) entry).getSubResult(),
+                            entry.mType, entry.mIndent + indent, entry.mParameters));
+                } else {
+                    mParcels.add(new LogEntryParcel(entry.mType, entry.mIndent + indent, entry.mParameters));
+                }
+            }
+        }
+
         public List<LogEntryParcel> toList() {
             return mParcels;
         }
@@ -17,6 +17,7 @@
 
 package org.sufficientlysecure.keychain.operations.results;
 
+import android.net.Uri;
 import android.os.Parcel;
 
 import java.util.ArrayList;
@@ -25,6 +26,7 @@ public class SignEncryptResult extends OperationResult {
 
     ArrayList<PgpSignEncryptResult> mResults;
     byte[] mResultBytes;
+    Uri mResultUri;
 
     public static final int RESULT_PENDING = RESULT_ERROR + 8;
 
@@ -48,15 +50,29 @@ public class SignEncryptResult extends OperationResult {
         mResultBytes = resultBytes;
     }
 
+    public SignEncryptResult(int result, OperationLog log, ArrayList<PgpSignEncryptResult> results,
+                             byte[] resultBytes, Uri resultUri) {
+        super(result, log);
+        mResults = results;
+        mResultBytes = resultBytes;
+        mResultUri = resultUri;
+    }
+
     public SignEncryptResult(Parcel source) {
         super(source);
         mResults = source.createTypedArrayList(PgpSignEncryptResult.CREATOR);
+        mResultUri = source.readParcelable(Uri.class.getClassLoader());
     }
 
     public byte[] getResultBytes() {
         return mResultBytes;
     }
 
+    /** Returns the uri of a temporary file holding the result, if it was too large for getResultBytes(). */
+    public Uri getResultUri() {
+        return mResultUri;
+    }
+
     public int describeContents() {
         return 0;
     }
@@ -64,6 +80,7 @@ public class SignEncryptResult extends OperationResult {
     public void writeToParcel(Parcel dest, int flags) {
         super.writeToParcel(dest, flags);
         dest.writeTypedList(mResults);
+        dest.writeParcelable(mResultUri, 0);
     }
 
     public static final Creator<SignEncryptResult> CREATOR = new Creator<SignEncryptResult>() {
@@ -19,6 +19,8 @@
 package org.sufficientlysecure.keychain.pgp;
 
 import org.spongycastle.openpgp.PGPKeyRing;
+import org.spongycastle.openpgp.PGPSignature;
+import org.sufficientlysecure.keychain.operations.results.OperationResult.OperationLog;
 import org.sufficientlysecure.keychain.pgp.exception.PgpKeyNotFoundException;
 import org.sufficientlysecure.keychain.util.IterableIterator;
 
@@ -26,6 +28,7 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.Iterator;
 
 /** A generic wrapped PGPKeyRing object.
  *
@@ -134,4 +137,32 @@ public abstract class CanonicalizedKeyRing extends KeyRing {
         return getRing().getEncoded();
     }
 
+    /** Returns the encoded keyring with all non-exportable signatures removed, or null if
+     * that is the same as getEncoded().
+     *
+     * After canonicalization, the only local signatures left are direct key notations on
+     * the master key, so only keyrings which carry one of those are canonicalized again.
+     */
+    @SuppressWarnings("unchecked")
+    public byte[] getEncodedForExport() throws IOException {
+        boolean hasLocal = false;
+        Iterator<PGPSignature> it = getRing().getPublicKey().getSignatures();
+        while (it.hasNext()) {
+            if (new WrappedSignature(it.next()).isLocal()) {
+                hasLocal = true;
+                break;
+            }
+        }
+        if (!hasLocal) {
+            return null;
+        }
+
+        CanonicalizedKeyRing exportRing =
+                getUncachedKeyRing().canonicalize(new OperationLog(), 0, true);
+        if (exportRing == null) {
+            throw new IOException("keyring failed to canonicalize for export");
+        }
+        return exportRing.getEncoded();
+    }
+
 }
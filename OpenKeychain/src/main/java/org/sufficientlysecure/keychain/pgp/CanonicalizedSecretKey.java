@@ -152,6 +152,15 @@ public class CanonicalizedSecretKey extends CanonicalizedPublicKey {
      * Returns true on right passphrase
      */
     public boolean unlock(String passphrase) throws PgpGeneralException {
+        return unlock(passphrase, null);
+    }
+
+    /**
+     * Returns true on right passphrase. If a cache is passed, a private key
+     * unlocked earlier with the same passphrase is taken from it, and a newly
+     * unlocked one is added to it.
+     */
+    public boolean unlock(String passphrase, UnlockedKeyCache cache) throws PgpGeneralException {
         // handle keys on OpenPGP cards like they were unlocked
         if (mSecretKey.getS2K() != null
                 && mSecretKey.getS2K().getType() == S2K.GNU_DUMMY_S2K
@@ -160,6 +169,21 @@ public class CanonicalizedSecretKey extends CanonicalizedPublicKey {
             return true;
         }
 
+        // unprotected keys are cheap to extract, no point in caching those
+        S2K s2k = mSecretKey.getS2K();
+        if (s2k == null) {
+            cache = null;
+        }
+
+        if (cache != null) {
+            PGPPrivateKey privateKey = cache.get(getKeyId(), s2k.getIV(), passphrase);
+            if (privateKey != null) {
+                mPrivateKey = privateKey;
+                mPrivateKeyState = PRIVATE_KEY_STATE_UNLOCKED;
+                return true;
+            }
+        }
+
         // try to extract keys using the passphrase
         try {
             PBESecretKeyDecryptor keyDecryptor = new JcePBESecretKeyDecryptorBuilder().setProvider(
@@ -172,6 +196,9 @@ public class CanonicalizedSecretKey extends CanonicalizedPublicKey {
         if (mPrivateKey == null) {
             throw new PgpGeneralException("error extracting key");
         }
+        if (cache != null) {
+            cache.put(getKeyId(), s2k.getIV(), passphrase, mPrivateKey);
+        }
         return true;
     }
 
@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2014 Vincent Breitmoser <v.breitmoser@mugenguild.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.pgp;
+
+import java.io.IOException;
+import java.security.SignatureException;
+import java.util.Arrays;
+
+/** Canonicalizes text for cleartext signatures, directly on byte buffers.
+ *
+ * Input is split into lines ending in CR, LF or CRLF, and trailing spaces and
+ * tabs are stripped from each line, as described in RFC 4880, section 7.1.
+ * The remaining content of a line is passed to writeLine(), in as many pieces
+ * as the input happens to be split into. endLine() is called between two
+ * lines, a line ending at the very end of the input does not start another
+ * line. This is the same as reading the input with BufferedReader.readLine().
+ *
+ * Dash escaping is not done here, ArmoredOutputStream and ArmoredInputStream
+ * take care of that on the fly.
+ *
+ */
+abstract class CleartextCanonicalizer {
+
+    // whitespace at the end of a buffer, which may or may not turn out to be trailing
+    private byte[] mWhitespace = new byte[16];
+    private int mWhitespaceCount;
+
+    private boolean mLineEndPending;
+    private boolean mLastWasCr;
+
+    /** Called with a piece of the current line, without trailing whitespace. */
+    protected abstract void writeLine(byte[] buffer, int off, int len)
+            throws IOException, SignatureException;
+
+    /** Called between two lines. */
+    protected abstract void endLine() throws IOException, SignatureException;
+
+    public void update(byte[] buffer, int off, int len) throws IOException, SignatureException {
+        int end = off + len;
+
+        // start of the current line in this buffer, and end of its content so far
+        int lineStart = off;
+        int contentEnd = off;
+
+        for (int i = off; i < end; i++) {
+            byte b = buffer[i];
+
+            if (mLastWasCr) {
+                mLastWasCr = false;
+                // second half of a CRLF
+                if (b == '\n') {
+                    lineStart = contentEnd = i + 1;
+                    continue;
+                }
+            }
+
+            // any other byte starts a new line
+            if (mLineEndPending) {
+                mLineEndPending = false;
+                endLine();
+            }
+
+            if (b == '\r' || b == '\n') {
+                if (contentEnd > lineStart) {
+                    writeLine(buffer, lineStart, contentEnd - lineStart);
+                }
+                mWhitespaceCount = 0;
+                mLineEndPending = true;
+                mLastWasCr = b == '\r';
+                lineStart = contentEnd = i + 1;
+            } else if (b != ' ' && b != '\t') {
+                if (mWhitespaceCount > 0) {
+                    // whitespace from the previous buffer was followed by content after all
+                    writeLine(mWhitespace, 0, mWhitespaceCount);
+                    mWhitespaceCount = 0;
+                }
+                contentEnd = i + 1;
+            }
+        }
+
+        if (contentEnd > lineStart) {
+            writeLine(buffer, lineStart, contentEnd - lineStart);
+        }
+
+        // everything past the content is whitespace, keep it until we know whether it's trailing
+        int whitespace = end - contentEnd;
+        if (whitespace > 0) {
+            if (mWhitespaceCount + whitespace > mWhitespace.length) {
+                mWhitespace = Arrays.copyOf(mWhitespace,
+                        Math.max(mWhitespace.length * 2, mWhitespaceCount + whitespace));
+            }
+            System.arraycopy(buffer, contentEnd, mWhitespace, mWhitespaceCount, whitespace);
+            mWhitespaceCount += whitespace;
+        }
+    }
+
+}
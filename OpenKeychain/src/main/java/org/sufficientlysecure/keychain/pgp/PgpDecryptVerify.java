@@ -19,6 +19,7 @@
 package org.sufficientlysecure.keychain.pgp;
 
 import android.content.Context;
+import android.support.v4.util.LongSparseArray;
 import android.webkit.MimeTypeMap;
 
 import org.openintents.openpgp.OpenPgpMetadata;
@@ -58,11 +59,11 @@ import org.sufficientlysecure.keychain.pgp.exception.PgpGeneralException;
 import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRings;
 import org.sufficientlysecure.keychain.provider.ProviderHelper;
 import org.sufficientlysecure.keychain.ui.util.KeyFormattingUtils;
+import org.sufficientlysecure.keychain.util.BufferPool;
 import org.sufficientlysecure.keychain.util.InputData;
 import org.sufficientlysecure.keychain.util.Log;
 import org.sufficientlysecure.keychain.util.ProgressScaler;
 
-import java.io.BufferedInputStream;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
@@ -70,8 +71,10 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.URLConnection;
 import java.security.SignatureException;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Set;
 
 /**
@@ -90,6 +93,7 @@ public class PgpDecryptVerify extends BaseOperation {
     private byte[] mDetachedSignature;
     private String mRequiredSignerFingerprint;
     private boolean mSignedLiteralData;
+    private SignerKeyCache mSignerKeyCache;
 
     protected PgpDecryptVerify(Builder builder) {
         super(builder.mContext, builder.mProviderHelper, builder.mProgressable);
@@ -102,6 +106,7 @@ public class PgpDecryptVerify extends BaseOperation {
         this.mPassphrase = builder.mPassphrase;
         this.mAllowedKeyIds = builder.mAllowedKeyIds;
         this.mDecryptMetadataOnly = builder.mDecryptMetadataOnly;
+        this.mSignerKeyCache = builder.mSignerKeyCache;
         this.mDecryptedSessionKey = builder.mDecryptedSessionKey;
         this.mDetachedSignature = builder.mDetachedSignature;
         this.mSignedLiteralData = builder.mSignedLiteralData;
@@ -125,6 +130,7 @@ public class PgpDecryptVerify extends BaseOperation {
         private byte[] mDetachedSignature = null;
         private String mRequiredSignerFingerprint = null;
         private boolean mSignedLiteralData = false;
+        private SignerKeyCache mSignerKeyCache = null;
 
         public Builder(Context context, ProviderHelper providerHelper,
                        Progressable progressable,
@@ -195,6 +201,14 @@ public class PgpDecryptVerify extends BaseOperation {
             return this;
         }
 
+        /**
+         * Look up signer keys through this cache, which may be shared between operations.
+         */
+        public Builder setSignerKeyCache(SignerKeyCache signerKeyCache) {
+            mSignerKeyCache = signerKeyCache;
+            return this;
+        }
+
         public PgpDecryptVerify build() {
             return new PgpDecryptVerify(this);
         }
@@ -279,9 +293,7 @@ public class PgpDecryptVerify extends BaseOperation {
         for (int i = 0; i < sigList.size(); ++i) {
             try {
                 long sigKeyId = sigList.get(i).getKeyID();
-                signingRing = mProviderHelper.getCanonicalizedPublicKeyRing(
-                        KeyRings.buildUnifiedKeyRingsFindBySubkeyUri(sigKeyId)
-                );
+                signingRing = getSignerKeyRing(sigKeyId);
                 signingKey = signingRing.getPublicKey(sigKeyId);
                 signatureIndex = i;
             } catch (ProviderHelper.NotFoundException e) {
@@ -329,17 +341,21 @@ public class PgpDecryptVerify extends BaseOperation {
         InputStream dataIn = literalData.getInputStream();
 
         int length;
-        byte[] buffer = new byte[1 << 16];
-        while ((length = dataIn.read(buffer)) > 0) {
-            mOutStream.write(buffer, 0, length);
-            signature.update(buffer, 0, length);
+        byte[] buffer = BufferPool.getInstance().acquire();
+        try {
+            while ((length = dataIn.read(buffer)) > 0) {
+                mOutStream.write(buffer, 0, length);
+                signature.update(buffer, 0, length);
+            }
+        } finally {
+            BufferPool.getInstance().release(buffer);
         }
 
         updateProgress(R.string.progress_verifying_signature, 95, 100);
         log.add(LogType.MSG_VL_CLEAR_SIGNATURE_CHECK, indent + 1);
 
         PGPSignatureList signatureList = (PGPSignatureList) pgpF.nextObject();
-        PGPSignature messageSignature = signatureList.get(signatureIndex);
+        PGPSignature messageSignature = getMatchingSignature(signatureList, signature, signatureIndex);
 
         // these are not cleartext signatures!
         // TODO: what about binary signatures?
@@ -412,6 +428,23 @@ public class PgpDecryptVerify extends BaseOperation {
         boolean asymmetricPacketFound = false;
         boolean symmetricPacketFound = false;
         boolean anyPacketFound = false;
+        // all recipients, reported for metadata-only decryption
+        ArrayList<Long> recipientKeyIds = new ArrayList<>();
+        // master key ids by subkey id of the usable secret subkeys among the recipients.
+        // messages to large groups carry lots of packets for keys we don't have, so look
+        // them all up in a single query first
+        LongSparseArray<Long> secretSubkeyIndex;
+        {
+            ArrayList<Long> packetKeyIds = new ArrayList<>();
+            Iterator<?> packets = enc.getEncryptedDataObjects();
+            while (packets.hasNext()) {
+                Object obj = packets.next();
+                if (obj instanceof PGPPublicKeyEncryptedData) {
+                    packetKeyIds.add(((PGPPublicKeyEncryptedData) obj).getKeyID());
+                }
+            }
+            secretSubkeyIndex = mProviderHelper.getSecretSubkeyMasterKeyIds(packetKeyIds);
+        }
 
         // If the input stream is armored, and there is a charset specified, take a note for later
         // https://tools.ietf.org/html/rfc4880#page56
@@ -443,16 +476,36 @@ public class PgpDecryptVerify extends BaseOperation {
 
                 PGPPublicKeyEncryptedData encData = (PGPPublicKeyEncryptedData) obj;
                 long subKeyId = encData.getKeyID();
+                recipientKeyIds.add(subKeyId);
 
                 log.add(LogType.MSG_DC_ASYM, indent,
                         KeyFormattingUtils.convertKeyIdToHex(subKeyId));
 
+                Long masterKeyId = secretSubkeyIndex.get(subKeyId);
+                if (masterKeyId == null) {
+                    // continue with the next packet in the while loop
+                    log.add(LogType.MSG_DC_ASKIP_NO_KEY, indent + 1);
+                    continue;
+                }
+
+                // allow only specific keys for decryption?
+                if (mAllowedKeyIds != null) {
+                    Log.d(Constants.TAG, "encData.getKeyID(): " + subKeyId);
+                    Log.d(Constants.TAG, "mAllowedKeyIds: " + mAllowedKeyIds);
+                    Log.d(Constants.TAG, "masterKeyId: " + masterKeyId);
+
+                    if (!mAllowedKeyIds.contains(masterKeyId)) {
+                        // this key is in our db, but NOT allowed!
+                        // continue with the next packet in the while loop
+                        log.add(LogType.MSG_DC_ASKIP_NOT_ALLOWED, indent + 1);
+                        continue;
+                    }
+                }
+
                 CanonicalizedSecretKeyRing secretKeyRing;
                 try {
                     // get actual keyring object based on master key id
-                    secretKeyRing = mProviderHelper.getCanonicalizedSecretKeyRing(
-                            KeyRings.buildUnifiedKeyRingsFindBySubkeyUri(subKeyId)
-                    );
+                    secretKeyRing = mProviderHelper.getCanonicalizedSecretKeyRing(masterKeyId);
                 } catch (ProviderHelper.NotFoundException e) {
                     // continue with the next packet in the while loop
                     log.add(LogType.MSG_DC_ASKIP_NO_KEY, indent + 1);
@@ -471,21 +524,6 @@ public class PgpDecryptVerify extends BaseOperation {
                     continue;
                 }
 
-                // allow only specific keys for decryption?
-                if (mAllowedKeyIds != null) {
-                    long masterKeyId = secretKeyRing.getMasterKeyId();
-                    Log.d(Constants.TAG, "encData.getKeyID(): " + subKeyId);
-                    Log.d(Constants.TAG, "mAllowedKeyIds: " + mAllowedKeyIds);
-                    Log.d(Constants.TAG, "masterKeyId: " + masterKeyId);
-
-                    if (!mAllowedKeyIds.contains(masterKeyId)) {
-                        // this key is in our db, but NOT allowed!
-                        // continue with the next packet in the while loop
-                        log.add(LogType.MSG_DC_ASKIP_NOT_ALLOWED, indent + 1);
-                        continue;
-                    }
-                }
-
                 /* secret key exists in database and is allowed! */
                 asymmetricPacketFound = true;
 
@@ -551,6 +589,7 @@ public class PgpDecryptVerify extends BaseOperation {
             if (obj instanceof PGPPublicKeyEncryptedData) {
                 PGPPublicKeyEncryptedData encData = (PGPPublicKeyEncryptedData) obj;
                 long subKeyId = encData.getKeyID();
+                recipientKeyIds.add(subKeyId);
                 log.add(LogType.MSG_DC_TRAIL_ASYM, indent,
                         KeyFormattingUtils.convertKeyIdToHex(subKeyId));
             } else if (obj instanceof PGPPBEEncryptedData) {
@@ -582,7 +621,7 @@ public class PgpDecryptVerify extends BaseOperation {
 
             try {
                 log.add(LogType.MSG_DC_UNLOCKING, indent + 1);
-                if (!secretEncryptionKey.unlock(mPassphrase)) {
+                if (!secretEncryptionKey.unlock(mPassphrase, getUnlockedKeyCache())) {
                     log.add(LogType.MSG_DC_ERROR_BAD_PASSPHRASE, indent + 1);
                     return new DecryptVerifyResult(DecryptVerifyResult.RESULT_ERROR, log);
                 }
@@ -611,7 +650,12 @@ public class PgpDecryptVerify extends BaseOperation {
             // no packet has been found where we have the corresponding secret key in our db
             log.add(
                     anyPacketFound ? LogType.MSG_DC_ERROR_NO_KEY : LogType.MSG_DC_ERROR_NO_DATA, indent + 1);
-            return new DecryptVerifyResult(DecryptVerifyResult.RESULT_ERROR, log);
+            DecryptVerifyResult result = new DecryptVerifyResult(DecryptVerifyResult.RESULT_ERROR, log);
+            if (mDecryptMetadataOnly) {
+                // recipients are still useful information, even if we can't decrypt
+                result.setRecipientKeyIds(toLongArray(recipientKeyIds));
+            }
+            return result;
         }
 
         JcaPGPObjectFactory plainFact = new JcaPGPObjectFactory(clear);
@@ -637,7 +681,18 @@ public class PgpDecryptVerify extends BaseOperation {
         }
 
         PGPOnePassSignature signature = null;
-        if (dataChunk instanceof PGPOnePassSignatureList) {
+        long[] signerKeyIds = null;
+        if (mDecryptMetadataOnly && dataChunk instanceof PGPOnePassSignatureList) {
+            // the signature can't be checked without reading the data anyways, so just
+            // note the signer key ids here and skip looking up their keys
+            PGPOnePassSignatureList sigList = (PGPOnePassSignatureList) dataChunk;
+            signerKeyIds = new long[sigList.size()];
+            for (int i = 0; i < sigList.size(); ++i) {
+                signerKeyIds[i] = sigList.get(i).getKeyID();
+            }
+
+            dataChunk = plainFact.nextObject();
+        } else if (dataChunk instanceof PGPOnePassSignatureList) {
             log.add(LogType.MSG_DC_CLEAR_SIGNATURE, indent + 1);
             currentProgress += 2;
             updateProgress(R.string.progress_processing_signature, currentProgress, 100);
@@ -651,9 +706,7 @@ public class PgpDecryptVerify extends BaseOperation {
             for (int i = 0; i < sigList.size(); ++i) {
                 try {
                     long sigKeyId = sigList.get(i).getKeyID();
-                    signingRing = mProviderHelper.getCanonicalizedPublicKeyRing(
-                            KeyRings.buildUnifiedKeyRingsFindBySubkeyUri(sigKeyId)
-                    );
+                    signingRing = getSignerKeyRing(sigKeyId);
                     signingKey = signingRing.getPublicKey(sigKeyId);
                     signatureIndex = i;
                 } catch (ProviderHelper.NotFoundException e) {
@@ -750,6 +803,8 @@ public class PgpDecryptVerify extends BaseOperation {
                         new DecryptVerifyResult(DecryptVerifyResult.RESULT_OK, log);
                 result.setCharset(charset);
                 result.setDecryptMetadata(metadata);
+                result.setRecipientKeyIds(toLongArray(recipientKeyIds));
+                result.setSignerKeyIds(signerKeyIds != null ? signerKeyIds : new long[0]);
                 return result;
             }
 
@@ -769,28 +824,32 @@ public class PgpDecryptVerify extends BaseOperation {
             long alreadyWritten = 0;
             long wholeSize = mData.getSize() - mData.getStreamPosition();
             int length;
-            byte[] buffer = new byte[1 << 16];
-            while ((length = dataIn.read(buffer)) > 0) {
-                Log.d(Constants.TAG, "read bytes: " + length);
-                if (mOutStream != null) {
-                    mOutStream.write(buffer, 0, length);
-                }
+            byte[] buffer = BufferPool.getInstance().acquire();
+            try {
+                while ((length = dataIn.read(buffer)) > 0) {
+                    Log.d(Constants.TAG, "read bytes: " + length);
+                    if (mOutStream != null) {
+                        mOutStream.write(buffer, 0, length);
+                    }
 
-                // update signature buffer if signature is also present
-                if (signature != null) {
-                    signature.update(buffer, 0, length);
-                }
+                    // update signature buffer if signature is also present
+                    if (signature != null) {
+                        signature.update(buffer, 0, length);
+                    }
 
-                alreadyWritten += length;
-                if (wholeSize > 0) {
-                    long progress = 100 * alreadyWritten / wholeSize;
-                    // stop at 100% for wrong file sizes...
-                    if (progress > 100) {
-                        progress = 100;
+                    alreadyWritten += length;
+                    if (wholeSize > 0) {
+                        long progress = 100 * alreadyWritten / wholeSize;
+                        // stop at 100% for wrong file sizes...
+                        if (progress > 100) {
+                            progress = 100;
+                        }
+                        progressScaler.setProgress((int) progress, 100);
                     }
-                    progressScaler.setProgress((int) progress, 100);
+                    // TODO: slow annealing to fake a progress?
                 }
-                // TODO: slow annealing to fake a progress?
+            } finally {
+                BufferPool.getInstance().release(buffer);
             }
 
             if (signature != null) {
@@ -798,7 +857,7 @@ public class PgpDecryptVerify extends BaseOperation {
                 log.add(LogType.MSG_DC_CLEAR_SIGNATURE_CHECK, indent);
 
                 PGPSignatureList signatureList = (PGPSignatureList) plainFact.nextObject();
-                PGPSignature messageSignature = signatureList.get(signatureIndex);
+                PGPSignature messageSignature = getMatchingSignature(signatureList, signature, signatureIndex);
 
                 // these are not cleartext signatures!
                 // TODO: what about binary signatures?
@@ -874,19 +933,12 @@ public class PgpDecryptVerify extends BaseOperation {
 
         updateProgress(R.string.progress_reading_data, 0, 100);
 
-        ByteArrayOutputStream lineOut = new ByteArrayOutputStream();
-        int lookAhead = readInputLine(lineOut, aIn);
         byte[] lineSep = getLineSeparator();
 
-        byte[] line = lineOut.toByteArray();
-        out.write(line, 0, getLengthWithoutSeparator(line));
-        out.write(lineSep);
-
+        // the armor switches out of cleartext mode mid-stream, so this must go byte by byte
+        int lookAhead = copyInputLine(out, aIn.read(), aIn, lineSep);
         while (lookAhead != -1 && aIn.isClearText()) {
-            lookAhead = readInputLine(lineOut, lookAhead, aIn);
-            line = lineOut.toByteArray();
-            out.write(line, 0, getLengthWithoutSeparator(line));
-            out.write(lineSep);
+            lookAhead = copyInputLine(out, lookAhead, aIn, lineSep);
         }
 
         out.close();
@@ -905,29 +957,28 @@ public class PgpDecryptVerify extends BaseOperation {
             return new DecryptVerifyResult(DecryptVerifyResult.RESULT_ERROR, log);
         }
 
-        PGPSignature signature = processPGPSignatureList(sigList, signatureResultBuilder);
+        final PGPSignature signature = processPGPSignatureList(sigList, signatureResultBuilder);
 
         if (signature != null) {
             try {
                 updateProgress(R.string.progress_verifying_signature, 90, 100);
                 log.add(LogType.MSG_DC_CLEAR_SIGNATURE_CHECK, indent);
 
-                InputStream sigIn = new BufferedInputStream(new ByteArrayInputStream(clearText));
-
-                lookAhead = readInputLine(lineOut, sigIn);
-
-                processLine(signature, lineOut.toByteArray());
-
-                if (lookAhead != -1) {
-                    do {
-                        lookAhead = readInputLine(lineOut, lookAhead, sigIn);
+                // lines are signed without trailing whitespace, with CRLF in between
+                CleartextCanonicalizer canonicalizer = new CleartextCanonicalizer() {
+                    @Override
+                    protected void writeLine(byte[] buffer, int off, int len)
+                            throws SignatureException {
+                        signature.update(buffer, off, len);
+                    }
 
+                    @Override
+                    protected void endLine() throws SignatureException {
                         signature.update((byte) '\r');
                         signature.update((byte) '\n');
-
-                        processLine(signature, lineOut.toByteArray());
-                    } while (lookAhead != -1);
-                }
+                    }
+                };
+                canonicalizer.update(clearText, 0, clearText.length);
 
                 // Verify signature and check binding signatures
                 boolean validSignature = signature.verify();
@@ -990,25 +1041,29 @@ public class PgpDecryptVerify extends BaseOperation {
             long alreadyWritten = 0;
             long wholeSize = mData.getSize() - mData.getStreamPosition();
             int length;
-            byte[] buffer = new byte[1 << 16];
-            while ((length = in.read(buffer)) > 0) {
-                if (mOutStream != null) {
-                    mOutStream.write(buffer, 0, length);
-                }
+            byte[] buffer = BufferPool.getInstance().acquire();
+            try {
+                while ((length = in.read(buffer)) > 0) {
+                    if (mOutStream != null) {
+                        mOutStream.write(buffer, 0, length);
+                    }
 
-                // update signature buffer if signature is also present
-                signature.update(buffer, 0, length);
+                    // update signature buffer if signature is also present
+                    signature.update(buffer, 0, length);
 
-                alreadyWritten += length;
-                if (wholeSize > 0) {
-                    long progress = 100 * alreadyWritten / wholeSize;
-                    // stop at 100% for wrong file sizes...
-                    if (progress > 100) {
-                        progress = 100;
+                    alreadyWritten += length;
+                    if (wholeSize > 0) {
+                        long progress = 100 * alreadyWritten / wholeSize;
+                        // stop at 100% for wrong file sizes...
+                        if (progress > 100) {
+                            progress = 100;
+                        }
+                        progressScaler.setProgress((int) progress, 100);
                     }
-                    progressScaler.setProgress((int) progress, 100);
+                    // TODO: slow annealing to fake a progress?
                 }
-                // TODO: slow annealing to fake a progress?
+            } finally {
+                BufferPool.getInstance().release(buffer);
             }
 
             updateProgress(R.string.progress_verifying_signature, 90, 100);
@@ -1036,6 +1091,21 @@ public class PgpDecryptVerify extends BaseOperation {
         return result;
     }
 
+    /**
+     * Returns the signature packet which belongs to a one-pass signature. With several signers,
+     * signatures follow in reverse order of their one-pass packets, so match them by key id.
+     */
+    private static PGPSignature getMatchingSignature(PGPSignatureList signatureList,
+                                                     PGPOnePassSignature onePassSignature,
+                                                     int signatureIndex) {
+        for (int i = 0; i < signatureList.size(); ++i) {
+            if (signatureList.get(i).getKeyID() == onePassSignature.getKeyID()) {
+                return signatureList.get(i);
+            }
+        }
+        return signatureList.get(signatureIndex);
+    }
+
     private PGPSignature processPGPSignatureList(PGPSignatureList sigList, OpenPgpSignatureResultBuilder signatureResultBuilder) throws PGPException {
         CanonicalizedPublicKeyRing signingRing = null;
         CanonicalizedPublicKey signingKey = null;
@@ -1046,9 +1116,7 @@ public class PgpDecryptVerify extends BaseOperation {
         for (int i = 0; i < sigList.size(); ++i) {
             try {
                 long sigKeyId = sigList.get(i).getKeyID();
-                signingRing = mProviderHelper.getCanonicalizedPublicKeyRing(
-                        KeyRings.buildUnifiedKeyRingsFindBySubkeyUri(sigKeyId)
-                );
+                signingRing = getSignerKeyRing(sigKeyId);
                 signingKey = signingRing.getPublicKey(sigKeyId);
                 signatureIndex = i;
             } catch (ProviderHelper.NotFoundException e) {
@@ -1080,96 +1148,47 @@ public class PgpDecryptVerify extends BaseOperation {
         return signature;
     }
 
-    /**
-     * Mostly taken from ClearSignedFileProcessor in Bouncy Castle
-     */
-    private static void processLine(PGPSignature sig, byte[] line)
-            throws SignatureException {
-        int length = getLengthWithoutWhiteSpace(line);
-        if (length > 0) {
-            sig.update(line, 0, length);
+    private CanonicalizedPublicKeyRing getSignerKeyRing(long sigKeyId)
+            throws ProviderHelper.NotFoundException {
+        if (mSignerKeyCache != null) {
+            return mSignerKeyCache.get(mProviderHelper, sigKeyId);
         }
+        return mProviderHelper.getCanonicalizedPublicKeyRing(
+                KeyRings.buildUnifiedKeyRingsFindBySubkeyUri(sigKeyId));
     }
 
-    private static int readInputLine(ByteArrayOutputStream bOut, InputStream fIn)
-            throws IOException {
-        bOut.reset();
-
-        int lookAhead = -1;
-        int ch;
-
-        while ((ch = fIn.read()) >= 0) {
-            bOut.write(ch);
-            if (ch == '\r' || ch == '\n') {
-                lookAhead = readPastEOL(bOut, ch, fIn);
-                break;
-            }
+    private static long[] toLongArray(List<Long> list) {
+        long[] result = new long[list.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = list.get(i);
         }
-
-        return lookAhead;
+        return result;
     }
 
-    private static int readInputLine(ByteArrayOutputStream bOut, int lookAhead, InputStream fIn)
+    /**
+     * Copies a line of cleartext, replacing its CR, LF or CRLF ending with the given separator.
+     * A last line without ending gets one as well.
+     *
+     * @return the first byte of the next line, or -1 at the end of input
+     */
+    private static int copyInputLine(OutputStream out, int ch, InputStream fIn, byte[] lineSep)
             throws IOException {
-        bOut.reset();
-
-        int ch = lookAhead;
-
-        do {
-            bOut.write(ch);
-            if (ch == '\r' || ch == '\n') {
-                lookAhead = readPastEOL(bOut, ch, fIn);
-                break;
-            }
-        } while ((ch = fIn.read()) >= 0);
+        while (ch >= 0 && ch != '\r' && ch != '\n') {
+            out.write(ch);
+            ch = fIn.read();
+        }
+        out.write(lineSep);
 
         if (ch < 0) {
-            lookAhead = -1;
+            return -1;
         }
-
-        return lookAhead;
-    }
-
-    private static int readPastEOL(ByteArrayOutputStream bOut, int lastCh, InputStream fIn)
-            throws IOException {
         int lookAhead = fIn.read();
-
-        if (lastCh == '\r' && lookAhead == '\n') {
-            bOut.write(lookAhead);
+        if (ch == '\r' && lookAhead == '\n') {
             lookAhead = fIn.read();
         }
-
         return lookAhead;
     }
 
-    private static int getLengthWithoutSeparator(byte[] line) {
-        int end = line.length - 1;
-
-        while (end >= 0 && isLineEnding(line[end])) {
-            end--;
-        }
-
-        return end + 1;
-    }
-
-    private static boolean isLineEnding(byte b) {
-        return b == '\r' || b == '\n';
-    }
-
-    private static int getLengthWithoutWhiteSpace(byte[] line) {
-        int end = line.length - 1;
-
-        while (end >= 0 && isWhiteSpace(line[end])) {
-            end--;
-        }
-
-        return end + 1;
-    }
-
-    private static boolean isWhiteSpace(byte b) {
-        return b == '\r' || b == '\n' || b == '\t' || b == ' ';
-    }
-
     private static byte[] getLineSeparator() {
         String nl = System.getProperty("line.separator");
         byte[] nlBytes = new byte[nl.length()];
@@ -24,6 +24,7 @@ import android.content.pm.PackageManager.NameNotFoundException;
 
 import org.sufficientlysecure.keychain.Constants;
 import org.sufficientlysecure.keychain.R;
+import org.sufficientlysecure.keychain.util.BufferPool;
 import org.sufficientlysecure.keychain.util.Log;
 import org.sufficientlysecure.keychain.util.Preferences;
 
@@ -84,16 +85,20 @@ public class PgpHelper {
         RandomAccessFile raf = new RandomAccessFile(file, "rws");
         raf.seek(0);
         raf.getFilePointer();
-        byte[] data = new byte[1 << 16];
-        int pos = 0;
-        String msg = context.getString(R.string.progress_deleting_securely, file.getName());
-        while (pos < length) {
-            if (progressable != null) {
-                progressable.setProgress(msg, (int) (100 * pos / length), 100);
+        byte[] data = BufferPool.getInstance().acquire();
+        try {
+            int pos = 0;
+            String msg = context.getString(R.string.progress_deleting_securely, file.getName());
+            while (pos < length) {
+                if (progressable != null) {
+                    progressable.setProgress(msg, (int) (100 * pos / length), 100);
+                }
+                random.nextBytes(data);
+                raf.write(data);
+                pos += data.length;
             }
-            random.nextBytes(data);
-            raf.write(data);
-            pos += data.length;
+        } finally {
+            BufferPool.getInstance().release(data);
         }
         raf.close();
         file.delete();
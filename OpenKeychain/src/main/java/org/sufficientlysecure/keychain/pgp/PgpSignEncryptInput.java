@@ -10,6 +10,7 @@ public class PgpSignEncryptInput {
     protected String mVersionHeader = null;
     protected boolean mEnableAsciiArmorOutput = false;
     protected int mCompressionId = CompressionAlgorithmTags.UNCOMPRESSED;
+    protected boolean mAdaptiveCompression = false;
     protected long[] mEncryptionMasterKeyIds = null;
     protected String mSymmetricPassphrase = null;
     protected int mSymmetricEncryptionAlgorithm = 0;
@@ -24,6 +25,33 @@ public class PgpSignEncryptInput {
     protected String mCharset;
     protected boolean mCleartextSignature;
     protected boolean mDetachedSignature;
+    protected long[] mAdditionalSignatureMasterKeyIds = null;
+
+    public PgpSignEncryptInput() {
+    }
+
+    /** Creates a copy of another input, for operations which mutate their input. */
+    public PgpSignEncryptInput(PgpSignEncryptInput other) {
+        mVersionHeader = other.mVersionHeader;
+        mEnableAsciiArmorOutput = other.mEnableAsciiArmorOutput;
+        mCompressionId = other.mCompressionId;
+        mAdaptiveCompression = other.mAdaptiveCompression;
+        mEncryptionMasterKeyIds = other.mEncryptionMasterKeyIds;
+        mSymmetricPassphrase = other.mSymmetricPassphrase;
+        mSymmetricEncryptionAlgorithm = other.mSymmetricEncryptionAlgorithm;
+        mSignatureMasterKeyId = other.mSignatureMasterKeyId;
+        mSignatureSubKeyId = other.mSignatureSubKeyId;
+        mSignatureHashAlgorithm = other.mSignatureHashAlgorithm;
+        mSignaturePassphrase = other.mSignaturePassphrase;
+        mAdditionalEncryptId = other.mAdditionalEncryptId;
+        mNfcSignedHash = other.mNfcSignedHash;
+        mNfcCreationTimestamp = other.mNfcCreationTimestamp;
+        mFailOnMissingEncryptionKeyIds = other.mFailOnMissingEncryptionKeyIds;
+        mCharset = other.mCharset;
+        mCleartextSignature = other.mCleartextSignature;
+        mDetachedSignature = other.mDetachedSignature;
+        mAdditionalSignatureMasterKeyIds = other.mAdditionalSignatureMasterKeyIds;
+    }
 
     public String getCharset() {
         return mCharset;
@@ -126,6 +154,19 @@ public class PgpSignEncryptInput {
         return this;
     }
 
+    public boolean isAdaptiveCompression() {
+        return mAdaptiveCompression;
+    }
+
+    /**
+     * If set, compression is skipped for input which doesn't compress well, judging by a
+     * sample from its start. This saves time on already compressed data like images or archives.
+     */
+    public PgpSignEncryptInput setAdaptiveCompression(boolean adaptiveCompression) {
+        mAdaptiveCompression = adaptiveCompression;
+        return this;
+    }
+
     public boolean ismEnableAsciiArmorOutput() {
         return mEnableAsciiArmorOutput;
     }
@@ -172,5 +213,18 @@ public class PgpSignEncryptInput {
     public boolean isDetachedSignature() {
         return mDetachedSignature;
     }
+
+    public long[] getAdditionalSignatureMasterKeyIds() {
+        return mAdditionalSignatureMasterKeyIds;
+    }
+
+    /**
+     * Sets keys which sign the data in addition to the signature master key, in the same
+     * pass. Passphrases for these keys are only taken from the passphrase cache.
+     */
+    public PgpSignEncryptInput setAdditionalSignatureMasterKeyIds(long[] additionalSignatureMasterKeyIds) {
+        mAdditionalSignatureMasterKeyIds = additionalSignatureMasterKeyIds;
+        return this;
+    }
 }
 
@@ -41,27 +41,33 @@ import org.sufficientlysecure.keychain.operations.BaseOperation;
 import org.sufficientlysecure.keychain.operations.results.OperationResult.LogType;
 import org.sufficientlysecure.keychain.operations.results.OperationResult.OperationLog;
 import org.sufficientlysecure.keychain.operations.results.PgpSignEncryptResult;
+import org.sufficientlysecure.keychain.pgp.CanonicalizedSecretKey.SecretKeyType;
 import org.sufficientlysecure.keychain.pgp.exception.PgpGeneralException;
 import org.sufficientlysecure.keychain.pgp.exception.PgpKeyNotFoundException;
 import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRings;
 import org.sufficientlysecure.keychain.provider.ProviderHelper;
 import org.sufficientlysecure.keychain.ui.util.KeyFormattingUtils;
+import org.sufficientlysecure.keychain.util.BufferPool;
 import org.sufficientlysecure.keychain.util.InputData;
 import org.sufficientlysecure.keychain.util.Log;
+import org.sufficientlysecure.keychain.util.PooledBufferedOutputStream;
 import org.sufficientlysecure.keychain.util.ProgressScaler;
 
-import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.io.SequenceInputStream;
 import java.io.UnsupportedEncodingException;
 import java.security.SignatureException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.Deflater;
 
 /** This class supports a single, low-level, sign/encrypt operation.
  *
@@ -79,6 +85,9 @@ import java.util.concurrent.atomic.AtomicBoolean;
  */
 public class PgpSignEncryptOperation extends BaseOperation {
 
+    /** Input is considered incompressible if a sample doesn't shrink below this percentage */
+    static final int COMPRESSIBLE_PERCENT = 90;
+
     private static byte[] NEW_LINE;
 
     static {
@@ -102,6 +111,56 @@ public class PgpSignEncryptOperation extends BaseOperation {
      */
     public PgpSignEncryptResult execute(PgpSignEncryptInput input,
                                      InputData inputData, OutputStream outputStream) {
+        return execute(input, inputData, outputStream, null);
+    }
+
+    /**
+     * Fetches and unlocks the signing key of the given input, so a single unlock can be shared
+     * by many executions of this operation. The returned key is only read from afterwards, so it
+     * may be used from multiple threads.
+     *
+     * @return the unlocked key, or null if this didn't work without user interaction, or didn't
+     * work at all. In that case, a regular execute() will produce the appropriate result.
+     */
+    public CanonicalizedSecretKey unlockSigningKey(PgpSignEncryptInput input) {
+        try {
+            CanonicalizedSecretKeyRing signingKeyRing =
+                    mProviderHelper.getCanonicalizedSecretKeyRing(input.getSignatureMasterKeyId());
+
+            long signKeyId;
+            if (input.getSignatureSubKeyId() == null) {
+                signKeyId = signingKeyRing.getSecretSignId();
+            } else {
+                signKeyId = input.getSignatureSubKeyId();
+            }
+            CanonicalizedSecretKey signingKey = signingKeyRing.getSecretKey(signKeyId);
+            if (!signingKey.canSign()) {
+                return null;
+            }
+
+            String passphrase = input.getSignaturePassphrase();
+            if (passphrase == null) {
+                passphrase = getCachedPassphrase(signingKey.getKeyId());
+            }
+            if (passphrase == null
+                    || !signingKey.unlock(passphrase, getUnlockedKeyCache())) {
+                return null;
+            }
+            return signingKey;
+        } catch (ProviderHelper.NotFoundException | PgpGeneralException
+                | PassphraseCacheInterface.NoSecretKeyException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Signs and/or encrypts data based on parameters of class, using an already unlocked
+     * signing key if one is given.
+     *
+     * @see #unlockSigningKey(PgpSignEncryptInput)
+     */
+    public PgpSignEncryptResult execute(PgpSignEncryptInput input, InputData inputData,
+                                        OutputStream outputStream, CanonicalizedSecretKey unlockedSigningKey) {
 
         int indent = 0;
         OperationLog log = new OperationLog();
@@ -126,9 +185,12 @@ public class PgpSignEncryptOperation extends BaseOperation {
         }
 
         ArmoredOutputStream armorOut = null;
+        // armoring writes byte by byte, don't pass that through to the underlying stream
+        PooledBufferedOutputStream bufferedOut = null;
         OutputStream out;
         if (input.ismEnableAsciiArmorOutput()) {
-            armorOut = new ArmoredOutputStream(outputStream);
+            bufferedOut = new PooledBufferedOutputStream(outputStream);
+            armorOut = new ArmoredOutputStream(bufferedOut);
             if (input.getVersionHeader() != null) {
                 armorOut.setHeader("Version", input.getVersionHeader());
             }
@@ -142,8 +204,8 @@ public class PgpSignEncryptOperation extends BaseOperation {
         }
 
         /* Get keys for signature generation for later usage */
-        CanonicalizedSecretKey signingKey = null;
-        if (enableSignature) {
+        CanonicalizedSecretKey signingKey = unlockedSigningKey;
+        if (enableSignature && signingKey == null) {
 
             try {
                 // fetch the indicated master key id (the one whose name we sign in)
@@ -197,7 +259,7 @@ public class PgpSignEncryptOperation extends BaseOperation {
             updateProgress(R.string.progress_extracting_signature_key, 0, 100);
 
             try {
-                if (!signingKey.unlock(input.getSignaturePassphrase())) {
+                if (!signingKey.unlock(input.getSignaturePassphrase(), getUnlockedKeyCache())) {
                     log.add(LogType.MSG_PSE_ERROR_BAD_PASSPHRASE, indent);
                     return new PgpSignEncryptResult(PgpSignEncryptResult.RESULT_ERROR, log);
                 }
@@ -205,7 +267,9 @@ public class PgpSignEncryptOperation extends BaseOperation {
                 log.add(LogType.MSG_PSE_ERROR_UNLOCK, indent);
                 return new PgpSignEncryptResult(PgpSignEncryptResult.RESULT_ERROR, log);
             }
+        }
 
+        if (enableSignature) {
             // check if hash algo is supported
             int requestedAlgorithm = input.getSignatureHashAlgorithm();
             LinkedList<Integer> supported = signingKey.getSupportedHashAlgorithms();
@@ -217,6 +281,72 @@ public class PgpSignEncryptOperation extends BaseOperation {
                 return new PgpSignEncryptResult(PgpSignEncryptResult.RESULT_ERROR, log);
             }
         }
+
+        /* Get keys of additional signers, all signatures are made in the same pass over the input */
+        ArrayList<CanonicalizedSecretKey> signingKeys = new ArrayList<>();
+        if (enableSignature) {
+            signingKeys.add(signingKey);
+        }
+        if (enableSignature && input.getAdditionalSignatureMasterKeyIds() != null) {
+            for (long masterKeyId : input.getAdditionalSignatureMasterKeyIds()) {
+                CanonicalizedSecretKey additionalKey;
+                try {
+                    CanonicalizedSecretKeyRing keyRing =
+                            mProviderHelper.getCanonicalizedSecretKeyRing(masterKeyId);
+                    additionalKey = keyRing.getSecretKey(keyRing.getSecretSignId());
+                } catch (ProviderHelper.NotFoundException | PgpGeneralException e) {
+                    log.add(LogType.MSG_PSE_ERROR_SIGN_KEY, indent);
+                    return new PgpSignEncryptResult(PgpSignEncryptResult.RESULT_ERROR, log);
+                }
+                log.add(LogType.MSG_PSE_SIGNER_ADDITIONAL, indent,
+                        KeyFormattingUtils.convertKeyIdToHex(additionalKey.getKeyId()));
+
+                if (!additionalKey.canSign()) {
+                    log.add(LogType.MSG_PSE_ERROR_KEY_SIGN, indent + 1);
+                    return new PgpSignEncryptResult(PgpSignEncryptResult.RESULT_ERROR, log);
+                }
+
+                // a security token interaction covers only a single hash
+                if (signingKey.getSecretKeyType() == SecretKeyType.DIVERT_TO_CARD
+                        || additionalKey.getSecretKeyType() == SecretKeyType.DIVERT_TO_CARD) {
+                    log.add(LogType.MSG_PSE_ERROR_MULTI_NFC, indent + 1);
+                    return new PgpSignEncryptResult(PgpSignEncryptResult.RESULT_ERROR, log);
+                }
+
+                // there is only one explicit passphrase, additional keys must be cached
+                String passphrase;
+                try {
+                    passphrase = getCachedPassphrase(masterKeyId, additionalKey.getKeyId());
+                } catch (PassphraseCacheInterface.NoSecretKeyException e) {
+                    log.add(LogType.MSG_PSE_ERROR_SIGN_KEY, indent + 1);
+                    return new PgpSignEncryptResult(PgpSignEncryptResult.RESULT_ERROR, log);
+                }
+                if (passphrase == null) {
+                    log.add(LogType.MSG_PSE_PENDING_PASSPHRASE, indent + 1);
+                    PgpSignEncryptResult result = new PgpSignEncryptResult(PgpSignEncryptResult.RESULT_PENDING_PASSPHRASE, log);
+                    result.setKeyIdPassphraseNeeded(additionalKey.getKeyId());
+                    return result;
+                }
+
+                try {
+                    if (!additionalKey.unlock(passphrase, getUnlockedKeyCache())) {
+                        log.add(LogType.MSG_PSE_ERROR_BAD_PASSPHRASE, indent + 1);
+                        return new PgpSignEncryptResult(PgpSignEncryptResult.RESULT_ERROR, log);
+                    }
+                } catch (PgpGeneralException e) {
+                    log.add(LogType.MSG_PSE_ERROR_UNLOCK, indent + 1);
+                    return new PgpSignEncryptResult(PgpSignEncryptResult.RESULT_ERROR, log);
+                }
+
+                // cleartext signatures have a single hash header, so all signers use the same
+                if (!additionalKey.getSupportedHashAlgorithms().contains(input.getSignatureHashAlgorithm())) {
+                    log.add(LogType.MSG_PSE_ERROR_HASH_ALGO, indent + 1);
+                    return new PgpSignEncryptResult(PgpSignEncryptResult.RESULT_ERROR, log);
+                }
+
+                signingKeys.add(additionalKey);
+            }
+        }
         updateProgress(R.string.progress_preparing_streams, 2, 100);
 
         /* Initialize PGPEncryptedDataGenerator for later usage */
@@ -270,15 +400,17 @@ public class PgpSignEncryptOperation extends BaseOperation {
             }
         }
 
-        /* Initialize signature generator object for later usage */
-        PGPSignatureGenerator signatureGenerator = null;
+        /* Initialize signature generator objects for later usage, one per signing key */
+        ArrayList<PGPSignatureGenerator> signatureGenerators = new ArrayList<>();
         if (enableSignature) {
             updateProgress(R.string.progress_preparing_signature, 4, 100);
 
             try {
                 boolean cleartext = input.isCleartextSignature() && input.ismEnableAsciiArmorOutput() && !enableEncryption;
-                signatureGenerator = signingKey.getSignatureGenerator(
-                        input.getSignatureHashAlgorithm(), cleartext, input.getNfcSignedHash(), input.getNfcCreationTimestamp());
+                for (CanonicalizedSecretKey key : signingKeys) {
+                    signatureGenerators.add(key.getSignatureGenerator(input.getSignatureHashAlgorithm(),
+                            cleartext, input.getNfcSignedHash(), input.getNfcCreationTimestamp()));
+                }
             } catch (PgpGeneralException e) {
                 log.add(LogType.MSG_PSE_ERROR_NFC, indent);
                 return new PgpSignEncryptResult(PgpSignEncryptResult.RESULT_ERROR, log);
@@ -296,8 +428,34 @@ public class PgpSignEncryptOperation extends BaseOperation {
         ArmoredOutputStream detachedArmorOut = null;
         BCPGOutputStream detachedBcpgOut = null;
 
+        // buffers for the encryption and literal data packets, and for reading the input
+        BufferPool bufferPool = BufferPool.getInstance();
+        byte[] encryptionBuffer = bufferPool.acquire();
+        byte[] literalBuffer = bufferPool.acquire();
+        byte[] buffer = bufferPool.acquire();
+        byte[] sampleBuffer = null;
+
         try {
 
+            InputStream in = inputData.getInputStream();
+
+            // compression only applies to encrypted or binary signed output
+            boolean compressionApplies = enableEncryption || (enableSignature
+                    && !input.isCleartextSignature() && !input.isDetachedSignature());
+            if (enableCompression && compressionApplies && input.isAdaptiveCompression()) {
+                // trial-compress the start of the input, then put it back in front of the rest
+                sampleBuffer = bufferPool.acquire();
+                int sampleLength = readSample(in, sampleBuffer);
+                in = new SequenceInputStream(new ByteArrayInputStream(sampleBuffer, 0, sampleLength), in);
+
+                if (isCompressible(sampleBuffer, sampleLength)) {
+                    log.add(LogType.MSG_PSE_COMPRESSION_SAMPLE_OK, indent);
+                } else {
+                    log.add(LogType.MSG_PSE_COMPRESSION_SAMPLE_SKIP, indent);
+                    enableCompression = false;
+                }
+            }
+
             if (enableEncryption) {
                 /* actual encryption */
                 updateProgress(R.string.progress_encrypting, 8, 100);
@@ -308,7 +466,7 @@ public class PgpSignEncryptOperation extends BaseOperation {
                 );
                 indent += 1;
 
-                encryptionOut = cPk.open(out, new byte[1 << 16]);
+                encryptionOut = cPk.open(out, encryptionBuffer);
 
                 if (enableCompression) {
                     log.add(LogType.MSG_PSE_COMPRESSING, indent);
@@ -319,7 +477,7 @@ public class PgpSignEncryptOperation extends BaseOperation {
                 }
 
                 if (enableSignature) {
-                    signatureGenerator.generateOnePassVersion(false).encode(bcpgOut);
+                    encodeOnePassSignatures(signatureGenerators, bcpgOut);
                 }
 
                 PGPLiteralDataGenerator literalGen = new PGPLiteralDataGenerator();
@@ -330,18 +488,16 @@ public class PgpSignEncryptOperation extends BaseOperation {
                     literalDataFormatTag = PGPLiteralData.BINARY;
                 }
                 pOut = literalGen.open(bcpgOut, literalDataFormatTag,
-                        inputData.getOriginalFilename(), new Date(), new byte[1 << 16]);
+                        inputData.getOriginalFilename(), new Date(), literalBuffer);
 
                 long alreadyWritten = 0;
                 int length;
-                byte[] buffer = new byte[1 << 16];
-                InputStream in = inputData.getInputStream();
                 while ((length = in.read(buffer)) > 0) {
                     pOut.write(buffer, 0, length);
 
                     // update signature buffer if signature is requested
                     if (enableSignature) {
-                        signatureGenerator.update(buffer, 0, length);
+                        updateSignatures(signatureGenerators, buffer, 0, length);
                     }
 
                     alreadyWritten += length;
@@ -363,29 +519,39 @@ public class PgpSignEncryptOperation extends BaseOperation {
                 // write -----BEGIN PGP SIGNED MESSAGE-----
                 armorOut.beginClearText(input.getSignatureHashAlgorithm());
 
-                InputStream in = inputData.getInputStream();
-                final BufferedReader reader = new BufferedReader(new InputStreamReader(in));
-
-                // update signature buffer with first line
-                processLine(reader.readLine(), armorOut, signatureGenerator);
-
-                // TODO: progress: fake annealing?
-                while (true) {
-                    String line = reader.readLine();
+                // lines are written without trailing whitespace, and signed with CRLF in between
+                final ArmoredOutputStream clearTextOut = armorOut;
+                final List<PGPSignatureGenerator> clearTextSigners = signatureGenerators;
+                CleartextCanonicalizer canonicalizer = new CleartextCanonicalizer() {
+                    @Override
+                    protected void writeLine(byte[] buffer, int off, int len)
+                            throws IOException, SignatureException {
+                        clearTextOut.write(buffer, off, len);
+                        updateSignatures(clearTextSigners, buffer, off, len);
+                    }
 
-                    // end cleartext signature with newline, see http://tools.ietf.org/html/rfc4880#section-7
-                    if (line == null) {
-                        armorOut.write(NEW_LINE);
-                        break;
+                    @Override
+                    protected void endLine() throws IOException, SignatureException {
+                        clearTextOut.write(NEW_LINE);
+                        updateSignatures(clearTextSigners, NEW_LINE, 0, NEW_LINE.length);
                     }
+                };
 
-                    armorOut.write(NEW_LINE);
+                long alreadyWritten = 0;
+                int length;
+                while ((length = in.read(buffer)) > 0) {
+                    canonicalizer.update(buffer, 0, length);
 
-                    // update signature buffer with input line
-                    signatureGenerator.update(NEW_LINE);
-                    processLine(line, armorOut, signatureGenerator);
+                    alreadyWritten += length;
+                    if (inputData.getSize() > 0) {
+                        long progress = 100 * alreadyWritten / inputData.getSize();
+                        progressScaler.setProgress((int) progress, 100);
+                    }
                 }
 
+                // end cleartext signature with newline, see http://tools.ietf.org/html/rfc4880#section-7
+                armorOut.write(NEW_LINE);
+
                 armorOut.endClearText();
 
                 pOut = new BCPGOutputStream(armorOut);
@@ -395,7 +561,6 @@ public class PgpSignEncryptOperation extends BaseOperation {
                 updateProgress(R.string.progress_signing, 8, 100);
                 log.add(LogType.MSG_PSE_SIGNING_DETACHED, indent);
 
-                InputStream in = inputData.getInputStream();
 
                 // handle output stream separately for detached signatures
                 detachedByteOut = new ByteArrayOutputStream();
@@ -412,11 +577,10 @@ public class PgpSignEncryptOperation extends BaseOperation {
 
                 long alreadyWritten = 0;
                 int length;
-                byte[] buffer = new byte[1 << 16];
                 while ((length = in.read(buffer)) > 0) {
                     // no output stream is written, no changed to original data!
 
-                    signatureGenerator.update(buffer, 0, length);
+                    updateSignatures(signatureGenerators, buffer, 0, length);
 
                     alreadyWritten += length;
                     if (inputData.getSize() > 0) {
@@ -432,7 +596,6 @@ public class PgpSignEncryptOperation extends BaseOperation {
                 updateProgress(R.string.progress_signing, 8, 100);
                 log.add(LogType.MSG_PSE_SIGNING, indent);
 
-                InputStream in = inputData.getInputStream();
 
                 if (enableCompression) {
                     compressGen = new PGPCompressedDataGenerator(input.getCompressionId());
@@ -441,20 +604,19 @@ public class PgpSignEncryptOperation extends BaseOperation {
                     bcpgOut = new BCPGOutputStream(out);
                 }
 
-                signatureGenerator.generateOnePassVersion(false).encode(bcpgOut);
+                encodeOnePassSignatures(signatureGenerators, bcpgOut);
 
                 PGPLiteralDataGenerator literalGen = new PGPLiteralDataGenerator();
                 pOut = literalGen.open(bcpgOut, PGPLiteralData.BINARY,
                         inputData.getOriginalFilename(), new Date(),
-                        new byte[1 << 16]);
+                        literalBuffer);
 
                 long alreadyWritten = 0;
                 int length;
-                byte[] buffer = new byte[1 << 16];
                 while ((length = in.read(buffer)) > 0) {
                     pOut.write(buffer, 0, length);
 
-                    signatureGenerator.update(buffer, 0, length);
+                    updateSignatures(signatureGenerators, buffer, 0, length);
 
                     alreadyWritten += length;
                     if (inputData.getSize() > 0) {
@@ -474,9 +636,14 @@ public class PgpSignEncryptOperation extends BaseOperation {
                 updateProgress(R.string.progress_generating_signature, 95, 100);
                 try {
                     if (detachedBcpgOut != null) {
-                        signatureGenerator.generate().encode(detachedBcpgOut);
+                        for (PGPSignatureGenerator signatureGenerator : signatureGenerators) {
+                            signatureGenerator.generate().encode(detachedBcpgOut);
+                        }
                     } else {
-                        signatureGenerator.generate().encode(pOut);
+                        // signatures close their one-pass packets like brackets, in reverse order
+                        for (int i = signatureGenerators.size() - 1; i >= 0; i--) {
+                            signatureGenerators.get(i).generate().encode(pOut);
+                        }
                     }
                 } catch (NfcSyncPGPContentSignerBuilder.NfcInteractionNeeded e) {
                     // this secret key diverts to a OpenPGP card, throw exception with hash that will be signed
@@ -515,7 +682,10 @@ public class PgpSignEncryptOperation extends BaseOperation {
             if (out != null) {
                 out.close();
             }
-            if (outputStream != null) {
+            // also closes the outputStream
+            if (bufferedOut != null) {
+                bufferedOut.close();
+            } else if (outputStream != null) {
                 outputStream.close();
             }
 
@@ -528,6 +698,12 @@ public class PgpSignEncryptOperation extends BaseOperation {
         } catch (IOException e) {
             log.add(LogType.MSG_PSE_ERROR_IO, indent);
             return new PgpSignEncryptResult(PgpSignEncryptResult.RESULT_ERROR, log);
+        } finally {
+            // the streams using these are either closed or discarded at this point
+            bufferPool.release(encryptionBuffer);
+            bufferPool.release(literalBuffer);
+            bufferPool.release(buffer);
+            bufferPool.release(sampleBuffer);
         }
 
         updateProgress(R.string.progress_done, 100, 100);
@@ -547,32 +723,67 @@ public class PgpSignEncryptOperation extends BaseOperation {
     }
 
     /**
-     * Remove whitespaces on line endings
+     * Reads from the input until the sample buffer is full, or the input ends.
+     *
+     * @return the number of bytes read
      */
-    private static void processLine(final String pLine, final ArmoredOutputStream pArmoredOutput,
-                                    final PGPSignatureGenerator pSignatureGenerator)
-            throws IOException, SignatureException {
-
-        if (pLine == null) {
-            return;
+    private static int readSample(InputStream in, byte[] sample) throws IOException {
+        int length = 0;
+        int read;
+        while (length < sample.length
+                && (read = in.read(sample, length, sample.length - length)) > 0) {
+            length += read;
         }
+        return length;
+    }
 
-        final char[] chars = pLine.toCharArray();
-        int len = chars.length;
-
-        while (len > 0) {
-            if (!Character.isWhitespace(chars[len - 1])) {
-                break;
+    /**
+     * Checks if a sample of input shrinks to at most COMPRESSIBLE_PERCENT of its size when
+     * compressed quickly. Already compressed data like images, video or archives does not.
+     */
+    static boolean isCompressible(byte[] sample, int length) {
+        long limit = (long) length * COMPRESSIBLE_PERCENT / 100;
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(sample, 0, length);
+            deflater.finish();
+
+            byte[] out = new byte[4096];
+            long compressed = 0;
+            while (!deflater.finished()) {
+                compressed += deflater.deflate(out);
+                if (compressed > limit) {
+                    return false;
+                }
             }
-            len--;
+            return true;
+        } finally {
+            deflater.end();
         }
+    }
 
-        final byte[] data = pLine.substring(0, len).getBytes("UTF-8");
+    /**
+     * Writes one-pass signature packets for all signers. All but the last are marked as
+     * nested, meaning another one-pass signature over the same data follows.
+     */
+    private static void encodeOnePassSignatures(List<PGPSignatureGenerator> signatureGenerators,
+                                                BCPGOutputStream bcpgOut)
+            throws PGPException, IOException {
+        for (int i = 0; i < signatureGenerators.size(); i++) {
+            boolean nested = i < signatureGenerators.size() - 1;
+            signatureGenerators.get(i).generateOnePassVersion(nested).encode(bcpgOut);
+        }
+    }
 
-        if (pArmoredOutput != null) {
-            pArmoredOutput.write(data);
+    /**
+     * Feeds a chunk of input into all signature generators, so it is read only once
+     */
+    private static void updateSignatures(List<PGPSignatureGenerator> signatureGenerators,
+                                         byte[] buffer, int off, int length)
+            throws SignatureException {
+        for (PGPSignatureGenerator signatureGenerator : signatureGenerators) {
+            signatureGenerator.update(buffer, off, length);
         }
-        pSignatureGenerator.update(data);
     }
 
 }
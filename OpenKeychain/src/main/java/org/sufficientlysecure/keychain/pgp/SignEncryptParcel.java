@@ -38,6 +38,7 @@ public class SignEncryptParcel extends PgpSignEncryptInput implements Parcelable
         mVersionHeader = src.readString();
         mEnableAsciiArmorOutput  = src.readInt() == 1;
         mCompressionId = src.readInt();
+        mAdaptiveCompression = src.readInt() == 1;
         mEncryptionMasterKeyIds = src.createLongArray();
         mSymmetricPassphrase = src.readString();
         mSymmetricEncryptionAlgorithm = src.readInt();
@@ -52,6 +53,7 @@ public class SignEncryptParcel extends PgpSignEncryptInput implements Parcelable
         mCharset = src.readString();
         mCleartextSignature = src.readInt() == 1;
         mDetachedSignature = src.readInt() == 1;
+        mAdditionalSignatureMasterKeyIds = src.createLongArray();
 
         mInputUris = src.createTypedArrayList(Uri.CREATOR);
         mOutputUris = src.createTypedArrayList(Uri.CREATOR);
@@ -92,6 +94,7 @@ public class SignEncryptParcel extends PgpSignEncryptInput implements Parcelable
         dest.writeString(mVersionHeader);
         dest.writeInt(mEnableAsciiArmorOutput ? 1 : 0);
         dest.writeInt(mCompressionId);
+        dest.writeInt(mAdaptiveCompression ? 1 : 0);
         dest.writeLongArray(mEncryptionMasterKeyIds);
         dest.writeString(mSymmetricPassphrase);
         dest.writeInt(mSymmetricEncryptionAlgorithm);
@@ -116,6 +119,7 @@ public class SignEncryptParcel extends PgpSignEncryptInput implements Parcelable
         dest.writeString(mCharset);
         dest.writeInt(mCleartextSignature ? 1 : 0);
         dest.writeInt(mDetachedSignature ? 1 : 0);
+        dest.writeLongArray(mAdditionalSignatureMasterKeyIds);
 
         dest.writeTypedList(mInputUris);
         dest.writeTypedList(mOutputUris);
@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2014 Vincent Breitmoser <v.breitmoser@mugenguild.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.pgp;
+
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRings;
+import org.sufficientlysecure.keychain.provider.ProviderHelper;
+import org.sufficientlysecure.keychain.provider.ProviderHelper.NotFoundException;
+
+import java.util.HashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/** A cache of signer public keyrings by (sub)key id, to share between the
+ * verifications of a batch.
+ *
+ * Each key id is looked up in the database at most once, including ones which
+ * turn out to be unknown. The lookup itself runs outside of the lock, so
+ * threads waiting for different keys don't hold each other up, while threads
+ * asking for a key which is being looked up wait for that lookup. This is
+ * thread safe, but should only live for the duration of a single operation,
+ * since it is never invalidated.
+ *
+ */
+public class SignerKeyCache {
+
+    private final HashMap<Long, FutureTask<CanonicalizedPublicKeyRing>> mLookups = new HashMap<>();
+
+    public CanonicalizedPublicKeyRing get(final ProviderHelper providerHelper, final long keyId)
+            throws NotFoundException {
+        FutureTask<CanonicalizedPublicKeyRing> lookup;
+        boolean isNew = false;
+        synchronized (mLookups) {
+            lookup = mLookups.get(keyId);
+            if (lookup == null) {
+                lookup = new FutureTask<>(new Callable<CanonicalizedPublicKeyRing>() {
+                    @Override
+                    public CanonicalizedPublicKeyRing call() throws NotFoundException {
+                        return providerHelper.getCanonicalizedPublicKeyRing(
+                                KeyRings.buildUnifiedKeyRingsFindBySubkeyUri(keyId));
+                    }
+                });
+                mLookups.put(keyId, lookup);
+                isNew = true;
+            }
+        }
+
+        // the first thread to ask does the lookup, in its own thread
+        if (isNew) {
+            lookup.run();
+        }
+
+        try {
+            return lookup.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new NotFoundException("interrupted while waiting for key lookup");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof NotFoundException) {
+                throw (NotFoundException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw (RuntimeException) cause;
+        }
+    }
+
+}
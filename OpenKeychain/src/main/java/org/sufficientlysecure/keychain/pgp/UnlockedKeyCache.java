@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2014 Vincent Breitmoser <v.breitmoser@mugenguild.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.pgp;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+
+import org.spongycastle.openpgp.PGPPrivateKey;
+import org.sufficientlysecure.keychain.Constants;
+
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.Iterator;
+
+/** A process-wide cache of unlocked private keys, by key id.
+ *
+ * Unlocking a secret key runs its S2K function, which is designed to be
+ * expensive. Operations which unlock the same key over and over, such as API
+ * clients signing many messages in a row, can use this cache to skip key
+ * derivation once the key was unlocked successfully.
+ *
+ * An entry is only returned when presented with the same passphrase it was
+ * unlocked with, which is checked against a salted digest. Since callers
+ * obtain that passphrase from the PassphraseCacheService, a cached key is
+ * effectively unusable once its passphrase timed out there. Additionally,
+ * entries expire after the passphrase cache ttl since their last use, the
+ * same way cached passphrases do, and are dropped on every access after that.
+ *
+ * The PassphraseCacheService runs in a process of its own, so whenever it drops
+ * passphrases, because they timed out or the user cleared the cache, it sends
+ * BROADCAST_ACTION_CLEAR to empty the caches in all other processes as well.
+ * The broadcast is protected by a signature level permission on both ends, so
+ * no other app can clear the caches, or learn when they are cleared.
+ *
+ */
+public class UnlockedKeyCache {
+
+    public static final String BROADCAST_ACTION_CLEAR = Constants.INTENT_PREFIX
+            + "UNLOCKED_KEY_CACHE_CLEAR";
+    /** Signature level permission required to send and receive BROADCAST_ACTION_CLEAR. */
+    public static final String BROADCAST_PERMISSION_CLEAR = Constants.PACKAGE_NAME
+            + ".CLEAR_UNLOCKED_KEY_CACHE";
+
+    private static final UnlockedKeyCache sInstance = new UnlockedKeyCache();
+
+    public static UnlockedKeyCache getInstance() {
+        return sInstance;
+    }
+
+    private static class Entry {
+        final PGPPrivateKey mPrivateKey;
+        final byte[] mDigest;
+        long mExpiry;
+
+        Entry(PGPPrivateKey privateKey, byte[] digest, long expiry) {
+            mPrivateKey = privateKey;
+            mDigest = digest;
+            mExpiry = expiry;
+        }
+    }
+
+    private final HashMap<Long, Entry> mEntries = new HashMap<>();
+    /** Random salt for passphrase digests, which never leaves this process. */
+    private final byte[] mSalt = new byte[16];
+    /** Time to live of entries since their last use, in seconds. */
+    private long mTtl = 0;
+    private BroadcastReceiver mClearReceiver;
+
+    private UnlockedKeyCache() {
+        new SecureRandom().nextBytes(mSalt);
+    }
+
+    /** Sets the time to live of entries since their last use, in seconds. */
+    public synchronized void setTtl(long ttl) {
+        mTtl = ttl;
+    }
+
+    /** Returns the unlocked private key for this key id, if it was cached for this passphrase.
+     *
+     * @param keySalt the S2K salt of the secret key, which changes whenever the
+     *                secret key is re-encrypted with another passphrase.
+     */
+    synchronized PGPPrivateKey get(long keyId, byte[] keySalt, String passphrase) {
+        long now = System.currentTimeMillis();
+        sweep(now);
+
+        Entry entry = mEntries.get(keyId);
+        if (entry == null || !MessageDigest.isEqual(entry.mDigest, digest(keySalt, passphrase))) {
+            return null;
+        }
+
+        // using the key resets its life cycle, just like a cached passphrase
+        entry.mExpiry = now + mTtl * 1000;
+        return entry.mPrivateKey;
+    }
+
+    synchronized void put(long keyId, byte[] keySalt, String passphrase, PGPPrivateKey privateKey) {
+        long now = System.currentTimeMillis();
+        sweep(now);
+        if (mTtl <= 0) {
+            return;
+        }
+        mEntries.put(keyId, new Entry(privateKey, digest(keySalt, passphrase), now + mTtl * 1000));
+    }
+
+    /** Drops all cached keys. */
+    public synchronized void clear() {
+        mEntries.clear();
+    }
+
+    /** Registers for BROADCAST_ACTION_CLEAR in this process, if that wasn't done yet. This
+     * must happen before the first key is cached, so it can't outlive its passphrase. */
+    public synchronized void registerClearReceiver(Context context) {
+        if (mClearReceiver != null) {
+            return;
+        }
+        mClearReceiver = new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                clear();
+            }
+        };
+        // only accept the broadcast from senders holding our signature level permission
+        context.getApplicationContext().registerReceiver(mClearReceiver,
+                new IntentFilter(BROADCAST_ACTION_CLEAR), BROADCAST_PERMISSION_CLEAR, null);
+    }
+
+    /** Clears the caches of unlocked keys in all processes of this app. */
+    public static void broadcastClear(Context context) {
+        Intent intent = new Intent(BROADCAST_ACTION_CLEAR);
+        intent.setPackage(context.getPackageName());
+        context.sendBroadcast(intent, BROADCAST_PERMISSION_CLEAR);
+    }
+
+    /** Drops all cached keys which expired by now. */
+    private void sweep(long now) {
+        Iterator<Entry> it = mEntries.values().iterator();
+        while (it.hasNext()) {
+            if (it.next().mExpiry <= now) {
+                it.remove();
+            }
+        }
+    }
+
+    private byte[] digest(byte[] keySalt, String passphrase) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(mSalt);
+            if (keySalt != null) {
+                digest.update(keySalt);
+            }
+            digest.update(passphrase.getBytes(Charset.forName("UTF-8")));
+            return digest.digest();
+        } catch (NoSuchAlgorithmException e) {
+            // SHA-256 is always available
+            throw new AssertionError(e);
+        }
+    }
+
+}
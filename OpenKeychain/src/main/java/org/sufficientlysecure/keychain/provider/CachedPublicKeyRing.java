@@ -20,6 +20,7 @@ package org.sufficientlysecure.keychain.provider;
 
 import android.database.Cursor;
 import android.net.Uri;
+import android.support.v4.util.LongSparseArray;
 
 import org.sufficientlysecure.keychain.Constants;
 import org.sufficientlysecure.keychain.pgp.CanonicalizedSecretKey.SecretKeyType;
@@ -30,6 +31,9 @@ import org.sufficientlysecure.keychain.provider.KeychainContract.Keys;
 import org.sufficientlysecure.keychain.provider.ProviderHelper.NotFoundException;
 import org.sufficientlysecure.keychain.util.Log;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+
 /** This implementation of KeyRing provides a cached view of PublicKeyRing
  * objects based on database queries exclusively.
  *
@@ -38,35 +42,114 @@ import org.sufficientlysecure.keychain.util.Log;
  * in the database.  This happens commonly in UI code, where parsing of a PGP
  * key for examination would be a very expensive operation.
  *
- * Each getter method is implemented using a more or less expensive database
- * query, while object construction is (almost) free. A common pattern is
+ * Object construction is free. On first access to any getter, all columns in
+ * DEFAULT_PROJECTION are fetched in a single query and memoized, so a
+ * sequence of getters costs only one query. Columns outside of the default
+ * set are fetched on their own when first needed. A common pattern is
  * mProviderHelper.getCachedKeyRing(uri).getterMethod()
  *
+ * Memoized values are never refreshed, so instances of this class should be
+ * short-lived, and must not be shared between threads.
+ *
  * TODO Ensure that the values returned here always match the ones returned by
  * the parsed KeyRing!
  *
  */
 public class CachedPublicKeyRing extends KeyRing {
 
+    /** Columns fetched on first access of any getter. */
+    static final String[] DEFAULT_PROJECTION = new String[] {
+            KeyRings.MASTER_KEY_ID,
+            KeyRings.FINGERPRINT,
+            KeyRings.USER_ID,
+            KeyRings.IS_REVOKED,
+            KeyRings.VERIFIED,
+            KeyRings.HAS_ANY_SECRET,
+            KeyRings.HAS_CERTIFY,
+            KeyRings.HAS_ENCRYPT,
+            KeyRings.HAS_SIGN,
+    };
+
+    /** Field types of the supported columns, as passed to ProviderHelper.getGenericData */
+    static final HashMap<String, Integer> FIELD_TYPES = new HashMap<>();
+    static {
+        FIELD_TYPES.put(KeyRings.MASTER_KEY_ID, ProviderHelper.FIELD_TYPE_INTEGER);
+        FIELD_TYPES.put(KeyRings.FINGERPRINT, ProviderHelper.FIELD_TYPE_BLOB);
+        FIELD_TYPES.put(KeyRings.USER_ID, ProviderHelper.FIELD_TYPE_STRING);
+        FIELD_TYPES.put(KeyRings.IS_REVOKED, ProviderHelper.FIELD_TYPE_INTEGER);
+        FIELD_TYPES.put(KeyRings.IS_EXPIRED, ProviderHelper.FIELD_TYPE_INTEGER);
+        FIELD_TYPES.put(KeyRings.VERIFIED, ProviderHelper.FIELD_TYPE_INTEGER);
+        FIELD_TYPES.put(KeyRings.HAS_ANY_SECRET, ProviderHelper.FIELD_TYPE_INTEGER);
+        FIELD_TYPES.put(KeyRings.HAS_CERTIFY, ProviderHelper.FIELD_TYPE_NULL);
+        FIELD_TYPES.put(KeyRings.HAS_ENCRYPT, ProviderHelper.FIELD_TYPE_INTEGER);
+        FIELD_TYPES.put(KeyRings.HAS_SIGN, ProviderHelper.FIELD_TYPE_INTEGER);
+        FIELD_TYPES.put(KeyRings.HAS_AUTHENTICATE, ProviderHelper.FIELD_TYPE_INTEGER);
+        FIELD_TYPES.put(KeyRings.CREATION, ProviderHelper.FIELD_TYPE_INTEGER);
+        FIELD_TYPES.put(KeyRings.EXPIRY, ProviderHelper.FIELD_TYPE_INTEGER);
+    }
+
     final ProviderHelper mProviderHelper;
     final Uri mUri;
 
+    /** Memoized column values, by column name. */
+    private final HashMap<String, Object> mData = new HashMap<>();
+    /** Memoized secret key types, by key id. Null until the first getSecretKeyType call. */
+    private LongSparseArray<SecretKeyType> mSecretKeyTypes;
+
     public CachedPublicKeyRing(ProviderHelper providerHelper, Uri uri) {
         mProviderHelper = providerHelper;
         mUri = uri;
     }
 
-    @Override
-    public long getMasterKeyId() throws PgpKeyNotFoundException {
+    /** Fetches all given columns which are not memoized yet in a single query.
+     * Columns must be among the ones listed in FIELD_TYPES.
+     */
+    private void prefetch(String... columns) throws PgpKeyNotFoundException {
+        ArrayList<String> missing = new ArrayList<>();
+        for (String column : columns) {
+            if (!FIELD_TYPES.containsKey(column)) {
+                throw new IllegalArgumentException("unsupported column " + column);
+            }
+            if (!mData.containsKey(column) && !missing.contains(column)) {
+                missing.add(column);
+            }
+        }
+        if (missing.isEmpty()) {
+            return;
+        }
+
+        String[] proj = missing.toArray(new String[missing.size()]);
+        int[] types = new int[proj.length];
+        for (int i = 0; i < proj.length; i++) {
+            types[i] = FIELD_TYPES.get(proj[i]);
+        }
+
         try {
-            Object data = mProviderHelper.getGenericData(mUri,
-                    KeychainContract.KeyRings.MASTER_KEY_ID, ProviderHelper.FIELD_TYPE_INTEGER);
-            return (Long) data;
+            mData.putAll(mProviderHelper.getGenericData(mUri, proj, types));
         } catch (ProviderHelper.NotFoundException e) {
             throw new PgpKeyNotFoundException(e);
         }
     }
 
+    /** Returns the memoized value of a column, fetching the default projection if necessary. */
+    private Object getData(String column) throws PgpKeyNotFoundException {
+        if (!mData.containsKey(column)) {
+            prefetch(DEFAULT_PROJECTION);
+            // not part of the default set
+            prefetch(column);
+        }
+        Object data = mData.get(column);
+        if (data == null) {
+            throw new PgpKeyNotFoundException("no data for column " + column);
+        }
+        return data;
+    }
+
+    @Override
+    public long getMasterKeyId() throws PgpKeyNotFoundException {
+        return (Long) getData(KeyRings.MASTER_KEY_ID);
+    }
+
     /**
      * Find the master key id related to a given query. The id will either be extracted from the
      * query, which should work for all specific /key_rings/ queries, or will be queried if it can't.
@@ -84,25 +167,12 @@ public class CachedPublicKeyRing extends KeyRing {
     }
 
     public byte[] getFingerprint() throws PgpKeyNotFoundException {
-        try {
-            Object data = mProviderHelper.getGenericData(mUri,
-                    KeychainContract.KeyRings.FINGERPRINT, ProviderHelper.FIELD_TYPE_BLOB);
-            return (byte[]) data;
-        } catch (ProviderHelper.NotFoundException e) {
-            throw new PgpKeyNotFoundException(e);
-        }
+        return (byte[]) getData(KeyRings.FINGERPRINT);
     }
 
     @Override
     public String getPrimaryUserId() throws PgpKeyNotFoundException {
-        try {
-            Object data = mProviderHelper.getGenericData(mUri,
-                    KeychainContract.KeyRings.USER_ID,
-                    ProviderHelper.FIELD_TYPE_STRING);
-            return (String) data;
-        } catch(ProviderHelper.NotFoundException e) {
-            throw new PgpKeyNotFoundException(e);
-        }
+        return (String) getData(KeyRings.USER_ID);
     }
 
     public String getPrimaryUserIdWithFallback() throws PgpKeyNotFoundException {
@@ -111,38 +181,17 @@ public class CachedPublicKeyRing extends KeyRing {
 
     @Override
     public boolean isRevoked() throws PgpKeyNotFoundException {
-        try {
-            Object data = mProviderHelper.getGenericData(mUri,
-                    KeychainContract.KeyRings.IS_REVOKED,
-                    ProviderHelper.FIELD_TYPE_INTEGER);
-            return (Long) data > 0;
-        } catch(ProviderHelper.NotFoundException e) {
-            throw new PgpKeyNotFoundException(e);
-        }
+        return (Long) getData(KeyRings.IS_REVOKED) > 0;
     }
 
     @Override
     public boolean canCertify() throws PgpKeyNotFoundException {
-        try {
-            Object data = mProviderHelper.getGenericData(mUri,
-                    KeychainContract.KeyRings.HAS_CERTIFY,
-                    ProviderHelper.FIELD_TYPE_NULL);
-            return !((Boolean) data);
-        } catch(ProviderHelper.NotFoundException e) {
-            throw new PgpKeyNotFoundException(e);
-        }
+        return !((Boolean) getData(KeyRings.HAS_CERTIFY));
     }
 
     @Override
     public long getEncryptId() throws PgpKeyNotFoundException {
-        try {
-            Object data = mProviderHelper.getGenericData(mUri,
-                    KeyRings.HAS_ENCRYPT,
-                    ProviderHelper.FIELD_TYPE_INTEGER);
-            return (Long) data;
-        } catch(ProviderHelper.NotFoundException e) {
-            throw new PgpKeyNotFoundException(e);
-        }
+        return (Long) getData(KeyRings.HAS_ENCRYPT);
     }
 
     @Override
@@ -157,37 +206,16 @@ public class CachedPublicKeyRing extends KeyRing {
      *
      */
     public long getSecretSignId() throws PgpKeyNotFoundException {
-        try {
-            Object data = mProviderHelper.getGenericData(mUri,
-                    KeyRings.HAS_SIGN,
-                    ProviderHelper.FIELD_TYPE_INTEGER);
-            return (Long) data;
-        } catch(ProviderHelper.NotFoundException e) {
-            throw new PgpKeyNotFoundException(e);
-        }
+        return (Long) getData(KeyRings.HAS_SIGN);
     }
 
     @Override
     public int getVerified() throws PgpKeyNotFoundException {
-        try {
-            Object data = mProviderHelper.getGenericData(mUri,
-                    KeychainContract.KeyRings.VERIFIED,
-                    ProviderHelper.FIELD_TYPE_INTEGER);
-            return (Integer) data;
-        } catch(ProviderHelper.NotFoundException e) {
-            throw new PgpKeyNotFoundException(e);
-        }
+        return ((Long) getData(KeyRings.VERIFIED)).intValue();
     }
 
     public boolean hasAnySecret() throws PgpKeyNotFoundException {
-        try {
-            Object data = mProviderHelper.getGenericData(mUri,
-                    KeychainContract.KeyRings.HAS_ANY_SECRET,
-                    ProviderHelper.FIELD_TYPE_INTEGER);
-            return (Long) data > 0;
-        } catch(ProviderHelper.NotFoundException e) {
-            throw new PgpKeyNotFoundException(e);
-        }
+        return (Long) getData(KeyRings.HAS_ANY_SECRET) > 0;
     }
 
     private Cursor getSubkeys() throws PgpKeyNotFoundException {
@@ -195,12 +223,34 @@ public class CachedPublicKeyRing extends KeyRing {
         return mProviderHelper.getContentResolver().query(keysUri, null, null, null, null);
     }
 
+    /** Returns the secret key type of a subkey.
+     *
+     * The types of all subkeys of this keyring are fetched with a single query
+     * on first call, since callers commonly look at more than one.
+     *
+     */
     public SecretKeyType getSecretKeyType(long keyId) throws NotFoundException {
-        Object data = mProviderHelper.getGenericData(Keys.buildKeysUri(mUri),
-                KeyRings.HAS_SECRET,
-                ProviderHelper.FIELD_TYPE_INTEGER,
-                KeyRings.KEY_ID + " = " + Long.toString(keyId));
-        return SecretKeyType.fromNum(((Long) data).intValue());
+        if (mSecretKeyTypes == null) {
+            LongSparseArray<SecretKeyType> types = new LongSparseArray<>();
+            Cursor cursor = mProviderHelper.getContentResolver().query(Keys.buildKeysUri(mUri),
+                    new String[] { Keys.KEY_ID, Keys.HAS_SECRET }, null, null, null);
+            try {
+                while (cursor != null && cursor.moveToNext()) {
+                    types.put(cursor.getLong(0), SecretKeyType.fromNum(cursor.getInt(1)));
+                }
+            } finally {
+                if (cursor != null) {
+                    cursor.close();
+                }
+            }
+            mSecretKeyTypes = types;
+        }
+
+        SecretKeyType type = mSecretKeyTypes.get(keyId);
+        if (type == null) {
+            throw new NotFoundException();
+        }
+        return type;
     }
 
 }
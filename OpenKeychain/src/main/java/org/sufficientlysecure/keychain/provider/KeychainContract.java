@@ -20,6 +20,7 @@ package org.sufficientlysecure.keychain.provider;
 
 import android.net.Uri;
 import android.provider.BaseColumns;
+import android.text.TextUtils;
 
 import org.sufficientlysecure.keychain.Constants;
 
@@ -28,6 +29,7 @@ public class KeychainContract {
     interface KeyRingsColumns {
         String MASTER_KEY_ID = "master_key_id"; // not a database id
         String KEY_RING_DATA = "key_ring_data"; // PGPPublicKeyRing / PGPSecretKeyRing blob
+        String EXPORT_DATA = "export_data"; // key_ring_data without local sigs, null if the same
     }
 
     interface KeysColumns {
@@ -71,6 +73,28 @@ public class KeychainContract {
         String DATA = "data";
     }
 
+    interface DirtyKeyRingsColumns {
+        String MASTER_KEY_ID = "master_key_id";
+        String KEY_ID_CERTIFIER = "key_id_certifier"; // the key whose trust changed
+    }
+
+    interface KeyRingsSummaryColumns {
+        String MASTER_KEY_ID = "master_key_id";
+        String USER_ID = "user_id"; // primary user id, ie. the one of rank 0
+        String VERIFIED = "verified";
+        String HAS_ANY_SECRET = "has_any_secret";
+        // id and expiry of the longest valid usable subkey for each capability
+        String ENCRYPT_KEY_ID = "encrypt_key_id";
+        String ENCRYPT_EXPIRY = "encrypt_expiry";
+        String SIGN_KEY_ID = "sign_key_id";
+        String SIGN_EXPIRY = "sign_expiry";
+        String CERTIFY_KEY_ID = "certify_key_id";
+        String CERTIFY_EXPIRY = "certify_expiry";
+        String AUTHENTICATE_KEY_ID = "authenticate_key_id";
+        String AUTHENTICATE_EXPIRY = "authenticate_expiry";
+        String NEXT_EXPIRY = "next_expiry"; // earliest expiry of any non-revoked key
+    }
+
     interface ApiAppsColumns {
         String PACKAGE_NAME = "package_name";
         String PACKAGE_SIGNATURE = "package_signature";
@@ -102,12 +126,16 @@ public class KeychainContract {
     public static final String PATH_FIND = "find";
     public static final String PATH_BY_EMAIL = "email";
     public static final String PATH_BY_SUBKEY = "subkey";
+    public static final String PATH_BY_SEARCH = "search";
+    public static final String PATH_BY_EMAIL_USER_IDS = "email_user_ids";
 
     public static final String PATH_PUBLIC = "public";
     public static final String PATH_SECRET = "secret";
     public static final String PATH_USER_IDS = "user_ids";
     public static final String PATH_KEYS = "keys";
     public static final String PATH_CERTS = "certs";
+    public static final String PATH_SUMMARY = "summary";
+    public static final String PATH_DIRTY = "dirty";
 
     public static final String BASE_API_APPS = "api_apps";
     public static final String PATH_ACCOUNTS = "accounts";
@@ -123,8 +151,13 @@ public class KeychainContract {
         public static final String HAS_SIGN = "has_sign";
         public static final String HAS_CERTIFY = "has_certify";
         public static final String HAS_AUTHENTICATE = "has_authenticate";
+        // only available for find user ids by email, the user id which matched
+        public static final String FOUND_USER_ID = "found_user_id";
         public static final String PUBKEY_DATA = "pubkey_data";
         public static final String PRIVKEY_DATA = "privkey_data";
+        // keyring data as it is exported, ie without local signatures
+        public static final String PUBKEY_EXPORT_DATA = "pubkey_export_data";
+        public static final String PRIVKEY_EXPORT_DATA = "privkey_export_data";
 
         public static final Uri CONTENT_URI = BASE_CONTENT_URI_INTERNAL.buildUpon()
                 .appendPath(BASE_KEY_RINGS).build();
@@ -160,11 +193,38 @@ public class KeychainContract {
                     .appendPath(PATH_UNIFIED).build();
         }
 
+        /** Uri to refresh the precomputed summary of a keyring with, by an insert. */
+        public static Uri buildSummaryUri(long masterKeyId) {
+            return CONTENT_URI.buildUpon().appendPath(Long.toString(masterKeyId))
+                    .appendPath(PATH_SUMMARY).build();
+        }
+
         public static Uri buildUnifiedKeyRingsFindByEmailUri(String email) {
             return CONTENT_URI.buildUpon().appendPath(PATH_FIND)
                     .appendPath(PATH_BY_EMAIL).appendPath(email).build();
         }
 
+        /** Uri to find the user ids of all given emails at once.
+         *
+         * Unlike find by email, this returns one row for each matching user id,
+         * which is available as FOUND_USER_ID.
+         */
+        public static Uri buildUnifiedKeyRingsFindUserIdsByEmailUri(String[] emails) {
+            return CONTENT_URI.buildUpon().appendPath(PATH_FIND)
+                    .appendPath(PATH_BY_EMAIL_USER_IDS)
+                    .appendPath(TextUtils.join(",", emails)).build();
+        }
+
+        /** Uri to find keyrings by words contained in any of their user ids.
+         *
+         * All words must be found in the same user id, where each of them may
+         * also be the prefix of a longer word, for type-ahead search.
+         */
+        public static Uri buildUnifiedKeyRingsSearchUri(String query) {
+            return CONTENT_URI.buildUpon().appendPath(PATH_FIND)
+                    .appendPath(PATH_BY_SEARCH).appendPath(query).build();
+        }
+
         public static Uri buildUnifiedKeyRingsFindBySubkeyUri(long subkey) {
             return CONTENT_URI.buildUpon().appendPath(PATH_FIND)
                     .appendPath(PATH_BY_SUBKEY).appendPath(Long.toString(subkey)).build();
@@ -223,6 +283,10 @@ public class KeychainContract {
         public static final String CONTENT_ITEM_TYPE
                 = "vnd.android.cursor.item/vnd.org.sufficientlysecure.keychain.provider.keychain.keys";
 
+        public static Uri buildKeysUri() {
+            return CONTENT_URI.buildUpon().appendPath(PATH_KEYS).build();
+        }
+
         public static Uri buildKeysUri(long masterKeyId) {
             return CONTENT_URI.buildUpon().appendPath(Long.toString(masterKeyId)).appendPath(PATH_KEYS).build();
         }
@@ -354,6 +418,12 @@ public class KeychainContract {
 
     }
 
+    /** Keyrings whose certifications must be verified again, see ProviderHelper. */
+    public static class DirtyKeyRings implements DirtyKeyRingsColumns, BaseColumns {
+        public static final Uri CONTENT_URI = BASE_CONTENT_URI_INTERNAL.buildUpon()
+                .appendPath(BASE_KEY_RINGS).appendPath(PATH_DIRTY).build();
+    }
+
     private KeychainContract() {
     }
 }
@@ -31,8 +31,11 @@ import org.sufficientlysecure.keychain.pgp.exception.PgpGeneralException;
 import org.sufficientlysecure.keychain.provider.KeychainContract.ApiAppsAccountsColumns;
 import org.sufficientlysecure.keychain.provider.KeychainContract.ApiAppsAllowedKeysColumns;
 import org.sufficientlysecure.keychain.provider.KeychainContract.ApiAppsColumns;
+import org.sufficientlysecure.keychain.provider.KeychainContract.Certs;
 import org.sufficientlysecure.keychain.provider.KeychainContract.CertsColumns;
+import org.sufficientlysecure.keychain.provider.KeychainContract.DirtyKeyRingsColumns;
 import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRingsColumns;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRingsSummaryColumns;
 import org.sufficientlysecure.keychain.provider.KeychainContract.KeysColumns;
 import org.sufficientlysecure.keychain.provider.KeychainContract.UserPacketsColumns;
 import org.sufficientlysecure.keychain.ui.ConsolidateDialogActivity;
@@ -53,7 +56,7 @@ import java.io.IOException;
  */
 public class KeychainDatabase extends SQLiteOpenHelper {
     private static final String DATABASE_NAME = "openkeychain.db";
-    private static final int DATABASE_VERSION = 8;
+    private static final int DATABASE_VERSION = 13;
     static Boolean apgHack = false;
     private Context mContext;
 
@@ -62,7 +65,10 @@ public class KeychainDatabase extends SQLiteOpenHelper {
         String KEY_RINGS_SECRET = "keyrings_secret";
         String KEYS = "keys";
         String USER_PACKETS = "user_ids";
+        String USER_PACKETS_FTS = "user_ids_fts";
         String CERTS = "certs";
+        String KEY_RINGS_SUMMARY = "keyrings_summary";
+        String KEY_RINGS_DIRTY = "keyrings_dirty";
         String API_APPS = "api_apps";
         String API_ACCOUNTS = "api_accounts";
         String API_ALLOWED_KEYS = "api_allowed_keys";
@@ -71,13 +77,15 @@ public class KeychainDatabase extends SQLiteOpenHelper {
     private static final String CREATE_KEYRINGS_PUBLIC =
             "CREATE TABLE IF NOT EXISTS keyrings_public ("
                 + KeyRingsColumns.MASTER_KEY_ID + " INTEGER PRIMARY KEY,"
-                + KeyRingsColumns.KEY_RING_DATA + " BLOB"
+                + KeyRingsColumns.KEY_RING_DATA + " BLOB,"
+                + KeyRingsColumns.EXPORT_DATA + " BLOB"
             + ")";
 
     private static final String CREATE_KEYRINGS_SECRET =
             "CREATE TABLE IF NOT EXISTS keyrings_secret ("
                     + KeyRingsColumns.MASTER_KEY_ID + " INTEGER PRIMARY KEY,"
                     + KeyRingsColumns.KEY_RING_DATA + " BLOB,"
+                    + KeyRingsColumns.EXPORT_DATA + " BLOB,"
                     + "FOREIGN KEY(" + KeyRingsColumns.MASTER_KEY_ID + ") "
                         + "REFERENCES keyrings_public(" + KeyRingsColumns.MASTER_KEY_ID + ") ON DELETE CASCADE"
             + ")";
@@ -145,6 +153,74 @@ public class KeychainDatabase extends SQLiteOpenHelper {
                     + Tables.USER_PACKETS + "(" + UserPacketsColumns.MASTER_KEY_ID + ", " + UserPacketsColumns.RANK + ") ON DELETE CASCADE"
             + ")";
 
+    /** Full text index over all user ids, by rowid of the user packet as docid.
+     *
+     * It is maintained by triggers on the user packets table, which also fire
+     * for rows deleted by cascade from their keyring. User packets are never
+     * updated, so there is no need for an update trigger.
+     */
+    private static final String CREATE_USER_PACKETS_FTS =
+            "CREATE VIRTUAL TABLE IF NOT EXISTS " + Tables.USER_PACKETS_FTS
+                + " USING fts4(" + UserPacketsColumns.USER_ID + ")";
+
+    private static final String CREATE_USER_PACKETS_FTS_INSERT_TRIGGER =
+            "CREATE TRIGGER IF NOT EXISTS " + Tables.USER_PACKETS_FTS + "_insert"
+                + " AFTER INSERT ON " + Tables.USER_PACKETS
+                + " WHEN new." + UserPacketsColumns.USER_ID + " IS NOT NULL"
+            + " BEGIN"
+                + " INSERT INTO " + Tables.USER_PACKETS_FTS
+                    + " (docid, " + UserPacketsColumns.USER_ID + ")"
+                    + " VALUES (new.rowid, new." + UserPacketsColumns.USER_ID + ");"
+            + " END";
+
+    private static final String CREATE_USER_PACKETS_FTS_DELETE_TRIGGER =
+            "CREATE TRIGGER IF NOT EXISTS " + Tables.USER_PACKETS_FTS + "_delete"
+                + " AFTER DELETE ON " + Tables.USER_PACKETS
+            + " BEGIN"
+                + " DELETE FROM " + Tables.USER_PACKETS_FTS + " WHERE docid = old.rowid;"
+            + " END";
+
+    /** Precomputed per-keyring data for the unified keyring query.
+     *
+     * Rows are derived entirely from the other keyring tables, and recomputed
+     * by {@link #updateKeyRingSummary} whenever a keyring is saved. Since
+     * subkeys expire over time, the stored capabilities are only candidates
+     * which must still be checked against their expiry at query time.
+     */
+    private static final String CREATE_KEYRINGS_SUMMARY =
+            "CREATE TABLE IF NOT EXISTS " + Tables.KEY_RINGS_SUMMARY + " ("
+                + KeyRingsSummaryColumns.MASTER_KEY_ID + " INTEGER PRIMARY KEY, "
+                + KeyRingsSummaryColumns.USER_ID + " TEXT, "
+                + KeyRingsSummaryColumns.VERIFIED + " INTEGER, "
+                + KeyRingsSummaryColumns.HAS_ANY_SECRET + " INTEGER, "
+
+                + KeyRingsSummaryColumns.ENCRYPT_KEY_ID + " INTEGER, "
+                + KeyRingsSummaryColumns.ENCRYPT_EXPIRY + " INTEGER, "
+                + KeyRingsSummaryColumns.SIGN_KEY_ID + " INTEGER, "
+                + KeyRingsSummaryColumns.SIGN_EXPIRY + " INTEGER, "
+                + KeyRingsSummaryColumns.CERTIFY_KEY_ID + " INTEGER, "
+                + KeyRingsSummaryColumns.CERTIFY_EXPIRY + " INTEGER, "
+                + KeyRingsSummaryColumns.AUTHENTICATE_KEY_ID + " INTEGER, "
+                + KeyRingsSummaryColumns.AUTHENTICATE_EXPIRY + " INTEGER, "
+                + KeyRingsSummaryColumns.NEXT_EXPIRY + " INTEGER, "
+
+                + "FOREIGN KEY(" + KeyRingsSummaryColumns.MASTER_KEY_ID + ") REFERENCES "
+                    + Tables.KEY_RINGS_PUBLIC + "(" + KeyRingsColumns.MASTER_KEY_ID + ") ON DELETE CASCADE"
+            + ")";
+
+    /** Keyrings whose certs by a certifier must be verified again.
+     *
+     * There is deliberately no foreign key here, marks must survive the keyring
+     * being deleted and reinserted on save. Stale marks are simply dropped.
+     */
+    private static final String CREATE_KEYRINGS_DIRTY =
+            "CREATE TABLE IF NOT EXISTS " + Tables.KEY_RINGS_DIRTY + " ("
+                + DirtyKeyRingsColumns.MASTER_KEY_ID + " INTEGER NOT NULL, "
+                + DirtyKeyRingsColumns.KEY_ID_CERTIFIER + " INTEGER NOT NULL, "
+                + "PRIMARY KEY(" + DirtyKeyRingsColumns.MASTER_KEY_ID + ", "
+                    + DirtyKeyRingsColumns.KEY_ID_CERTIFIER + ")"
+            + ")";
+
     private static final String CREATE_API_APPS =
             "CREATE TABLE IF NOT EXISTS " + Tables.API_APPS + " ("
                 + BaseColumns._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
@@ -180,6 +256,24 @@ public class KeychainDatabase extends SQLiteOpenHelper {
                 + Tables.API_APPS + "(" + ApiAppsAllowedKeysColumns.PACKAGE_NAME + ") ON DELETE CASCADE"
                 + ")";
 
+    /** Secondary indexes, for all lookups of KeychainProvider which are not by primary key. */
+    private static final String[] CREATE_INDEXES = {
+            // find by subkey, and keyrings by subkey id in general
+            "CREATE INDEX IF NOT EXISTS keys_key_id_index ON " + Tables.KEYS
+                    + "(" + KeysColumns.KEY_ID + ")",
+            // covers the verification status of user ids, without touching cert data
+            "CREATE INDEX IF NOT EXISTS certs_verified_index ON " + Tables.CERTS + "("
+                    + CertsColumns.MASTER_KEY_ID + ", " + CertsColumns.RANK + ", "
+                    + CertsColumns.VERIFIED + ")",
+            // find keyrings certified by a key, when it becomes trusted
+            "CREATE INDEX IF NOT EXISTS certs_certifier_index ON " + Tables.CERTS + "("
+                    + CertsColumns.KEY_ID_CERTIFIER + ", " + CertsColumns.MASTER_KEY_ID + ")",
+            "CREATE INDEX IF NOT EXISTS api_accounts_package_index ON " + Tables.API_ACCOUNTS
+                    + "(" + ApiAppsAccountsColumns.PACKAGE_NAME + ")",
+            "CREATE INDEX IF NOT EXISTS api_allowed_keys_package_index ON " + Tables.API_ALLOWED_KEYS
+                    + "(" + ApiAppsAllowedKeysColumns.PACKAGE_NAME + ")"
+    };
+
     KeychainDatabase(Context context) {
         super(context, DATABASE_NAME, null, DATABASE_VERSION);
         mContext = context;
@@ -207,9 +301,20 @@ public class KeychainDatabase extends SQLiteOpenHelper {
         db.execSQL(CREATE_KEYS);
         db.execSQL(CREATE_USER_PACKETS);
         db.execSQL(CREATE_CERTS);
+        db.execSQL(CREATE_USER_PACKETS_FTS);
+        db.execSQL(CREATE_USER_PACKETS_FTS_INSERT_TRIGGER);
+        db.execSQL(CREATE_USER_PACKETS_FTS_DELETE_TRIGGER);
+        db.execSQL(CREATE_KEYRINGS_SUMMARY);
+        db.execSQL(CREATE_KEYRINGS_DIRTY);
         db.execSQL(CREATE_API_APPS);
         db.execSQL(CREATE_API_APPS_ACCOUNTS);
         db.execSQL(CREATE_API_APPS_ALLOWED_KEYS);
+        for (String createIndex : CREATE_INDEXES) {
+            db.execSQL(createIndex);
+        }
+
+        // a fresh database holds no trusted keys
+        TrustedCertifierCache.getInstance().invalidateAll();
     }
 
     @Override
@@ -267,6 +372,50 @@ public class KeychainDatabase extends SQLiteOpenHelper {
                 } catch (Exception e) {
                     // never mind, the column probably already existed
                 }
+                // fall through
+            case 9:
+                // precomputed keyring summaries, built from the existing data
+                db.execSQL(CREATE_KEYRINGS_SUMMARY);
+                updateKeyRingSummary(db, null);
+                // fall through
+            case 10:
+                // secondary indexes for hot queries
+                for (String createIndex : CREATE_INDEXES) {
+                    db.execSQL(createIndex);
+                }
+                // fall through
+            case 11:
+                // full text search over user ids, indexing those we already have
+                db.execSQL(CREATE_USER_PACKETS_FTS);
+                db.execSQL("DELETE FROM " + Tables.USER_PACKETS_FTS);
+                db.execSQL("INSERT INTO " + Tables.USER_PACKETS_FTS
+                        + " (docid, " + UserPacketsColumns.USER_ID + ")"
+                        + " SELECT rowid, " + UserPacketsColumns.USER_ID + " FROM " + Tables.USER_PACKETS
+                        + " WHERE " + UserPacketsColumns.USER_ID + " IS NOT NULL");
+                db.execSQL(CREATE_USER_PACKETS_FTS_INSERT_TRIGGER);
+                db.execSQL(CREATE_USER_PACKETS_FTS_DELETE_TRIGGER);
+                // fall through
+            case 12:
+                // export ready keyring data, filled in by the consolidate below
+                try {
+                    db.execSQL("ALTER TABLE keyrings_public ADD COLUMN export_data BLOB");
+                } catch (Exception e) {
+                    // never mind, the column probably already existed
+                }
+                try {
+                    db.execSQL("ALTER TABLE keyrings_secret ADD COLUMN export_data BLOB");
+                } catch (Exception e) {
+                    // never mind, the column probably already existed
+                }
+                // fall through
+            case 13:
+                // marks for incremental consolidation, and the certifier index to find
+                // them. certs by unknown keys are stored from now on, the consolidate
+                // below fills them in
+                db.execSQL(CREATE_KEYRINGS_DIRTY);
+                for (String createIndex : CREATE_INDEXES) {
+                    db.execSQL(createIndex);
+                }
         }
 
         // always do consolidate after upgrade
@@ -276,6 +425,80 @@ public class KeychainDatabase extends SQLiteOpenHelper {
         mContext.getApplicationContext().startActivity(consolidateIntent);
     }
 
+    /** Recomputes the summary row of a keyring from its keys, user ids and certs.
+     *
+     * If masterKeyId is null, the summaries of all keyrings are recomputed. If
+     * there is no public keyring with the given master key id, any stale summary
+     * row is removed along with it by the foreign key, and nothing is inserted.
+     */
+    static void updateKeyRingSummary(SQLiteDatabase db, Long masterKeyId) {
+        String sql = "INSERT OR REPLACE INTO " + Tables.KEY_RINGS_SUMMARY + " ("
+                    + KeyRingsSummaryColumns.MASTER_KEY_ID + ", "
+                    + KeyRingsSummaryColumns.USER_ID + ", "
+                    + KeyRingsSummaryColumns.VERIFIED + ", "
+                    + KeyRingsSummaryColumns.HAS_ANY_SECRET + ", "
+                    + KeyRingsSummaryColumns.ENCRYPT_KEY_ID + ", "
+                    + KeyRingsSummaryColumns.ENCRYPT_EXPIRY + ", "
+                    + KeyRingsSummaryColumns.SIGN_KEY_ID + ", "
+                    + KeyRingsSummaryColumns.SIGN_EXPIRY + ", "
+                    + KeyRingsSummaryColumns.CERTIFY_KEY_ID + ", "
+                    + KeyRingsSummaryColumns.CERTIFY_EXPIRY + ", "
+                    + KeyRingsSummaryColumns.AUTHENTICATE_KEY_ID + ", "
+                    + KeyRingsSummaryColumns.AUTHENTICATE_EXPIRY + ", "
+                    + KeyRingsSummaryColumns.NEXT_EXPIRY
+                + ") SELECT "
+                    + Tables.KEYS + "." + KeysColumns.MASTER_KEY_ID + ", "
+                    // we KNOW that the rank zero user packet is a user id!
+                    + "(SELECT " + UserPacketsColumns.USER_ID + " FROM " + Tables.USER_PACKETS
+                        + " WHERE " + UserPacketsColumns.MASTER_KEY_ID
+                            + " = " + Tables.KEYS + "." + KeysColumns.MASTER_KEY_ID
+                        + " AND " + UserPacketsColumns.RANK + " = 0), "
+                    + "(SELECT " + CertsColumns.VERIFIED + " FROM " + Tables.CERTS
+                        + " WHERE " + CertsColumns.MASTER_KEY_ID
+                            + " = " + Tables.KEYS + "." + KeysColumns.MASTER_KEY_ID
+                        + " AND " + CertsColumns.VERIFIED + " = " + Certs.VERIFIED_SECRET
+                        + " LIMIT 1), "
+                    + "EXISTS (SELECT 1 FROM " + Tables.KEY_RINGS_SECRET
+                        + " WHERE " + KeyRingsColumns.MASTER_KEY_ID
+                            + " = " + Tables.KEYS + "." + KeysColumns.MASTER_KEY_ID + "), "
+                    + buildSummaryKeySelect(KeysColumns.KEY_ID, KeysColumns.CAN_ENCRYPT, false) + ", "
+                    + buildSummaryKeySelect(KeysColumns.EXPIRY, KeysColumns.CAN_ENCRYPT, false) + ", "
+                    + buildSummaryKeySelect(KeysColumns.KEY_ID, KeysColumns.CAN_SIGN, true) + ", "
+                    + buildSummaryKeySelect(KeysColumns.EXPIRY, KeysColumns.CAN_SIGN, true) + ", "
+                    + buildSummaryKeySelect(KeysColumns.KEY_ID, KeysColumns.CAN_CERTIFY, true) + ", "
+                    + buildSummaryKeySelect(KeysColumns.EXPIRY, KeysColumns.CAN_CERTIFY, true) + ", "
+                    + buildSummaryKeySelect(KeysColumns.KEY_ID, KeysColumns.CAN_AUTHENTICATE, true) + ", "
+                    + buildSummaryKeySelect(KeysColumns.EXPIRY, KeysColumns.CAN_AUTHENTICATE, true) + ", "
+                    + "(SELECT MIN(k." + KeysColumns.EXPIRY + ") FROM " + Tables.KEYS + " AS k"
+                        + " WHERE k." + KeysColumns.MASTER_KEY_ID
+                            + " = " + Tables.KEYS + "." + KeysColumns.MASTER_KEY_ID
+                        + " AND k." + KeysColumns.IS_REVOKED + " = 0)"
+                + " FROM " + Tables.KEYS
+                + " WHERE " + Tables.KEYS + "." + KeysColumns.RANK + " = 0";
+
+        if (masterKeyId == null) {
+            db.execSQL(sql);
+        } else {
+            db.execSQL(sql + " AND " + Tables.KEYS + "." + KeysColumns.MASTER_KEY_ID + " = ?",
+                    new Object[] { masterKeyId });
+        }
+    }
+
+    /** Selects a column of the subkey with the given capability which stays valid the longest,
+     * ie. one without expiry if there is any. Whether this key is still valid at any given
+     * time can then be decided from its expiry alone.
+     */
+    private static String buildSummaryKeySelect(String column, String capability, boolean needsSecret) {
+        return "(SELECT k." + column + " FROM " + Tables.KEYS + " AS k"
+                + " WHERE k." + KeysColumns.MASTER_KEY_ID
+                    + " = " + Tables.KEYS + "." + KeysColumns.MASTER_KEY_ID
+                + " AND k." + KeysColumns.IS_REVOKED + " = 0"
+                + " AND k." + capability + " = 1"
+                + (needsSecret ? " AND k." + KeysColumns.HAS_SECRET + " > 1" : "")
+                + " ORDER BY k." + KeysColumns.EXPIRY + " IS NULL DESC, k." + KeysColumns.EXPIRY + " DESC"
+                + " LIMIT 1)";
+    }
+
     /** This method tries to import data from a provided database.
      *
      * The sole assumptions made on this db are that there is a key_rings table
@@ -417,6 +640,7 @@ public class KeychainDatabase extends SQLiteOpenHelper {
     // DANGEROUS, use in test code ONLY!
     public void clearDatabase() {
         getWritableDatabase().execSQL("delete from " + Tables.KEY_RINGS_PUBLIC);
+        TrustedCertifierCache.getInstance().invalidateAll();
     }
 
 }
@@ -20,7 +20,10 @@
 package org.sufficientlysecure.keychain.provider;
 
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
 import android.database.DatabaseUtils;
@@ -35,18 +38,22 @@ import org.sufficientlysecure.keychain.provider.KeychainContract.ApiAccounts;
 import org.sufficientlysecure.keychain.provider.KeychainContract.ApiAllowedKeys;
 import org.sufficientlysecure.keychain.provider.KeychainContract.ApiApps;
 import org.sufficientlysecure.keychain.provider.KeychainContract.Certs;
+import org.sufficientlysecure.keychain.provider.KeychainContract.DirtyKeyRings;
 import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRingData;
 import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRings;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRingsSummaryColumns;
 import org.sufficientlysecure.keychain.provider.KeychainContract.Keys;
 import org.sufficientlysecure.keychain.provider.KeychainContract.UserPackets;
 import org.sufficientlysecure.keychain.provider.KeychainContract.UserPacketsColumns;
 import org.sufficientlysecure.keychain.provider.KeychainDatabase.Tables;
 import org.sufficientlysecure.keychain.util.Log;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
+import java.util.regex.Pattern;
 
 public class KeychainProvider extends ContentProvider {
 
@@ -54,6 +61,8 @@ public class KeychainProvider extends ContentProvider {
     private static final int KEY_RINGS_PUBLIC = 102;
     private static final int KEY_RINGS_SECRET = 103;
     private static final int KEY_RINGS_USER_IDS = 104;
+    private static final int KEY_RINGS_KEYS = 105;
+    private static final int KEY_RINGS_DIRTY = 106;
 
     private static final int KEY_RING_UNIFIED = 200;
     private static final int KEY_RING_KEYS = 201;
@@ -62,6 +71,7 @@ public class KeychainProvider extends ContentProvider {
     private static final int KEY_RING_SECRET = 204;
     private static final int KEY_RING_CERTS = 205;
     private static final int KEY_RING_CERTS_SPECIFIC = 206;
+    private static final int KEY_RING_SUMMARY = 207;
 
     private static final int API_APPS = 301;
     private static final int API_APPS_BY_PACKAGE_NAME = 302;
@@ -71,6 +81,8 @@ public class KeychainProvider extends ContentProvider {
 
     private static final int KEY_RINGS_FIND_BY_EMAIL = 400;
     private static final int KEY_RINGS_FIND_BY_SUBKEY = 401;
+    private static final int KEY_RINGS_SEARCH = 402;
+    private static final int KEY_RINGS_FIND_USER_IDS_BY_EMAIL = 403;
 
     protected UriMatcher mUriMatcher;
 
@@ -91,6 +103,8 @@ public class KeychainProvider extends ContentProvider {
          * key_rings/public
          * key_rings/secret
          * key_rings/user_ids
+         * key_rings/keys
+         * key_rings/dirty
          * </pre>
          */
         matcher.addURI(authority, KeychainContract.BASE_KEY_RINGS
@@ -105,12 +119,20 @@ public class KeychainProvider extends ContentProvider {
         matcher.addURI(authority, KeychainContract.BASE_KEY_RINGS
                         + "/" + KeychainContract.PATH_USER_IDS,
                 KEY_RINGS_USER_IDS);
+        matcher.addURI(authority, KeychainContract.BASE_KEY_RINGS
+                        + "/" + KeychainContract.PATH_KEYS,
+                KEY_RINGS_KEYS);
+        matcher.addURI(authority, KeychainContract.BASE_KEY_RINGS
+                        + "/" + KeychainContract.PATH_DIRTY,
+                KEY_RINGS_DIRTY);
 
         /**
          * find by criteria other than master key id
          *
          * key_rings/find/email/_
          * key_rings/find/subkey/_
+         * key_rings/find/search/_
+         * key_rings/find/email_user_ids/_
          *
          */
         matcher.addURI(authority, KeychainContract.BASE_KEY_RINGS + "/"
@@ -119,6 +141,12 @@ public class KeychainProvider extends ContentProvider {
         matcher.addURI(authority, KeychainContract.BASE_KEY_RINGS + "/"
                 + KeychainContract.PATH_FIND + "/" + KeychainContract.PATH_BY_SUBKEY + "/*",
                 KEY_RINGS_FIND_BY_SUBKEY);
+        matcher.addURI(authority, KeychainContract.BASE_KEY_RINGS + "/"
+                + KeychainContract.PATH_FIND + "/" + KeychainContract.PATH_BY_SEARCH + "/*",
+                KEY_RINGS_SEARCH);
+        matcher.addURI(authority, KeychainContract.BASE_KEY_RINGS + "/"
+                + KeychainContract.PATH_FIND + "/" + KeychainContract.PATH_BY_EMAIL_USER_IDS + "/*",
+                KEY_RINGS_FIND_USER_IDS_BY_EMAIL);
 
         /**
          * list key_ring specifics
@@ -131,6 +159,7 @@ public class KeychainProvider extends ContentProvider {
          * key_rings/_/secret
          * key_rings/_/certs
          * key_rings/_/certs/_/_
+         * key_rings/_/summary
          * </pre>
          */
         matcher.addURI(authority, KeychainContract.BASE_KEY_RINGS + "/*/"
@@ -154,6 +183,9 @@ public class KeychainProvider extends ContentProvider {
         matcher.addURI(authority, KeychainContract.BASE_KEY_RINGS + "/*/"
                         + KeychainContract.PATH_CERTS + "/*/*",
                 KEY_RING_CERTS_SPECIFIC);
+        matcher.addURI(authority, KeychainContract.BASE_KEY_RINGS + "/*/"
+                        + KeychainContract.PATH_SUMMARY,
+                KEY_RING_SUMMARY);
 
         /**
          * API apps
@@ -199,6 +231,32 @@ public class KeychainProvider extends ContentProvider {
         return mKeychainDatabase;
     }
 
+    /**
+     * Applies all operations of a batch in a single transaction.
+     *
+     * If a transaction is already running on this thread, the batch becomes part of
+     * it instead. A failed nested transaction would silently doom the outer one, so
+     * the caller is responsible for rolling back on failure in that case.
+     *
+     * {@inheritDoc}
+     */
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        SQLiteDatabase db = getDb().getWritableDatabase();
+        if (db.inTransaction()) {
+            return super.applyBatch(operations);
+        }
+        db.beginTransaction();
+        try {
+            ContentProviderResult[] results = super.applyBatch(operations);
+            db.setTransactionSuccessful();
+            return results;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -209,6 +267,7 @@ public class KeychainProvider extends ContentProvider {
             case KEY_RING_PUBLIC:
                 return KeyRings.CONTENT_ITEM_TYPE;
 
+            case KEY_RINGS_KEYS:
             case KEY_RING_KEYS:
                 return Keys.CONTENT_TYPE;
 
@@ -238,6 +297,33 @@ public class KeychainProvider extends ContentProvider {
         }
     }
 
+    /** A query built from a content uri, which is ready to run on the database. */
+    static class PreparedQuery {
+        final SQLiteQueryBuilder mBuilder;
+        final String mGroupBy, mHaving, mOrderBy;
+        // uri to watch for changes. unified queries all watch KeyRings.CONTENT_URI
+        final Uri mNotifyUri;
+
+        PreparedQuery(SQLiteQueryBuilder builder, String groupBy, String having, String orderBy,
+                      Uri notifyUri) {
+            mBuilder = builder;
+            mGroupBy = groupBy;
+            mHaving = having;
+            mOrderBy = orderBy;
+            mNotifyUri = notifyUri;
+        }
+
+        Cursor query(SQLiteDatabase db, String[] projection, String selection,
+                     String[] selectionArgs) {
+            return mBuilder.query(db, projection, selection, selectionArgs,
+                    mGroupBy, mHaving, mOrderBy);
+        }
+
+        String buildSql(String[] projection, String selection) {
+            return mBuilder.buildQuery(projection, selection, mGroupBy, mHaving, mOrderBy, null);
+        }
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -246,6 +332,26 @@ public class KeychainProvider extends ContentProvider {
                         String sortOrder) {
         Log.v(Constants.TAG, "query(uri=" + uri + ", proj=" + Arrays.toString(projection) + ")");
 
+        PreparedQuery query = prepareQuery(uri, projection, sortOrder);
+
+        SQLiteDatabase db = getDb().getReadableDatabase();
+        Cursor cursor = query.query(db, projection, selection, selectionArgs);
+        if (cursor != null) {
+            // Tell the cursor what uri to watch, so it knows when its source data changes
+            cursor.setNotificationUri(getContext().getContentResolver(), query.mNotifyUri);
+        }
+
+        if (Constants.DEBUG) {
+            Log.d(Constants.TAG, "Query: " + query.buildSql(projection, selection));
+            Log.d(Constants.TAG, "Cursor: " + DatabaseUtils.dumpCursorToString(cursor));
+        }
+
+        return cursor;
+    }
+
+    /** Builds the query for a content uri, without running it. */
+    PreparedQuery prepareQuery(Uri uri, String[] projection, String sortOrder) {
+
         SQLiteQueryBuilder qb = new SQLiteQueryBuilder();
 
         int match = mUriMatcher.match(uri);
@@ -257,7 +363,9 @@ public class KeychainProvider extends ContentProvider {
             case KEY_RING_UNIFIED:
             case KEY_RINGS_UNIFIED:
             case KEY_RINGS_FIND_BY_EMAIL:
-            case KEY_RINGS_FIND_BY_SUBKEY: {
+            case KEY_RINGS_FIND_BY_SUBKEY:
+            case KEY_RINGS_SEARCH:
+            case KEY_RINGS_FIND_USER_IDS_BY_EMAIL: {
                 HashMap<String, String> projectionMap = new HashMap<>();
                 projectionMap.put(KeyRings._ID, Tables.KEYS + ".oid AS _id");
                 projectionMap.put(KeyRings.MASTER_KEY_ID, Tables.KEYS + "." + Keys.MASTER_KEY_ID);
@@ -273,29 +381,49 @@ public class KeychainProvider extends ContentProvider {
                 projectionMap.put(KeyRings.EXPIRY, Tables.KEYS + "." + Keys.EXPIRY);
                 projectionMap.put(KeyRings.ALGORITHM, Tables.KEYS + "." + Keys.ALGORITHM);
                 projectionMap.put(KeyRings.FINGERPRINT, Tables.KEYS + "." + Keys.FINGERPRINT);
-                projectionMap.put(KeyRings.USER_ID, UserPackets.USER_ID);
-                projectionMap.put(KeyRings.VERIFIED, KeyRings.VERIFIED);
+                projectionMap.put(KeyRings.USER_ID, Tables.KEY_RINGS_SUMMARY + "."
+                        + KeyRingsSummaryColumns.USER_ID + " AS " + KeyRings.USER_ID);
+                projectionMap.put(KeyRings.VERIFIED, Tables.KEY_RINGS_SUMMARY + "."
+                        + KeyRingsSummaryColumns.VERIFIED + " AS " + KeyRings.VERIFIED);
                 projectionMap.put(KeyRings.PUBKEY_DATA,
                         Tables.KEY_RINGS_PUBLIC + "." + KeyRingData.KEY_RING_DATA
                                 + " AS " + KeyRings.PUBKEY_DATA);
                 projectionMap.put(KeyRings.PRIVKEY_DATA,
                         Tables.KEY_RINGS_SECRET + "." + KeyRingData.KEY_RING_DATA
                                 + " AS " + KeyRings.PRIVKEY_DATA);
+                projectionMap.put(KeyRings.PUBKEY_EXPORT_DATA, "COALESCE("
+                        + Tables.KEY_RINGS_PUBLIC + "." + KeyRingData.EXPORT_DATA + ", "
+                        + Tables.KEY_RINGS_PUBLIC + "." + KeyRingData.KEY_RING_DATA
+                        + ") AS " + KeyRings.PUBKEY_EXPORT_DATA);
+                projectionMap.put(KeyRings.PRIVKEY_EXPORT_DATA, "COALESCE("
+                        + Tables.KEY_RINGS_SECRET + "." + KeyRingData.EXPORT_DATA + ", "
+                        + Tables.KEY_RINGS_SECRET + "." + KeyRingData.KEY_RING_DATA
+                        + ") AS " + KeyRings.PRIVKEY_EXPORT_DATA);
                 projectionMap.put(KeyRings.HAS_SECRET, Tables.KEYS + "." + KeyRings.HAS_SECRET);
-                projectionMap.put(KeyRings.HAS_ANY_SECRET,
-                    "(EXISTS (SELECT * FROM " + Tables.KEY_RINGS_SECRET
-                        + " WHERE " + Tables.KEY_RINGS_SECRET + "." + KeyRingData.MASTER_KEY_ID
-                            + " = " + Tables.KEYS + "." + Keys.MASTER_KEY_ID
-                        + ")) AS " + KeyRings.HAS_ANY_SECRET);
-                projectionMap.put(KeyRings.HAS_ENCRYPT,
-                        "kE." + Keys.KEY_ID + " AS " + KeyRings.HAS_ENCRYPT);
-                projectionMap.put(KeyRings.HAS_SIGN,
-                        "kS." + Keys.KEY_ID + " AS " + KeyRings.HAS_SIGN);
-                projectionMap.put(KeyRings.HAS_CERTIFY,
-                        "kC." + Keys.KEY_ID + " AS " + KeyRings.HAS_CERTIFY);
+                projectionMap.put(KeyRings.HAS_ANY_SECRET, Tables.KEY_RINGS_SUMMARY + "."
+                        + KeyRingsSummaryColumns.HAS_ANY_SECRET + " AS " + KeyRings.HAS_ANY_SECRET);
+                // the summary holds the longest valid key for each capability, so if
+                // that one has expired by now, there is no valid key left at all
+                long now = new Date().getTime() / 1000;
+                projectionMap.put(KeyRings.HAS_ENCRYPT, buildSummaryKeyColumn(
+                        KeyRingsSummaryColumns.ENCRYPT_KEY_ID, KeyRingsSummaryColumns.ENCRYPT_EXPIRY,
+                        now) + " AS " + KeyRings.HAS_ENCRYPT);
+                projectionMap.put(KeyRings.HAS_SIGN, buildSummaryKeyColumn(
+                        KeyRingsSummaryColumns.SIGN_KEY_ID, KeyRingsSummaryColumns.SIGN_EXPIRY,
+                        now) + " AS " + KeyRings.HAS_SIGN);
+                projectionMap.put(KeyRings.HAS_CERTIFY, buildSummaryKeyColumn(
+                        KeyRingsSummaryColumns.CERTIFY_KEY_ID, KeyRingsSummaryColumns.CERTIFY_EXPIRY,
+                        now) + " AS " + KeyRings.HAS_CERTIFY);
+                projectionMap.put(KeyRings.HAS_AUTHENTICATE, buildSummaryKeyColumn(
+                        KeyRingsSummaryColumns.AUTHENTICATE_KEY_ID, KeyRingsSummaryColumns.AUTHENTICATE_EXPIRY,
+                        now) + " AS " + KeyRings.HAS_AUTHENTICATE);
                 projectionMap.put(KeyRings.IS_EXPIRED,
                         "(" + Tables.KEYS + "." + Keys.EXPIRY + " IS NOT NULL AND " + Tables.KEYS + "." + Keys.EXPIRY
-                                + " < " + new Date().getTime() / 1000 + ") AS " + KeyRings.IS_EXPIRED);
+                                + " < " + now + ") AS " + KeyRings.IS_EXPIRED);
+                if (match == KEY_RINGS_FIND_USER_IDS_BY_EMAIL) {
+                    projectionMap.put(KeyRings.FOUND_USER_ID,
+                            "found." + UserPackets.USER_ID + " AS " + KeyRings.FOUND_USER_ID);
+                }
                 qb.setProjectionMap(projectionMap);
 
                 if (projection == null) {
@@ -306,76 +434,32 @@ public class KeychainProvider extends ContentProvider {
                 List<String> plist = Arrays.asList(projection);
 
                 qb.setTables(
-                    Tables.KEYS
-                        + " INNER JOIN " + Tables.USER_PACKETS + " ON ("
+                    // there are few matching user ids, so start with those instead of all keys
+                    (match == KEY_RINGS_FIND_USER_IDS_BY_EMAIL ?
+                            Tables.USER_PACKETS + " AS found CROSS JOIN " : "")
+                    + Tables.KEYS
+                        + " LEFT JOIN " + Tables.KEY_RINGS_SUMMARY + " ON ("
                                     + Tables.KEYS + "." + Keys.MASTER_KEY_ID
                                 + " = "
-                                    + Tables.USER_PACKETS + "." + UserPackets.MASTER_KEY_ID
-                            // we KNOW that the rank zero user packet is a user id!
-                            + " AND " + Tables.USER_PACKETS + "." + UserPackets.RANK + " = 0"
-                        + ") LEFT JOIN " + Tables.CERTS + " ON ("
-                            + Tables.KEYS + "." + Keys.MASTER_KEY_ID
-                                + " = "
-                            + Tables.CERTS + "." + KeyRings.MASTER_KEY_ID
-                            + " AND " + Tables.CERTS + "." + Certs.VERIFIED
-                                + " = " + Certs.VERIFIED_SECRET
+                                    + Tables.KEY_RINGS_SUMMARY + "." + KeyRingsSummaryColumns.MASTER_KEY_ID
                         + ")"
                         // fairly expensive joins following, only do when requested
-                        + (plist.contains(KeyRings.PUBKEY_DATA) ?
+                        + (plist.contains(KeyRings.PUBKEY_DATA)
+                                || plist.contains(KeyRings.PUBKEY_EXPORT_DATA) ?
                             " INNER JOIN " + Tables.KEY_RINGS_PUBLIC + " ON ("
                                     + Tables.KEYS + "." + Keys.MASTER_KEY_ID
                                 + " = "
                                     + Tables.KEY_RINGS_PUBLIC + "." + KeyRingData.MASTER_KEY_ID
                                 + ")" : "")
-                        + (plist.contains(KeyRings.PRIVKEY_DATA) ?
+                        + (plist.contains(KeyRings.PRIVKEY_DATA)
+                                || plist.contains(KeyRings.PRIVKEY_EXPORT_DATA) ?
                             " LEFT JOIN " + Tables.KEY_RINGS_SECRET + " ON ("
                                     + Tables.KEYS + "." + Keys.MASTER_KEY_ID
                                 + " = "
                                     + Tables.KEY_RINGS_SECRET + "." + KeyRingData.MASTER_KEY_ID
                                 + ")" : "")
-                        + (plist.contains(KeyRings.HAS_ENCRYPT) ?
-                            " LEFT JOIN " + Tables.KEYS + " AS kE ON ("
-                                +"kE." + Keys.MASTER_KEY_ID
-                                    + " = " + Tables.KEYS + "." + Keys.MASTER_KEY_ID
-                                + " AND kE." + Keys.IS_REVOKED + " = 0"
-                                + " AND kE." + Keys.CAN_ENCRYPT + " = 1"
-                                + " AND ( kE." + Keys.EXPIRY + " IS NULL OR kE." + Keys.EXPIRY
-                                    + " >= " + new Date().getTime() / 1000 + " )"
-                            + ")" : "")
-                        + (plist.contains(KeyRings.HAS_SIGN) ?
-                            " LEFT JOIN " + Tables.KEYS + " AS kS ON ("
-                                +"kS." + Keys.MASTER_KEY_ID
-                                    + " = " + Tables.KEYS + "." + Keys.MASTER_KEY_ID
-                                + " AND kS." + Keys.IS_REVOKED + " = 0"
-                                + " AND kS." + Keys.CAN_SIGN + " = 1"
-                                + " AND kS." + Keys.HAS_SECRET + " > 1"
-                                + " AND ( kS." + Keys.EXPIRY + " IS NULL OR kS." + Keys.EXPIRY
-                                    + " >= " + new Date().getTime() / 1000 + " )"
-                            + ")" : "")
-                        + (plist.contains(KeyRings.HAS_AUTHENTICATE) ?
-                            " LEFT JOIN " + Tables.KEYS + " AS kA ON ("
-                                    +"kA." + Keys.MASTER_KEY_ID
-                                    + " = " + Tables.KEYS + "." + Keys.MASTER_KEY_ID
-                                    + " AND kA." + Keys.IS_REVOKED + " = 0"
-                                    + " AND kA." + Keys.CAN_AUTHENTICATE + " = 1"
-                                    + " AND kA." + Keys.HAS_SECRET + " > 1"
-                                    + " AND ( kA." + Keys.EXPIRY + " IS NULL OR kA." + Keys.EXPIRY
-                                    + " >= " + new Date().getTime() / 1000 + " )"
-                                    + ")" : "")
-                        + (plist.contains(KeyRings.HAS_CERTIFY) ?
-                            " LEFT JOIN " + Tables.KEYS + " AS kC ON ("
-                                +"kC." + Keys.MASTER_KEY_ID
-                                + " = " + Tables.KEYS + "." + Keys.MASTER_KEY_ID
-                                + " AND kC." + Keys.IS_REVOKED + " = 0"
-                                + " AND kC." + Keys.CAN_CERTIFY + " = 1"
-                                + " AND kC." + Keys.HAS_SECRET + " > 1"
-                                + " AND ( kC." + Keys.EXPIRY + " IS NULL OR kC." + Keys.EXPIRY
-                                + " >= " + new Date().getTime() / 1000 + " )"
-                                + ")" : "")
                     );
                 qb.appendWhere(Tables.KEYS + "." + Keys.RANK + " = 0");
-                // in case there are multiple verifying certificates
-                groupBy = Tables.KEYS + "." + Keys.MASTER_KEY_ID;
 
                 switch(match) {
                     case KEY_RING_UNIFIED: {
@@ -386,11 +470,11 @@ public class KeychainProvider extends ContentProvider {
                     case KEY_RINGS_FIND_BY_SUBKEY: {
                         try {
                             String subkey = Long.valueOf(uri.getLastPathSegment()).toString();
-                            qb.appendWhere(" AND EXISTS ("
-                                    + " SELECT 1 FROM " + Tables.KEYS + " AS tmp"
-                                    + " WHERE tmp." + UserPackets.MASTER_KEY_ID
-                                    + " = " + Tables.KEYS + "." + Keys.MASTER_KEY_ID
-                                    + " AND tmp." + Keys.KEY_ID + " = " + subkey + ""
+                            // not correlated, so the subkey is looked up once by index
+                            qb.appendWhere(" AND " + Tables.KEYS + "." + Keys.MASTER_KEY_ID + " IN ("
+                                    + " SELECT tmp." + Keys.MASTER_KEY_ID
+                                    + " FROM " + Tables.KEYS + " AS tmp"
+                                    + " WHERE tmp." + Keys.KEY_ID + " = " + subkey
                                     + ")");
                         } catch(NumberFormatException e) {
                             Log.e(Constants.TAG, "Malformed find by subkey query!", e);
@@ -399,28 +483,12 @@ public class KeychainProvider extends ContentProvider {
                         break;
                     }
                     case KEY_RINGS_FIND_BY_EMAIL: {
-                        String chunks[] = uri.getLastPathSegment().split(" *, *");
-                        boolean gotCondition = false;
-                        String emailWhere = "";
-                        // JAVA ♥
-                        for (int i = 0; i < chunks.length; ++i) {
-                            if (chunks[i].length() == 0) {
-                                continue;
-                            }
-                            if (i != 0) {
-                                emailWhere += " OR ";
-                            }
-                            emailWhere += "tmp." + UserPackets.USER_ID + " LIKE ";
-                            // match '*<email>', so it has to be at the *end* of the user id
-                            emailWhere += DatabaseUtils.sqlEscapeString("%<" + chunks[i] + ">");
-                            gotCondition = true;
-                        }
-                        if(gotCondition) {
-                            qb.appendWhere(" AND EXISTS ("
-                                + " SELECT 1 FROM " + Tables.USER_PACKETS + " AS tmp"
-                                    + " WHERE tmp." + UserPackets.MASTER_KEY_ID
-                                            + " = " + Tables.KEYS + "." + Keys.MASTER_KEY_ID
-                                        + " AND (" + emailWhere + ")"
+                        String emailWhere = buildEmailWhere("tmp", uri.getLastPathSegment());
+                        if (emailWhere != null) {
+                            qb.appendWhere(" AND " + Tables.KEYS + "." + Keys.MASTER_KEY_ID + " IN ("
+                                + " SELECT tmp." + UserPackets.MASTER_KEY_ID
+                                    + " FROM " + Tables.USER_PACKETS + " AS tmp"
+                                    + " WHERE " + emailWhere
                                 + ")");
                         } else {
                             // TODO better way to do this?
@@ -429,10 +497,34 @@ public class KeychainProvider extends ContentProvider {
                         }
                         break;
                     }
+                    case KEY_RINGS_FIND_USER_IDS_BY_EMAIL: {
+                        String emailWhere = buildEmailWhere("found", uri.getLastPathSegment());
+                        if (emailWhere != null) {
+                            qb.appendWhere(" AND found." + UserPackets.MASTER_KEY_ID
+                                    + " = " + Tables.KEYS + "." + Keys.MASTER_KEY_ID
+                                    + " AND " + emailWhere);
+                        } else {
+                            Log.e(Constants.TAG, "Malformed find user ids by email query!");
+                            qb.appendWhere(" AND 0");
+                        }
+                        break;
+                    }
+                    case KEY_RINGS_SEARCH: {
+                        String ftsQuery = buildFtsQuery(uri.getLastPathSegment(), true);
+                        // no searchable words means no restriction
+                        if (ftsQuery != null) {
+                            qb.appendWhere(" AND " + Tables.KEYS + "." + Keys.MASTER_KEY_ID + " IN ("
+                                + " SELECT tmp." + UserPackets.MASTER_KEY_ID
+                                    + " FROM " + Tables.USER_PACKETS + " AS tmp"
+                                    + " WHERE tmp.oid IN (" + buildFtsSelect(ftsQuery) + ")"
+                                + ")");
+                        }
+                        break;
+                    }
                 }
 
                 if (TextUtils.isEmpty(sortOrder)) {
-                    sortOrder = Tables.USER_PACKETS + "." + UserPackets.USER_ID + " ASC";
+                    sortOrder = Tables.KEY_RINGS_SUMMARY + "." + KeyRingsSummaryColumns.USER_ID + " ASC";
                 }
 
                 // uri to watch is all /key_rings/
@@ -441,6 +533,7 @@ public class KeychainProvider extends ContentProvider {
                 break;
             }
 
+            case KEY_RINGS_KEYS:
             case KEY_RING_KEYS: {
                 HashMap<String, String> projectionMap = new HashMap<>();
                 projectionMap.put(Keys._ID, Tables.KEYS + ".oid AS _id");
@@ -462,8 +555,10 @@ public class KeychainProvider extends ContentProvider {
                 qb.setProjectionMap(projectionMap);
 
                 qb.setTables(Tables.KEYS);
-                qb.appendWhere(Keys.MASTER_KEY_ID + " = ");
-                qb.appendWhereEscapeString(uri.getPathSegments().get(1));
+                if (match == KEY_RING_KEYS) {
+                    qb.appendWhere(Keys.MASTER_KEY_ID + " = ");
+                    qb.appendWhereEscapeString(uri.getPathSegments().get(1));
+                }
 
                 break;
             }
@@ -587,6 +682,8 @@ public class KeychainProvider extends ContentProvider {
                 groupBy = Tables.CERTS + "." + Certs.RANK + ", "
                         + Tables.CERTS + "." + Certs.KEY_ID_CERTIFIER;
 
+                // unverified certs only record who certified, they have no data to show
+                qb.appendWhere(Tables.CERTS + "." + Certs.VERIFIED + " > 0 AND ");
                 qb.appendWhere(Tables.CERTS + "." + Certs.MASTER_KEY_ID + " = ");
                 qb.appendWhereEscapeString(uri.getPathSegments().get(1));
                 if(match == KEY_RING_CERTS_SPECIFIC) {
@@ -599,6 +696,18 @@ public class KeychainProvider extends ContentProvider {
                 break;
             }
 
+            case KEY_RINGS_DIRTY: {
+                HashMap<String, String> projectionMap = new HashMap<>();
+                projectionMap.put(DirtyKeyRings._ID, Tables.KEY_RINGS_DIRTY + ".oid AS _id");
+                projectionMap.put(DirtyKeyRings.MASTER_KEY_ID, DirtyKeyRings.MASTER_KEY_ID);
+                projectionMap.put(DirtyKeyRings.KEY_ID_CERTIFIER, DirtyKeyRings.KEY_ID_CERTIFIER);
+                qb.setProjectionMap(projectionMap);
+
+                qb.setTables(Tables.KEY_RINGS_DIRTY);
+
+                break;
+            }
+
             case API_APPS:
                 qb.setTables(Tables.API_APPS);
 
@@ -643,22 +752,7 @@ public class KeychainProvider extends ContentProvider {
             orderBy = sortOrder;
         }
 
-        SQLiteDatabase db = getDb().getReadableDatabase();
-        Cursor cursor = qb.query(db, projection, selection, selectionArgs, groupBy, having, orderBy);
-        if (cursor != null) {
-            // Tell the cursor what uri to watch, so it knows when its source data changes
-            cursor.setNotificationUri(getContext().getContentResolver(), uri);
-        }
-
-        if (Constants.DEBUG) {
-            Log.d(Constants.TAG,
-                    "Query: "
-                            + qb.buildQuery(projection, selection, selectionArgs, null, null,
-                            orderBy, null));
-            Log.d(Constants.TAG, "Cursor: " + DatabaseUtils.dumpCursorToString(cursor));
-        }
-
-        return cursor;
+        return new PreparedQuery(qb, groupBy, having, orderBy, uri);
     }
 
     /**
@@ -684,6 +778,8 @@ public class KeychainProvider extends ContentProvider {
                 case KEY_RING_SECRET:
                     db.insertOrThrow(Tables.KEY_RINGS_SECRET, null, values);
                     keyId = values.getAsLong(KeyRings.MASTER_KEY_ID);
+                    // this key is now trusted, or its data changed
+                    TrustedCertifierCache.getInstance().invalidate(keyId);
                     break;
 
                 case KEY_RING_KEYS:
@@ -706,6 +802,12 @@ public class KeychainProvider extends ContentProvider {
                     keyId = values.getAsLong(UserPackets.MASTER_KEY_ID);
                     break;
 
+                case KEY_RING_SUMMARY:
+                    // values are ignored, the summary is computed from the keyring's data
+                    keyId = Long.parseLong(uri.getPathSegments().get(1));
+                    KeychainDatabase.updateKeyRingSummary(db, keyId);
+                    break;
+
                 case KEY_RING_CERTS:
                     // we replace here, keeping only the latest signature
                     // TODO this would be better handled in savePublicKeyRing directly!
@@ -713,6 +815,21 @@ public class KeychainProvider extends ContentProvider {
                     keyId = values.getAsLong(Certs.MASTER_KEY_ID);
                     break;
 
+                case KEY_RINGS_DIRTY:
+                    if (!values.containsKey(DirtyKeyRings.MASTER_KEY_ID)) {
+                        // mark all keyrings certified by this key at once, using certs_certifier_index
+                        Long certifier = values.getAsLong(DirtyKeyRings.KEY_ID_CERTIFIER);
+                        db.execSQL("INSERT OR IGNORE INTO " + Tables.KEY_RINGS_DIRTY
+                                + " (" + DirtyKeyRings.MASTER_KEY_ID + ", " + DirtyKeyRings.KEY_ID_CERTIFIER + ")"
+                                + " SELECT DISTINCT " + Certs.MASTER_KEY_ID + ", " + Certs.KEY_ID_CERTIFIER
+                                + " FROM " + Tables.CERTS + " WHERE " + Certs.KEY_ID_CERTIFIER + " = ?",
+                                new Object[]{ certifier });
+                    } else {
+                        db.insertWithOnConflict(Tables.KEY_RINGS_DIRTY, null, values,
+                                SQLiteDatabase.CONFLICT_IGNORE);
+                    }
+                    break;
+
                 case API_APPS:
                     db.insertOrThrow(Tables.API_APPS, null, values);
                     break;
@@ -770,6 +887,7 @@ public class KeychainProvider extends ContentProvider {
             // dangerous
             case KEY_RINGS_UNIFIED: {
                 count = db.delete(Tables.KEY_RINGS_PUBLIC, null, null);
+                TrustedCertifierCache.getInstance().invalidateAll();
                 break;
             }
             case KEY_RING_PUBLIC: {
@@ -780,6 +898,9 @@ public class KeychainProvider extends ContentProvider {
                 }
                 // corresponding keys and userIds are deleted by ON DELETE CASCADE
                 count = db.delete(Tables.KEY_RINGS_PUBLIC, selection, selectionArgs);
+                // this also cascades to the secret keyring, if any
+                TrustedCertifierCache.getInstance().invalidateIfTrusted(
+                        Long.parseLong(uri.getPathSegments().get(1)));
                 uri = KeyRings.buildGenericKeyRingUri(uri.getPathSegments().get(1));
                 break;
             }
@@ -790,9 +911,26 @@ public class KeychainProvider extends ContentProvider {
                     selection += " AND (" + additionalSelection + ")";
                 }
                 count = db.delete(Tables.KEY_RINGS_SECRET, selection, selectionArgs);
+                long masterKeyId = Long.parseLong(uri.getPathSegments().get(1));
+                TrustedCertifierCache.getInstance().invalidate(masterKeyId);
+                KeychainDatabase.updateKeyRingSummary(db, masterKeyId);
                 uri = KeyRings.buildGenericKeyRingUri(uri.getPathSegments().get(1));
                 break;
             }
+            case KEY_RING_CERTS: {
+                @SuppressWarnings("ConstantConditions") // ensured by uriMatcher above
+                String selection = Certs.MASTER_KEY_ID + " = " + uri.getPathSegments().get(1);
+                if (!TextUtils.isEmpty(additionalSelection)) {
+                    selection += " AND (" + additionalSelection + ")";
+                }
+                // the summary is left alone here, it must be updated after new certs are in
+                count = db.delete(Tables.CERTS, selection, selectionArgs);
+                break;
+            }
+
+            case KEY_RINGS_DIRTY:
+                count = db.delete(Tables.KEY_RINGS_DIRTY, additionalSelection, selectionArgs);
+                break;
 
             case API_APPS_BY_PACKAGE_NAME:
                 count = db.delete(Tables.API_APPS, buildDefaultApiAppsSelection(uri, additionalSelection),
@@ -865,6 +1003,104 @@ public class KeychainProvider extends ContentProvider {
         return count;
     }
 
+    // all ASCII characters which are not alphanumeric, like for the simple fts tokenizer
+    private static final Pattern FTS_SEPARATORS =
+            Pattern.compile("[\\x00-\\x2F\\x3A-\\x40\\x5B-\\x60\\x7B-\\x7F]+");
+
+    /** Builds a full text query which matches each word of the given text as a phrase.
+     *
+     * If prefix is true, the last token of each word may also be the prefix of a longer one.
+     *
+     * @return the query, or null if the text contains no tokens at all.
+     */
+    private static String buildFtsQuery(String text, boolean prefix) {
+        StringBuilder query = new StringBuilder();
+        for (String word : text.trim().split("\\s+")) {
+            String phrase = buildFtsPhrase(word, prefix);
+            if (phrase == null) {
+                continue;
+            }
+            if (query.length() > 0) {
+                query.append(" ");
+            }
+            query.append(phrase);
+        }
+        return query.length() > 0 ? query.toString() : null;
+    }
+
+    /** Builds a full text phrase which matches all tokens of the given text, in order.
+     *
+     * Text is split into tokens the same way the simple tokenizer does, at every ASCII
+     * character which is not alphanumeric, so "a@example.com" becomes "a example com".
+     * Since no special characters are left, the result is always a valid phrase.
+     *
+     * @return the phrase, or null if the text contains no tokens at all.
+     */
+    private static String buildFtsPhrase(String text, boolean prefix) {
+        String tokens = TextUtils.join(" ", FTS_SEPARATORS.split(text)).trim();
+        if (tokens.isEmpty()) {
+            return null;
+        }
+        return "\"" + tokens + (prefix ? "*" : "") + "\"";
+    }
+
+    /** Builds a condition on the user packets table with the given alias, which matches
+     * user ids ending in any of the given comma separated emails.
+     *
+     * Candidates are narrowed down by the full text index in a single query, and checked
+     * for exact matches by LIKE afterwards.
+     *
+     * @return the condition, or null if there are no emails.
+     */
+    private static String buildEmailWhere(String alias, String emails) {
+        StringBuilder ftsQuery = new StringBuilder();
+        StringBuilder likeWhere = new StringBuilder();
+        boolean allIndexed = true;
+        for (String email : emails.split(" *, *")) {
+            if (email.length() == 0) {
+                continue;
+            }
+            if (likeWhere.length() > 0) {
+                likeWhere.append(" OR ");
+            }
+            likeWhere.append(alias).append(".").append(UserPackets.USER_ID).append(" LIKE ")
+                    // match '*<email>', so it has to be at the *end* of the user id
+                    .append(DatabaseUtils.sqlEscapeString("%<" + email + ">"));
+
+            String phrase = buildFtsPhrase(email, false);
+            if (phrase == null) {
+                allIndexed = false;
+                continue;
+            }
+            if (ftsQuery.length() > 0) {
+                ftsQuery.append(" OR ");
+            }
+            ftsQuery.append(phrase);
+        }
+
+        if (likeWhere.length() == 0) {
+            return null;
+        }
+        if (!allIndexed) {
+            // can't narrow down by index if any email has no tokens
+            return "(" + likeWhere + ")";
+        }
+        return alias + ".oid IN (" + buildFtsSelect(ftsQuery.toString()) + ") AND (" + likeWhere + ")";
+    }
+
+    /** Selects the rowids of all user packets which match a full text query. */
+    private static String buildFtsSelect(String ftsQuery) {
+        return "SELECT docid FROM " + Tables.USER_PACKETS_FTS
+                + " WHERE " + Tables.USER_PACKETS_FTS + " MATCH " + DatabaseUtils.sqlEscapeString(ftsQuery);
+    }
+
+    /** Selects a key id from the summary table, if its key has not expired at the given time. */
+    private static String buildSummaryKeyColumn(String keyIdColumn, String expiryColumn, long now) {
+        return "(CASE WHEN " + Tables.KEY_RINGS_SUMMARY + "." + expiryColumn + " IS NULL"
+                + " OR " + Tables.KEY_RINGS_SUMMARY + "." + expiryColumn + " >= " + now
+                + " THEN " + Tables.KEY_RINGS_SUMMARY + "." + keyIdColumn + " END)";
+    }
+
     /**
      * Build default selection statement for API apps. If no extra selection is specified only build
      * where clause with rowId
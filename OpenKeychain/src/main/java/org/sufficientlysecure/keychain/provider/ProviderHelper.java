@@ -18,12 +18,16 @@
 
 package org.sufficientlysecure.keychain.provider;
 
+import android.content.ContentProvider;
+import android.content.ContentProviderClient;
 import android.content.ContentProviderOperation;
 import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.OperationApplicationException;
 import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
 import android.net.Uri;
 import android.os.RemoteException;
 import android.support.v4.util.LongSparseArray;
@@ -37,6 +41,7 @@ import org.sufficientlysecure.keychain.operations.results.ImportKeyResult;
 import org.sufficientlysecure.keychain.operations.results.OperationResult.LogType;
 import org.sufficientlysecure.keychain.operations.results.OperationResult.OperationLog;
 import org.sufficientlysecure.keychain.operations.results.SaveKeyringResult;
+import org.sufficientlysecure.keychain.pgp.CanonicalizedKeyRing;
 import org.sufficientlysecure.keychain.pgp.CanonicalizedPublicKey;
 import org.sufficientlysecure.keychain.pgp.CanonicalizedPublicKeyRing;
 import org.sufficientlysecure.keychain.pgp.CanonicalizedSecretKey;
@@ -53,6 +58,7 @@ import org.sufficientlysecure.keychain.pgp.exception.PgpGeneralException;
 import org.sufficientlysecure.keychain.provider.KeychainContract.ApiAllowedKeys;
 import org.sufficientlysecure.keychain.provider.KeychainContract.ApiApps;
 import org.sufficientlysecure.keychain.provider.KeychainContract.Certs;
+import org.sufficientlysecure.keychain.provider.KeychainContract.DirtyKeyRings;
 import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRingData;
 import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRings;
 import org.sufficientlysecure.keychain.provider.KeychainContract.Keys;
@@ -63,7 +69,7 @@ import org.sufficientlysecure.keychain.ui.util.KeyFormattingUtils;
 import org.sufficientlysecure.keychain.util.IterableIterator;
 import org.sufficientlysecure.keychain.util.Log;
 import org.sufficientlysecure.keychain.util.ParcelableFileCache;
-import org.sufficientlysecure.keychain.util.ParcelableFileCache.IteratorWithSize;
+import org.sufficientlysecure.keychain.util.ParcelableFileCache.ResumableIterator;
 import org.sufficientlysecure.keychain.util.Preferences;
 import org.sufficientlysecure.keychain.util.ProgressFixedScaler;
 import org.sufficientlysecure.keychain.util.ProgressScaler;
@@ -73,6 +79,7 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
@@ -96,6 +103,9 @@ public class ProviderHelper {
     private final ContentResolver mContentResolver;
     private OperationLog mLog;
     private int mIndent;
+    private SQLiteDatabase mTransactionDb;
+    // set if a write failed halfway during the current transaction
+    private boolean mTransactionFailed;
 
     public ProviderHelper(Context context) {
         this(context, new OperationLog(), 0);
@@ -140,6 +150,78 @@ public class ProviderHelper {
         mLog = new OperationLog();
     }
 
+    /** Appends all entries of another log at the current indentation. */
+    private void appendLog(OperationLog log) {
+        if (mLog != null && log != null) {
+            mLog.addAll(log, mIndent);
+        }
+    }
+
+    /** Starts a transaction on the keychain database, which covers all following
+     * database operations done from the calling thread through this or any other
+     * ProviderHelper, until endTransaction is called.
+     *
+     * This only works if the KeychainProvider runs in the same process, in
+     * which case all of its operations are executed synchronously on the
+     * calling thread. Otherwise, no transaction is started and false is returned.
+     */
+    public boolean beginTransaction() {
+        if (mTransactionDb != null) {
+            throw new IllegalStateException("Transaction already in progress!");
+        }
+
+        ContentProviderClient client =
+                mContentResolver.acquireContentProviderClient(KeychainContract.CONTENT_AUTHORITY);
+        if (client == null) {
+            return false;
+        }
+        try {
+            ContentProvider provider = client.getLocalContentProvider();
+            if (!(provider instanceof KeychainProvider)) {
+                return false;
+            }
+            mTransactionDb = ((KeychainProvider) provider).getDb().getWritableDatabase();
+        } finally {
+            client.release();
+        }
+
+        mTransactionDb.beginTransaction();
+        mTransactionFailed = false;
+        return true;
+    }
+
+    /** Returns true if a save through this ProviderHelper failed after it had already
+     * written to the database, during the current transaction. Since saves don't use
+     * a transaction of their own while one is running, the database may be left in an
+     * inconsistent state, and the transaction must be rolled back.
+     */
+    public boolean isTransactionFailed() {
+        return mTransactionDb != null && mTransactionFailed;
+    }
+
+    /** Ends a transaction started with beginTransaction, committing it if successful
+     * is true and rolling it back otherwise. A transaction in which a save failed is
+     * always rolled back. Does nothing if no transaction is running.
+     */
+    public void endTransaction(boolean successful) {
+        if (mTransactionDb == null) {
+            return;
+        }
+        successful = successful && !mTransactionFailed;
+        try {
+            if (successful) {
+                mTransactionDb.setTransactionSuccessful();
+            }
+            mTransactionDb.endTransaction();
+        } finally {
+            mTransactionDb = null;
+            if (!successful) {
+                // the cache might contain keys which were never committed
+                TrustedCertifierCache.getInstance().invalidateAll();
+            }
+        }
+    }
+
     // If we ever switch to api level 11, we can ditch this whole mess!
     public static final int FIELD_TYPE_NULL = 1;
     // this is called integer to stay coherent with the constants in Cursor (api level 11)
@@ -212,41 +294,85 @@ public class ProviderHelper {
         return getGenericData(KeyRings.buildUnifiedKeyRingUri(masterKeyId), proj, types);
     }
 
+    /** Returns the master keys of all keyrings we hold a secret key for, by master key id.
+     *
+     * This is backed by the process-wide TrustedCertifierCache, so consecutive
+     * calls (e.g. during a bulk import) don't re-parse any keyrings unless a
+     * secret keyring was added or removed in between.
+     */
     private LongSparseArray<CanonicalizedPublicKey> getTrustedMasterKeys() {
-        Cursor cursor = mContentResolver.query(KeyRings.buildUnifiedKeyRingsUri(), new String[] {
-                KeyRings.MASTER_KEY_ID,
-                // we pick from cache only information that is not easily available from keyrings
-                KeyRings.HAS_ANY_SECRET, KeyRings.VERIFIED,
-                // and of course, ring data
-                KeyRings.PUBKEY_DATA
-        }, KeyRings.HAS_ANY_SECRET + " = 1", null, null);
+        return TrustedCertifierCache.getInstance().get(mContentResolver);
+    }
 
-        try {
-            LongSparseArray<CanonicalizedPublicKey> result = new LongSparseArray<>();
-
-            if (cursor != null && cursor.moveToFirst()) do {
-                long masterKeyId = cursor.getLong(0);
-                int verified = cursor.getInt(2);
-                byte[] blob = cursor.getBlob(3);
-                if (blob != null) {
-                    result.put(masterKeyId,
-                            new CanonicalizedPublicKeyRing(blob, verified).getPublicKey());
-                }
-            } while (cursor.moveToNext());
+    public long getMasterKeyId(long subKeyId) throws NotFoundException {
+        return (Long) getGenericData(KeyRings.buildUnifiedKeyRingsFindBySubkeyUri(subKeyId),
+                KeyRings.MASTER_KEY_ID, FIELD_TYPE_INTEGER);
+    }
 
+    /**
+     * Returns the master key ids of those among the given subkeys which have a usable
+     * secret part, by subkey id.
+     *
+     * This is a single query on the key id index, which doesn't parse any keyrings.
+     */
+    public LongSparseArray<Long> getSecretSubkeyMasterKeyIds(Collection<Long> subKeyIds) {
+        LongSparseArray<Long> result = new LongSparseArray<>();
+        if (subKeyIds.isEmpty()) {
             return result;
+        }
 
+        StringBuilder keyIdList = new StringBuilder();
+        for (Long subKeyId : subKeyIds) {
+            if (keyIdList.length() > 0) {
+                keyIdList.append(", ");
+            }
+            keyIdList.append(subKeyId);
+        }
+
+        Cursor cursor = mContentResolver.query(Keys.buildKeysUri(), new String[]{
+                Keys.KEY_ID, Keys.MASTER_KEY_ID
+        }, Keys.KEY_ID + " IN (" + keyIdList + ") AND "
+                + Keys.HAS_SECRET + " NOT IN (" + SecretKeyType.UNAVAILABLE.getNum()
+                + ", " + SecretKeyType.GNU_DUMMY.getNum() + ")", null, null);
+        try {
+            if (cursor != null) {
+                while (cursor.moveToNext()) {
+                    result.put(cursor.getLong(0), cursor.getLong(1));
+                }
+            }
         } finally {
             if (cursor != null) {
                 cursor.close();
             }
         }
 
+        return result;
     }
 
-    public long getMasterKeyId(long subKeyId) throws NotFoundException {
-        return (Long) getGenericData(KeyRings.buildUnifiedKeyRingsFindBySubkeyUri(subKeyId),
-                KeyRings.MASTER_KEY_ID, FIELD_TYPE_INTEGER);
+    /**
+     * Returns the master key ids of all public or secret keyrings in the database.
+     *
+     * Only the master key id column is read, no keyrings are parsed.
+     */
+    public HashSet<Long> getMasterKeyIds(boolean secret) {
+        HashSet<Long> result = new HashSet<>();
+        Uri uri = secret ? KeyRingData.buildSecretKeyRingUri() : KeyRingData.buildPublicKeyRingUri();
+        Cursor cursor = mContentResolver.query(uri, new String[]{
+                KeyRingData.MASTER_KEY_ID
+        }, null, null, null);
+        try {
+            if (cursor != null) {
+                while (cursor.moveToNext()) {
+                    result.add(cursor.getLong(0));
+                }
+            }
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+
+        return result;
     }
 
     public CachedPublicKeyRing getCachedPublicKeyRing(Uri queryUri) {
@@ -342,7 +468,6 @@ public class ProviderHelper {
         int result = SaveKeyringResult.SAVED_PUBLIC;
 
         long masterKeyId = keyRing.getMasterKeyId();
-        UncachedPublicKey masterKey = keyRing.getPublicKey();
 
         ArrayList<ContentProviderOperation> operations;
         try {
@@ -359,6 +484,8 @@ public class ProviderHelper {
                 values.put(KeyRingData.MASTER_KEY_ID, masterKeyId);
                 try {
                     values.put(KeyRingData.KEY_RING_DATA, keyRing.getEncoded());
+                    // prepared once here, so exports don't need to canonicalize again
+                    values.put(KeyRingData.EXPORT_DATA, keyRing.getEncodedForExport());
                 } catch (IOException e) {
                     log(LogType.MSG_IP_ENCODE_FAIL);
                     return SaveKeyringResult.RESULT_ERROR;
@@ -439,207 +566,7 @@ public class ProviderHelper {
             // get a list of owned secret keys, for verification filtering
             LongSparseArray<CanonicalizedPublicKey> trustedKeys = getTrustedMasterKeys();
 
-            // classify and order user ids. primary are moved to the front, revoked to the back,
-            // otherwise the order in the keyfile is preserved.
-            List<UserPacketItem> uids = new ArrayList<>();
-
-            if (trustedKeys.size() == 0) {
-                log(LogType.MSG_IP_UID_CLASSIFYING_ZERO);
-            } else {
-                log(LogType.MSG_IP_UID_CLASSIFYING, trustedKeys.size());
-            }
-            mIndent += 1;
-            for (byte[] rawUserId : masterKey.getUnorderedRawUserIds()) {
-                String userId = Utf8Util.fromUTF8ByteArrayReplaceBadEncoding(rawUserId);
-
-                UserPacketItem item = new UserPacketItem();
-                uids.add(item);
-                item.userId = userId;
-
-                int unknownCerts = 0;
-
-                log(LogType.MSG_IP_UID_PROCESSING, userId);
-                mIndent += 1;
-                // look through signatures for this specific key
-                for (WrappedSignature cert : new IterableIterator<>(
-                        masterKey.getSignaturesForRawId(rawUserId))) {
-                    long certId = cert.getKeyId();
-                    // self signature
-                    if (certId == masterKeyId) {
-
-                        // NOTE self-certificates are already verified during canonicalization,
-                        // AND we know there is at most one cert plus at most one revocation
-                        if (!cert.isRevocation()) {
-                            item.selfCert = cert;
-                            item.isPrimary = cert.isPrimaryUserId();
-                        } else {
-                            item.selfRevocation = cert;
-                            log(LogType.MSG_IP_UID_REVOKED);
-                        }
-                        continue;
-
-                    }
-
-                    // do we have a trusted key for this?
-                    if (trustedKeys.indexOfKey(certId) < 0) {
-                        unknownCerts += 1;
-                        continue;
-                    }
-
-                    // verify signatures from known private keys
-                    CanonicalizedPublicKey trustedKey = trustedKeys.get(certId);
-
-                    try {
-                        cert.init(trustedKey);
-                        // if it doesn't certify, leave a note and skip
-                        if ( ! cert.verifySignature(masterKey, rawUserId)) {
-                            log(LogType.MSG_IP_UID_CERT_BAD);
-                            continue;
-                        }
-
-                        log(cert.isRevocation()
-                                        ? LogType.MSG_IP_UID_CERT_GOOD_REVOKE
-                                        : LogType.MSG_IP_UID_CERT_GOOD,
-                                KeyFormattingUtils.convertKeyIdToHexShort(trustedKey.getKeyId())
-                        );
-
-                        // check if there is a previous certificate
-                        WrappedSignature prev = item.trustedCerts.get(cert.getKeyId());
-                        if (prev != null) {
-                            // if it's newer, skip this one
-                            if (prev.getCreationTime().after(cert.getCreationTime())) {
-                                log(LogType.MSG_IP_UID_CERT_OLD);
-                                continue;
-                            }
-                            // if the previous one was a non-revokable certification, no need to look further
-                            if (!prev.isRevocation() && !prev.isRevokable()) {
-                                log(LogType.MSG_IP_UID_CERT_NONREVOKE);
-                                continue;
-                            }
-                            log(LogType.MSG_IP_UID_CERT_NEW);
-                        }
-                        item.trustedCerts.put(cert.getKeyId(), cert);
-
-                    } catch (PgpGeneralException e) {
-                        log(LogType.MSG_IP_UID_CERT_ERROR,
-                                KeyFormattingUtils.convertKeyIdToHex(cert.getKeyId()));
-                    }
-
-                }
-
-                if (unknownCerts > 0) {
-                    log(LogType.MSG_IP_UID_CERTS_UNKNOWN, unknownCerts);
-                }
-                mIndent -= 1;
-
-            }
-            mIndent -= 1;
-
-            ArrayList<WrappedUserAttribute> userAttributes = masterKey.getUnorderedUserAttributes();
-            // Don't spam the log if there aren't even any attributes
-            if ( ! userAttributes.isEmpty()) {
-                log(LogType.MSG_IP_UAT_CLASSIFYING);
-            }
-
-            mIndent += 1;
-            for (WrappedUserAttribute userAttribute : userAttributes) {
-
-                UserPacketItem item = new UserPacketItem();
-                uids.add(item);
-                item.type = userAttribute.getType();
-                item.attributeData = userAttribute.getEncoded();
-
-                int unknownCerts = 0;
-
-                switch (item.type) {
-                    case WrappedUserAttribute.UAT_IMAGE:
-                        log(LogType.MSG_IP_UAT_PROCESSING_IMAGE);
-                        break;
-                    default:
-                        log(LogType.MSG_IP_UAT_PROCESSING_UNKNOWN);
-                        break;
-                }
-                mIndent += 1;
-                // look through signatures for this specific key
-                for (WrappedSignature cert : new IterableIterator<>(
-                        masterKey.getSignaturesForUserAttribute(userAttribute))) {
-                    long certId = cert.getKeyId();
-                    // self signature
-                    if (certId == masterKeyId) {
-
-                        // NOTE self-certificates are already verified during canonicalization,
-                        // AND we know there is at most one cert plus at most one revocation
-                        // AND the revocation only exists if there is no newer certification
-                        if (!cert.isRevocation()) {
-                            item.selfCert = cert;
-                        } else {
-                            item.selfRevocation = cert;
-                            log(LogType.MSG_IP_UAT_REVOKED);
-                        }
-                        continue;
-
-                    }
-
-                    // do we have a trusted key for this?
-                    if (trustedKeys.indexOfKey(certId) < 0) {
-                        unknownCerts += 1;
-                        continue;
-                    }
-
-                    // verify signatures from known private keys
-                    CanonicalizedPublicKey trustedKey = trustedKeys.get(certId);
-
-                    try {
-                        cert.init(trustedKey);
-                        // if it doesn't certify, leave a note and skip
-                        if ( ! cert.verifySignature(masterKey, userAttribute)) {
-                            log(LogType.MSG_IP_UAT_CERT_BAD);
-                            continue;
-                        }
-
-                        log(cert.isRevocation()
-                                        ? LogType.MSG_IP_UAT_CERT_GOOD_REVOKE
-                                        : LogType.MSG_IP_UAT_CERT_GOOD,
-                                KeyFormattingUtils.convertKeyIdToHexShort(trustedKey.getKeyId())
-                        );
-
-                        // check if there is a previous certificate
-                        WrappedSignature prev = item.trustedCerts.get(cert.getKeyId());
-                        if (prev != null) {
-                            // if it's newer, skip this one
-                            if (prev.getCreationTime().after(cert.getCreationTime())) {
-                                log(LogType.MSG_IP_UAT_CERT_OLD);
-                                continue;
-                            }
-                            // if the previous one was a non-revokable certification, no need to look further
-                            if (!prev.isRevocation() && !prev.isRevokable()) {
-                                log(LogType.MSG_IP_UAT_CERT_NONREVOKE);
-                                continue;
-                            }
-                            log(LogType.MSG_IP_UAT_CERT_NEW);
-                        }
-                        item.trustedCerts.put(cert.getKeyId(), cert);
-
-                    } catch (PgpGeneralException e) {
-                        log(LogType.MSG_IP_UAT_CERT_ERROR,
-                                KeyFormattingUtils.convertKeyIdToHex(cert.getKeyId()));
-                    }
-
-                }
-
-                if (unknownCerts > 0) {
-                    log(LogType.MSG_IP_UAT_CERTS_UNKNOWN, unknownCerts);
-                }
-                mIndent -= 1;
-
-            }
-            mIndent -= 1;
-
-            progress.setProgress(LogType.MSG_IP_UID_REORDER.getMsgId(), 65, 100);
-            log(LogType.MSG_IP_UID_REORDER);
-            // primary before regular before revoked (see UserIdItem.compareTo)
-            // this is a stable sort, so the order of keys is otherwise preserved.
-            Collections.sort(uids);
+            List<UserPacketItem> uids = classifyUserPackets(keyRing, trustedKeys, progress);
             // iterate and put into db
             for (int userIdRank = 0; userIdRank < uids.size(); userIdRank++) {
                 UserPacketItem item = uids.get(userIdRank);
@@ -671,8 +598,18 @@ public class ProviderHelper {
                     operations.add(buildCertOperations(
                             masterKeyId, userIdRank, sig, Certs.VERIFIED_SECRET));
                 }
+
+                // certs by unknown keys, so we know which keyrings to look at once we get them
+                for (int i = 0; i < item.unknownCerts.size() ; i++) {
+                    operations.add(buildCertOperations(
+                            masterKeyId, userIdRank, item.unknownCerts.valueAt(i), Certs.UNVERIFIED));
+                }
             }
 
+            // finally, recompute the summary from the data inserted above
+            operations.add(ContentProviderOperation.newInsert(KeyRings.buildSummaryUri(masterKeyId))
+                    .withValues(new ContentValues()).build());
+
         } catch (IOException e) {
             log(LogType.MSG_IP_ERROR_IO_EXC);
             Log.e(Constants.TAG, "IOException during import", e);
@@ -703,15 +640,237 @@ public class ProviderHelper {
         } catch (RemoteException e) {
             log(LogType.MSG_IP_ERROR_REMOTE_EX);
             Log.e(Constants.TAG, "RemoteException during import", e);
+            mTransactionFailed = true;
             return SaveKeyringResult.RESULT_ERROR;
         } catch (OperationApplicationException e) {
             log(LogType.MSG_IP_ERROR_OP_EXC);
             Log.e(Constants.TAG, "OperationApplicationException during import", e);
+            mTransactionFailed = true;
             return SaveKeyringResult.RESULT_ERROR;
         }
 
     }
 
+    /** Classifies the user ids and attributes of a keyring, and orders them by rank.
+     *
+     * Certifications are verified only for the given trusted keys, all others are
+     * collected as unknown. The order does not depend on these, so the ranks are
+     * the same for any set of trusted keys.
+     */
+    private List<UserPacketItem> classifyUserPackets(CanonicalizedPublicKeyRing keyRing,
+            LongSparseArray<CanonicalizedPublicKey> trustedKeys, Progressable progress)
+            throws IOException {
+
+        long masterKeyId = keyRing.getMasterKeyId();
+        UncachedPublicKey masterKey = keyRing.getPublicKey();
+
+        // classify and order user ids. primary are moved to the front, revoked to the back,
+        // otherwise the order in the keyfile is preserved.
+        List<UserPacketItem> uids = new ArrayList<>();
+
+        if (trustedKeys.size() == 0) {
+            log(LogType.MSG_IP_UID_CLASSIFYING_ZERO);
+        } else {
+            log(LogType.MSG_IP_UID_CLASSIFYING, trustedKeys.size());
+        }
+        mIndent += 1;
+        for (byte[] rawUserId : masterKey.getUnorderedRawUserIds()) {
+            String userId = Utf8Util.fromUTF8ByteArrayReplaceBadEncoding(rawUserId);
+
+            UserPacketItem item = new UserPacketItem();
+            uids.add(item);
+            item.userId = userId;
+
+            int unknownCerts = 0;
+
+            log(LogType.MSG_IP_UID_PROCESSING, userId);
+            mIndent += 1;
+            // look through signatures for this specific key
+            for (WrappedSignature cert : new IterableIterator<>(
+                    masterKey.getSignaturesForRawId(rawUserId))) {
+                long certId = cert.getKeyId();
+                // self signature
+                if (certId == masterKeyId) {
+
+                    // NOTE self-certificates are already verified during canonicalization,
+                    // AND we know there is at most one cert plus at most one revocation
+                    if (!cert.isRevocation()) {
+                        item.selfCert = cert;
+                        item.isPrimary = cert.isPrimaryUserId();
+                    } else {
+                        item.selfRevocation = cert;
+                        log(LogType.MSG_IP_UID_REVOKED);
+                    }
+                    continue;
+
+                }
+
+                // do we have a trusted key for this?
+                if (trustedKeys.indexOfKey(certId) < 0) {
+                    unknownCerts += 1;
+                    item.addUnknownCert(cert);
+                    continue;
+                }
+
+                // verify signatures from known private keys
+                CanonicalizedPublicKey trustedKey = trustedKeys.get(certId);
+
+                try {
+                    cert.init(trustedKey);
+                    // if it doesn't certify, leave a note and skip
+                    if ( ! cert.verifySignature(masterKey, rawUserId)) {
+                        log(LogType.MSG_IP_UID_CERT_BAD);
+                        continue;
+                    }
+
+                    log(cert.isRevocation()
+                                    ? LogType.MSG_IP_UID_CERT_GOOD_REVOKE
+                                    : LogType.MSG_IP_UID_CERT_GOOD,
+                            KeyFormattingUtils.convertKeyIdToHexShort(trustedKey.getKeyId())
+                    );
+
+                    // check if there is a previous certificate
+                    WrappedSignature prev = item.trustedCerts.get(cert.getKeyId());
+                    if (prev != null) {
+                        // if it's newer, skip this one
+                        if (prev.getCreationTime().after(cert.getCreationTime())) {
+                            log(LogType.MSG_IP_UID_CERT_OLD);
+                            continue;
+                        }
+                        // if the previous one was a non-revokable certification, no need to look further
+                        if (!prev.isRevocation() && !prev.isRevokable()) {
+                            log(LogType.MSG_IP_UID_CERT_NONREVOKE);
+                            continue;
+                        }
+                        log(LogType.MSG_IP_UID_CERT_NEW);
+                    }
+                    item.trustedCerts.put(cert.getKeyId(), cert);
+
+                } catch (PgpGeneralException e) {
+                    log(LogType.MSG_IP_UID_CERT_ERROR,
+                            KeyFormattingUtils.convertKeyIdToHex(cert.getKeyId()));
+                }
+
+            }
+
+            if (unknownCerts > 0) {
+                log(LogType.MSG_IP_UID_CERTS_UNKNOWN, unknownCerts);
+            }
+            mIndent -= 1;
+
+        }
+        mIndent -= 1;
+
+        ArrayList<WrappedUserAttribute> userAttributes = masterKey.getUnorderedUserAttributes();
+        // Don't spam the log if there aren't even any attributes
+        if ( ! userAttributes.isEmpty()) {
+            log(LogType.MSG_IP_UAT_CLASSIFYING);
+        }
+
+        mIndent += 1;
+        for (WrappedUserAttribute userAttribute : userAttributes) {
+
+            UserPacketItem item = new UserPacketItem();
+            uids.add(item);
+            item.type = userAttribute.getType();
+            item.attributeData = userAttribute.getEncoded();
+
+            int unknownCerts = 0;
+
+            switch (item.type) {
+                case WrappedUserAttribute.UAT_IMAGE:
+                    log(LogType.MSG_IP_UAT_PROCESSING_IMAGE);
+                    break;
+                default:
+                    log(LogType.MSG_IP_UAT_PROCESSING_UNKNOWN);
+                    break;
+            }
+            mIndent += 1;
+            // look through signatures for this specific key
+            for (WrappedSignature cert : new IterableIterator<>(
+                    masterKey.getSignaturesForUserAttribute(userAttribute))) {
+                long certId = cert.getKeyId();
+                // self signature
+                if (certId == masterKeyId) {
+
+                    // NOTE self-certificates are already verified during canonicalization,
+                    // AND we know there is at most one cert plus at most one revocation
+                    // AND the revocation only exists if there is no newer certification
+                    if (!cert.isRevocation()) {
+                        item.selfCert = cert;
+                    } else {
+                        item.selfRevocation = cert;
+                        log(LogType.MSG_IP_UAT_REVOKED);
+                    }
+                    continue;
+
+                }
+
+                // do we have a trusted key for this?
+                if (trustedKeys.indexOfKey(certId) < 0) {
+                    unknownCerts += 1;
+                    item.addUnknownCert(cert);
+                    continue;
+                }
+
+                // verify signatures from known private keys
+                CanonicalizedPublicKey trustedKey = trustedKeys.get(certId);
+
+                try {
+                    cert.init(trustedKey);
+                    // if it doesn't certify, leave a note and skip
+                    if ( ! cert.verifySignature(masterKey, userAttribute)) {
+                        log(LogType.MSG_IP_UAT_CERT_BAD);
+                        continue;
+                    }
+
+                    log(cert.isRevocation()
+                                    ? LogType.MSG_IP_UAT_CERT_GOOD_REVOKE
+                                    : LogType.MSG_IP_UAT_CERT_GOOD,
+                            KeyFormattingUtils.convertKeyIdToHexShort(trustedKey.getKeyId())
+                    );
+
+                    // check if there is a previous certificate
+                    WrappedSignature prev = item.trustedCerts.get(cert.getKeyId());
+                    if (prev != null) {
+                        // if it's newer, skip this one
+                        if (prev.getCreationTime().after(cert.getCreationTime())) {
+                            log(LogType.MSG_IP_UAT_CERT_OLD);
+                            continue;
+                        }
+                        // if the previous one was a non-revokable certification, no need to look further
+                        if (!prev.isRevocation() && !prev.isRevokable()) {
+                            log(LogType.MSG_IP_UAT_CERT_NONREVOKE);
+                            continue;
+                        }
+                        log(LogType.MSG_IP_UAT_CERT_NEW);
+                    }
+                    item.trustedCerts.put(cert.getKeyId(), cert);
+
+                } catch (PgpGeneralException e) {
+                    log(LogType.MSG_IP_UAT_CERT_ERROR,
+                            KeyFormattingUtils.convertKeyIdToHex(cert.getKeyId()));
+                }
+
+            }
+
+            if (unknownCerts > 0) {
+                log(LogType.MSG_IP_UAT_CERTS_UNKNOWN, unknownCerts);
+            }
+            mIndent -= 1;
+
+        }
+        mIndent -= 1;
+
+        progress.setProgress(LogType.MSG_IP_UID_REORDER.getMsgId(), 65, 100);
+        log(LogType.MSG_IP_UID_REORDER);
+        // primary before regular before revoked (see UserIdItem.compareTo)
+        // this is a stable sort, so the order of keys is otherwise preserved.
+        Collections.sort(uids);
+
+        return uids;
+    }
+
     private static class UserPacketItem implements Comparable<UserPacketItem> {
         Integer type;
         String userId;
@@ -720,6 +879,15 @@ public class ProviderHelper {
         WrappedSignature selfCert;
         WrappedSignature selfRevocation;
         LongSparseArray<WrappedSignature> trustedCerts = new LongSparseArray<>();
+        LongSparseArray<WrappedSignature> unknownCerts = new LongSparseArray<>();
+
+        /** Keeps the newest signature by each key we don't hold a secret key for. */
+        void addUnknownCert(WrappedSignature cert) {
+            WrappedSignature prev = unknownCerts.get(cert.getKeyId());
+            if (prev == null || cert.getCreationTime().after(prev.getCreationTime())) {
+                unknownCerts.put(cert.getKeyId(), cert);
+            }
+        }
 
         @Override
         public int compareTo(UserPacketItem o) {
@@ -761,10 +929,13 @@ public class ProviderHelper {
                 ContentValues values = new ContentValues();
                 values.put(KeyRingData.MASTER_KEY_ID, masterKeyId);
                 values.put(KeyRingData.KEY_RING_DATA, keyRing.getEncoded());
+                values.put(KeyRingData.EXPORT_DATA, keyRing.getEncodedForExport());
                 // insert new version of this keyRing
                 Uri uri = KeyRingData.buildSecretKeyRingUri(masterKeyId);
                 if (mContentResolver.insert(uri, values) == null) {
                     log(LogType.MSG_IS_DB_EXCEPTION);
+                    // the public keyring was saved without it already
+                    mTransactionFailed = true;
                     return SaveKeyringResult.RESULT_ERROR;
                 }
             } catch (IOException e) {
@@ -830,6 +1001,9 @@ public class ProviderHelper {
                 // with has_secret = 0
             }
 
+            // available secret subkeys change the keyring's capabilities
+            mContentResolver.insert(KeyRings.buildSummaryUri(masterKeyId), new ContentValues());
+
             log(LogType.MSG_IS_SUCCESS);
             return result;
 
@@ -849,6 +1023,18 @@ public class ProviderHelper {
      * keep public and secret keyrings in sync.
      */
     public SaveKeyringResult savePublicKeyRing(UncachedKeyRing publicRing, Progressable progress) {
+        return savePublicKeyRing(publicRing, progress, null, null);
+    }
+
+    /** Save a public keyring into the database, which may already have been canonicalized.
+     *
+     * If canonicalized is not null, it must be the result of canonicalizing publicRing, with
+     * canonicalizeLog being the log of that canonicalization at indentation zero. In this case,
+     * canonicalization is skipped if there is no previous version of this keyring in the
+     * database. This allows canonicalization to be done ahead of time on another thread.
+     */
+    public SaveKeyringResult savePublicKeyRing(UncachedKeyRing publicRing, Progressable progress,
+            CanonicalizedKeyRing canonicalized, OperationLog canonicalizeLog) {
 
         try {
             long masterKeyId = publicRing.getMasterKeyId();
@@ -890,8 +1076,14 @@ public class ProviderHelper {
             } catch (NotFoundException e) {
                 // Not an issue, just means we are dealing with a new keyring.
 
-                // Canonicalize this keyring, to assert a number of assumptions made about it.
-                canPublicRing = (CanonicalizedPublicKeyRing) publicRing.canonicalize(mLog, mIndent);
+                if (canonicalized != null) {
+                    // This keyring was already canonicalized, just take over its log
+                    appendLog(canonicalizeLog);
+                    canPublicRing = (CanonicalizedPublicKeyRing) canonicalized;
+                } else {
+                    // Canonicalize this keyring, to assert a number of assumptions made about it.
+                    canPublicRing = (CanonicalizedPublicKeyRing) publicRing.canonicalize(mLog, mIndent);
+                }
                 if (canPublicRing == null) {
                     return new SaveKeyringResult(SaveKeyringResult.RESULT_ERROR, mLog, null);
                 }
@@ -943,6 +1135,15 @@ public class ProviderHelper {
     }
 
     public SaveKeyringResult saveSecretKeyRing(UncachedKeyRing secretRing, Progressable progress) {
+        return saveSecretKeyRing(secretRing, progress, null, null);
+    }
+
+    /** Save a secret keyring into the database, which may already have been canonicalized.
+     *
+     * The canonicalized and canonicalizeLog parameters work as in savePublicKeyRing.
+     */
+    public SaveKeyringResult saveSecretKeyRing(UncachedKeyRing secretRing, Progressable progress,
+            CanonicalizedKeyRing canonicalized, OperationLog canonicalizeLog) {
 
         try {
             long masterKeyId = secretRing.getMasterKeyId();
@@ -955,6 +1156,7 @@ public class ProviderHelper {
             }
 
             CanonicalizedSecretKeyRing canSecretRing;
+            boolean newSecret = false;
 
             // If there is an old secret key, merge it.
             try {
@@ -985,10 +1187,17 @@ public class ProviderHelper {
                 }
             } catch (NotFoundException e) {
                 // Not an issue, just means we are dealing with a new keyring
+                newSecret = true;
 
-                // Canonicalize this keyring, to assert a number of assumptions made about it.
-                // This is a safe cast, because we made sure this is a secret ring above
-                canSecretRing = (CanonicalizedSecretKeyRing) secretRing.canonicalize(mLog, mIndent);
+                if (canonicalized != null) {
+                    // This keyring was already canonicalized, just take over its log
+                    appendLog(canonicalizeLog);
+                    canSecretRing = (CanonicalizedSecretKeyRing) canonicalized;
+                } else {
+                    // Canonicalize this keyring, to assert a number of assumptions made about it.
+                    // This is a safe cast, because we made sure this is a secret ring above
+                    canSecretRing = (CanonicalizedSecretKeyRing) secretRing.canonicalize(mLog, mIndent);
+                }
                 if (canSecretRing == null) {
 
                     // Special case: If keyring canonicalization failed, try again after adding
@@ -1041,6 +1250,11 @@ public class ProviderHelper {
             progress.setProgress(LogType.MSG_IP_REINSERT_SECRET.getMsgId(), 90, 100);
             result = saveCanonicalizedSecretKeyRing(canSecretRing);
 
+            // certs by this key can be verified now, see consolidateDirtyKeyRings
+            if (newSecret && (result & SaveKeyringResult.RESULT_ERROR) != SaveKeyringResult.RESULT_ERROR) {
+                markCertifiedKeyRingsDirty(masterKeyId);
+            }
+
             return new SaveKeyringResult(result, mLog, canSecretRing);
 
         } catch (IOException e) {
@@ -1052,6 +1266,215 @@ public class ProviderHelper {
 
     }
 
+    /** Marks all keyrings which hold certifications by the given key, so these are
+     * verified again by consolidateDirtyKeyRings. This is a lookup in the certifier
+     * index of the certs table, and proportional to the number of certifications.
+     */
+    public void markCertifiedKeyRingsDirty(long certifierMasterKeyId) {
+        ContentValues values = new ContentValues();
+        values.put(DirtyKeyRings.KEY_ID_CERTIFIER, certifierMasterKeyId);
+        mContentResolver.insert(DirtyKeyRings.CONTENT_URI, values);
+    }
+
+    // number of keyrings saved per transaction in consolidateDirtyKeyRings
+    private static final int CONSOLIDATE_CHUNK_SIZE = 20;
+
+    /** Updates the certifications on all keyrings marked dirty, for keys whose secret
+     * key was added or deleted in the meantime.
+     *
+     * Unlike a full consolidation, this only touches the affected keyrings. For keys
+     * which are trusted now, only their own certifications are verified, see
+     * updateCertifications. They are processed in chunks of CONSOLIDATE_CHUNK_SIZE
+     * keyrings, each in a transaction which also removes their marks, so the database
+     * stays usable in between and an interrupted run simply continues with the
+     * remaining marks next time.
+     */
+    public ConsolidateResult consolidateDirtyKeyRings(Progressable progress) {
+
+        OperationLog log = new OperationLog();
+        int indent = 0;
+
+        if (mConsolidateCritical) {
+            log.add(LogType.MSG_CON_RECURSIVE, indent);
+            return new ConsolidateResult(ConsolidateResult.RESULT_OK, log);
+        }
+
+        // the certifiers which changed, by marked keyring
+        LongSparseArray<ArrayList<Long>> certifiers = new LongSparseArray<>();
+        Cursor cursor = mContentResolver.query(DirtyKeyRings.CONTENT_URI, new String[]{
+                DirtyKeyRings.MASTER_KEY_ID, DirtyKeyRings.KEY_ID_CERTIFIER
+        }, null, null, null);
+        if (cursor == null) {
+            log.add(LogType.MSG_CON_ERROR_DB, indent);
+            return new ConsolidateResult(ConsolidateResult.RESULT_ERROR, log);
+        }
+        try {
+            while (cursor.moveToNext()) {
+                ArrayList<Long> ids = certifiers.get(cursor.getLong(0));
+                if (ids == null) {
+                    ids = new ArrayList<>();
+                    certifiers.put(cursor.getLong(0), ids);
+                }
+                ids.add(cursor.getLong(1));
+            }
+        } finally {
+            cursor.close();
+        }
+
+        long[] masterKeyIds = new long[certifiers.size()];
+        for (int i = 0; i < masterKeyIds.length; i++) {
+            masterKeyIds[i] = certifiers.keyAt(i);
+        }
+
+        if (masterKeyIds.length == 0) {
+            log.add(LogType.MSG_CON_DIRTY_NONE, indent);
+            return new ConsolidateResult(ConsolidateResult.RESULT_OK, log);
+        }
+
+        log.add(LogType.MSG_CON_DIRTY, indent, masterKeyIds.length);
+        indent += 1;
+
+        // the per-keyring logs are of no interest here
+        ProviderHelper helper = new ProviderHelper(mContext, null);
+
+        for (int chunk = 0; chunk < masterKeyIds.length; chunk += CONSOLIDATE_CHUNK_SIZE) {
+            progress.setProgress(R.string.progress_con_reimport, chunk, masterKeyIds.length);
+
+            boolean inTransaction = helper.beginTransaction();
+            boolean success = false;
+            try {
+                int end = Math.min(chunk + CONSOLIDATE_CHUNK_SIZE, masterKeyIds.length);
+                for (int i = chunk; i < end; i++) {
+                    if (!helper.updateCertifications(masterKeyIds[i], certifiers.valueAt(i))) {
+                        log.add(LogType.MSG_CON_DIRTY_ERROR, indent,
+                                KeyFormattingUtils.convertKeyIdToHex(masterKeyIds[i]));
+                        return new ConsolidateResult(ConsolidateResult.RESULT_ERROR, log);
+                    }
+                    mContentResolver.delete(DirtyKeyRings.CONTENT_URI,
+                            DirtyKeyRings.MASTER_KEY_ID + " = ?",
+                            new String[]{ Long.toString(masterKeyIds[i]) });
+                }
+                success = true;
+            } catch (SQLiteException e) {
+                Log.e(Constants.TAG, "database error during consolidation", e);
+                log.add(LogType.MSG_CON_ERROR_DB, indent);
+                return new ConsolidateResult(ConsolidateResult.RESULT_ERROR, log);
+            } finally {
+                if (inTransaction) {
+                    helper.endTransaction(success);
+                }
+            }
+        }
+
+        progress.setProgress(masterKeyIds.length, masterKeyIds.length);
+        log.add(LogType.MSG_CON_SUCCESS, indent);
+
+        return new ConsolidateResult(ConsolidateResult.RESULT_OK, log);
+    }
+
+    /** Updates the certifications by the given keys on a keyring in the database.
+     *
+     * If all of these keys are trusted, only their certifications are verified, and
+     * replace the existing rows of these certifiers. Otherwise, trust in a key was
+     * lost, and the keyring is saved again as a whole. Returns true if the keyring was
+     * updated, or if there is no such keyring.
+     */
+    private boolean updateCertifications(long masterKeyId, List<Long> certifierIds) {
+        LongSparseArray<CanonicalizedPublicKey> trustedKeys = getTrustedMasterKeys();
+        LongSparseArray<CanonicalizedPublicKey> certifiers = new LongSparseArray<>();
+        for (long certifierId : certifierIds) {
+            CanonicalizedPublicKey certifier = trustedKeys.get(certifierId);
+            if (certifier == null) {
+                return resaveKeyRing(masterKeyId);
+            }
+            certifiers.put(certifierId, certifier);
+        }
+
+        CanonicalizedPublicKeyRing keyRing;
+        try {
+            keyRing = getCanonicalizedPublicKeyRing(masterKeyId);
+        } catch (NotFoundException e) {
+            // deleted in the meantime, nothing to do
+            return true;
+        }
+
+        try {
+            // the ranks are the same as when this keyring was saved
+            List<UserPacketItem> uids = classifyUserPackets(keyRing, certifiers, new ProgressScaler());
+
+            ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+            // drop the unverified rows first. there are no rows for certs which turn out to
+            // be revocations or don't verify, same as in saveCanonicalizedPublicKeyRing
+            for (long certifierId : certifierIds) {
+                // self certifications are classified separately, and stay as they are
+                if (certifierId == masterKeyId) {
+                    continue;
+                }
+                operations.add(ContentProviderOperation.newDelete(Certs.buildCertsUri(masterKeyId))
+                        .withSelection(Certs.KEY_ID_CERTIFIER + " = ?",
+                                new String[]{ Long.toString(certifierId) })
+                        .build());
+            }
+            for (int userIdRank = 0; userIdRank < uids.size(); userIdRank++) {
+                UserPacketItem item = uids.get(userIdRank);
+                // same as in saveCanonicalizedPublicKeyRing
+                if (item.selfRevocation != null) {
+                    continue;
+                }
+                for (int i = 0; i < item.trustedCerts.size() ; i++) {
+                    WrappedSignature sig = item.trustedCerts.valueAt(i);
+                    if (sig.isRevocation()) {
+                        continue;
+                    }
+                    operations.add(buildCertOperations(
+                            masterKeyId, userIdRank, sig, Certs.VERIFIED_SECRET));
+                }
+            }
+            operations.add(ContentProviderOperation.newInsert(KeyRings.buildSummaryUri(masterKeyId))
+                    .withValues(new ContentValues()).build());
+
+            mContentResolver.applyBatch(KeychainContract.CONTENT_AUTHORITY, operations);
+            return true;
+
+        } catch (IOException e) {
+            Log.e(Constants.TAG, "error updating certifications", e);
+            return false;
+        } catch (RemoteException | OperationApplicationException e) {
+            Log.e(Constants.TAG, "error updating certifications", e);
+            mTransactionFailed = true;
+            return false;
+        }
+    }
+
+    /** Saves a keyring from the database again, deriving all of its rows anew.
+     * Returns true if the keyring was saved, or if there is no such keyring.
+     */
+    private boolean resaveKeyRing(long masterKeyId) {
+        CanonicalizedPublicKeyRing publicRing;
+        CanonicalizedSecretKeyRing secretRing = null;
+        try {
+            publicRing = getCanonicalizedPublicKeyRing(masterKeyId);
+        } catch (NotFoundException e) {
+            // deleted in the meantime, nothing to do
+            return true;
+        }
+        try {
+            secretRing = getCanonicalizedSecretKeyRing(masterKeyId);
+        } catch (NotFoundException e) {
+            // no secret key, that's fine
+        }
+
+        // this deletes the secret keyring as well, so it is saved again below
+        int result = saveCanonicalizedPublicKeyRing(publicRing, new ProgressScaler(), secretRing != null);
+        if ((result & SaveKeyringResult.RESULT_ERROR) == SaveKeyringResult.RESULT_ERROR) {
+            return false;
+        }
+        if (secretRing != null) {
+            result = saveCanonicalizedSecretKeyRing(secretRing);
+        }
+        return (result & SaveKeyringResult.RESULT_ERROR) != SaveKeyringResult.RESULT_ERROR;
+    }
+
     public ConsolidateResult consolidateDatabaseStep1(Progressable progress) {
 
         OperationLog log = new OperationLog();
@@ -1228,16 +1651,33 @@ public class ProviderHelper {
                 return new ConsolidateResult(ConsolidateResult.RESULT_ERROR, log);
             }
 
-            // 2. wipe database (IT'S DANGEROUS)
-            log.add(LogType.MSG_CON_DB_CLEAR, indent);
-            mContentResolver.delete(KeyRings.buildUnifiedKeyRingsUri(), null, null);
-
             ParcelableFileCache<ParcelableKeyRing> cacheSecret, cachePublic;
+            cacheSecret = new ParcelableFileCache<>(mContext, "consolidate_secret.pcl");
+            cachePublic = new ParcelableFileCache<>(mContext, "consolidate_public.pcl");
+
+            // if reimport was interrupted, everything up to there is still in the database
+            boolean resume = false;
+            if (recovery) {
+                try {
+                    resume = cacheSecret.getResumePosition() > 0
+                            || cachePublic.getResumePosition() > 0;
+                } catch (IOException e) {
+                    // reported below, when the cache files are read
+                }
+            }
+
+            if (resume) {
+                log.add(LogType.MSG_CON_REIMPORT_RESUME, indent);
+            } else {
+                // 2. wipe database (IT'S DANGEROUS)
+                log.add(LogType.MSG_CON_DB_CLEAR, indent);
+                mContentResolver.delete(KeyRings.buildUnifiedKeyRingsUri(), null, null);
+            }
 
             // Set flag that we have a cached consolidation here
+            ResumableIterator<ParcelableKeyRing> itSecrets = null;
             try {
-                cacheSecret = new ParcelableFileCache<>(mContext, "consolidate_secret.pcl");
-                IteratorWithSize<ParcelableKeyRing> itSecrets = cacheSecret.readCache(false);
+                itSecrets = cacheSecret.readCache(false, resume);
                 int numSecrets = itSecrets.getSize();
 
                 log.add(LogType.MSG_CON_REIMPORT_SECRET, indent, numSecrets);
@@ -1260,12 +1700,16 @@ public class ProviderHelper {
                 return new ConsolidateResult(ConsolidateResult.RESULT_ERROR, log);
             } finally {
                 indent -= 1;
+                if (itSecrets != null) {
+                    itSecrets.close();
+                }
             }
 
+            ResumableIterator<ParcelableKeyRing> itPublics = null;
             try {
 
-                cachePublic = new ParcelableFileCache<>(mContext, "consolidate_public.pcl");
-                IteratorWithSize<ParcelableKeyRing> itPublics = cachePublic.readCache();
+                // the file is deleted below, once we are out of the critical phase
+                itPublics = cachePublic.readCache(false, resume);
                 int numPublics = itPublics.getSize();
 
                 log.add(LogType.MSG_CON_REIMPORT_PUBLIC, indent, numPublics);
@@ -1288,8 +1732,14 @@ public class ProviderHelper {
                 return new ConsolidateResult(ConsolidateResult.RESULT_ERROR, log);
             } finally {
                 indent -= 1;
+                if (itPublics != null) {
+                    itPublics.close();
+                }
             }
 
+            // everything was verified anew, so nothing is dirty anymore
+            mContentResolver.delete(DirtyKeyRings.CONTENT_URI, null, null);
+
             log.add(LogType.MSG_CON_CRITICAL_OUT, indent);
             Preferences.getPreferences(mContext).setCachedConsolidate(false);
 
@@ -1342,7 +1792,10 @@ public class ProviderHelper {
         values.put(Certs.TYPE, cert.getSignatureType());
         values.put(Certs.CREATION, cert.getCreationTime().getTime() / 1000);
         values.put(Certs.VERIFIED, verified);
-        values.put(Certs.DATA, cert.getEncoded());
+        // for unverified certs, only the certifier is of interest
+        if (verified != Certs.UNVERIFIED) {
+            values.put(Certs.DATA, cert.getEncoded());
+        }
 
         Uri uri = Certs.buildCertsUri(masterKeyId);
 
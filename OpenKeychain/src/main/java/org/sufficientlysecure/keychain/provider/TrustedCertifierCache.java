@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2014 Vincent Breitmoser <v.breitmoser@mugenguild.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.provider;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.support.v4.util.LongSparseArray;
+
+import org.sufficientlysecure.keychain.pgp.CanonicalizedPublicKey;
+import org.sufficientlysecure.keychain.pgp.CanonicalizedPublicKeyRing;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRings;
+import org.sufficientlysecure.keychain.provider.KeychainContract.Keys;
+import org.sufficientlysecure.keychain.provider.KeychainDatabase.Tables;
+
+import java.util.HashSet;
+
+/** A process-wide cache of the master keys of all keyrings we hold a secret
+ * key for, keyed by master key id.
+ *
+ * These are the keys whose certifications are considered trusted when a
+ * public keyring is saved. Obtaining them requires parsing the full public
+ * keyring blob of every secret key, which is way too expensive to do once for
+ * every keyring of a bulk import.
+ *
+ * The cache is invalidated per master key id by the KeychainProvider, whenever
+ * a secret keyring is inserted or deleted, or the public keyring of a trusted
+ * key is deleted. Dirty entries are re-fetched lazily, using a single query
+ * for all of them. Since all writes to the database go through the
+ * KeychainProvider, which lives in the main process alongside the
+ * KeychainIntentService, this is sufficient to keep the cache coherent.
+ *
+ * Returned arrays are immutable snapshots, which are never modified after
+ * being handed out, so they may be shared between threads.
+ *
+ */
+public class TrustedCertifierCache {
+
+    private static final TrustedCertifierCache sInstance = new TrustedCertifierCache();
+
+    public static TrustedCertifierCache getInstance() {
+        return sInstance;
+    }
+
+    /** Current snapshot, or null if the cache needs to be loaded from scratch. */
+    private LongSparseArray<CanonicalizedPublicKey> mKeys;
+    /** Master key ids which must be re-fetched before the snapshot can be used. */
+    private HashSet<Long> mDirty = new HashSet<>();
+    /** Incremented on every invalidation, to detect races with a concurrent load. */
+    private long mGeneration = 0;
+
+    private TrustedCertifierCache() {
+    }
+
+    /** Marks a single master key id as dirty. */
+    public synchronized void invalidate(long masterKeyId) {
+        mGeneration += 1;
+        if (mKeys != null) {
+            mDirty.add(masterKeyId);
+        }
+    }
+
+    /** Marks a master key id as dirty, but only if it is currently a trusted key.
+     *
+     * This is the case to use for deletion of public keyrings, which happens
+     * for every saved keyring and should not cost anything for keyrings we
+     * hold no secret key for.
+     */
+    public synchronized void invalidateIfTrusted(long masterKeyId) {
+        if (mKeys == null || mKeys.indexOfKey(masterKeyId) >= 0) {
+            invalidate(masterKeyId);
+        }
+    }
+
+    /** Drops the whole cache, it will be rebuilt from scratch on next access. */
+    public synchronized void invalidateAll() {
+        mGeneration += 1;
+        mKeys = null;
+        mDirty.clear();
+    }
+
+    /** Returns the master keys of all keyrings with a secret key, by master key id.
+     *
+     * The database query is performed without holding the lock, so this
+     * never blocks a database writer which invalidates the cache from
+     * within a transaction.
+     */
+    public LongSparseArray<CanonicalizedPublicKey> get(ContentResolver resolver) {
+
+        LongSparseArray<CanonicalizedPublicKey> base;
+        HashSet<Long> dirty;
+        long generation;
+        synchronized (this) {
+            if (mKeys != null && mDirty.isEmpty()) {
+                return mKeys;
+            }
+            base = mKeys;
+            // take a copy, the set is mutated by invalidations while we load. it is
+            // only cleared below once the result is stored, so that a load which is
+            // discarded due to a concurrent invalidation doesn't lose any dirty ids
+            dirty = new HashSet<>(mDirty);
+            generation = mGeneration;
+        }
+
+        LongSparseArray<CanonicalizedPublicKey> result;
+        if (base == null) {
+            result = new LongSparseArray<>();
+            load(resolver, result, null);
+        } else {
+            result = base.clone();
+            for (long masterKeyId : dirty) {
+                result.remove(masterKeyId);
+            }
+            load(resolver, result, dirty);
+        }
+
+        synchronized (this) {
+            // only store the result if nothing was invalidated in the meantime
+            if (mGeneration == generation) {
+                mKeys = result;
+                mDirty = new HashSet<>();
+            }
+        }
+
+        return result;
+
+    }
+
+    private static void load(ContentResolver resolver,
+                             LongSparseArray<CanonicalizedPublicKey> result, HashSet<Long> only) {
+
+        String selection = KeyRings.HAS_ANY_SECRET + " = 1";
+        if (only != null) {
+            StringBuilder ids = new StringBuilder();
+            for (long masterKeyId : only) {
+                if (ids.length() > 0) {
+                    ids.append(",");
+                }
+                ids.append(masterKeyId);
+            }
+            selection += " AND " + Tables.KEYS + "." + Keys.MASTER_KEY_ID + " IN (" + ids + ")";
+        }
+
+        Cursor cursor = resolver.query(KeyRings.buildUnifiedKeyRingsUri(), new String[] {
+                KeyRings.MASTER_KEY_ID,
+                // we pick from cache only information that is not easily available from keyrings
+                KeyRings.HAS_ANY_SECRET, KeyRings.VERIFIED,
+                // and of course, ring data
+                KeyRings.PUBKEY_DATA
+        }, selection, null, null);
+
+        try {
+            if (cursor != null && cursor.moveToFirst()) do {
+                long masterKeyId = cursor.getLong(0);
+                int verified = cursor.getInt(2);
+                byte[] blob = cursor.getBlob(3);
+                if (blob != null) {
+                    result.put(masterKeyId,
+                            new CanonicalizedPublicKeyRing(blob, verified).getPublicKey());
+                }
+            } while (cursor.moveToNext());
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+
+    }
+
+}
@@ -53,11 +53,18 @@ import org.sufficientlysecure.keychain.ui.ViewKeyActivity;
 import org.sufficientlysecure.keychain.util.InputData;
 import org.sufficientlysecure.keychain.util.Log;
 
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Set;
 
 public class OpenPgpService extends RemoteService {
@@ -67,12 +74,51 @@ public class OpenPgpService extends RemoteService {
             KeyRings.MASTER_KEY_ID,
             KeyRings.IS_EXPIRED,
             KeyRings.IS_REVOKED,
+            KeyRings.FOUND_USER_ID,
     };
 
     // do not pre-select revoked or expired keys
     static final String EMAIL_SEARCH_WHERE = Tables.KEYS + "." + KeychainContract.KeyRings.IS_REVOKED
             + " = 0 AND " + KeychainContract.KeyRings.IS_EXPIRED + " = 0";
 
+    /**
+     * Looks up the master key ids for all given emails in a single query.
+     *
+     * @return the master key ids of each email, in lower case, in the order of their
+     * primary user ids. Every email has an entry, which is empty if nothing was found.
+     */
+    private HashMap<String, LinkedHashSet<Long>> findKeyIdsByEmails(String[] emails) {
+        HashMap<String, LinkedHashSet<Long>> result = new HashMap<>();
+        for (String email : emails) {
+            result.put(email.toLowerCase(Locale.ENGLISH), new LinkedHashSet<Long>());
+        }
+
+        Uri uri = KeyRings.buildUnifiedKeyRingsFindUserIdsByEmailUri(emails);
+        Cursor cursor = getContentResolver().query(uri, EMAIL_SEARCH_PROJECTION, EMAIL_SEARCH_WHERE, null, null);
+        try {
+            if (cursor == null) {
+                return result;
+            }
+            int idxMasterKeyId = cursor.getColumnIndex(KeyRings.MASTER_KEY_ID);
+            int idxFoundUserId = cursor.getColumnIndex(KeyRings.FOUND_USER_ID);
+            while (cursor.moveToNext()) {
+                // the query matched on '*<email>', figure out which email it was
+                String userId = cursor.getString(idxFoundUserId).toLowerCase(Locale.ENGLISH);
+                for (Map.Entry<String, LinkedHashSet<Long>> entry : result.entrySet()) {
+                    if (userId.endsWith("<" + entry.getKey() + ">")) {
+                        entry.getValue().add(cursor.getLong(idxMasterKeyId));
+                    }
+                }
+            }
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+
+        return result;
+    }
+
     /**
      * Search database for key ids based on emails.
      *
@@ -88,34 +134,25 @@ public class OpenPgpService extends RemoteService {
         ArrayList<String> missingUserIds = new ArrayList<>();
         ArrayList<String> duplicateUserIds = new ArrayList<>();
         if (!noUserIdsCheck) {
+            HashMap<String, LinkedHashSet<Long>> keysByEmail = findKeyIdsByEmails(encryptionUserIds);
             for (String email : encryptionUserIds) {
-                // try to find the key for this specific email
-                Uri uri = KeyRings.buildUnifiedKeyRingsFindByEmailUri(email);
-                Cursor cursor = getContentResolver().query(uri, EMAIL_SEARCH_PROJECTION, EMAIL_SEARCH_WHERE, null, null);
-                try {
-                    // result should be one entry containing the key id
-                    if (cursor != null && cursor.moveToFirst()) {
-                        long id = cursor.getLong(cursor.getColumnIndex(KeyRings.MASTER_KEY_ID));
-                        keyIds.add(id);
-                    } else {
-                        missingUserIdsCheck = true;
-                        missingUserIds.add(email);
-                        Log.d(Constants.TAG, "user id missing");
-                    }
-                    // another entry for this email -> too keys with the same email inside user id
-                    if (cursor != null && cursor.moveToNext()) {
-                        duplicateUserIdsCheck = true;
-                        duplicateUserIds.add(email);
-
-                        // also pre-select
-                        long id = cursor.getLong(cursor.getColumnIndex(KeyRings.MASTER_KEY_ID));
-                        keyIds.add(id);
-                        Log.d(Constants.TAG, "more than one user id with the same email");
-                    }
-                } finally {
-                    if (cursor != null) {
-                        cursor.close();
-                    }
+                Iterator<Long> it = keysByEmail.get(email.toLowerCase(Locale.ENGLISH)).iterator();
+                // result should be one entry containing the key id
+                if (it.hasNext()) {
+                    keyIds.add(it.next());
+                } else {
+                    missingUserIdsCheck = true;
+                    missingUserIds.add(email);
+                    Log.d(Constants.TAG, "user id missing");
+                }
+                // another entry for this email -> too keys with the same email inside user id
+                if (it.hasNext()) {
+                    duplicateUserIdsCheck = true;
+                    duplicateUserIds.add(email);
+
+                    // also pre-select
+                    keyIds.add(it.next());
+                    Log.d(Constants.TAG, "more than one user id with the same email");
                 }
             }
         }
@@ -220,6 +257,21 @@ public class OpenPgpService extends RemoteService {
         return result;
     }
 
+    /**
+     * Returns the number of bytes left to read from a ParcelFileDescriptor's stream.
+     *
+     * available() is only a lower bound, which for pipes is usually a lot less than
+     * what will be read. For regular files, the exact size is known from the channel.
+     */
+    private static long getInputLength(ParcelFileDescriptor input, InputStream is)
+            throws IOException {
+        if (input.getStatSize() >= 0 && is instanceof FileInputStream) {
+            FileChannel channel = ((FileInputStream) is).getChannel();
+            return channel.size() - channel.position();
+        }
+        return is.available();
+    }
+
     private Intent signImpl(Intent data, ParcelFileDescriptor input,
                             ParcelFileDescriptor output, AccountSettings accSettings,
                             boolean cleartextSign) {
@@ -250,7 +302,7 @@ public class OpenPgpService extends RemoteService {
                 // detached signatures are returned as extra
                 os = new ParcelFileDescriptor.AutoCloseOutputStream(output);
             }
-            long inputLength = is.available();
+            long inputLength = getInputLength(input, is);
             InputData inputData = new InputData(is, inputLength);
 
             // sign-only
@@ -351,13 +403,14 @@ public class OpenPgpService extends RemoteService {
             is = new ParcelFileDescriptor.AutoCloseInputStream(input);
             os = new ParcelFileDescriptor.AutoCloseOutputStream(output);
 
-            long inputLength = is.available();
+            long inputLength = getInputLength(input, is);
             InputData inputData = new InputData(is, inputLength, originalFilename);
 
             PgpSignEncryptInput pseInput = new PgpSignEncryptInput();
             pseInput.setEnableAsciiArmorOutput(asciiArmor)
                     .setVersionHeader(PgpHelper.getVersionForHeader(this))
                     .setCompressionId(accSettings.getCompression())
+                    .setAdaptiveCompression(true)
                     .setSymmetricEncryptionAlgorithm(accSettings.getEncryptionAlgorithm())
                     .setEncryptionMasterKeyIds(keyIds)
                     .setFailOnMissingEncryptionKeyIds(true)
@@ -449,7 +502,7 @@ public class OpenPgpService extends RemoteService {
             }
 
             String passphrase = data.getStringExtra(OpenPgpApi.EXTRA_PASSPHRASE);
-            long inputLength = is.available();
+            long inputLength = getInputLength(input, is);
             InputData inputData = new InputData(is, inputLength);
 
             PgpDecryptVerify.Builder builder = new PgpDecryptVerify.Builder(
@@ -36,12 +36,14 @@ import org.sufficientlysecure.keychain.R;
 import org.sufficientlysecure.keychain.keyimport.HkpKeyserver;
 import org.sufficientlysecure.keychain.keyimport.Keyserver;
 import org.sufficientlysecure.keychain.keyimport.ParcelableKeyRing;
+import org.sufficientlysecure.keychain.operations.BatchVerifyOperation;
 import org.sufficientlysecure.keychain.operations.CertifyOperation;
 import org.sufficientlysecure.keychain.operations.DeleteOperation;
 import org.sufficientlysecure.keychain.operations.EditKeyOperation;
 import org.sufficientlysecure.keychain.operations.ImportExportOperation;
 import org.sufficientlysecure.keychain.operations.PromoteKeyOperation;
 import org.sufficientlysecure.keychain.operations.SignEncryptOperation;
+import org.sufficientlysecure.keychain.operations.results.BatchVerifyResult;
 import org.sufficientlysecure.keychain.operations.results.CertifyResult;
 import org.sufficientlysecure.keychain.operations.results.ConsolidateResult;
 import org.sufficientlysecure.keychain.operations.results.DecryptVerifyResult;
@@ -64,6 +66,7 @@ import org.sufficientlysecure.keychain.util.FileHelper;
 import org.sufficientlysecure.keychain.util.InputData;
 import org.sufficientlysecure.keychain.util.Log;
 import org.sufficientlysecure.keychain.util.ParcelableFileCache;
+import org.sufficientlysecure.keychain.util.SpillingOutputStream;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
@@ -102,6 +105,8 @@ public class KeychainIntentService extends IntentService implements Progressable
 
     public static final String ACTION_DECRYPT_METADATA = Constants.INTENT_PREFIX + "DECRYPT_METADATA";
 
+    public static final String ACTION_VERIFY_DETACHED_BATCH = Constants.INTENT_PREFIX + "VERIFY_DETACHED_BATCH";
+
     public static final String ACTION_EDIT_KEYRING = Constants.INTENT_PREFIX + "EDIT_KEYRING";
 
     public static final String ACTION_PROMOTE_KEYRING = Constants.INTENT_PREFIX + "PROMOTE_KEYRING";
@@ -139,6 +144,10 @@ public class KeychainIntentService extends IntentService implements Progressable
     public static final String DECRYPT_PASSPHRASE = "passphrase";
     public static final String DECRYPT_NFC_DECRYPTED_SESSION_KEY = "nfc_decrypted_session_key";
 
+    // batch verify of detached signatures
+    public static final String VERIFY_BATCH_DATA_URIS = "verify_batch_data_uris";
+    public static final String VERIFY_BATCH_SIGNATURE_URIS = "verify_batch_signature_uris";
+
     // keybase proof
     public static final String KEYBASE_REQUIRED_FINGERPRINT = "keybase_required_fingerprint";
     public static final String KEYBASE_PROOF = "keybase_proof";
@@ -182,6 +191,8 @@ public class KeychainIntentService extends IntentService implements Progressable
 
     // decrypt/verify
     public static final String RESULT_DECRYPTED_BYTES = "decrypted_data";
+    // instead of the above, for results larger than Constants.TEMPFILE_THRESHOLD
+    public static final String RESULT_DECRYPTED_URI = "decrypted_uri";
 
     Messenger mMessenger;
 
@@ -353,7 +364,8 @@ public class KeychainIntentService extends IntentService implements Progressable
                     data.putByteArray(KeychainIntentService.DECRYPT_CIPHERTEXT_BYTES, messageBytes);
 
                     InputData inputData = createDecryptInputData(data);
-                    OutputStream outStream = createCryptOutputStream(data);
+                    // the proof message is small, keep it in memory
+                    ByteArrayOutputStream outStream = new ByteArrayOutputStream();
 
                     PgpDecryptVerify.Builder builder = new PgpDecryptVerify.Builder(
                             this, new ProviderHelper(this), this,
@@ -436,6 +448,22 @@ public class KeychainIntentService extends IntentService implements Progressable
 
                 break;
             }
+            case ACTION_VERIFY_DETACHED_BATCH: {
+
+                // Input
+                ArrayList<Uri> dataUris = data.getParcelableArrayList(VERIFY_BATCH_DATA_URIS);
+                ArrayList<Uri> signatureUris = data.getParcelableArrayList(VERIFY_BATCH_SIGNATURE_URIS);
+
+                // Operation
+                BatchVerifyOperation op = new BatchVerifyOperation(
+                        this, new ProviderHelper(this), this, mActionCanceled);
+                BatchVerifyResult result = op.execute(dataUris, signatureUris);
+
+                // Result
+                sendMessageToHandler(KeychainIntentServiceHandler.MESSAGE_OKAY, result);
+
+                break;
+            }
             case ACTION_DELETE: {
 
                 // Input
@@ -693,7 +721,8 @@ public class KeychainIntentService extends IntentService implements Progressable
         int target = data.getInt(TARGET);
         switch (target) {
             case IO_BYTES:
-                return new ByteArrayOutputStream();
+                // large results are moved to a temporary file, see finalizeCryptOutputStream
+                return new SpillingOutputStream(this, "decrypted", Constants.TEMPFILE_THRESHOLD);
 
             case IO_URI:
                 Uri providerUri = data.getParcelable(ENCRYPT_DECRYPT_OUTPUT_URI);
@@ -706,15 +735,21 @@ public class KeychainIntentService extends IntentService implements Progressable
     }
 
     private void finalizeDecryptOutputStream(Bundle data, Bundle resultData, OutputStream outStream) {
-        finalizeCryptOutputStream(data, resultData, outStream, RESULT_DECRYPTED_BYTES);
+        finalizeCryptOutputStream(data, resultData, outStream,
+                RESULT_DECRYPTED_BYTES, RESULT_DECRYPTED_URI);
     }
 
-    private void finalizeCryptOutputStream(Bundle data, Bundle resultData, OutputStream outStream, String bytesName) {
+    private void finalizeCryptOutputStream(Bundle data, Bundle resultData, OutputStream outStream,
+                                           String bytesName, String uriName) {
         int target = data.getInt(TARGET);
         switch (target) {
             case IO_BYTES:
-                byte output[] = ((ByteArrayOutputStream) outStream).toByteArray();
-                resultData.putByteArray(bytesName, output);
+                SpillingOutputStream spillingOut = (SpillingOutputStream) outStream;
+                if (spillingOut.isSpilled()) {
+                    resultData.putParcelable(uriName, spillingOut.getUri());
+                } else {
+                    resultData.putByteArray(bytesName, spillingOut.toByteArray());
+                }
                 break;
             case IO_URI:
                 // nothing, output was written, just send okay and verification bundle
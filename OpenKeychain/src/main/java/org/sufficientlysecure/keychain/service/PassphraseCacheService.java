@@ -22,36 +22,46 @@ import android.app.Notification;
 import android.app.PendingIntent;
 import android.app.Service;
 import android.content.BroadcastReceiver;
+import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
-import android.os.Binder;
+import android.content.ServiceConnection;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.IBinder;
+import android.os.Looper;
 import android.os.Message;
 import android.os.Messenger;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.support.v4.app.NotificationCompat;
 import android.support.v4.util.LongSparseArray;
 
 import org.sufficientlysecure.keychain.Constants;
 import org.sufficientlysecure.keychain.R;
 import org.sufficientlysecure.keychain.pgp.CanonicalizedSecretKey.SecretKeyType;
+import org.sufficientlysecure.keychain.pgp.UnlockedKeyCache;
 import org.sufficientlysecure.keychain.provider.CachedPublicKeyRing;
 import org.sufficientlysecure.keychain.provider.ProviderHelper;
 import org.sufficientlysecure.keychain.util.Log;
 import org.sufficientlysecure.keychain.util.Preferences;
 
-import java.util.Date;
-
 /**
  * This service runs in its own process, but is available to all other processes as the main
  * passphrase cache. Use the static methods addCachedPassphrase and getCachedPassphrase for
  * convenience.
  *
+ * Lookups from worker threads go through a process-wide binding to this service, which answers
+ * synchronously via IPassphraseCacheService. Only on the main thread, where waiting for the
+ * binding to be established would deadlock, lookups fall back to an Intent with a Messenger.
+ *
+ * Each cached passphrase has an expiry time, which is pushed back whenever it is used. A single
+ * alarm is scheduled for the earliest expiry, which sweeps all expired passphrases at once and
+ * then re-schedules itself for the next one.
+ *
  * The passphrase cache service always works with both a master key id and a subkey id. The master
  * key id is always used to retrieve relevant info from the database, while the subkey id is used
  * to determine the type behavior (regular passphrase, empty passphrase, stripped key,
@@ -91,6 +101,7 @@ public class PassphraseCacheService extends Service {
     public static final String EXTRA_PASSPHRASE = "passphrase";
     public static final String EXTRA_MESSENGER = "messenger";
     public static final String EXTRA_USER_ID = "user_id";
+    public static final String EXTRA_RESULT = "result";
 
     private static final int REQUEST_ID = 0;
     private static final long DEFAULT_TTL = 15;
@@ -102,7 +113,12 @@ public class PassphraseCacheService extends Service {
 
     private BroadcastReceiver mIntentReceiver;
 
-    private LongSparseArray<CachedPassphrase> mPassphraseCache = new LongSparseArray<>();
+    /** Cached passphrases by key id. Mutated on the main thread only, but read from binder
+     * threads, so all access must be synchronized on it. */
+    private final LongSparseArray<CachedPassphrase> mPassphraseCache = new LongSparseArray<>();
+
+    /** Process-wide binding for synchronous lookups, established on first use. */
+    private static final CacheConnection sConnection = new CacheConnection();
 
     Context mContext;
 
@@ -147,6 +163,21 @@ public class PassphraseCacheService extends Service {
         Log.d(Constants.TAG, "PassphraseCacheService.getCachedPassphrase() for masterKeyId "
                 + masterKeyId + ", subKeyId " + subKeyId);
 
+        // off the main thread, we can wait for the binding and ask directly
+        if (Looper.myLooper() != Looper.getMainLooper()) {
+            IPassphraseCacheService service = sConnection.acquire(context);
+            try {
+                if (service != null) {
+                    Bundle result = service.getCachedPassphrase(masterKeyId, subKeyId);
+                    return handleGetResult(result.getInt(EXTRA_RESULT), result);
+                }
+            } catch (RemoteException e) {
+                Log.e(Constants.TAG, "PassphraseCacheService: Remote lookup failed, using intent", e);
+            } finally {
+                sConnection.release(context);
+            }
+        }
+
         Intent intent = new Intent(context, PassphraseCacheService.class);
         intent.setAction(ACTION_PASSPHRASE_CACHE_GET);
 
@@ -188,9 +219,13 @@ public class PassphraseCacheService extends Service {
             }
         }
 
-        switch (returnMessage.what) {
+        return handleGetResult(returnMessage.what, returnMessage.getData());
+    }
+
+    private static String handleGetResult(int result, Bundle data) throws KeyNotFoundException {
+        switch (result) {
             case MSG_PASSPHRASE_CACHE_GET_OKAY:
-                return returnMessage.getData().getString(EXTRA_PASSPHRASE);
+                return data.getString(EXTRA_PASSPHRASE);
             case MSG_PASSPHRASE_CACHE_GET_KEY_NOT_FOUND:
                 throw new KeyNotFoundException();
             default:
@@ -199,6 +234,86 @@ public class PassphraseCacheService extends Service {
         }
     }
 
+    /**
+     * Keeps a binding to the PassphraseCacheService, for synchronous lookups from worker threads.
+     * Once the last running lookup is done, the binding is kept for a short grace period, so
+     * sequential lookups share it instead of rebinding every time, but it doesn't keep the
+     * service alive for long after its cache ran empty.
+     */
+    private static class CacheConnection implements ServiceConnection, Runnable {
+
+        /** Time to keep the binding after the last lookup, in milliseconds. */
+        private static final long UNBIND_DELAY = 10 * 1000;
+
+        private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+        private Context mContext;
+        private IPassphraseCacheService mService;
+        private boolean mBound;
+        // number of lookups currently using the binding
+        private int mUsers;
+
+        /** Returns the bound service, waiting up to three seconds for the binding if necessary.
+         * Every call must be followed by a call to release, even if it returned null. */
+        synchronized IPassphraseCacheService acquire(Context context) {
+            mUsers += 1;
+            // the binding is in use again, don't drop it
+            mHandler.removeCallbacks(this);
+            if (!mBound) {
+                mContext = context.getApplicationContext();
+                Intent intent = new Intent(mContext, PassphraseCacheService.class);
+                mBound = mContext.bindService(intent, this, Context.BIND_AUTO_CREATE);
+                if (!mBound) {
+                    return null;
+                }
+            }
+
+            long deadline = SystemClock.elapsedRealtime() + 3000;
+            while (mService == null) {
+                long remaining = deadline - SystemClock.elapsedRealtime();
+                if (remaining <= 0) {
+                    return null;
+                }
+                try {
+                    wait(remaining);
+                } catch (InterruptedException e) {
+                    return null;
+                }
+            }
+            return mService;
+        }
+
+        /** Schedules release of the binding once the last running lookup is done. */
+        synchronized void release(Context context) {
+            mUsers -= 1;
+            if (mUsers == 0 && mBound) {
+                mHandler.postDelayed(this, UNBIND_DELAY);
+            }
+        }
+
+        /** Releases the binding, unless it was acquired again during the grace period. */
+        @Override
+        public synchronized void run() {
+            if (mUsers == 0 && mBound) {
+                mContext.unbindService(this);
+                mBound = false;
+                mService = null;
+            }
+        }
+
+        @Override
+        public synchronized void onServiceConnected(ComponentName name, IBinder binder) {
+            mService = IPassphraseCacheService.Stub.asInterface(binder);
+            notifyAll();
+        }
+
+        @Override
+        public synchronized void onServiceDisconnected(ComponentName name) {
+            mService = null;
+        }
+
+    }
+
     /**
      * Internal implementation to get cached passphrase.
      */
@@ -206,13 +321,14 @@ public class PassphraseCacheService extends Service {
         // passphrase for symmetric encryption?
         if (masterKeyId == Constants.key.symmetric) {
             Log.d(Constants.TAG, "PassphraseCacheService.getCachedPassphraseImpl() for symmetric encryption");
-            String cachedPassphrase = mPassphraseCache.get(Constants.key.symmetric).getPassphrase();
-            if (cachedPassphrase == null) {
-                return null;
+            synchronized (mPassphraseCache) {
+                CachedPassphrase cachedPassphrase = mPassphraseCache.get(Constants.key.symmetric);
+                if (cachedPassphrase == null) {
+                    return null;
+                }
+                cachedPassphrase.touch();
+                return cachedPassphrase.getPassphrase();
             }
-            addCachedPassphrase(this, Constants.key.symmetric, Constants.key.symmetric,
-                    cachedPassphrase, getString(R.string.passp_cache_notif_pwd));
-            return cachedPassphrase;
         }
 
         // on "none" key, just do nothing
@@ -245,6 +361,12 @@ public class PassphraseCacheService extends Service {
                 throw new ProviderHelper.NotFoundException("secret key for stripped subkey is not available");
         }
 
+        synchronized (mPassphraseCache) {
+            return getCachedPassphraseLocked(masterKeyId, subKeyId);
+        }
+    }
+
+    private String getCachedPassphraseLocked(long masterKeyId, long subKeyId) {
         // get cached passphrase
         CachedPassphrase cachedPassphrase = mPassphraseCache.get(subKeyId);
         if (cachedPassphrase == null) {
@@ -272,16 +394,38 @@ public class PassphraseCacheService extends Service {
 
         }
 
-        // set it again to reset the cache life cycle
-        Log.d(Constants.TAG, "PassphraseCacheService: Cache passphrase again when getting it!");
-        addCachedPassphrase(this, masterKeyId, subKeyId, cachedPassphrase.getPassphrase(), cachedPassphrase.getPrimaryUserID());
+        // reset the cache life cycle, the scheduled sweep will notice
+        cachedPassphrase.touch();
         return cachedPassphrase.getPassphrase();
     }
 
+    /**
+     * Looks up a cached passphrase, returning a result code in EXTRA_RESULT and the passphrase
+     * in EXTRA_PASSPHRASE. Safe to call from any thread.
+     */
+    private Bundle getCachedPassphraseBundle(long masterKeyId, long subKeyId) {
+        Bundle bundle = new Bundle();
+        try {
+            // If only one of these is symmetric, error out!
+            if (masterKeyId == Constants.key.symmetric ^ subKeyId == Constants.key.symmetric) {
+                Log.e(Constants.TAG, "PassphraseCacheService: Bad request, missing masterKeyId or subKeyId!");
+                bundle.putInt(EXTRA_RESULT, MSG_PASSPHRASE_CACHE_GET_KEY_NOT_FOUND);
+            } else {
+                String passphrase = getCachedPassphraseImpl(masterKeyId, subKeyId);
+                bundle.putInt(EXTRA_RESULT, MSG_PASSPHRASE_CACHE_GET_OKAY);
+                bundle.putString(EXTRA_PASSPHRASE, passphrase);
+            }
+        } catch (ProviderHelper.NotFoundException e) {
+            Log.e(Constants.TAG, "PassphraseCacheService: Passphrase for unknown key was requested!");
+            bundle.putInt(EXTRA_RESULT, MSG_PASSPHRASE_CACHE_GET_KEY_NOT_FOUND);
+        }
+        return bundle;
+    }
+
     /**
      * Register BroadcastReceiver that is unregistered when service is destroyed. This
-     * BroadcastReceiver hears on intents with ACTION_PASSPHRASE_CACHE_SERVICE to then timeout
-     * specific passphrases in memory.
+     * BroadcastReceiver hears on intents with ACTION_PASSPHRASE_CACHE_SERVICE to then time out
+     * all expired passphrases in memory.
      */
     private void registerReceiver() {
         if (mIntentReceiver == null) {
@@ -293,8 +437,7 @@ public class PassphraseCacheService extends Service {
                     Log.d(Constants.TAG, "PassphraseCacheService: Received broadcast...");
 
                     if (action.equals(BROADCAST_ACTION_PASSPHRASE_CACHE_SERVICE)) {
-                        long keyId = intent.getLongExtra(EXTRA_KEY_ID, -1);
-                        timeout(context, keyId);
+                        timeout();
                     }
                 }
             };
@@ -306,15 +449,34 @@ public class PassphraseCacheService extends Service {
     }
 
     /**
-     * Build pending intent that is executed by alarm manager to time out a specific passphrase
+     * Build pending intent that is executed by alarm manager to time out expired passphrases
      */
-    private static PendingIntent buildIntent(Context context, long keyId) {
+    private static PendingIntent buildIntent(Context context) {
         Intent intent = new Intent(BROADCAST_ACTION_PASSPHRASE_CACHE_SERVICE);
-        intent.putExtra(EXTRA_KEY_ID, keyId);
         return PendingIntent.getBroadcast(context, REQUEST_ID, intent,
                 PendingIntent.FLAG_CANCEL_CURRENT);
     }
 
+    /**
+     * Schedules the alarm for the earliest expiry among all cached passphrases, or cancels it
+     * if nothing will expire.
+     */
+    private void scheduleTimeout() {
+        long nextExpiry = Long.MAX_VALUE;
+        synchronized (mPassphraseCache) {
+            for (int i = 0; i < mPassphraseCache.size(); i++) {
+                nextExpiry = Math.min(nextExpiry, mPassphraseCache.valueAt(i).getExpiry());
+            }
+        }
+
+        AlarmManager am = (AlarmManager) this.getSystemService(Context.ALARM_SERVICE);
+        if (nextExpiry == Long.MAX_VALUE) {
+            am.cancel(buildIntent(this));
+        } else {
+            am.set(AlarmManager.ELAPSED_REALTIME_WAKEUP, nextExpiry, buildIntent(this));
+        }
+    }
+
     /**
      * Executed when service is started by intent
      */
@@ -322,9 +484,6 @@ public class PassphraseCacheService extends Service {
     public int onStartCommand(Intent intent, int flags, int startId) {
         Log.d(Constants.TAG, "PassphraseCacheService.onStartCommand()");
 
-        // register broadcastreceiver
-        registerReceiver();
-
         if (intent != null && intent.getAction() != null) {
             if (ACTION_PASSPHRASE_CACHE_ADD.equals(intent.getAction())) {
                 long ttl = intent.getLongExtra(EXTRA_TTL, DEFAULT_TTL);
@@ -340,49 +499,26 @@ public class PassphraseCacheService extends Service {
                 );
 
                 // if we don't cache by specific subkey id, or the requested subkey is the master key,
-                // just add master key id to the cache
+                // just add master key id to the cache, otherwise add this specific subkey
+                long keyId = subKeyId;
                 if (subKeyId == masterKeyId || !Preferences.getPreferences(mContext).getPassphraseCacheSubs()) {
-                    mPassphraseCache.put(masterKeyId, new CachedPassphrase(passphrase, primaryUserID));
-                    if (ttl > 0) {
-                        // register new alarm with keyId for this passphrase
-                        long triggerTime = new Date().getTime() + (ttl * 1000);
-                        AlarmManager am = (AlarmManager) this.getSystemService(Context.ALARM_SERVICE);
-                        am.set(AlarmManager.RTC_WAKEUP, triggerTime, buildIntent(this, masterKeyId));
-                    }
-                } else {
-                    // otherwise, add this specific subkey to the cache
-                    mPassphraseCache.put(subKeyId, new CachedPassphrase(passphrase, primaryUserID));
-                    if (ttl > 0) {
-                        // register new alarm with keyId for this passphrase
-                        long triggerTime = new Date().getTime() + (ttl * 1000);
-                        AlarmManager am = (AlarmManager) this.getSystemService(Context.ALARM_SERVICE);
-                        am.set(AlarmManager.RTC_WAKEUP, triggerTime, buildIntent(this, subKeyId));
-                    }
+                    keyId = masterKeyId;
+                }
+                synchronized (mPassphraseCache) {
+                    mPassphraseCache.put(keyId, new CachedPassphrase(passphrase, primaryUserID, ttl));
                 }
 
+                scheduleTimeout();
                 updateService();
             } else if (ACTION_PASSPHRASE_CACHE_GET.equals(intent.getAction())) {
                 long masterKeyId = intent.getLongExtra(EXTRA_KEY_ID, Constants.key.symmetric);
                 long subKeyId = intent.getLongExtra(EXTRA_SUBKEY_ID, Constants.key.symmetric);
                 Messenger messenger = intent.getParcelableExtra(EXTRA_MESSENGER);
 
+                Bundle bundle = getCachedPassphraseBundle(masterKeyId, subKeyId);
                 Message msg = Message.obtain();
-                try {
-                    // If only one of these is symmetric, error out!
-                    if (masterKeyId == Constants.key.symmetric ^ subKeyId == Constants.key.symmetric) {
-                        Log.e(Constants.TAG, "PassphraseCacheService: Bad request, missing masterKeyId or subKeyId!");
-                        msg.what = MSG_PASSPHRASE_CACHE_GET_KEY_NOT_FOUND;
-                    } else {
-                        String passphrase = getCachedPassphraseImpl(masterKeyId, subKeyId);
-                        msg.what = MSG_PASSPHRASE_CACHE_GET_OKAY;
-                        Bundle bundle = new Bundle();
-                        bundle.putString(EXTRA_PASSPHRASE, passphrase);
-                        msg.setData(bundle);
-                    }
-                } catch (ProviderHelper.NotFoundException e) {
-                    Log.e(Constants.TAG, "PassphraseCacheService: Passphrase for unknown key was requested!");
-                    msg.what = MSG_PASSPHRASE_CACHE_GET_KEY_NOT_FOUND;
-                }
+                msg.what = bundle.getInt(EXTRA_RESULT);
+                msg.setData(bundle);
 
                 try {
                     messenger.send(msg);
@@ -390,15 +526,13 @@ public class PassphraseCacheService extends Service {
                     Log.e(Constants.TAG, "PassphraseCacheService: Sending message failed", e);
                 }
             } else if (ACTION_PASSPHRASE_CACHE_CLEAR.equals(intent.getAction())) {
-                AlarmManager am = (AlarmManager) this.getSystemService(Context.ALARM_SERVICE);
-
-                // Stop all ttl alarms
-                for (int i = 0; i < mPassphraseCache.size(); i++) {
-                    am.cancel(buildIntent(this, mPassphraseCache.keyAt(i)));
+                synchronized (mPassphraseCache) {
+                    mPassphraseCache.clear();
                 }
+                UnlockedKeyCache.broadcastClear(this);
 
-                mPassphraseCache.clear();
-
+                // Stops the ttl alarm
+                scheduleTimeout();
                 updateService();
             } else {
                 Log.e(Constants.TAG, "PassphraseCacheService: Intent or Intent Action not supported!");
@@ -409,24 +543,45 @@ public class PassphraseCacheService extends Service {
     }
 
     /**
-     * Called when one specific passphrase for keyId timed out
+     * Called when the earliest cached passphrase expired, removes all expired passphrases
      */
-    private void timeout(Context context, long keyId) {
-        // remove passphrase corresponding to keyId from memory
-        mPassphraseCache.remove(keyId);
+    private void timeout() {
+        long now = SystemClock.elapsedRealtime();
+        boolean removed = false;
+        synchronized (mPassphraseCache) {
+            // iterate backwards, since removal shifts all following indices
+            for (int i = mPassphraseCache.size() - 1; i >= 0; i--) {
+                if (mPassphraseCache.valueAt(i).getExpiry() <= now) {
+                    Log.d(Constants.TAG, "PassphraseCacheService Timeout of keyId "
+                            + mPassphraseCache.keyAt(i) + ", removed from memory!");
+                    mPassphraseCache.removeAt(i);
+                    removed = true;
+                }
+            }
+        }
 
-        Log.d(Constants.TAG, "PassphraseCacheService Timeout of keyId " + keyId + ", removed from memory!");
+        // unlocked keys are cached by subkey id, which we can't map to passphrases here.
+        // dropping all of them at worst costs another key derivation for the others
+        if (removed) {
+            UnlockedKeyCache.broadcastClear(this);
+        }
 
+        scheduleTimeout();
         updateService();
     }
 
     private void updateService() {
-        if (mPassphraseCache.size() > 0) {
+        int size;
+        synchronized (mPassphraseCache) {
+            size = mPassphraseCache.size();
+        }
+        if (size > 0) {
             startForeground(NOTIFICATION_ID, getNotification());
         } else {
             // stop whole service if no cached passphrases remaining
             Log.d(Constants.TAG, "PassphraseCacheService: No passphrases remaining in memory, stopping service!");
             stopForeground(true);
+            stopSelf();
         }
     }
 
@@ -444,8 +599,10 @@ public class PassphraseCacheService extends Service {
             inboxStyle.setBigContentTitle(getString(R.string.passp_cache_notif_keys));
 
             // Moves events into the big view
-            for (int i = 0; i < mPassphraseCache.size(); i++) {
-                inboxStyle.addLine(mPassphraseCache.valueAt(i).getPrimaryUserID());
+            synchronized (mPassphraseCache) {
+                for (int i = 0; i < mPassphraseCache.size(); i++) {
+                    inboxStyle.addLine(mPassphraseCache.valueAt(i).getPrimaryUserID());
+                }
             }
 
             // Moves the big view style object into the notification object.
@@ -492,6 +649,9 @@ public class PassphraseCacheService extends Service {
         super.onCreate();
         mContext = this;
         Log.d(Constants.TAG, "PassphraseCacheService, onCreate()");
+
+        // register broadcastreceiver, the service may be bound without ever being started
+        registerReceiver();
     }
 
     @Override
@@ -507,21 +667,34 @@ public class PassphraseCacheService extends Service {
         return mBinder;
     }
 
-    public class PassphraseCacheBinder extends Binder {
-        public PassphraseCacheService getService() {
-            return PassphraseCacheService.this;
+    private final IBinder mBinder = new IPassphraseCacheService.Stub() {
+        @Override
+        public Bundle getCachedPassphrase(long masterKeyId, long subKeyId) {
+            return getCachedPassphraseBundle(masterKeyId, subKeyId);
         }
-    }
-
-    private final IBinder mBinder = new PassphraseCacheBinder();
+    };
 
     public class CachedPassphrase {
         private String primaryUserID;
         private String passphrase;
+        private long ttl;
+        private long expiry;
 
-        public CachedPassphrase(String passphrase, String primaryUserID) {
+        public CachedPassphrase(String passphrase, String primaryUserID, long ttl) {
             setPassphrase(passphrase);
             setPrimaryUserID(primaryUserID);
+            this.ttl = ttl;
+            touch();
+        }
+
+        /** Resets the life cycle of this passphrase, it expires after its ttl from now. */
+        public void touch() {
+            expiry = ttl > 0 ? SystemClock.elapsedRealtime() + ttl * 1000 : Long.MAX_VALUE;
+        }
+
+        /** Returns the time of expiry, in SystemClock.elapsedRealtime() milliseconds. */
+        public long getExpiry() {
+            return expiry;
         }
 
         public String getPrimaryUserID() {
@@ -20,6 +20,7 @@ package org.sufficientlysecure.keychain.ui;
 import android.app.Activity;
 import android.app.ProgressDialog;
 import android.content.Intent;
+import android.net.Uri;
 import android.os.Bundle;
 import android.os.Message;
 import android.os.Messenger;
@@ -38,10 +39,13 @@ import org.sufficientlysecure.keychain.operations.results.DecryptVerifyResult;
 import org.sufficientlysecure.keychain.service.KeychainIntentService;
 import org.sufficientlysecure.keychain.service.KeychainIntentServiceHandler;
 import org.sufficientlysecure.keychain.ui.util.Notify;
+import org.sufficientlysecure.keychain.util.FileHelper;
 import org.sufficientlysecure.keychain.util.Log;
 import org.sufficientlysecure.keychain.util.ShareHelper;
 
+import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.util.Arrays;
 
 public class DecryptTextFragment extends DecryptFragment {
     public static final String ARG_CIPHERTEXT = "ciphertext";
@@ -196,6 +200,29 @@ public class DecryptTextFragment extends DecryptFragment {
 
                         byte[] decryptedMessage = returnData
                                 .getByteArray(KeychainIntentService.RESULT_DECRYPTED_BYTES);
+                        boolean truncated = false;
+                        if (decryptedMessage == null) {
+                            // large messages are passed as temporary file, which holds
+                            // plaintext and must not stay around any longer than necessary
+                            Uri decryptedUri = returnData
+                                    .getParcelable(KeychainIntentService.RESULT_DECRYPTED_URI);
+                            try {
+                                decryptedMessage = FileHelper.readBytes(getActivity(),
+                                        decryptedUri, Constants.TEXT_RESULT_LIMIT + 1);
+                            } catch (IOException e) {
+                                Log.e(Constants.TAG, "error reading decrypted message", e);
+                                Notify.showNotify(getActivity(), R.string.error_reading_result,
+                                        Notify.Style.ERROR);
+                                return;
+                            } finally {
+                                getActivity().getContentResolver().delete(decryptedUri, null, null);
+                            }
+                            if (decryptedMessage.length > Constants.TEXT_RESULT_LIMIT) {
+                                decryptedMessage = Arrays.copyOf(decryptedMessage,
+                                        Constants.TEXT_RESULT_LIMIT);
+                                truncated = true;
+                            }
+                        }
                         String displayMessage;
                         if (pgpResult.getCharset() != null) {
                             try {
@@ -209,7 +236,12 @@ public class DecryptTextFragment extends DecryptFragment {
                         }
                         mText.setText(displayMessage);
 
-                        pgpResult.createNotify(getActivity()).show();
+                        if (truncated) {
+                            Notify.showNotify(getActivity(), R.string.error_result_truncated,
+                                    Notify.Style.WARN);
+                        } else {
+                            pgpResult.createNotify(getActivity()).show();
+                        }
 
                         // display signature result in activity
                         boolean valid = onResult(pgpResult);
@@ -197,6 +197,8 @@ public class EncryptFilesActivity extends EncryptActivity implements EncryptActi
         data.addOutputUris(mOutputUris);
 
         data.setCompressionId(Preferences.getPreferences(this).getDefaultMessageCompression());
+        // files are often images or archives, don't compress those again
+        data.setAdaptiveCompression(true);
 
         // Always use armor for messages
         data.setEnableAsciiArmorOutput(mUseArmor);
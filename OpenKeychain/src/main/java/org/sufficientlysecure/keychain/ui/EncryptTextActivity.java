@@ -33,10 +33,12 @@ import org.sufficientlysecure.keychain.operations.results.SignEncryptResult;
 import org.sufficientlysecure.keychain.pgp.KeyRing;
 import org.sufficientlysecure.keychain.pgp.SignEncryptParcel;
 import org.sufficientlysecure.keychain.ui.util.Notify;
+import org.sufficientlysecure.keychain.util.FileHelper;
 import org.sufficientlysecure.keychain.util.Log;
 import org.sufficientlysecure.keychain.util.Preferences;
 import org.sufficientlysecure.keychain.util.ShareHelper;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.Set;
@@ -171,10 +173,22 @@ public class EncryptTextActivity extends EncryptActivity implements EncryptActiv
     protected void onEncryptSuccess(SignEncryptResult result) {
         if (mShareAfterEncrypt) {
             // Share encrypted message/file
-            startActivity(sendWithChooserExcludingEncrypt(result.getResultBytes()));
+            startActivity(sendWithChooserExcludingEncrypt(result));
         } else {
             // Copy to clipboard
-            copyToClipboard(result.getResultBytes());
+            byte[] resultBytes;
+            try {
+                resultBytes = readResultText(result);
+            } catch (IOException e) {
+                Log.e(Constants.TAG, "error reading encrypted message", e);
+                Notify.showNotify(this, R.string.error_reading_result, Notify.Style.ERROR);
+                return;
+            }
+            if (resultBytes == null) {
+                Notify.showNotify(this, R.string.error_result_too_large, Notify.Style.ERROR);
+                return;
+            }
+            copyToClipboard(resultBytes);
             result.createNotify(EncryptTextActivity.this).show();
             // Notify.showNotify(EncryptTextActivity.this,
             // R.string.encrypt_sign_clipboard_successful, Notify.Style.INFO);
@@ -210,6 +224,23 @@ public class EncryptTextActivity extends EncryptActivity implements EncryptActiv
         return data;
     }
 
+    /**
+     * Returns the result as text, or null if it is too large to be handled as text. Large
+     * results are passed as temporary file, which is read back and deleted if it fits.
+     */
+    private byte[] readResultText(SignEncryptResult result) throws IOException {
+        if (result.getResultBytes() != null) {
+            return result.getResultBytes();
+        }
+        Uri resultUri = result.getResultUri();
+        byte[] resultBytes = FileHelper.readBytes(this, resultUri, Constants.TEXT_RESULT_LIMIT + 1);
+        if (resultBytes.length > Constants.TEXT_RESULT_LIMIT) {
+            return null;
+        }
+        getContentResolver().delete(resultUri, null, null);
+        return resultBytes;
+    }
+
     private void copyToClipboard(byte[] resultBytes) {
         ClipboardReflection.copyToClipboard(this, new String(resultBytes));
     }
@@ -217,8 +248,8 @@ public class EncryptTextActivity extends EncryptActivity implements EncryptActiv
     /**
      * Create Intent Chooser but exclude OK's EncryptActivity.
      */
-    private Intent sendWithChooserExcludingEncrypt(byte[] resultBytes) {
-        Intent prototype = createSendIntent(resultBytes);
+    private Intent sendWithChooserExcludingEncrypt(SignEncryptResult result) {
+        Intent prototype = createSendIntent(result);
         String title = getString(R.string.title_share_message);
 
         // we don't want to encrypt the encrypted, no inception ;)
@@ -230,11 +261,23 @@ public class EncryptTextActivity extends EncryptActivity implements EncryptActiv
         return new ShareHelper(this).createChooserExcluding(prototype, title, blacklist);
     }
 
-    private Intent createSendIntent(byte[] resultBytes) {
+    private Intent createSendIntent(SignEncryptResult result) {
         Intent sendIntent;
         sendIntent = new Intent(Intent.ACTION_SEND);
         sendIntent.setType("text/plain");
-        sendIntent.putExtra(Intent.EXTRA_TEXT, new String(resultBytes));
+        byte[] resultBytes;
+        try {
+            resultBytes = readResultText(result);
+        } catch (IOException e) {
+            Log.e(Constants.TAG, "error reading encrypted message, sharing as file", e);
+            resultBytes = null;
+        }
+        if (resultBytes != null) {
+            sendIntent.putExtra(Intent.EXTRA_TEXT, new String(resultBytes));
+        } else {
+            // too large to pass as text, share the temporary file instead
+            sendIntent.putExtra(Intent.EXTRA_STREAM, result.getResultUri());
+        }
 
         if (!isModeSymmetric() && mEncryptionUserIds != null) {
             Set<String> users = new HashSet<>();
@@ -23,7 +23,6 @@ import android.os.Bundle;
 import android.support.v4.app.ListFragment;
 import android.support.v4.app.LoaderManager;
 import android.support.v4.content.Loader;
-import android.support.v4.util.LongSparseArray;
 import android.view.MotionEvent;
 import android.view.View;
 import android.view.View.OnTouchListener;
@@ -38,6 +37,7 @@ import org.sufficientlysecure.keychain.ui.adapter.AsyncTaskResultWrapper;
 import org.sufficientlysecure.keychain.ui.adapter.ImportKeysAdapter;
 import org.sufficientlysecure.keychain.ui.adapter.ImportKeysListCloudLoader;
 import org.sufficientlysecure.keychain.ui.adapter.ImportKeysListLoader;
+import org.sufficientlysecure.keychain.ui.adapter.IndexedKeyRingList;
 import org.sufficientlysecure.keychain.util.InputData;
 import org.sufficientlysecure.keychain.util.Log;
 import org.sufficientlysecure.keychain.util.ParcelableFileCache.IteratorWithSize;
@@ -52,7 +52,7 @@ import java.util.Iterator;
 import java.util.List;
 
 public class ImportKeysListFragment extends ListFragment implements
-        LoaderManager.LoaderCallbacks<AsyncTaskResultWrapper<ArrayList<ImportKeysListEntry>>> {
+        LoaderManager.LoaderCallbacks<AsyncTaskResultWrapper<List<ImportKeysListEntry>>> {
     private static final String ARG_DATA_URI = "uri";
     private static final String ARG_BYTES = "bytes";
     private static final String ARG_SERVER_QUERY = "query";
@@ -65,7 +65,7 @@ public class ImportKeysListFragment extends ListFragment implements
     private static final int LOADER_ID_BYTES = 0;
     private static final int LOADER_ID_CLOUD = 1;
 
-    private LongSparseArray<ParcelableKeyRing> mCachedKeyData;
+    private IndexedKeyRingList mCachedKeyRings;
 
     public LoaderState getLoaderState() {
         return mLoaderState;
@@ -81,13 +81,15 @@ public class ImportKeysListFragment extends ListFragment implements
      * relevant elements on demand.
      */
     public IteratorWithSize<ParcelableKeyRing> getSelectedData() {
-        final ArrayList<ImportKeysListEntry> entries = getSelectedEntries();
-        final Iterator<ImportKeysListEntry> it = entries.iterator();
+        final IndexedKeyRingList keyRings = mCachedKeyRings;
+        final List<Integer> positions = keyRings != null
+                ? keyRings.getSelectedPositions() : new ArrayList<Integer>();
+        final Iterator<Integer> it = positions.iterator();
         return new IteratorWithSize<ParcelableKeyRing>() {
 
             @Override
             public int getSize() {
-                return entries.size();
+                return positions.size();
             }
 
             @Override
@@ -98,7 +100,8 @@ public class ImportKeysListFragment extends ListFragment implements
             @Override
             public ParcelableKeyRing next() {
                 // throws NoSuchElementException if it doesn't exist, but that's not our problem
-                return mCachedKeyData.get(it.next().hashCode());
+                // keyrings are read back from the index one at a time
+                return keyRings.getKeyRing(it.next());
             }
 
             @Override
@@ -207,8 +210,14 @@ public class ImportKeysListFragment extends ListFragment implements
         // Update underlying data and notify adapter of change. The adapter will
         // update the view automatically.
 
-        ImportKeysListEntry entry = mAdapter.getItem(position);
-        entry.setSelected(!entry.isSelected());
+        if (mAdapter.getData() instanceof IndexedKeyRingList) {
+            // selection is kept by the index, the entry may not even be loaded
+            IndexedKeyRingList keyRings = (IndexedKeyRingList) mAdapter.getData();
+            keyRings.setSelected(position, !keyRings.isSelected(position));
+        } else {
+            ImportKeysListEntry entry = mAdapter.getItem(position);
+            entry.setSelected(!entry.isSelected());
+        }
         mAdapter.notifyDataSetChanged();
     }
 
@@ -245,7 +254,7 @@ public class ImportKeysListFragment extends ListFragment implements
     }
 
     @Override
-    public Loader<AsyncTaskResultWrapper<ArrayList<ImportKeysListEntry>>>
+    public Loader<AsyncTaskResultWrapper<List<ImportKeysListEntry>>>
     onCreateLoader(int id, Bundle args) {
         switch (id) {
             case LOADER_ID_BYTES: {
@@ -264,8 +273,8 @@ public class ImportKeysListFragment extends ListFragment implements
     }
 
     @Override
-    public void onLoadFinished(Loader<AsyncTaskResultWrapper<ArrayList<ImportKeysListEntry>>> loader,
-                               AsyncTaskResultWrapper<ArrayList<ImportKeysListEntry>> data) {
+    public void onLoadFinished(Loader<AsyncTaskResultWrapper<List<ImportKeysListEntry>>> loader,
+                               AsyncTaskResultWrapper<List<ImportKeysListEntry>> data) {
         // Swap the new cursor in. (The framework will take care of closing the
         // old cursor once we return.)
 
@@ -284,8 +293,8 @@ public class ImportKeysListFragment extends ListFragment implements
             setListShownNoAnimation(true);
         }
 
-        // free old cached key data
-        mCachedKeyData = null;
+        // free old cached key data, the index itself is closed by its loader
+        mCachedKeyRings = null;
 
         GetKeyResult getKeyResult = (GetKeyResult) data.getOperationResult();
         switch (loader.getId()) {
@@ -293,7 +302,7 @@ public class ImportKeysListFragment extends ListFragment implements
 
                 if (getKeyResult.success()) {
                     // No error
-                    mCachedKeyData = ((ImportKeysListLoader) loader).getParcelableRings();
+                    mCachedKeyRings = ((ImportKeysListLoader) loader).getKeyRings();
                 } else {
                     getKeyResult.createNotify(getActivity()).show();
                 }
@@ -314,11 +323,12 @@ public class ImportKeysListFragment extends ListFragment implements
     }
 
     @Override
-    public void onLoaderReset(Loader<AsyncTaskResultWrapper<ArrayList<ImportKeysListEntry>>> loader) {
+    public void onLoaderReset(Loader<AsyncTaskResultWrapper<List<ImportKeysListEntry>>> loader) {
         switch (loader.getId()) {
             case LOADER_ID_BYTES:
-                // Clear the data in the adapter.
+                // Clear the data in the adapter, the loader closes its index after this
                 mAdapter.clear();
+                mCachedKeyRings = null;
                 break;
             case LOADER_ID_CLOUD:
                 // Clear the data in the adapter.
@@ -90,6 +90,9 @@ public class SettingsActivity extends PreferenceActivity {
             initializePassphraseCacheSubs(
                     (CheckBoxPreference) findPreference(Constants.Pref.PASSPHRASE_CACHE_SUBS));
 
+            initializePassphraseCacheUnlockedKeys(
+                    (CheckBoxPreference) findPreference(Constants.Pref.PASSPHRASE_CACHE_UNLOCKED_KEYS));
+
             initializePassphraseCacheTtl(
                     (IntegerListPreference) findPreference(Constants.Pref.PASSPHRASE_CACHE_TTL));
 
@@ -262,6 +265,9 @@ public class SettingsActivity extends PreferenceActivity {
             initializePassphraseCacheSubs(
                     (CheckBoxPreference) findPreference(Constants.Pref.PASSPHRASE_CACHE_SUBS));
 
+            initializePassphraseCacheUnlockedKeys(
+                    (CheckBoxPreference) findPreference(Constants.Pref.PASSPHRASE_CACHE_UNLOCKED_KEYS));
+
             initializePassphraseCacheTtl(
                     (IntegerListPreference) findPreference(Constants.Pref.PASSPHRASE_CACHE_TTL));
 
@@ -330,6 +336,17 @@ public class SettingsActivity extends PreferenceActivity {
         });
     }
 
+    private static void initializePassphraseCacheUnlockedKeys(final CheckBoxPreference mPassphraseCacheUnlockedKeys) {
+        mPassphraseCacheUnlockedKeys.setChecked(sPreferences.getPassphraseCacheUnlockedKeys());
+        mPassphraseCacheUnlockedKeys.setOnPreferenceChangeListener(new Preference.OnPreferenceChangeListener() {
+            public boolean onPreferenceChange(Preference preference, Object newValue) {
+                mPassphraseCacheUnlockedKeys.setChecked((Boolean) newValue);
+                sPreferences.setPassphraseCacheUnlockedKeys((Boolean) newValue);
+                return false;
+            }
+        });
+    }
+
     private static void initializePassphraseCacheTtl(final IntegerListPreference mPassphraseCacheTtl) {
         mPassphraseCacheTtl.setValue("" + sPreferences.getPassphraseCacheTtl());
         mPassphraseCacheTtl.setSummary(mPassphraseCacheTtl.getEntry());
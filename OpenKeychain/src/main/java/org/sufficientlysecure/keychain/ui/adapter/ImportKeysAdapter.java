@@ -17,11 +17,9 @@
 
 package org.sufficientlysecure.keychain.ui.adapter;
 
-import android.annotation.TargetApi;
 import android.app.Activity;
 import android.content.Context;
 import android.graphics.Color;
-import android.os.Build;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
@@ -68,22 +66,43 @@ public class ImportKeysAdapter extends ArrayAdapter<ImportKeysListEntry> {
         mInflater = (LayoutInflater) activity.getSystemService(Context.LAYOUT_INFLATER_SERVICE);
     }
 
-    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    /** Sets the entries to display. These are not copied into the ArrayAdapter, so
+     * lists like IndexedKeyRingList only create the entries which are actually shown.
+     * Entries of an IndexedKeyRingList are created in the background, a placeholder
+     * is shown until they are available.
+     */
     public void setData(List<ImportKeysListEntry> data) {
-
         clear();
-        if (data != null) {
-            this.mData = data;
+        mData = data;
+        if (data instanceof IndexedKeyRingList) {
+            ((IndexedKeyRingList) data).setOnEntryLoadedListener(
+                    new IndexedKeyRingList.OnEntryLoadedListener() {
+                        @Override
+                        public void onEntryLoaded(int position) {
+                            notifyDataSetChanged();
+                        }
+                    });
+        }
+        notifyDataSetChanged();
+    }
 
-            // add data to extended ArrayAdapter
-            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
-                addAll(data);
-            } else {
-                for (ImportKeysListEntry entry : data) {
-                    add(entry);
-                }
-            }
+    @Override
+    public void clear() {
+        if (mData instanceof IndexedKeyRingList) {
+            ((IndexedKeyRingList) mData).setOnEntryLoadedListener(null);
         }
+        mData = null;
+        super.clear();
+    }
+
+    @Override
+    public int getCount() {
+        return mData == null ? 0 : mData.size();
+    }
+
+    @Override
+    public ImportKeysListEntry getItem(int position) {
+        return mData.get(position);
     }
 
     public List<ImportKeysListEntry> getData() {
@@ -117,8 +136,13 @@ public class ImportKeysAdapter extends ArrayAdapter<ImportKeysListEntry> {
     }
 
     public View getView(int position, View convertView, ViewGroup parent) {
-        ImportKeysListEntry entry = mData.get(position);
-        Highlighter highlighter = new Highlighter(mActivity, entry.getQuery());
+        ImportKeysListEntry entry;
+        if (mData instanceof IndexedKeyRingList) {
+            // don't decode keyrings on the ui thread
+            entry = ((IndexedKeyRingList) mData).getIfLoaded(position);
+        } else {
+            entry = mData.get(position);
+        }
         ViewHolder holder;
         if (convertView == null) {
             holder = new ViewHolder();
@@ -137,6 +161,13 @@ public class ImportKeysAdapter extends ArrayAdapter<ImportKeysListEntry> {
             holder = (ViewHolder) convertView.getTag();
         }
 
+        if (entry == null) {
+            bindPlaceholder(holder, ((IndexedKeyRingList) mData).isSelected(position));
+            return convertView;
+        }
+
+        Highlighter highlighter = new Highlighter(mActivity, entry.getQuery());
+
         // main user id
         String userId = entry.getUserIds().get(0);
         String[] userIdSplit = KeyRing.splitUserId(userId);
@@ -271,4 +302,18 @@ public class ImportKeysAdapter extends ArrayAdapter<ImportKeysListEntry> {
         return convertView;
     }
 
+    /** Shows an entry which is not loaded yet. */
+    private void bindPlaceholder(ViewHolder holder, boolean selected) {
+        holder.mainUserId.setText(R.string.import_list_loading);
+        holder.mainUserId.setTextColor(getContext().getResources().getColor(R.color.bg_gray));
+        holder.mainUserIdRest.setVisibility(View.GONE);
+        holder.keyId.setText("");
+        holder.fingerprint.setVisibility(View.GONE);
+        holder.algorithm.setVisibility(View.GONE);
+        holder.status.setVisibility(View.GONE);
+        holder.userIdsList.setVisibility(View.GONE);
+        holder.userIdsDivider.setVisibility(View.GONE);
+        holder.checkBox.setChecked(selected);
+    }
+
 }
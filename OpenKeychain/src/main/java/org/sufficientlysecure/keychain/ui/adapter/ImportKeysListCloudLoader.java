@@ -30,9 +30,10 @@ import org.sufficientlysecure.keychain.util.Log;
 import org.sufficientlysecure.keychain.util.Preferences;
 
 import java.util.ArrayList;
+import java.util.List;
 
 public class ImportKeysListCloudLoader
-        extends AsyncTaskLoader<AsyncTaskResultWrapper<ArrayList<ImportKeysListEntry>>> {
+        extends AsyncTaskLoader<AsyncTaskResultWrapper<List<ImportKeysListEntry>>> {
     Context mContext;
 
 
@@ -40,7 +41,7 @@ public class ImportKeysListCloudLoader
     String mServerQuery;
 
     private ArrayList<ImportKeysListEntry> mEntryList = new ArrayList<>();
-    private AsyncTaskResultWrapper<ArrayList<ImportKeysListEntry>> mEntryListWrapper;
+    private AsyncTaskResultWrapper<List<ImportKeysListEntry>> mEntryListWrapper;
 
     public ImportKeysListCloudLoader(Context context, String serverQuery, Preferences.CloudSearchPrefs cloudPrefs) {
         super(context);
@@ -50,7 +51,7 @@ public class ImportKeysListCloudLoader
     }
 
     @Override
-    public AsyncTaskResultWrapper<ArrayList<ImportKeysListEntry>> loadInBackground() {
+    public AsyncTaskResultWrapper<List<ImportKeysListEntry>> loadInBackground() {
         mEntryListWrapper = new AsyncTaskResultWrapper<>(mEntryList, null);
 
         if (mServerQuery == null) {
@@ -87,7 +88,7 @@ public class ImportKeysListCloudLoader
     }
 
     @Override
-    public void deliverResult(AsyncTaskResultWrapper<ArrayList<ImportKeysListEntry>> data) {
+    public void deliverResult(AsyncTaskResultWrapper<List<ImportKeysListEntry>> data) {
         super.deliverResult(data);
     }
 
@@ -19,15 +19,11 @@ package org.sufficientlysecure.keychain.ui.adapter;
 
 import android.content.Context;
 import android.support.v4.content.AsyncTaskLoader;
-import android.support.v4.util.LongSparseArray;
 
 import org.sufficientlysecure.keychain.Constants;
 import org.sufficientlysecure.keychain.keyimport.ImportKeysListEntry;
-import org.sufficientlysecure.keychain.keyimport.ParcelableKeyRing;
 import org.sufficientlysecure.keychain.operations.results.GetKeyResult;
 import org.sufficientlysecure.keychain.operations.results.OperationResult;
-import org.sufficientlysecure.keychain.pgp.UncachedKeyRing;
-import org.sufficientlysecure.keychain.pgp.UncachedKeyRing.IteratorWithIOThrow;
 import org.sufficientlysecure.keychain.util.InputData;
 import org.sufficientlysecure.keychain.util.Log;
 import org.sufficientlysecure.keychain.util.PositionAwareInputStream;
@@ -35,16 +31,17 @@ import org.sufficientlysecure.keychain.util.PositionAwareInputStream;
 import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.List;
 
 public class ImportKeysListLoader
-        extends AsyncTaskLoader<AsyncTaskResultWrapper<ArrayList<ImportKeysListEntry>>> {
+        extends AsyncTaskLoader<AsyncTaskResultWrapper<List<ImportKeysListEntry>>> {
 
     final Context mContext;
     final InputData mInputData;
 
-    ArrayList<ImportKeysListEntry> mData = new ArrayList<>();
-    LongSparseArray<ParcelableKeyRing> mParcelableRings = new LongSparseArray<>();
-    AsyncTaskResultWrapper<ArrayList<ImportKeysListEntry>> mEntryListWrapper;
+    List<ImportKeysListEntry> mData = new ArrayList<>();
+    IndexedKeyRingList mKeyRings;
+    AsyncTaskResultWrapper<List<ImportKeysListEntry>> mEntryListWrapper;
 
     public ImportKeysListLoader(Context context, InputData inputData) {
         super(context);
@@ -53,7 +50,7 @@ public class ImportKeysListLoader
     }
 
     @Override
-    public AsyncTaskResultWrapper<ArrayList<ImportKeysListEntry>> loadInBackground() {
+    public AsyncTaskResultWrapper<List<ImportKeysListEntry>> loadInBackground() {
         // This has already been loaded! nvm any further, just return
         if (mEntryListWrapper != null) {
             return mEntryListWrapper;
@@ -78,6 +75,12 @@ public class ImportKeysListLoader
 
         // Ensure the loader is stopped
         onStopLoading();
+
+        // drop the index file, a new loader indexes again
+        if (mKeyRings != null) {
+            mKeyRings.close();
+            mKeyRings = null;
+        }
     }
 
     @Override
@@ -91,19 +94,20 @@ public class ImportKeysListLoader
     }
 
     @Override
-    public void deliverResult(AsyncTaskResultWrapper<ArrayList<ImportKeysListEntry>> data) {
+    public void deliverResult(AsyncTaskResultWrapper<List<ImportKeysListEntry>> data) {
         super.deliverResult(data);
     }
 
-    public LongSparseArray<ParcelableKeyRing> getParcelableRings() {
-        return mParcelableRings;
+    /** Returns the index of all loaded keyrings, which is valid until this loader is reset. */
+    public IndexedKeyRingList getKeyRings() {
+        return mKeyRings;
     }
 
     /**
-     * Reads all PGPKeyRing objects from input
+     * Indexes all PGPKeyRing objects from input, in a single pass and without keeping
+     * them in memory.
      *
      * @param inputData
-     * @return
      */
     private void generateListOfKeyrings(InputData inputData) {
         PositionAwareInputStream progressIn = new PositionAwareInputStream(
@@ -114,14 +118,12 @@ public class ImportKeysListLoader
         // armor blocks
         BufferedInputStream bufferedInput = new BufferedInputStream(progressIn);
         try {
+            mKeyRings = new IndexedKeyRingList(mContext);
+            mData = mKeyRings;
+            mEntryListWrapper = new AsyncTaskResultWrapper<>(mData, mEntryListWrapper.getOperationResult());
+
             // parse all keyrings
-            IteratorWithIOThrow<UncachedKeyRing> it = UncachedKeyRing.fromStream(bufferedInput);
-            while (it.hasNext()) {
-                UncachedKeyRing ring = it.next();
-                ImportKeysListEntry item = new ImportKeysListEntry(getContext(), ring);
-                mData.add(item);
-                mParcelableRings.put(item.hashCode(), new ParcelableKeyRing(ring.getEncoded()));
-            }
+            mKeyRings.index(bufferedInput);
         } catch (IOException e) {
             Log.e(Constants.TAG, "IOException on parsing key file! Return NoValidKeysException!", e);
             OperationResult.OperationLog log = new OperationResult.OperationLog();
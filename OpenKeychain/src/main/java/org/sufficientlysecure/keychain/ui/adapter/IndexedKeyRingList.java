@@ -0,0 +1,302 @@
+/*
+ * Copyright (C) 2014 Vincent Breitmoser <v.breitmoser@mugenguild.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.ui.adapter;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.v4.util.LruCache;
+
+import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.keyimport.ImportKeysListEntry;
+import org.sufficientlysecure.keychain.keyimport.ParcelableKeyRing;
+import org.sufficientlysecure.keychain.pgp.UncachedKeyRing;
+import org.sufficientlysecure.keychain.pgp.UncachedKeyRing.IteratorWithIOThrow;
+import org.sufficientlysecure.keychain.pgp.exception.PgpGeneralException;
+import org.sufficientlysecure.keychain.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.AbstractList;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/** A list of import entries for all keyrings in a (possibly huge) key file.
+ *
+ * The file is parsed in a single sequential pass, which spills the binary
+ * encoding of each keyring into a file in the cache directory and only keeps
+ * its offset in memory. Entries are created from there as they are requested,
+ * which for the import list means while they are visible, and only a couple
+ * of screens worth of them are kept around. The list view requests entries
+ * through getIfLoaded, which decodes them on a background thread. The selection
+ * state of all entries is kept here, separately from the entries themselves.
+ *
+ * Keyrings are indexed in their binary form rather than by their position in
+ * the original file, since that is usually ascii armored and may not even be
+ * seekable.
+ *
+ */
+public class IndexedKeyRingList extends AbstractList<ImportKeysListEntry> {
+
+    // number of entries kept in memory, a couple of screens worth
+    private static final int CACHED_ENTRIES = 64;
+
+    public interface OnEntryLoadedListener {
+        /** Called on the main thread, once an entry requested from getIfLoaded is available. */
+        void onEntryLoaded(int position);
+    }
+
+    private final Context mContext;
+    private final File mFile;
+    private RandomAccessFile mRandomAccess;
+
+    // keyring i is stored from mOffsets[i] up to mOffsets[i+1]
+    private long[] mOffsets = new long[64];
+    private int mSize = 0;
+    private final BitSet mSecret = new BitSet();
+    // selection state, only accessed from the main thread
+    private final BitSet mDeselected = new BitSet();
+
+    private final LruCache<Integer, ImportKeysListEntry> mEntries =
+            new LruCache<>(CACHED_ENTRIES);
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final ExecutorService mDecoder = Executors.newSingleThreadExecutor();
+    private OnEntryLoadedListener mListener;
+    // positions requested for decoding, most recent last. guarded by itself
+    private final ArrayDeque<Integer> mRequested = new ArrayDeque<>();
+    // positions which are requested or being decoded, only accessed from the main thread
+    private final BitSet mLoading = new BitSet();
+
+    public IndexedKeyRingList(Context context) throws IOException {
+        File cacheDir = context.getCacheDir();
+        if (cacheDir == null) {
+            // https://groups.google.com/forum/#!topic/android-developers/-694j87eXVU
+            throw new IOException("cache dir is null!");
+        }
+
+        mContext = context;
+        mFile = File.createTempFile("key_index", ".bin", cacheDir);
+    }
+
+    /** Reads all keyrings from the stream into the index. Keyrings read up to an
+     * IOException are kept in the list.
+     */
+    public void index(InputStream in) throws IOException {
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(mFile));
+        try {
+            IteratorWithIOThrow<UncachedKeyRing> it = UncachedKeyRing.fromStream(in);
+            while (it.hasNext()) {
+                UncachedKeyRing ring = it.next();
+                byte[] encoded = ring.getEncoded();
+                out.write(encoded);
+
+                if (mSize + 1 == mOffsets.length) {
+                    mOffsets = Arrays.copyOf(mOffsets, mOffsets.length * 2);
+                }
+                mSecret.set(mSize, ring.isSecret());
+                mOffsets[mSize + 1] = mOffsets[mSize] + encoded.length;
+                mSize += 1;
+            }
+        } finally {
+            out.close();
+            mRandomAccess = new RandomAccessFile(mFile, "r");
+        }
+    }
+
+    @Override
+    public int size() {
+        return mSize;
+    }
+
+    @Override
+    public ImportKeysListEntry get(int position) {
+        if (position < 0 || position >= mSize) {
+            throw new IndexOutOfBoundsException("position " + position + ", size " + mSize);
+        }
+
+        ImportKeysListEntry entry = mEntries.get(position);
+        if (entry != null) {
+            return entry;
+        }
+
+        entry = createEntry(position);
+        entry.setSelected(!mDeselected.get(position));
+        mEntries.put(position, entry);
+        return entry;
+    }
+
+    public void setOnEntryLoadedListener(OnEntryLoadedListener listener) {
+        mListener = listener;
+    }
+
+    /** Returns the entry at this position if it is in memory. Otherwise, it is decoded
+     * on a background thread, null is returned and the listener is notified once the
+     * entry is available. Must be called from the main thread.
+     */
+    public ImportKeysListEntry getIfLoaded(int position) {
+        ImportKeysListEntry entry = mEntries.get(position);
+        if (entry != null || mLoading.get(position)) {
+            return entry;
+        }
+
+        mLoading.set(position);
+        synchronized (mRequested) {
+            mRequested.addLast(position);
+            // on fast scrolling, entries which went out of view can be dropped
+            if (mRequested.size() > CACHED_ENTRIES) {
+                mLoading.clear(mRequested.removeFirst());
+            }
+        }
+        mDecoder.execute(mDecodeTask);
+        return null;
+    }
+
+    /** Decodes the most recently requested entry and hands it to the main thread. */
+    private final Runnable mDecodeTask = new Runnable() {
+        @Override
+        public void run() {
+            final int position;
+            synchronized (mRequested) {
+                if (mRequested.isEmpty()) {
+                    // dropped, or already done by an earlier run
+                    return;
+                }
+                position = mRequested.removeLast();
+            }
+
+            final ImportKeysListEntry entry;
+            try {
+                entry = createEntry(position);
+            } catch (IllegalStateException e) {
+                if (isClosed()) {
+                    return;
+                }
+                throw e;
+            }
+
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (isClosed()) {
+                        return;
+                    }
+                    mLoading.clear(position);
+                    entry.setSelected(!mDeselected.get(position));
+                    mEntries.put(position, entry);
+                    if (mListener != null) {
+                        mListener.onEntryLoaded(position);
+                    }
+                }
+            });
+        }
+    };
+
+    public boolean isSelected(int position) {
+        return !mDeselected.get(position);
+    }
+
+    /** Sets the selection state of the entry at this position. Must be called from the
+     * main thread.
+     */
+    public void setSelected(int position, boolean selected) {
+        mDeselected.set(position, !selected);
+        ImportKeysListEntry entry = mEntries.get(position);
+        if (entry != null) {
+            entry.setSelected(selected);
+        }
+    }
+
+    /** Returns the keyring at this position, read back from the index file. */
+    public ParcelableKeyRing getKeyRing(int position) {
+        return new ParcelableKeyRing(readEncoded(position));
+    }
+
+    /** Returns positions of all selected keyrings, with public keys sorted before
+     * secret keys, see ImportExportOperation for specifics.
+     * @see org.sufficientlysecure.keychain.operations.ImportExportOperation
+     */
+    public List<Integer> getSelectedPositions() {
+        ArrayList<Integer> result = new ArrayList<>();
+        ArrayList<Integer> secrets = new ArrayList<>();
+        for (int i = 0; i < mSize; i++) {
+            if (!mDeselected.get(i)) {
+                (mSecret.get(i) ? secrets : result).add(i);
+            }
+        }
+        result.addAll(secrets);
+        return result;
+    }
+
+    /** Closes and deletes the index file. The list must not be used afterwards. */
+    public synchronized void close() {
+        mDecoder.shutdownNow();
+        mEntries.evictAll();
+        try {
+            if (mRandomAccess != null) {
+                mRandomAccess.close();
+                mRandomAccess = null;
+            }
+        } catch (IOException e) {
+            // nvm
+        }
+        //noinspection ResultOfMethodCallIgnored
+        mFile.delete();
+    }
+
+    private synchronized boolean isClosed() {
+        return mDecoder.isShutdown();
+    }
+
+    private ImportKeysListEntry createEntry(int position) {
+        try {
+            UncachedKeyRing ring = UncachedKeyRing.decodeFromData(readEncoded(position));
+            return new ImportKeysListEntry(mContext, ring);
+        } catch (PgpGeneralException e) {
+            // this was parsed just fine while indexing
+            throw new IllegalStateException("indexed keyring could not be parsed", e);
+        }
+    }
+
+    private synchronized byte[] readEncoded(int position) {
+        if (mRandomAccess == null) {
+            throw new IllegalStateException("index file is closed");
+        }
+        byte[] encoded = new byte[(int) (mOffsets[position + 1] - mOffsets[position])];
+        try {
+            mRandomAccess.seek(mOffsets[position]);
+            mRandomAccess.readFully(encoded);
+        } catch (IOException e) {
+            Log.e(Constants.TAG, "error reading keyring from index file", e);
+            // the file is in our private cache dir, this should not happen
+            throw new IllegalStateException("index file unreadable", e);
+        }
+        return encoded;
+    }
+
+}
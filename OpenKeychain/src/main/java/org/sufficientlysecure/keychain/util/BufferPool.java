@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2014 Vincent Breitmoser <v.breitmoser@mugenguild.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.util;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+/** A process-wide pool of fixed size byte buffers for streaming operations.
+ *
+ * Every streaming operation used to allocate a few fresh buffers of
+ * BUFFER_SIZE bytes, which adds up under continuous use. Buffers borrowed
+ * from this pool must be returned with release() once they are no longer
+ * referenced, including by any stream they were handed to. At most
+ * MAX_POOLED buffers are kept, any further ones are left to the garbage
+ * collector.
+ *
+ * Buffers are zeroed when they are released, since they pass plaintext
+ * through all kinds of operations, and must not hand it on to the next
+ * borrower or leave it lying around in memory. The number of acquisitions
+ * served from the pool (hits) and by allocation (misses) are counted, for
+ * diagnostics. BufferPoolTest contains an opt-in benchmark which compares
+ * pooled buffers with plain allocation.
+ *
+ */
+public class BufferPool {
+
+    public static final int BUFFER_SIZE = 1 << 16;
+    static final int MAX_POOLED = 8;
+
+    private static final BufferPool sInstance = new BufferPool();
+
+    public static BufferPool getInstance() {
+        return sInstance;
+    }
+
+    private final ArrayDeque<byte[]> mBuffers = new ArrayDeque<>();
+    private long mHits, mMisses;
+
+    private BufferPool() {
+    }
+
+    /** Borrows a buffer of BUFFER_SIZE bytes. */
+    public byte[] acquire() {
+        synchronized (mBuffers) {
+            byte[] buffer = mBuffers.poll();
+            if (buffer != null) {
+                mHits += 1;
+                return buffer;
+            }
+            mMisses += 1;
+        }
+        return new byte[BUFFER_SIZE];
+    }
+
+    /** Zeroes a buffer and returns it to the pool. Null is ignored, for convenience in
+     * finally blocks. */
+    public void release(byte[] buffer) {
+        if (buffer == null || buffer.length != BUFFER_SIZE) {
+            return;
+        }
+        // also if it isn't pooled after all, it's left to the garbage collector otherwise
+        Arrays.fill(buffer, (byte) 0);
+        synchronized (mBuffers) {
+            if (mBuffers.size() < MAX_POOLED) {
+                mBuffers.push(buffer);
+            }
+        }
+    }
+
+    /** Returns the number of acquired buffers which were taken from the pool. */
+    public long getHits() {
+        synchronized (mBuffers) {
+            return mHits;
+        }
+    }
+
+    /** Returns the number of acquired buffers which had to be allocated. */
+    public long getMisses() {
+        synchronized (mBuffers) {
+            return mMisses;
+        }
+    }
+
+    /** Returns the number of buffers currently idle in the pool. */
+    public int getPooledCount() {
+        synchronized (mBuffers) {
+            return mBuffers.size();
+        }
+    }
+
+    @Override
+    public String toString() {
+        synchronized (mBuffers) {
+            return "BufferPool{pooled=" + mBuffers.size()
+                    + ", hits=" + mHits + ", misses=" + mMisses + "}";
+        }
+    }
+
+}
@@ -41,7 +41,10 @@ import org.sufficientlysecure.keychain.R;
 import org.sufficientlysecure.keychain.compatibility.DialogFragmentWorkaround;
 import org.sufficientlysecure.keychain.ui.dialog.FileDialogFragment;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
 import java.text.DecimalFormat;
 
 public class FileHelper {
@@ -216,6 +219,38 @@ public class FileHelper {
         return size;
     }
 
+    /**
+     * Reads the whole content behind a uri into memory, only use this for data which
+     * is known to be of reasonable size.
+     */
+    public static byte[] readBytes(Context context, Uri uri) throws IOException {
+        return readBytes(context, uri, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Reads the content behind a uri into memory, but at most maxLength bytes. To find out
+     * whether there was more, ask for one byte more than needed.
+     */
+    public static byte[] readBytes(Context context, Uri uri, int maxLength) throws IOException {
+        InputStream in = context.getContentResolver().openInputStream(uri);
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = BufferPool.getInstance().acquire();
+            try {
+                int length;
+                while (out.size() < maxLength && (length = in.read(buffer, 0,
+                        Math.min(buffer.length, maxLength - out.size()))) > 0) {
+                    out.write(buffer, 0, length);
+                }
+            } finally {
+                BufferPool.getInstance().release(buffer);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
     /**
      * Retrieve thumbnail of file, document api feature and thus KitKat only
      */
@@ -24,15 +24,16 @@ import android.os.Parcelable;
 import org.sufficientlysecure.keychain.Constants;
 import org.sufficientlysecure.keychain.KeychainApplication;
 
-import java.io.DataInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
 import java.io.DataOutputStream;
-import java.io.EOFException;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
 import java.util.Iterator;
+import java.util.NoSuchElementException;
 
 /**
  * When sending large data (over 1MB) through Androids Binder IPC you get
@@ -40,9 +41,28 @@ import java.util.Iterator;
  * <p/>
  * To overcome this problem, we cache large Parcelables into a file in our private cache directory
  * instead of sending them through IPC.
+ * <p/>
+ * The file starts with a header, followed by the marshalled entries, each prefixed with
+ * its length, and an index of their offsets at the end:
+ * <pre>
+ *   int    MAGIC
+ *   int    number of entries
+ *   long   offset of the index, 0 until the file is completely written
+ *   int    resume position, the number of entries which were processed completely
+ *   ...    entries
+ *   long[] offset of each entry
+ * </pre>
+ * Files are opened for reading only, which allows random access and counting entries
+ * without reading them. The consumer of an iterator can record in the file itself how
+ * many entries it has processed for good, so iteration can be resumed after those if
+ * the process dies in between.
  */
 public class ParcelableFileCache<E extends Parcelable> {
 
+    private static final int MAGIC = 0x50434c32;
+    private static final int HEADER_SIZE = 20;
+    private static final int POS_RESUME = 16;
+
     private Context mContext;
 
     private final String mFilename;
@@ -56,106 +76,153 @@ public class ParcelableFileCache<E extends Parcelable> {
         writeCache(it.getSize(), it);
     }
 
+    /** Writes all entries to the cache file. The number of entries is only used as a hint,
+     * the file records how many were actually written.
+     */
     public void writeCache(int numEntries, Iterator<E> it) throws IOException {
 
-        File cacheDir = mContext.getCacheDir();
-        if (cacheDir == null) {
-            // https://groups.google.com/forum/#!topic/android-developers/-694j87eXVU
-            throw new IOException("cache dir is null!");
-        }
+        File tempFile = getCacheFile();
 
-        File tempFile = new File(mContext.getCacheDir(), mFilename);
+        long[] offsets = new long[Math.max(numEntries, 16)];
+        int count = 0;
+        long offset = HEADER_SIZE;
 
-        DataOutputStream oos = new DataOutputStream(new FileOutputStream(tempFile));
+        DataOutputStream oos = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tempFile)));
+        try {
+            // the rest of the header is filled in once all entries are written, a zero
+            // index offset marks the file as incomplete until then
+            oos.writeInt(MAGIC);
+            oos.write(new byte[HEADER_SIZE - 4]);
+
+            while (it.hasNext()) {
+                Parcel p = Parcel.obtain(); // creating empty parcel object
+                p.writeParcelable(it.next(), 0); // saving bundle as parcel
+                byte[] buf = p.marshall();
+                p.recycle();
+
+                if (count == offsets.length) {
+                    offsets = Arrays.copyOf(offsets, offsets.length * 2);
+                }
+                offsets[count++] = offset;
 
-        oos.writeInt(numEntries);
+                oos.writeInt(buf.length);
+                oos.write(buf);
+                offset += 4 + buf.length;
+            }
 
-        while (it.hasNext()) {
-            Parcel p = Parcel.obtain(); // creating empty parcel object
-            p.writeParcelable(it.next(), 0); // saving bundle as parcel
-            byte[] buf = p.marshall();
-            oos.writeInt(buf.length);
-            oos.write(buf);
-            p.recycle();
+            for (int i = 0; i < count; i++) {
+                oos.writeLong(offsets[i]);
+            }
+        } finally {
+            oos.close();
         }
 
-        oos.close();
+        // only a complete file gets a valid header
+        RandomAccessFile raf = new RandomAccessFile(tempFile, "rw");
+        try {
+            raf.writeInt(MAGIC);
+            raf.writeInt(count);
+            raf.writeLong(offset);
+            raf.writeInt(0);
+        } finally {
+            raf.close();
+        }
 
     }
 
-    public IteratorWithSize<E> readCache() throws IOException {
-        return readCache(true);
+    /** Returns the number of entries in the cache file, without reading them. */
+    public int getNumEntries() throws IOException {
+        CacheIndex index = new CacheIndex(getCacheFile());
+        try {
+            return index.mNumEntries;
+        } finally {
+            index.close();
+        }
     }
 
-    public IteratorWithSize<E> readCache(final boolean deleteAfterRead) throws IOException {
-
-        File cacheDir = mContext.getCacheDir();
-        if (cacheDir == null) {
-            // https://groups.google.com/forum/#!topic/android-developers/-694j87eXVU
-            throw new IOException("cache dir is null!");
+    /** Returns the number of entries which were recorded as processed completely by
+     * the consumer of an iterator over this cache file.
+     * @see ResumableIterator#checkpoint(int)
+     */
+    public int getResumePosition() throws IOException {
+        CacheIndex index = new CacheIndex(getCacheFile());
+        try {
+            return index.mResumePosition;
+        } finally {
+            index.close();
         }
+    }
 
-        final File tempFile = new File(cacheDir, mFilename);
-        final DataInputStream ois;
+    /** Reads a single entry from the cache file. */
+    public E readEntry(int position) throws IOException {
+        CacheIndex index = new CacheIndex(getCacheFile());
         try {
-            ois = new DataInputStream(new FileInputStream(tempFile));
-        } catch (FileNotFoundException e) {
-            Log.e(Constants.TAG, "parcel import file not existing", e);
-            throw new IOException(e);
+            if (position < 0 || position >= index.mNumEntries) {
+                throw new IOException("no entry at position " + position);
+            }
+            return index.unmarshall(position);
+        } finally {
+            index.close();
         }
+    }
 
-        final int numEntries = ois.readInt();
+    public ResumableIterator<E> readCache() throws IOException {
+        return readCache(true);
+    }
 
-        return new IteratorWithSize<E>() {
+    public ResumableIterator<E> readCache(boolean deleteAfterRead) throws IOException {
+        return readCache(deleteAfterRead, false);
+    }
 
-            E mRing = null;
-            boolean closed = false;
-            byte[] buf = new byte[512];
+    /** Returns an iterator over the entries of the cache file. The file is kept open
+     * until the last entry was read, or the iterator is closed.
+     *
+     * @param deleteAfterRead delete the file once the last entry was read
+     * @param resume start after the last entry which was recorded as processed by the
+     *               consumer of a previous iterator, rather than at the first one. The
+     *               size of the returned iterator is the number of remaining entries.
+     */
+    public ResumableIterator<E> readCache(final boolean deleteAfterRead, boolean resume)
+            throws IOException {
 
-            public int getSize() {
-                return numEntries;
-            }
+        final File tempFile = getCacheFile();
+        final CacheIndex index = new CacheIndex(tempFile);
 
-            private void readNext() {
-                if (mRing != null || closed) {
-                    return;
-                }
+        final int numEntries = index.mNumEntries;
+        final int start = resume ? index.mResumePosition : 0;
+        // legacy files have no header to store the position in
+        final boolean resumable = !index.isLegacy();
 
-                try {
+        return new ResumableIterator<E>() {
 
-                    int length = ois.readInt();
-                    while (buf.length < length) {
-                        buf = new byte[buf.length * 2];
-                    }
-                    ois.readFully(buf, 0, length);
-
-                    Parcel parcel = Parcel.obtain(); // creating empty parcel object
-                    parcel.unmarshall(buf, 0, length);
-                    parcel.setDataPosition(0);
-                    mRing = parcel.readParcelable(KeychainApplication.class.getClassLoader());
-                    parcel.recycle();
-                } catch (EOFException e) {
-                    // aight
-                    close();
-                } catch (IOException e) {
-                    Log.e(Constants.TAG, "Encountered IOException during cache read!", e);
-                }
+            int mPosition = start;
+            boolean mClosed = false;
 
+            public int getSize() {
+                return numEntries - start;
             }
 
             @Override
             public boolean hasNext() {
-                readNext();
-                return mRing != null;
+                if (mPosition < numEntries) {
+                    return true;
+                }
+                close();
+                return false;
             }
 
             @Override
             public E next() {
-                readNext();
+                if (mPosition >= numEntries) {
+                    throw new NoSuchElementException();
+                }
                 try {
-                    return mRing;
-                } finally {
-                    mRing = null;
+                    return index.unmarshall(mPosition++);
+                } catch (IOException e) {
+                    Log.e(Constants.TAG, "error reading entry from cache file", e);
+                    // the file is in our private cache dir, this should not happen
+                    throw new IllegalStateException("cache file unreadable", e);
                 }
             }
 
@@ -165,40 +232,153 @@ public class ParcelableFileCache<E extends Parcelable> {
             }
 
             @Override
-            public void finalize() throws Throwable {
-                close();
-                super.finalize();
-            }
-
-            private void close() {
-                if (!closed) {
-                    try {
-                        ois.close();
-                        if (deleteAfterRead) {
-                            //noinspection ResultOfMethodCallIgnored
-                            tempFile.delete();
-                        }
-                    } catch (IOException e) {
-                        // nvm
-                    }
+            public void checkpoint(int count) {
+                // there is nothing to resume for files which are deleted after reading
+                if (!resumable || deleteAfterRead) {
+                    return;
+                }
+                try {
+                    writeResumePosition(tempFile, start + count);
+                } catch (IOException e) {
+                    // not fatal, a resumed iteration will just process some entries again
+                    Log.e(Constants.TAG, "error writing resume position to cache file", e);
                 }
-                closed = true;
             }
 
+            @Override
+            public void close() {
+                if (!mClosed) {
+                    index.close();
+                    if (deleteAfterRead) {
+                        //noinspection ResultOfMethodCallIgnored
+                        tempFile.delete();
+                    }
+                }
+                mClosed = true;
+            }
 
         };
     }
 
     public boolean delete() throws IOException {
+        return getCacheFile().delete();
+    }
 
+    private File getCacheFile() throws IOException {
         File cacheDir = mContext.getCacheDir();
         if (cacheDir == null) {
             // https://groups.google.com/forum/#!topic/android-developers/-694j87eXVU
             throw new IOException("cache dir is null!");
         }
+        return new File(cacheDir, mFilename);
+    }
+
+    private static void writeResumePosition(File file, int position) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.seek(POS_RESUME);
+            raf.writeInt(position);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /** A cache file opened for random access. Only the header is read on construction,
+     * except for files in the previous format, which is the same without header and
+     * index. Those are indexed by a scan over their entries.
+     */
+    private class CacheIndex implements Closeable {
+
+        private final RandomAccessFile mFile;
+        int mNumEntries;
+        int mResumePosition;
+        private long mIndexOffset;
+        // offsets of legacy files, which have no index of their own
+        private long[] mLegacyOffsets;
+
+        CacheIndex(File file) throws IOException {
+            mFile = new RandomAccessFile(file, "r");
+            try {
+                readHeader();
+            } catch (IOException e) {
+                close();
+                throw e;
+            }
+        }
+
+        private void readHeader() throws IOException {
+            long length = mFile.length();
+            if (length < HEADER_SIZE || mFile.readInt() != MAGIC) {
+                mNumEntries = scanLegacy(length);
+                return;
+            }
+
+            mNumEntries = mFile.readInt();
+            mIndexOffset = mFile.readLong();
+            mResumePosition = Math.min(mFile.readInt(), mNumEntries);
+            if (mNumEntries < 0 || mIndexOffset < HEADER_SIZE
+                    || mIndexOffset + 8L * mNumEntries != length) {
+                throw new IOException("cache file was not completely written");
+            }
+        }
+
+        private int scanLegacy(long length) throws IOException {
+            if (length < 4) {
+                throw new IOException("cache file is truncated");
+            }
+            mLegacyOffsets = new long[16];
+            int count = 0;
+            long offset = 4;
+            while (offset + 4 <= length) {
+                if (count == mLegacyOffsets.length) {
+                    mLegacyOffsets = Arrays.copyOf(mLegacyOffsets, count * 2);
+                }
+                mLegacyOffsets[count++] = offset;
+                mFile.seek(offset);
+                offset += 4 + mFile.readInt();
+            }
+            if (offset != length) {
+                throw new IOException("cache file is truncated");
+            }
+            return count;
+        }
+
+        boolean isLegacy() {
+            return mLegacyOffsets != null;
+        }
+
+        E unmarshall(int position) throws IOException {
+            long offset;
+            if (mLegacyOffsets != null) {
+                offset = mLegacyOffsets[position];
+            } else {
+                mFile.seek(mIndexOffset + 8L * position);
+                offset = mFile.readLong();
+            }
+
+            // copy this out, parcels can only be unmarshalled from arrays
+            mFile.seek(offset);
+            int length = mFile.readInt();
+            byte[] buf = new byte[length];
+            mFile.readFully(buf);
+
+            Parcel parcel = Parcel.obtain(); // creating empty parcel object
+            parcel.unmarshall(buf, 0, length);
+            parcel.setDataPosition(0);
+            E result = parcel.readParcelable(KeychainApplication.class.getClassLoader());
+            parcel.recycle();
+            return result;
+        }
+
+        @Override
+        public void close() {
+            try {
+                mFile.close();
+            } catch (IOException e) {
+                // nvm
+            }
+        }
 
-        final File tempFile = new File(cacheDir, mFilename);
-        return tempFile.delete();
     }
 
     /** As the name implies, this is an extended iterator interface, which
@@ -209,4 +389,15 @@ public class ParcelableFileCache<E extends Parcelable> {
         int getSize();
     }
 
+    /** An iterator over a cache file, whose consumer records its progress in the file. */
+    public static interface ResumableIterator<E> extends IteratorWithSize<E>, Closeable {
+        /** Records that the first count entries handed out by this iterator were processed
+         * for good. A resumed iterator over the same file starts after those. */
+        void checkpoint(int count);
+
+        /** Closes the file, if the iterator is abandoned before reading the last entry. */
+        @Override
+        void close();
+    }
+
 }
@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2014 Vincent Breitmoser <v.breitmoser@mugenguild.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.util;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/** A buffered OutputStream which borrows its buffer from the BufferPool.
+ *
+ * The buffer is returned to the pool on close(), so this stream must always
+ * be closed. Like BufferedOutputStream, this is not thread safe.
+ *
+ */
+public class PooledBufferedOutputStream extends FilterOutputStream {
+
+    private byte[] mBuffer;
+    private int mCount;
+
+    public PooledBufferedOutputStream(OutputStream out) {
+        super(out);
+        mBuffer = BufferPool.getInstance().acquire();
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (mCount == mBuffer.length) {
+            flushBuffer();
+        }
+        mBuffer[mCount++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        // large writes skip the buffer
+        if (len >= mBuffer.length) {
+            flushBuffer();
+            out.write(b, off, len);
+            return;
+        }
+        if (len > mBuffer.length - mCount) {
+            flushBuffer();
+        }
+        System.arraycopy(b, off, mBuffer, mCount, len);
+        mCount += len;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        flushBuffer();
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (mBuffer == null) {
+            return;
+        }
+        try {
+            flush();
+        } finally {
+            BufferPool.getInstance().release(mBuffer);
+            mBuffer = null;
+            out.close();
+        }
+    }
+
+    private void flushBuffer() throws IOException {
+        if (mCount > 0) {
+            out.write(mBuffer, 0, mCount);
+            mCount = 0;
+        }
+    }
+
+}
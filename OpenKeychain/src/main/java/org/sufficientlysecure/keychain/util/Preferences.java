@@ -103,6 +103,16 @@ public class Preferences {
         editor.commit();
     }
 
+    public boolean getPassphraseCacheUnlockedKeys() {
+        return mSharedPreferences.getBoolean(Pref.PASSPHRASE_CACHE_UNLOCKED_KEYS, false);
+    }
+
+    public void setPassphraseCacheUnlockedKeys(boolean value) {
+        SharedPreferences.Editor editor = mSharedPreferences.edit();
+        editor.putBoolean(Pref.PASSPHRASE_CACHE_UNLOCKED_KEYS, value);
+        editor.commit();
+    }
+
     public int getDefaultEncryptionAlgorithm() {
         return mSharedPreferences.getInt(Constants.Pref.DEFAULT_ENCRYPTION_ALGORITHM,
                 PGPEncryptedData.AES_256);
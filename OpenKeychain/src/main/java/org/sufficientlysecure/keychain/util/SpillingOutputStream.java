@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2014 Vincent Breitmoser <v.breitmoser@mugenguild.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.util;
+
+import android.content.Context;
+import android.net.Uri;
+
+import org.sufficientlysecure.keychain.provider.TemporaryStorageProvider;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/** An OutputStream which keeps its data in memory up to a threshold, and
+ * moves it to a file from the TemporaryStorageProvider beyond that.
+ *
+ * After the stream was closed, the result is available either from
+ * toByteArray() or, if isSpilled(), from the uri returned by getUri().
+ *
+ */
+public class SpillingOutputStream extends OutputStream {
+
+    private final Context mContext;
+    private final String mTargetName;
+    private final int mThreshold;
+
+    private ByteArrayOutputStream mMemoryOut = new ByteArrayOutputStream();
+    private OutputStream mFileOut;
+    private Uri mUri;
+
+    public SpillingOutputStream(Context context, String targetName, int threshold) {
+        mContext = context;
+        mTargetName = targetName;
+        mThreshold = threshold;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (mFileOut == null && mMemoryOut.size() + 1 > mThreshold) {
+            spill();
+        }
+        if (mFileOut != null) {
+            mFileOut.write(b);
+        } else {
+            mMemoryOut.write(b);
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (mFileOut == null && mMemoryOut.size() + len > mThreshold) {
+            spill();
+        }
+        if (mFileOut != null) {
+            mFileOut.write(b, off, len);
+        } else {
+            mMemoryOut.write(b, off, len);
+        }
+    }
+
+    private void spill() throws IOException {
+        mUri = TemporaryStorageProvider.createFile(mContext, mTargetName);
+        if (mUri == null) {
+            throw new IOException("could not create temporary file");
+        }
+        mFileOut = mContext.getContentResolver().openOutputStream(mUri);
+        mMemoryOut.writeTo(mFileOut);
+        mMemoryOut = null;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (mFileOut != null) {
+            mFileOut.flush();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (mFileOut != null) {
+            mFileOut.close();
+        }
+    }
+
+    /** Returns true if the data exceeded the threshold, and was moved to a temporary file. */
+    public boolean isSpilled() {
+        return mUri != null;
+    }
+
+    /** Returns the uri of the temporary file, or null if the data is still in memory. */
+    public Uri getUri() {
+        return mUri;
+    }
+
+    /** Returns the data written to this stream. Must not be called if isSpilled(). */
+    public byte[] toByteArray() {
+        if (isSpilled()) {
+            throw new IllegalStateException("data was moved to a temporary file!");
+        }
+        return mMemoryOut.toByteArray();
+    }
+
+}